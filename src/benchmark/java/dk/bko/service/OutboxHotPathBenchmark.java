@@ -0,0 +1,78 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.SampledLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation benchmarks of the per-message work of ingest and relay.
+ * Run with: mvn -Pbenchmark test-compile exec:exec
+ * Read gc.alloc.rate.norm (bytes per operation) rather than the throughput; the budgets these numbers
+ * must stay under are held by HotPathAllocationTests (mvn test -Dbenchmark=true -Dtest=HotPathAllocationTests).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboxHotPathBenchmark {
+
+    private KafkaMessage kafkaMessage;
+    private Message<KafkaMessage> outboxMessage;
+    private OutboxPartitioner partitioner;
+    private OutboxRoutes routes;
+    private SampledLogger sampledLogger;
+
+    @Setup
+    public void setUp() {
+        kafkaMessage = new KafkaMessage("0195a3b2-7c4d-7e00-8000-000000000001", "content", "eu", LocalDateTime.now());
+        partitioner = new OutboxPartitioner("region", 12);
+        routes = OutboxRoutesTests.loadedRoutes();
+        outboxMessage = JdbcOutboxService.outboxMessage(kafkaMessage, "eu", 0, null);
+        // Logs once, then drops every line of the benchmark
+        sampledLogger = new SampledLogger(LoggerFactory.getLogger(OutboxHotPathBenchmark.class), 1);
+    }
+
+    /**
+     * The outbox message as built before, through a MessageBuilder, for comparison.
+     */
+    @Benchmark
+    public Message<KafkaMessage> messageBuilder() {
+        return MessageBuilder.withPayload(kafkaMessage)
+                .setHeader("region", "eu")
+                .setHeader("messageId", kafkaMessage.getId())
+                .setPriority(0)
+                .build();
+    }
+
+    @Benchmark
+    public Message<KafkaMessage> outboxMessage() {
+        return JdbcOutboxService.outboxMessage(kafkaMessage, "eu", 0, null);
+    }
+
+    @Benchmark
+    public Object outboxRecord() {
+        return OutboxRecord.from(outboxMessage, partitioner, routes);
+    }
+
+    @Benchmark
+    public void sampledLogDropped() {
+        sampledLogger.info("Message sent successfully to Kafka: {}", kafkaMessage.getId());
+    }
+}
@@ -0,0 +1,110 @@
+package dk.bko.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * Configuration of the connection pools.
+ * Ingest, the outbox relay and read-only queries each get their own Hikari pool, so slow listing
+ * queries and relay batches cannot starve the commits of incoming messages:
+ * - ingest (spring.datasource.hikari.*): writes, JPA and Liquibase
+ * - query (datasource.query.*): @Transactional(readOnly = true) work, optionally on a read replica
+ * - relay (datasource.relay.hikari.*): claiming and releasing outbox messages
+ * Each pool publishes its own hikaricp.* metrics, tagged with its pool name.
+ */
+@Configuration
+public class DataSourceConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataSourceConfig.class);
+
+    /**
+     * The primary data source, used by JPA, JDBC templates and the message stores.
+     * Connections are fetched lazily, once the transaction is known to be read-only or not:
+     * read-only transactions get a connection from the query pool, all others from the ingest pool.
+     *
+     * @param ingestDataSource the ingest pool
+     * @param queryDataSource the query pool
+     * @return the routing data source
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("ingestDataSource") DataSource ingestDataSource,
+                                 @Qualifier("queryDataSource") DataSource queryDataSource) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(ingestDataSource);
+        dataSource.setReadOnlyDataSource(queryDataSource);
+        return dataSource;
+    }
+
+    /**
+     * Connection pool for writes, configured with the standard spring.datasource properties.
+     *
+     * @param properties the spring.datasource properties
+     * @return the ingest pool
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource ingestDataSource(DataSourceProperties properties) {
+        return pool(properties.initializeDataSourceBuilder(), "ingest");
+    }
+
+    /**
+     * Connection pool for read-only transactions.
+     * It connects to datasource.query.url when set, typically a streaming replica, and to the primary database otherwise.
+     * Reads on a replica may lag behind the latest commits.
+     *
+     * @param properties the spring.datasource properties
+     * @param url the URL of the read replica, if any
+     * @param username the user name for the read replica
+     * @param password the password for the read replica
+     * @return the query pool
+     */
+    @Bean
+    @ConfigurationProperties("datasource.query.hikari")
+    public HikariDataSource queryDataSource(DataSourceProperties properties,
+                                            @Value("${datasource.query.url:}") String url,
+                                            @Value("${datasource.query.username:}") String username,
+                                            @Value("${datasource.query.password:}") String password) {
+        if (url.isEmpty()) {
+            return pool(properties.initializeDataSourceBuilder(), "query");
+        }
+        logger.info("Routing read-only transactions to replica {}", url);
+        return pool(DataSourceBuilder.create(properties.getClassLoader())
+                .driverClassName(properties.determineDriverClassName())
+                .url(url)
+                .username(username.isEmpty() ? properties.determineUsername() : username)
+                .password(password.isEmpty() ? properties.determinePassword() : password), "query");
+    }
+
+    /**
+     * Small dedicated connection pool for the outbox relay and the release of delayed messages.
+     * It always connects to the primary database, because the relay deletes the messages it claims.
+     *
+     * @param properties the spring.datasource properties
+     * @return the relay pool
+     */
+    @Bean
+    @ConfigurationProperties("datasource.relay.hikari")
+    public HikariDataSource relayDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = pool(properties.initializeDataSourceBuilder(), "relay");
+        dataSource.setMaximumPoolSize(3);
+        return dataSource;
+    }
+
+    private static HikariDataSource pool(DataSourceBuilder<?> builder, String poolName) {
+        HikariDataSource dataSource = builder.type(HikariDataSource.class).build();
+        dataSource.setPoolName(poolName);
+        return dataSource;
+    }
+}
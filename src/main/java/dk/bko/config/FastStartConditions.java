@@ -0,0 +1,77 @@
+package dk.bko.config;
+
+import org.springframework.core.env.PropertyResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The properties that decide which beans the application creates, frozen by the fast-start build.
+ * Spring AOT evaluates bean conditions such as @ConditionalOnProperty when the fast-start jar is built, so a
+ * different value at startup would be silently ignored. {@link FastStartConditionsRecorder} stores the values
+ * seen at build time in the jar, and {@link FastStartConditionsVerifier} refuses to start with other ones.
+ */
+public final class FastStartConditions {
+
+    /**
+     * The classpath location of the values seen at build time.
+     */
+    public static final String RESOURCE = "META-INF/fast-start/conditions.properties";
+
+    /**
+     * The properties of the bean conditions of the application.
+     */
+    public static final List<String> KEYS = List.of(
+            "outbox.store",
+            "outbox.relay.mode",
+            "region-view.enabled",
+            "consumer.processing.mode",
+            "warm-up.enabled",
+            "liquibase.skip-unchanged",
+            "spring.threads.virtual.enabled");
+
+    private FastStartConditions() {
+    }
+
+    /**
+     * The current values of the condition properties; properties that are not set are left out.
+     *
+     * @param resolver the properties to read
+     * @return the values of the condition properties
+     */
+    public static Properties snapshot(PropertyResolver resolver) {
+        Properties values = new Properties();
+        for (String key : KEYS) {
+            String value = resolver.getProperty(key);
+            if (value != null) {
+                values.setProperty(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Compares the current values of the condition properties with the ones seen at build time.
+     * Values are compared ignoring case, as @ConditionalOnProperty does.
+     *
+     * @param recorded the values seen at build time
+     * @param resolver the current properties
+     * @return one line per property that differs, empty if none does
+     */
+    public static List<String> mismatches(Properties recorded, PropertyResolver resolver) {
+        List<String> mismatches = new ArrayList<>();
+        for (String key : KEYS) {
+            String built = recorded.getProperty(key);
+            String current = resolver.getProperty(key);
+            if (built == null ? current != null : !built.equalsIgnoreCase(current)) {
+                mismatches.add(key + " is " + display(current) + " but the build used " + display(built));
+            }
+        }
+        return mismatches;
+    }
+
+    private static String display(String value) {
+        return value == null ? "(not set)" : "'" + value + "'";
+    }
+}
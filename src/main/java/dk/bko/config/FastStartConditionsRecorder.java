@@ -0,0 +1,36 @@
+package dk.bko.config;
+
+import org.springframework.beans.factory.aot.BeanFactoryInitializationAotContribution;
+import org.springframework.beans.factory.aot.BeanFactoryInitializationAotProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+
+/**
+ * Stores the values of the {@link FastStartConditions} properties in the jar when the application is processed
+ * ahead of time. Registered in META-INF/spring/aot.factories, so it only runs during the build.
+ */
+public class FastStartConditionsRecorder implements BeanFactoryInitializationAotProcessor {
+
+    @Override
+    public BeanFactoryInitializationAotContribution processAheadOfTime(ConfigurableListableBeanFactory beanFactory) {
+        if (!beanFactory.containsBean(ConfigurableApplicationContext.ENVIRONMENT_BEAN_NAME)) {
+            return null;
+        }
+        Properties values = FastStartConditions.snapshot(beanFactory.getBean(
+                ConfigurableApplicationContext.ENVIRONMENT_BEAN_NAME, Environment.class));
+        StringWriter content = new StringWriter();
+        try {
+            values.store(content, "Bean condition properties of the fast-start build");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (generationContext, code) -> generationContext.getGeneratedFiles()
+                .addResourceFile(FastStartConditions.RESOURCE, content.toString());
+    }
+}
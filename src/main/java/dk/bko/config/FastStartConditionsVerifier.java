@@ -0,0 +1,45 @@
+package dk.bko.config;
+
+import org.springframework.aot.AotDetector;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Fails the startup of an ahead-of-time processed application when a {@link FastStartConditions} property
+ * differs from the value it was built with, instead of running with beans that no longer match the configuration.
+ * Registered in META-INF/spring.factories; does nothing unless spring.aot.enabled=true.
+ */
+public class FastStartConditionsVerifier implements EnvironmentPostProcessor {
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        if (!AotDetector.useGeneratedArtifacts()) {
+            return;
+        }
+        ClassPathResource resource = new ClassPathResource(FastStartConditions.RESOURCE, application.getClassLoader());
+        if (!resource.exists()) {
+            // Processed ahead of time without the recorder
+            return;
+        }
+        Properties recorded = new Properties();
+        try (InputStream input = resource.getInputStream()) {
+            recorded.load(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<String> mismatches = FastStartConditions.mismatches(recorded, environment);
+        if (!mismatches.isEmpty()) {
+            throw new IllegalStateException("The application was processed ahead of time with other bean conditions: "
+                    + String.join("; ", mismatches) + ". Set these properties in the fast-start profile and rebuild "
+                    + "with mvn -Pfast-start package, or start without -Dspring.aot.enabled=true");
+        }
+    }
+}
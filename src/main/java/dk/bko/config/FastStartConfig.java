@@ -0,0 +1,29 @@
+package dk.bko.config;
+
+import dk.bko.jdbc.LiquibaseFingerprintPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Configuration for fast restarts, used by the fast-start profile.
+ * See also {@link dk.bko.service.StartupWarmUp}, which runs before the application reports ready.
+ */
+@Configuration
+public class FastStartConfig {
+
+    /**
+     * Skips the Liquibase update when the changelog is unchanged since it was last applied.
+     * Active with liquibase.skip-unchanged=true.
+     *
+     * @param environment the environment
+     * @return the bean post processor skipping unchanged migrations
+     */
+    @Bean
+    @ConditionalOnProperty(name = "liquibase.skip-unchanged", havingValue = "true")
+    public static BeanPostProcessor liquibaseFingerprintPostProcessor(Environment environment) {
+        return new LiquibaseFingerprintPostProcessor(environment);
+    }
+}
@@ -1,14 +1,28 @@
 package dk.bko.config;
 
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.integration.channel.AbstractSubscribableChannel;
 import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.ExecutorChannel;
+import org.springframework.integration.channel.PartitionedChannel;
 import org.springframework.integration.kafka.inbound.KafkaMessageDrivenChannelAdapter;
 import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
 import org.springframework.kafka.listener.ContainerProperties;
-import org.springframework.kafka.listener.KafkaMessageListenerContainer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
 
 /**
  * Configuration class for Spring Integration.
@@ -17,35 +31,118 @@ import org.springframework.messaging.MessageChannel;
 @Configuration
 public class IntegrationConfig {
 
-    @Value("${kafka.topic.message-outbox}")
-    private String messageOutboxTopic;
+    @Value("${kafka.topic.message-outbox-pattern}")
+    private String messageOutboxPattern;
+
+    @Value("${outbox.consumer.isolation-level:read_committed}")
+    private String outboxIsolationLevel;
+
+    @Value("${integration.kafka.concurrency:1}")
+    private int concurrency;
+
+    @Value("${integration.kafka.batch-enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${integration.kafka.dispatch:direct}")
+    private String dispatch;
+
+    @Value("${integration.kafka.dispatch-threads:8}")
+    private int dispatchThreads;
 
     /**
      * Message channel for Kafka messages.
      * This is the channel that the inbound channel adapter will write to.
+     * Depending on integration.kafka.dispatch the subscribers run:
+     * - direct: on the consumer thread
+     * - executor: on a thread pool, without any ordering guarantee
+     * - partitioned: on a fixed set of threads chosen by the record key (by partition in batch mode),
+     *   which keeps the order of each key
+     * With executor or partitioned dispatch the container commits offsets once a message is handed off.
+     *
+     * @param virtualThreadFactory the virtual thread factory, if virtual thread mode is enabled
+     * @return the Kafka channel
      */
     @Bean
-    public DirectChannel kafkaChannel() {
-        return new DirectChannel();
+    public AbstractSubscribableChannel kafkaChannel(
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory) {
+        ThreadFactory virtualThreads = virtualThreadFactory.getIfAvailable();
+        switch (dispatch) {
+            case "executor" -> {
+                return new ExecutorChannel(virtualThreads != null
+                        ? new SimpleAsyncTaskExecutor(virtualThreads) : dispatchExecutor());
+            }
+            case "partitioned" -> {
+                PartitionedChannel channel = new PartitionedChannel(dispatchThreads, this::partitionKey);
+                if (virtualThreads != null) {
+                    channel.setThreadFactory(virtualThreads);
+                }
+                return channel;
+            }
+            default -> {
+                return new DirectChannel();
+            }
+        }
     }
 
     /**
      * Kafka inbound channel adapter.
      * This adapter receives messages from Kafka and puts them on the kafka channel.
      * This is the component that was missing in the original implementation.
+     * The container runs integration.kafka.concurrency consumers; in batch mode each message
+     * carries the list of payloads of one poll, split per partition.
+     * Its consumers read the outbox topics with outbox.consumer.isolation-level.
      */
     @Bean
     public KafkaMessageDrivenChannelAdapter<String, Object> kafkaInboundChannelAdapter(
-            ConsumerFactory<String, Object> consumerFactory) {
-        
-        ContainerProperties containerProperties = new ContainerProperties(messageOutboxTopic);
-        KafkaMessageListenerContainer<String, Object> container = 
-                new KafkaMessageListenerContainer<>(consumerFactory, containerProperties);
-        
-        KafkaMessageDrivenChannelAdapter<String, Object> adapter = 
-                new KafkaMessageDrivenChannelAdapter<>(container);
-        adapter.setOutputChannel(kafkaChannel());
-        
+            ConsumerFactory<String, Object> consumerFactory,
+            @Qualifier("kafkaChannel") MessageChannel kafkaChannel,
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory) {
+
+        ContainerProperties containerProperties = new ContainerProperties(Pattern.compile(messageOutboxPattern));
+        virtualThreadFactory.ifAvailable(threadFactory ->
+                containerProperties.setListenerTaskExecutor(new SimpleAsyncTaskExecutor(threadFactory)));
+        containerProperties.setSubBatchPerPartition(batchEnabled);
+        containerProperties.getKafkaConsumerProperties()
+                .setProperty(ConsumerConfig.ISOLATION_LEVEL_CONFIG, outboxIsolationLevel);
+        ConcurrentMessageListenerContainer<String, Object> container =
+                new ConcurrentMessageListenerContainer<>(consumerFactory, containerProperties);
+        container.setConcurrency(concurrency);
+
+        KafkaMessageDrivenChannelAdapter<String, Object> adapter = new KafkaMessageDrivenChannelAdapter<>(container,
+                batchEnabled ? KafkaMessageDrivenChannelAdapter.ListenerMode.batch
+                        : KafkaMessageDrivenChannelAdapter.ListenerMode.record);
+        adapter.setOutputChannel(kafkaChannel);
+
         return adapter;
     }
-}
\ No newline at end of file
+
+    /**
+     * Thread pool for executor dispatch on the Kafka channel.
+     * Not registered as a bean, so it does not replace Spring Boot's applicationTaskExecutor.
+     */
+    private ThreadPoolTaskExecutor dispatchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(dispatchThreads);
+        executor.setMaxPoolSize(dispatchThreads);
+        executor.setThreadNamePrefix("kafka-channel-");
+        executor.setDaemon(true);
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Partition key of a message on the Kafka channel: the record key, or the Kafka partition
+     * for batch messages (which contain a single partition) and records without a key.
+     */
+    private Object partitionKey(Message<?> message) {
+        Object key = message.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+        Object partition = message.getHeaders().get(KafkaHeaders.RECEIVED_PARTITION);
+        if (key != null && !(key instanceof List)) {
+            return key;
+        }
+        if (partition instanceof List<?> partitions) {
+            return partitions.isEmpty() ? 0 : partitions.get(0);
+        }
+        return partition != null ? partition : 0;
+    }
+}
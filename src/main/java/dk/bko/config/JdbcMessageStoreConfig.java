@@ -1,8 +1,19 @@
 package dk.bko.config;
 
+import dk.bko.jdbc.DeliverAfterPreparedStatementSetter;
+import dk.bko.jdbc.OutboxClaimQueryProvider;
+import dk.bko.jdbc.OutboxClaimer;
+import dk.bko.jdbc.OutboxH2QueryProvider;
+import dk.bko.jdbc.OutboxPostgresQueryProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DatabaseDriver;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.jdbc.store.channel.ChannelMessageStoreQueryProvider;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
 import org.springframework.integration.support.locks.DefaultLockRegistry;
 import org.springframework.integration.support.locks.LockRegistry;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -16,21 +27,65 @@ import javax.sql.DataSource;
 @Configuration
 public class JdbcMessageStoreConfig {
 
+    @Value("${spring.datasource.url}")
+    private String datasourceUrl;
+
+    @Value("${outbox.message-store.allowed-patterns}")
+    private String[] allowedPatterns;
+
     /**
      * Creates a JDBC channel message store bean.
      * This uses the existing INT_MESSAGE, INT_GROUP_MESSAGE, INT_MESSAGE_GROUP, and INT_LOCK tables.
+     * Priority is enabled, so messages are claimed by descending MESSAGE_PRIORITY and then in sequence order.
+     * It runs on the primary data source, so messages are stored in the transaction of the caller.
+     * Stored messages are only deserialized into classes matching outbox.message-store.allowed-patterns.
      *
      * @param dataSource the data source
      * @return the configured JDBC channel message store
      */
     @Bean
+    @Primary
     public JdbcChannelMessageStore jdbcChannelMessageStore(DataSource dataSource) {
         JdbcChannelMessageStore messageStore = new JdbcChannelMessageStore(dataSource);
-        messageStore.setChannelMessageStoreQueryProvider(
-                new org.springframework.integration.jdbc.store.channel.PostgresChannelMessageStoreQueryProvider());
+        messageStore.setChannelMessageStoreQueryProvider(queryProvider());
+        messageStore.setPreparedStatementSetter(new DeliverAfterPreparedStatementSetter());
+        messageStore.setPriorityEnabled(true);
+        messageStore.addAllowedPatterns(allowedPatterns);
         return messageStore;
     }
 
+    /**
+     * Creates the deserializer of the outbox messages read from the table by the relays, instead of through
+     * the channel message store. Like the store, it only deserializes classes matching
+     * outbox.message-store.allowed-patterns, so a row written by anyone else cannot instantiate arbitrary classes.
+     *
+     * @return the deserializer of the outbox messages
+     */
+    @Bean
+    public AllowListDeserializingConverter outboxMessageDeserializer() {
+        AllowListDeserializingConverter deserializer = new AllowListDeserializingConverter();
+        deserializer.addAllowedPatterns(allowedPatterns);
+        return deserializer;
+    }
+
+    /**
+     * Creates the claimer of the outbox relay, which claims a batch of messages per statement from the table
+     * of the channel message store. It uses the relay's own connection pool, so relay batches never wait for
+     * ingest connections.
+     *
+     * @param relayDataSource the relay pool
+     * @param jdbcChannelMessageStore the channel message store the messages are sent to
+     * @param outboxMessageDeserializer the deserializer of the claimed messages
+     * @return the outbox claimer
+     */
+    @Bean
+    public OutboxClaimer outboxClaimer(@Qualifier("relayDataSource") DataSource relayDataSource,
+                                       JdbcChannelMessageStore jdbcChannelMessageStore,
+                                       AllowListDeserializingConverter outboxMessageDeserializer) {
+        return new OutboxClaimer(relayDataSource, (OutboxClaimQueryProvider) queryProvider(),
+                jdbcChannelMessageStore.getRegion(), outboxMessageDeserializer);
+    }
+
     /**
      * Creates a lock registry for distributed locking.
      * This is used to ensure that only one instance processes a message at a time.
@@ -42,4 +97,16 @@ public class JdbcMessageStoreConfig {
     public LockRegistry lockRegistry(JdbcTemplate jdbcTemplate) {
         return new DefaultLockRegistry();
     }
-}
\ No newline at end of file
+
+    /**
+     * Query provider for the database in use: PostgreSQL in production, H2 in the tests.
+     * On PostgreSQL messages are claimed in MESSAGE_SEQUENCE order.
+     * Both write the DELIVER_AFTER column of delayed messages and provide the claim queries of the relay.
+     */
+    private ChannelMessageStoreQueryProvider queryProvider() {
+        if (DatabaseDriver.fromJdbcUrl(datasourceUrl) == DatabaseDriver.H2) {
+            return new OutboxH2QueryProvider();
+        }
+        return new OutboxPostgresQueryProvider();
+    }
+}
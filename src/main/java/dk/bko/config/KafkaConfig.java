@@ -1,16 +1,29 @@
 package dk.bko.config;
 
+import dk.bko.service.AdaptiveRelayController;
+import dk.bko.service.OrderedParallelProcessor;
 import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.config.TopicBuilder;
 import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Configuration class for Kafka.
  * Sets up Kafka topics, templates, and listeners.
@@ -21,15 +34,43 @@ public class KafkaConfig {
     @Value("${kafka.topic.message-outbox}")
     private String messageOutboxTopic;
 
+    @Value("${kafka.topic.partitions:1}")
+    private int partitions;
+
+    @Value("${spring.kafka.listener.concurrency:1}")
+    private int listenerConcurrency;
+
+    @Value("${outbox.relay.producer-mode:plain}")
+    private String relayProducerMode;
+
+    @Value("${outbox.relay.transaction-id-prefix:outbox-relay-}")
+    private String relayTransactionIdPrefix;
+
+    @Value("${outbox.relay.adaptive.bulk-linger-ms:20}")
+    private int relayBulkLingerMs;
+
+    @Value("${outbox.relay.adaptive.bulk-batch-bytes:262144}")
+    private int relayBulkBatchBytes;
+
+    @Value("${outbox.consumer.isolation-level:read_committed}")
+    private String outboxIsolationLevel;
+
+    @Value("${consumer.batch.max-poll-records:500}")
+    private int batchMaxPollRecords;
+
+    @Value("${consumer.parallel.commit-interval-ms:500}")
+    private long parallelCommitIntervalMs;
+
     /**
-     * Creates the message outbox topic.
+     * Creates the message outbox topic with kafka.topic.partitions partitions.
+     * The partition count of an existing topic is increased on startup, never decreased.
      *
      * @return the configured topic
      */
     @Bean
     public NewTopic messageOutboxTopic() {
         return TopicBuilder.name(messageOutboxTopic)
-                .partitions(1)
+                .partitions(partitions)
                 .replicas(1)
                 .build();
     }
@@ -41,24 +82,154 @@ public class KafkaConfig {
      * @return the Kafka template
      */
     @Bean
+    @Primary
     public KafkaTemplate<String, Object> kafkaTemplate(ProducerFactory<String, Object> producerFactory) {
         return new KafkaTemplate<>(producerFactory);
     }
 
+    /**
+     * Creates the Kafka template used by the outbox relay, depending on outbox.relay.producer-mode:
+     * - plain: the regular producer
+     * - idempotent: a producer with idempotence enabled, so retries after a timeout do not duplicate records
+     * - transactional: an idempotent producer whose sends of a relay batch form one Kafka transaction
+     * The transactional producer is separate from the regular one, so the rest of the application
+     * keeps sending without transactions.
+     *
+     * @param producerFactory the producer factory
+     * @return the relay Kafka template
+     */
+    @Bean
+    public KafkaTemplate<String, Object> relayKafkaTemplate(ProducerFactory<String, Object> producerFactory) {
+        if ("plain".equals(relayProducerMode) || !(producerFactory instanceof DefaultKafkaProducerFactory)) {
+            return new KafkaTemplate<>(producerFactory);
+        }
+        return new KafkaTemplate<>(relayProducerFactory(producerFactory, new HashMap<>(), relayTransactionIdPrefix));
+    }
+
+    /**
+     * Creates the Kafka template the outbox relay sends with while it is saturated (see {@link AdaptiveRelayController}).
+     * It is a producer of its own in the same outbox.relay.producer-mode as the relay template, with
+     * outbox.relay.adaptive.bulk-linger-ms and outbox.relay.adaptive.bulk-batch-bytes, so full relay batches are
+     * sent in fewer, larger requests. Its producer is only created once the relay is first saturated.
+     *
+     * @param producerFactory the producer factory
+     * @return the bulk relay Kafka template
+     */
+    @Bean
+    public KafkaTemplate<String, Object> relayBulkKafkaTemplate(ProducerFactory<String, Object> producerFactory) {
+        if (!(producerFactory instanceof DefaultKafkaProducerFactory)) {
+            return new KafkaTemplate<>(producerFactory);
+        }
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(ProducerConfig.CLIENT_ID_CONFIG, "outbox-relay-bulk");
+        overrides.put(ProducerConfig.LINGER_MS_CONFIG, relayBulkLingerMs);
+        overrides.put(ProducerConfig.BATCH_SIZE_CONFIG, relayBulkBatchBytes);
+        if ("plain".equals(relayProducerMode)) {
+            return new KafkaTemplate<>(producerFactory.copyWithConfigurationOverride(overrides));
+        }
+        return new KafkaTemplate<>(relayProducerFactory(producerFactory, overrides, relayTransactionIdPrefix + "bulk-"));
+    }
+
+    /**
+     * Copy the producer factory with idempotence enabled, and a transaction ID prefix in transactional mode.
+     */
+    private DefaultKafkaProducerFactory<String, Object> relayProducerFactory(
+            ProducerFactory<String, Object> producerFactory, Map<String, Object> overrides, String transactionIdPrefix) {
+        overrides.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        overrides.put(ProducerConfig.ACKS_CONFIG, "all");
+        overrides.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 5);
+        DefaultKafkaProducerFactory<String, Object> relayProducerFactory =
+                (DefaultKafkaProducerFactory<String, Object>) producerFactory.copyWithConfigurationOverride(overrides);
+        if ("transactional".equals(relayProducerMode)) {
+            relayProducerFactory.setTransactionIdPrefix(transactionIdPrefix);
+        }
+        return relayProducerFactory;
+    }
+
+    /**
+     * Creates the Kafka template used by replay jobs.
+     * Replays get a producer of their own, tuned for throughput with larger batches and a short linger,
+     * so a large replay neither fills the buffer of the regular producer nor delays the outbox relay.
+     *
+     * @param producerFactory the producer factory
+     * @return the replay Kafka template
+     */
+    @Bean
+    public KafkaTemplate<String, Object> replayKafkaTemplate(ProducerFactory<String, Object> producerFactory) {
+        if (!(producerFactory instanceof DefaultKafkaProducerFactory)) {
+            return new KafkaTemplate<>(producerFactory);
+        }
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(ProducerConfig.CLIENT_ID_CONFIG, "replay");
+        overrides.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        overrides.put(ProducerConfig.ACKS_CONFIG, "all");
+        overrides.put(ProducerConfig.LINGER_MS_CONFIG, 20);
+        overrides.put(ProducerConfig.BATCH_SIZE_CONFIG, 262144);
+        return new KafkaTemplate<>(producerFactory.copyWithConfigurationOverride(overrides));
+    }
+
     /**
      * Configures the Kafka listener container factory with manual acknowledgment.
+     * The factory runs spring.kafka.listener.concurrency consumers, up to one per partition.
+     * In virtual thread mode the consumer threads are virtual threads.
+     * In parallel mode the {@link OrderedParallelProcessor} commits offsets itself, so it is
+     * registered as rebalance listener and receives idle events to commit the tail of a burst.
+     * Its consumers read the outbox topics with outbox.consumer.isolation-level.
      *
      * @param consumerFactory the consumer factory
+     * @param virtualThreadFactory the virtual thread factory, if virtual thread mode is enabled
+     * @param parallelProcessor the parallel processor, if parallel processing mode is enabled
      * @return the configured listener container factory
      */
     @Bean
     public ConcurrentKafkaListenerContainerFactory<String, Object> kafkaListenerContainerFactory(
-            ConsumerFactory<String, Object> consumerFactory) {
+            ConsumerFactory<String, Object> consumerFactory,
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory,
+            ObjectProvider<OrderedParallelProcessor> parallelProcessor) {
         
         ConcurrentKafkaListenerContainerFactory<String, Object> factory = 
                 new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory);
+        factory.setConcurrency(listenerConcurrency);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        factory.getContainerProperties().getKafkaConsumerProperties()
+                .setProperty(ConsumerConfig.ISOLATION_LEVEL_CONFIG, outboxIsolationLevel);
+        virtualThreadFactory.ifAvailable(threadFactory ->
+                factory.getContainerProperties().setListenerTaskExecutor(new SimpleAsyncTaskExecutor(threadFactory)));
+        parallelProcessor.ifAvailable(processor -> {
+            factory.getContainerProperties().setConsumerRebalanceListener(processor);
+            factory.getContainerProperties().setIdleEventInterval(parallelCommitIntervalMs);
+        });
+        return factory;
+    }
+
+    /**
+     * Configures the batch listener container factory used in batch processing mode.
+     * The listener receives all records of a poll and acknowledges them once per batch.
+     * A poll returns at most consumer.batch.max-poll-records records.
+     * Its consumers read the outbox topics with outbox.consumer.isolation-level.
+     *
+     * @param consumerFactory the consumer factory
+     * @param virtualThreadFactory the virtual thread factory, if virtual thread mode is enabled
+     * @return the configured batch listener container factory
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, Object> batchKafkaListenerContainerFactory(
+            ConsumerFactory<String, Object> consumerFactory,
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory) {
+
+        ConcurrentKafkaListenerContainerFactory<String, Object> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setConcurrency(listenerConcurrency);
+        factory.setBatchListener(true);
         factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        factory.getContainerProperties().getKafkaConsumerProperties()
+                .setProperty(ConsumerConfig.ISOLATION_LEVEL_CONFIG, outboxIsolationLevel);
+        factory.getContainerProperties().getKafkaConsumerProperties()
+                .setProperty(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(batchMaxPollRecords));
+        virtualThreadFactory.ifAvailable(threadFactory ->
+                factory.getContainerProperties().setListenerTaskExecutor(new SimpleAsyncTaskExecutor(threadFactory)));
         return factory;
     }
 }
\ No newline at end of file
@@ -1,12 +1,14 @@
 package dk.bko.config;
 
+import dk.bko.service.OutboxPartitioner;
+import dk.bko.service.OutboxShards;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.integration.channel.QueueChannel;
 import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
-import org.springframework.integration.jdbc.store.channel.ChannelMessageStoreQueryProvider;
-import org.springframework.integration.jdbc.store.channel.PostgresChannelMessageStoreQueryProvider;
+import org.springframework.integration.store.MessageGroupQueue;
 import org.springframework.messaging.PollableChannel;
 
 /**
@@ -16,35 +18,51 @@ import org.springframework.messaging.PollableChannel;
 @Configuration
 public class OutboxConfig {
 
+    /**
+     * Group of the outbox messages in the INT_CHANNEL_MESSAGE table, and of the first shard with outbox.shards.
+     */
+    public static final String OUTBOX_GROUP = "kafkaOutbox";
+
+    /**
+     * Group of the delayed outbox messages that are not due yet.
+     */
+    public static final String DELAYED_OUTBOX_GROUP = "kafkaOutboxDelayed";
+
     private final JdbcChannelMessageStore jdbcChannelMessageStore;
 
+    @Value("${outbox.shards:1}")
+    private int shards;
+
     @Autowired
     public OutboxConfig(JdbcChannelMessageStore jdbcChannelMessageStore) {
         this.jdbcChannelMessageStore = jdbcChannelMessageStore;
     }
 
     /**
-     * Creates a pollable channel backed by the JDBC message store.
-     * This channel is used to store messages that will be sent to Kafka.
+     * Creates the outbox shards, each with its own pollable channel backed by the JDBC message store.
+     * Sending inserts a row into INT_CHANNEL_MESSAGE in the caller's transaction. The relay claims the rows
+     * in batches with the {@link dk.bko.jdbc.OutboxClaimer}, which deletes them in the relay transaction,
+     * so a message is only removed when that transaction commits.
      *
-     * @return the pollable channel
+     * @param partitioner the partitioner deciding the record key of a message
+     * @return the outbox shards
      */
+    @Bean
+    public OutboxShards outboxShards(OutboxPartitioner partitioner) {
+        return new OutboxShards(shards, partitioner, jdbcChannelMessageStore);
+    }
+
     /**
-     * Creates a pollable channel backed by the JDBC message store.
-     * This channel is used to store messages that will be sent to Kafka.
+     * Creates a channel for outbox messages with a delivery time in the future.
+     * They are stored in a separate group, so they never show up in the claims of the relay;
+     * the {@link dk.bko.service.DelayedDeliveryService} moves them to the outbox group when they are due.
      *
-     * @return the pollable channel
+     * @return the delayed outbox channel
      */
     @Bean
-    public PollableChannel kafkaOutboxChannel() {
-        // For persistent queue with JDBC backing, use QueueChannel with capacity
-        QueueChannel channel = new QueueChannel(1000); // Set appropriate capacity
-        channel.setComponentName("kafkaOutboxChannel");
-
-        // The JdbcChannelMessageStore will be used by the integration framework
-        // when configured properly with XML or through IntegrationFlow DSL
+    public PollableChannel kafkaOutboxDelayedChannel() {
+        QueueChannel channel = new QueueChannel(new MessageGroupQueue(jdbcChannelMessageStore, DELAYED_OUTBOX_GROUP));
+        channel.setComponentName("kafkaOutboxDelayedChannel");
         return channel;
     }
-
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package dk.bko.config;
+
+import dk.bko.service.RegionViewProjector;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+
+/**
+ * Configuration of the region view: the compacted topic holding the latest messages of every region
+ * and the listener container of the {@link RegionViewProjector} feeding it.
+ * Active with region-view.enabled=true.
+ */
+@Configuration
+@ConditionalOnProperty(name = "region-view.enabled", havingValue = "true")
+public class RegionViewConfig {
+
+    @Value("${region-view.topic:message-region-view}")
+    private String regionViewTopic;
+
+    @Value("${region-view.partitions:1}")
+    private int partitions;
+
+    @Value("${outbox.consumer.isolation-level:read_committed}")
+    private String outboxIsolationLevel;
+
+    /**
+     * Creates the region view topic. It is compacted, so it keeps only the newest record of each region.
+     *
+     * @return the configured topic
+     */
+    @Bean
+    public NewTopic regionViewTopic() {
+        return TopicBuilder.name(regionViewTopic)
+                .partitions(partitions)
+                .replicas(1)
+                .compact()
+                .build();
+    }
+
+    /**
+     * Configures the listener container factory of the projector.
+     * The projector keeps per-region state on its consumer thread, so the factory runs a single consumer,
+     * and commits each record once it has been projected. It reads the outbox topics with
+     * outbox.consumer.isolation-level.
+     *
+     * @param consumerFactory the consumer factory
+     * @param projector the projector, which resets its state when partitions are reassigned
+     * @return the configured listener container factory
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, Object> regionViewListenerContainerFactory(
+            ConsumerFactory<String, Object> consumerFactory, RegionViewProjector projector) {
+        ConcurrentKafkaListenerContainerFactory<String, Object> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setConcurrency(1);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.RECORD);
+        factory.getContainerProperties().setConsumerRebalanceListener(projector);
+        factory.getContainerProperties().getKafkaConsumerProperties()
+                .setProperty(ConsumerConfig.ISOLATION_LEVEL_CONFIG, outboxIsolationLevel);
+        return factory;
+    }
+}
@@ -0,0 +1,69 @@
+package dk.bko.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.jdbc.ConnectionLimitingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Configuration for the opt-in virtual thread execution mode.
+ * Active only when spring.threads.virtual.enabled=true and the application runs on Java 21 or later.
+ * Spring Boot then moves Tomcat request handling and the @Scheduled relay onto virtual threads;
+ * this class does the same for the Kafka listener containers and guards the connection pools.
+ */
+@Configuration
+@ConditionalOnThreading(Threading.VIRTUAL)
+public class VirtualThreadConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    /**
+     * Thread factory for the Kafka listener containers and consumer workers, so that blocking work
+     * parks a virtual thread instead of occupying a platform thread.
+     * Exposed as a thread factory rather than an executor, so Spring Boot still creates its applicationTaskExecutor.
+     *
+     * @return the virtual thread factory
+     */
+    @Bean
+    public ThreadFactory virtualThreadFactory() {
+        return new VirtualThreadTaskExecutor("virtual-").getVirtualThreadFactory();
+    }
+
+    /**
+     * Wraps each Hikari pool in a {@link ConnectionLimitingDataSource}, so virtual threads queue fairly
+     * in front of the pool instead of exhausting it.
+     * The permits of each pool are set with virtual-threads.jdbc.ingest.max-concurrent-connections (query, relay)
+     * and default to its maximum pool size. The pool stays reachable with unwrap, and is closed with the wrapper.
+     *
+     * @param environment the environment to read the limits from
+     * @return the bean post processor wrapping the pools
+     */
+    @Bean
+    public static BeanPostProcessor connectionLimitingDataSourcePostProcessor(Environment environment) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof HikariDataSource hikari)) {
+                    return bean;
+                }
+                int maxConnections = environment.getProperty(
+                        "virtual-threads.jdbc." + hikari.getPoolName() + ".max-concurrent-connections", Integer.class,
+                        hikari.getMaximumPoolSize());
+                long acquireTimeout = environment.getProperty(
+                        "virtual-threads.jdbc.acquire-timeout-ms", Long.class,
+                        hikari.getConnectionTimeout());
+                logger.info("Limiting data source '{}' to {} concurrent connections", beanName, maxConnections);
+                return new ConnectionLimitingDataSource(hikari, maxConnections, acquireTimeout);
+            }
+        };
+    }
+}
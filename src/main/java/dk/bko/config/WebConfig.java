@@ -0,0 +1,56 @@
+package dk.bko.config;
+
+import dk.bko.service.ShutdownCoordinator;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Configuration class for Spring MVC.
+ * Routes the ingest endpoints through the {@link ShutdownCoordinator}, so they refuse new messages
+ * with 503 while the application drains and the coordinator knows when the last one has been stored.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private static final String ADMITTED = WebConfig.class.getName() + ".admitted";
+
+    private final ShutdownCoordinator shutdownCoordinator;
+
+    public WebConfig(ShutdownCoordinator shutdownCoordinator) {
+        this.shutdownCoordinator = shutdownCoordinator;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                if (!HttpMethod.POST.matches(request.getMethod())) {
+                    return true;
+                }
+                if (!shutdownCoordinator.admitIngest()) {
+                    response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                    return false;
+                }
+                request.setAttribute(ADMITTED, Boolean.TRUE);
+                return true;
+            }
+
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                        Exception ex) {
+                if (request.getAttribute(ADMITTED) != null) {
+                    shutdownCoordinator.ingestCompleted();
+                }
+            }
+        }).addPathPatterns("/api/messages", "/api/messages/outbox", "/api/channel/send");
+    }
+}
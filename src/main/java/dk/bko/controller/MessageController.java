@@ -1,6 +1,8 @@
 package dk.bko.controller;
 
 import dk.bko.entity.Message;
+import dk.bko.service.IdempotencyKeys;
+import dk.bko.service.MessageLiveTail;
 import dk.bko.service.MessageService;
 import dk.bko.service.JdbcOutboxService;
 import io.swagger.v3.oas.annotations.Operation;
@@ -13,15 +15,23 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
 
 /**
  * REST controller for message operations.
@@ -33,14 +43,21 @@ import java.util.Optional;
 public class MessageController {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageController.class);
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final String IDEMPOTENT_REPLAYED_HEADER = "Idempotent-Replayed";
 
     private final MessageService messageService;
     private final JdbcOutboxService outboxService;
+    private final IdempotencyKeys idempotencyKeys;
+    private final MessageLiveTail liveTail;
 
     @Autowired
-    public MessageController(MessageService messageService, JdbcOutboxService outboxService) {
+    public MessageController(MessageService messageService, JdbcOutboxService outboxService,
+                             IdempotencyKeys idempotencyKeys, MessageLiveTail liveTail) {
         this.messageService = messageService;
         this.outboxService = outboxService;
+        this.idempotencyKeys = idempotencyKeys;
+        this.liveTail = liveTail;
     }
 
     /**
@@ -86,7 +103,7 @@ public class MessageController {
     @GetMapping("/{messageId}")
     public ResponseEntity<Message> getMessage(
             @Parameter(description = "ID of the message to retrieve", required = true) 
-            @PathVariable String messageId) {
+            @PathVariable UUID messageId) {
         logger.info("Getting message with ID: {}", messageId);
         return messageService.getMessage(messageId)
                 .map(ResponseEntity::ok)
@@ -100,7 +117,7 @@ public class MessageController {
      * @return the content of the message if found, or 404 otherwise
      */
     @GetMapping("/{messageId}/content")
-    public ResponseEntity<String> getMessageContent(@PathVariable String messageId) {
+    public ResponseEntity<String> getMessageContent(@PathVariable UUID messageId) {
         logger.info("Getting content for message with ID: {}", messageId);
         return messageService.getMessageContent(messageId)
                 .map(ResponseEntity::ok)
@@ -146,6 +163,30 @@ public class MessageController {
         return ResponseEntity.ok(messages);
     }
 
+    /**
+     * Stream the messages consumed from Kafka as Server-Sent Events, instead of polling {@code /after}.
+     * Each message is a "message" event with the message ID as event ID; a "dropped" event carries the number
+     * of messages skipped because the client fell behind.
+     *
+     * @param region the region of the messages to stream, all regions if omitted
+     * @return the event stream, or 503 if the maximum number of subscribers is reached
+     */
+    @Operation(summary = "Stream messages live",
+               description = "Streams the messages consumed from Kafka as Server-Sent Events, optionally for one region")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Event stream of messages"),
+        @ApiResponse(responseCode = "503", description = "Too many subscribers", content = @Content)
+    })
+    @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamMessages(
+            @Parameter(description = "Region of the messages") @RequestParam(required = false) String region) {
+        SseEmitter emitter = liveTail.subscribe(region);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5").build();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
     /**
      * Delete a message by its ID.
      *
@@ -153,7 +194,7 @@ public class MessageController {
      * @return 204 No Content if successful
      */
     @DeleteMapping("/{messageId}")
-    public ResponseEntity<Void> deleteMessage(@PathVariable String messageId) {
+    public ResponseEntity<Void> deleteMessage(@PathVariable UUID messageId) {
         logger.info("Deleting message with ID: {}", messageId);
         messageService.deleteMessage(messageId);
         return ResponseEntity.noContent().build();
@@ -163,8 +204,12 @@ public class MessageController {
      * Send a message through the outbox pattern.
      * The message is first stored in the database and then sent to Kafka.
      * It is only removed from the database after successful processing.
+     * A request with an Idempotency-Key header that was already used creates no new message; it gets the
+     * message created by the first request with that key, marked with the Idempotent-Replayed header.
      *
-     * @param requestBody Map containing 'region' and 'content' fields
+     * @param requestBody Map containing 'region' and 'content' fields, an optional 'priority' from 0 to 9
+     *                    and an optional ISO-8601 'deliverAt' time before which the message is not sent to Kafka
+     * @param idempotencyKey the client's idempotency key, optional
      * @return the created message
      */
     @Operation(summary = "Send a message through the outbox pattern", 
@@ -172,21 +217,103 @@ public class MessageController {
     @ApiResponses(value = {
         @ApiResponse(responseCode = "201", description = "Message created and sent successfully",
                 content = @Content(mediaType = "application/json", schema = @Schema(implementation = Message.class))),
-        @ApiResponse(responseCode = "400", description = "Invalid input data", content = @Content)
+        @ApiResponse(responseCode = "400", description = "Invalid input data", content = @Content),
+        @ApiResponse(responseCode = "409", description = "The idempotency key was used for a message that no longer exists",
+                content = @Content)
     })
     @PostMapping("/outbox")
-    public ResponseEntity<Message> sendMessageThroughOutbox(@RequestBody Map<String, String> requestBody) {
+    public ResponseEntity<Message> sendMessageThroughOutbox(
+            @RequestBody Map<String, String> requestBody,
+            @Parameter(description = "Client key identifying retries of the same request")
+            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
         String region = requestBody.get("region");
         String content = requestBody.get("content");
+        Integer priority = parsePriority(requestBody.get("priority"));
+        String deliverAtValue = requestBody.get("deliverAt");
+        Instant deliverAt = parseDeliverAt(deliverAtValue);
         
-        if (content == null || content.isEmpty()) {
+        if (content == null || content.isEmpty() || priority == null
+                || (deliverAtValue != null && !deliverAtValue.isEmpty() && deliverAt == null)
+                || (idempotencyKey != null
+                    && (idempotencyKey.isEmpty() || idempotencyKey.length() > IdempotencyKeys.MAX_KEY_LENGTH))) {
             return ResponseEntity.badRequest().build();
         }
         
         region = region != null ? region : "default";
         
-        logger.info("Sending message through outbox with region: {}", region);
-        Message message = outboxService.sendMessage(content, region);
-        return ResponseEntity.status(HttpStatus.CREATED).body(message);
+        if (idempotencyKey != null) {
+            Optional<UUID> original = idempotencyKeys.find(idempotencyKey);
+            if (original.isPresent()) {
+                return replay(idempotencyKey, original.get());
+            }
+        }
+        logger.info("Sending message through outbox with region: {}, priority: {}, deliverAt: {}",
+                region, priority, deliverAt);
+        try {
+            Message message = outboxService.sendMessage(content, region, priority, deliverAt, idempotencyKey);
+            return ResponseEntity.status(HttpStatus.CREATED).body(message);
+        } catch (DuplicateKeyException e) {
+            // A concurrent request or another instance stored the key first
+            Optional<UUID> original = idempotencyKeys.query(idempotencyKey);
+            if (original.isEmpty()) {
+                throw e;
+            }
+            return replay(idempotencyKey, original.get());
+        }
+    }
+
+    /**
+     * Respond to a retried request with the message created by the original request.
+     *
+     * @param idempotencyKey the idempotency key of the request
+     * @param messageId the ID of the message created for the key
+     * @return the original message, or 409 if it no longer exists
+     */
+    private ResponseEntity<Message> replay(String idempotencyKey, UUID messageId) {
+        logger.info("Idempotency key {} was already used for message {}", idempotencyKey, messageId);
+        // Journal outbox messages are not in INT_MESSAGE; their key keeps the message instead
+        return messageService.getMessage(messageId)
+                .or(() -> idempotencyKeys.response(idempotencyKey))
+                .map(message -> ResponseEntity.status(HttpStatus.CREATED)
+                        .header(IDEMPOTENT_REPLAYED_HEADER, "true")
+                        .body(message))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.CONFLICT)
+                        .header(IDEMPOTENT_REPLAYED_HEADER, "true")
+                        .build());
+    }
+
+    /**
+     * Parse the priority of an outbox message.
+     *
+     * @param value the priority from the request, or null
+     * @return the priority, the default priority if none was given, or null if it is not between 0 and 9
+     */
+    private Integer parsePriority(String value) {
+        if (value == null || value.isEmpty()) {
+            return JdbcOutboxService.DEFAULT_PRIORITY;
+        }
+        try {
+            int priority = Integer.parseInt(value);
+            return priority >= 0 && priority <= 9 ? priority : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the delivery time of an outbox message.
+     *
+     * @param value the ISO-8601 delivery time with offset, for example 2025-01-31T12:00:00Z, or null
+     * @return the delivery time, or null if none was given or it cannot be parsed
+     */
+    private Instant parseDeliverAt(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package dk.bko.controller;
+
+import dk.bko.model.MessageStats;
+import dk.bko.service.MessageStatistics;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * REST controller for message statistics.
+ * Answers from the rollup table, never from the messages themselves.
+ */
+@RestController
+@RequestMapping("/api/messages/stats")
+@Tag(name = "Message", description = "Message management APIs")
+public class MessageStatisticsController {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageStatisticsController.class);
+
+    private final MessageStatistics messageStatistics;
+
+    @Autowired
+    public MessageStatisticsController(MessageStatistics messageStatistics) {
+        this.messageStatistics = messageStatistics;
+    }
+
+    /**
+     * Get message counts and bytes per region and time bucket.
+     *
+     * @param region the region to filter by, or all regions if not given
+     * @param from the start of the range (ISO format: yyyy-MM-dd'T'HH:mm:ss)
+     * @param to the end of the range, exclusive
+     * @param granularity minute, hour or day
+     * @return one entry per region and non-empty bucket, or 400 if the range or granularity is invalid
+     */
+    @Operation(summary = "Get message statistics",
+               description = "Returns message counts and bytes per region and minute, hour or day")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Statistics per region and bucket"),
+        @ApiResponse(responseCode = "400", description = "Invalid range or granularity")
+    })
+    @GetMapping
+    public ResponseEntity<List<MessageStats>> getStatistics(
+            @Parameter(description = "Region to filter by") @RequestParam(required = false) String region,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "hour") String granularity) {
+        MessageStatistics.Granularity bucketSize;
+        try {
+            bucketSize = MessageStatistics.Granularity.valueOf(granularity.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!from.isBefore(to)) {
+            return ResponseEntity.badRequest().build();
+        }
+        logger.info("Getting {} statistics for region {} from {} to {}", bucketSize, region, from, to);
+        return ResponseEntity.ok(messageStatistics.query(region, from, to, bucketSize));
+    }
+}
@@ -0,0 +1,147 @@
+package dk.bko.controller;
+
+import dk.bko.model.OutboxRoute;
+import dk.bko.model.OutboxShardStatus;
+import dk.bko.service.OutboxRoutes;
+import dk.bko.service.OutboxScheduler;
+import dk.bko.service.OutboxShards;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST controller for operating the outbox.
+ */
+@RestController
+@RequestMapping("/api/admin/outbox")
+@Tag(name = "Outbox Admin", description = "Outbox operation APIs")
+public class OutboxAdminController {
+
+    private final OutboxShards outboxShards;
+    private final OutboxScheduler outboxScheduler;
+    private final OutboxRoutes outboxRoutes;
+
+    @Autowired
+    public OutboxAdminController(OutboxShards outboxShards, OutboxScheduler outboxScheduler,
+                                 OutboxRoutes outboxRoutes) {
+        this.outboxShards = outboxShards;
+        this.outboxScheduler = outboxScheduler;
+        this.outboxRoutes = outboxRoutes;
+    }
+
+    /**
+     * Get the depth of each outbox shard.
+     * The depth counts the messages waiting in the shard's group, including messages claimed by a relay
+     * transaction that has not committed yet.
+     *
+     * @return the status of each shard
+     */
+    @Operation(summary = "Get the outbox shards",
+               description = "Returns the number of waiting messages and the relay state of each outbox shard")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Status of each shard")
+    })
+    @GetMapping("/shards")
+    public ResponseEntity<List<OutboxShardStatus>> getShards() {
+        List<OutboxShardStatus> shards = new ArrayList<>(outboxShards.count());
+        for (int shard = 0; shard < outboxShards.count(); shard++) {
+            shards.add(new OutboxShardStatus(shard, OutboxShards.groupId(shard), outboxShards.depth(shard),
+                    outboxScheduler.isRelaying(shard)));
+        }
+        return ResponseEntity.ok(shards);
+    }
+
+    /**
+     * Get the routes of the relay, including the default route of region "*".
+     *
+     * @return the routes, ordered by region
+     */
+    @Operation(summary = "Get the outbox routes",
+               description = "Returns the topic and partition count each region's messages are relayed to")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Routes of the relay")
+    })
+    @GetMapping("/routes")
+    public ResponseEntity<List<OutboxRoute>> getRoutes() {
+        return ResponseEntity.ok(outboxRoutes.routes());
+    }
+
+    /**
+     * Store the route of a region. The relay uses it from its next batch.
+     * The topic is created, or its partitions increased, before the route is stored.
+     *
+     * @param region the region
+     * @param requestBody the topic and, optionally, the partitions of the route
+     * @return the route as applied, 400 Bad Request for an invalid route,
+     *         or 503 Service Unavailable if the topic could not be created
+     */
+    @Operation(summary = "Store an outbox route",
+               description = "Relays the messages of a region to a topic, creating the topic if needed")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Route stored"),
+        @ApiResponse(responseCode = "400",
+                description = "Invalid input data, a topic name Kafka does not accept, "
+                        + "or a topic not named after the outbox topic"),
+        @ApiResponse(responseCode = "503", description = "The topic could not be created or given the partitions")
+    })
+    @PutMapping("/routes/{region}")
+    public ResponseEntity<OutboxRoute> putRoute(@PathVariable String region,
+                                                @RequestBody Map<String, String> requestBody) {
+        String topic = requestBody.get("topic");
+        Integer partitions = parsePartitions(requestBody.get("partitions"));
+        if (OutboxRoute.DEFAULT_REGION.equals(region) || topic == null || !OutboxRoutes.isLegalTopic(topic)
+                || partitions == null || !outboxRoutes.isConsumed(topic)) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return ResponseEntity.ok(outboxRoutes.save(new OutboxRoute(region, topic, partitions)));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    /**
+     * Delete the stored route of a region.
+     *
+     * @param region the region
+     * @return 204 No Content if a route was deleted, 404 Not Found otherwise
+     */
+    @Operation(summary = "Delete an outbox route",
+               description = "Removes the stored route of a region, which falls back to its configured route "
+                       + "or the default route")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "204", description = "Route deleted"),
+        @ApiResponse(responseCode = "404", description = "No stored route for the region")
+    })
+    @DeleteMapping("/routes/{region}")
+    public ResponseEntity<Void> deleteRoute(@PathVariable String region) {
+        return outboxRoutes.delete(region) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    private static Integer parsePartitions(String partitions) {
+        if (partitions == null) {
+            return 1;
+        }
+        try {
+            int parsed = Integer.parseInt(partitions);
+            return parsed > 0 ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
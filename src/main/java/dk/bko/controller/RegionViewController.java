@@ -0,0 +1,66 @@
+package dk.bko.controller;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.service.RegionView;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * REST controller for the latest messages of a region, served from the in-memory {@link RegionView}.
+ * Active with region-view.enabled=true; these reads never touch the database.
+ */
+@RestController
+@RequestMapping("/api/messages/region")
+@Tag(name = "Message", description = "Message management APIs")
+@ConditionalOnProperty(name = "region-view.enabled", havingValue = "true")
+public class RegionViewController {
+
+    private final RegionView regionView;
+
+    @Value("${region-view.latest-size:20}")
+    private int latestSize;
+
+    @Autowired
+    public RegionViewController(RegionView regionView) {
+        this.regionView = regionView;
+    }
+
+    /**
+     * Get the latest messages of a region.
+     *
+     * @param region the region
+     * @param limit the maximum number of messages, at most region-view.latest-size
+     * @return the latest messages, newest first, or 503 while the view is still catching up
+     */
+    @Operation(summary = "Get the latest messages of a region",
+               description = "Returns the newest relayed messages of a region from the in-memory region view")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Latest messages, newest first"),
+        @ApiResponse(responseCode = "400", description = "Invalid limit"),
+        @ApiResponse(responseCode = "503", description = "Region view is still catching up")
+    })
+    @GetMapping("/{region}/latest")
+    public ResponseEntity<List<KafkaMessage>> getLatestMessages(
+            @Parameter(description = "Region of the messages", required = true) @PathVariable String region,
+            @RequestParam(defaultValue = "10") int limit) {
+        if (limit < 1) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!regionView.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        return ResponseEntity.ok(regionView.latest(region, Math.min(limit, latestSize)));
+    }
+}
@@ -0,0 +1,168 @@
+package dk.bko.controller;
+
+import dk.bko.model.ReplayJob;
+import dk.bko.service.ReplayService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * REST controller for replay jobs.
+ * Re-publishes the stored messages of a region and time range to a Kafka topic.
+ */
+@RestController
+@RequestMapping("/api/replays")
+@Tag(name = "Replay", description = "Replay of historical messages")
+public class ReplayController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplayController.class);
+
+    private final ReplayService replayService;
+
+    @Value("${replay.default-rate-per-second:500}")
+    private int defaultRatePerSecond;
+
+    @Autowired
+    public ReplayController(ReplayService replayService) {
+        this.replayService = replayService;
+    }
+
+    /**
+     * Start a replay job.
+     *
+     * @param requestBody Map containing 'region', 'from' and 'to' (ISO local date-times, 'to' exclusive),
+     *                    'topic' and an optional 'ratePerSecond'
+     * @return the started job
+     */
+    @Operation(summary = "Start a replay job",
+               description = "Re-publishes the messages of a region created in [from, to) to a topic at a limited rate")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "202", description = "Replay job started",
+                content = @Content(mediaType = "application/json", schema = @Schema(implementation = ReplayJob.class))),
+        @ApiResponse(responseCode = "400", description = "Invalid input data", content = @Content)
+    })
+    @PostMapping
+    public ResponseEntity<ReplayJob> startReplay(@RequestBody Map<String, String> requestBody) {
+        String region = requestBody.get("region");
+        String topic = requestBody.get("topic");
+        LocalDateTime from = parseDateTime(requestBody.get("from"));
+        LocalDateTime to = parseDateTime(requestBody.get("to"));
+        Integer rate = parseRate(requestBody.get("ratePerSecond"));
+
+        if (region == null || region.isEmpty() || topic == null || topic.isEmpty()
+                || from == null || to == null || !from.isBefore(to) || rate == null) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        logger.info("Starting replay of region {} from {} to {} to topic {}", region, from, to, topic);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(replayService.start(region, from, to, topic, rate));
+    }
+
+    /**
+     * Get a replay job with its progress.
+     *
+     * @param jobId the ID of the job
+     * @return the job if found, or 404 otherwise
+     */
+    @Operation(summary = "Get a replay job", description = "Retrieves the status, checkpoint and throughput of a replay job")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Replay job found",
+                content = @Content(mediaType = "application/json", schema = @Schema(implementation = ReplayJob.class))),
+        @ApiResponse(responseCode = "404", description = "Replay job not found", content = @Content)
+    })
+    @GetMapping("/{jobId}")
+    public ResponseEntity<ReplayJob> getReplay(
+            @Parameter(description = "ID of the replay job", required = true)
+            @PathVariable UUID jobId) {
+        return replayService.get(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Resume a paused or failed replay job after its last checkpoint.
+     *
+     * @param jobId the ID of the job
+     * @return 202 with the job, 404 if it does not exist, or 409 if it is running or completed
+     */
+    @PostMapping("/{jobId}/resume")
+    public ResponseEntity<ReplayJob> resumeReplay(@PathVariable UUID jobId) {
+        logger.info("Resuming replay job {}", jobId);
+        return transition(jobId, replayService::resume);
+    }
+
+    /**
+     * Pause a running replay job after the page it is publishing.
+     *
+     * @param jobId the ID of the job
+     * @return 202 with the job, 404 if it does not exist, or 409 if it is not running
+     */
+    @PostMapping("/{jobId}/pause")
+    public ResponseEntity<ReplayJob> pauseReplay(@PathVariable UUID jobId) {
+        logger.info("Pausing replay job {}", jobId);
+        return transition(jobId, replayService::pause);
+    }
+
+    private ResponseEntity<ReplayJob> transition(UUID jobId, Function<UUID, Optional<ReplayJob>> action) {
+        try {
+            return action.apply(jobId)
+                    .map(job -> ResponseEntity.status(HttpStatus.ACCEPTED).body(job))
+                    .orElse(ResponseEntity.notFound().build());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    /**
+     * Parse a local date-time, for example 2025-01-31T12:00:00.
+     *
+     * @param value the date-time from the request, or null
+     * @return the date-time, or null if none was given or it cannot be parsed
+     */
+    private LocalDateTime parseDateTime(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(value);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the rate of a replay job.
+     *
+     * @param value the rate from the request, or null
+     * @return the rate, the default rate if none was given, or null if it is not positive
+     */
+    private Integer parseRate(String value) {
+        if (value == null || value.isEmpty()) {
+            return defaultRatePerSecond;
+        }
+        try {
+            int rate = Integer.parseInt(value);
+            return rate > 0 ? rate : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
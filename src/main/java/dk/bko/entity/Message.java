@@ -2,15 +2,19 @@ package dk.bko.entity;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.UUID;
 
 /**
  * Entity class representing a message in the JDBC message store.
  * This maps to the INT_MESSAGE table created by Liquibase.
+ * The ID is a time-ordered UUIDv7 stored in a native uuid column.
  */
 @Entity
 @Table(name = "INT_MESSAGE")
@@ -18,7 +22,7 @@ public class Message {
 
     @Id
     @Column(name = "MESSAGE_ID")
-    private String messageId;
+    private UUID messageId;
 
     @Column(name = "REGION")
     private String region;
@@ -29,11 +33,28 @@ public class Message {
     @Column(name = "MESSAGE_BYTES", nullable = false)
     private byte[] messageBytes;
 
+    @Column(name = "CONTENT_REF")
+    private UUID contentRef;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "MESSAGE_FORMAT")
+    private Format format;
+
+    /**
+     * What the message bytes hold.
+     */
+    public enum Format {
+        /** The raw content of a message created directly */
+        RAW,
+        /** The JSON of the KafkaMessage of an outbox message */
+        OUTBOX
+    }
+
     // Default constructor required by JPA
     public Message() {
     }
 
-    public Message(String messageId, String region, LocalDateTime createdDate, byte[] messageBytes) {
+    public Message(UUID messageId, String region, LocalDateTime createdDate, byte[] messageBytes) {
         this.messageId = messageId;
         this.region = region;
         this.createdDate = createdDate;
@@ -41,11 +62,11 @@ public class Message {
     }
 
     // Getters and setters
-    public String getMessageId() {
+    public UUID getMessageId() {
         return messageId;
     }
 
-    public void setMessageId(String messageId) {
+    public void setMessageId(UUID messageId) {
         this.messageId = messageId;
     }
 
@@ -73,6 +94,30 @@ public class Message {
         this.messageBytes = messageBytes;
     }
 
+    /**
+     * @return the ID of the claim-checked payload holding the content of the message, or null if the
+     *         content is in the message bytes
+     */
+    public UUID getContentRef() {
+        return contentRef;
+    }
+
+    public void setContentRef(UUID contentRef) {
+        this.contentRef = contentRef;
+    }
+
+    /**
+     * @return what the message bytes hold, or null for messages stored before it was recorded
+     *         on databases other than PostgreSQL
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
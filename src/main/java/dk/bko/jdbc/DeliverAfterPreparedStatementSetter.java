@@ -0,0 +1,38 @@
+package dk.bko.jdbc;
+
+import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.integration.jdbc.store.channel.ChannelMessageStorePreparedStatementSetter;
+import org.springframework.messaging.Message;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Prepared statement setter for the outbox channel message store that additionally writes
+ * the {@link #DELIVER_AFTER_HEADER} header, in epoch milliseconds, to the DELIVER_AFTER column.
+ * Requires a create query with DELIVER_AFTER as seventh parameter, like the one of {@link OutboxPostgresQueryProvider}.
+ */
+public class DeliverAfterPreparedStatementSetter extends ChannelMessageStorePreparedStatementSetter {
+
+    /**
+     * Header holding the earliest delivery time of a message in epoch milliseconds.
+     */
+    public static final String DELIVER_AFTER_HEADER = "deliverAfter";
+
+    public DeliverAfterPreparedStatementSetter() {
+        super(new SerializingConverter());
+    }
+
+    @Override
+    public void setValues(PreparedStatement preparedStatement, Message<?> requestMessage, Object groupId,
+                          String region, boolean priorityEnabled) throws SQLException {
+        super.setValues(preparedStatement, requestMessage, groupId, region, priorityEnabled);
+        Long deliverAfter = requestMessage.getHeaders().get(DELIVER_AFTER_HEADER, Long.class);
+        if (deliverAfter != null) {
+            preparedStatement.setLong(7, deliverAfter);
+        } else {
+            preparedStatement.setNull(7, Types.BIGINT);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dk.bko.jdbc;
+
+import liquibase.integration.spring.SpringLiquibase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Skips the Liquibase update at startup when the changelog is unchanged since it was last applied.
+ * Before the {@link SpringLiquibase} bean is initialized, a SHA-256 fingerprint of every file in the
+ * changelog's directory (and of the contexts and labels) is compared with the one stored in
+ * INT_CHANGELOG_FINGERPRINT. If they match, Liquibase neither locks nor reads DATABASECHANGELOG; otherwise
+ * it runs as usual and the new fingerprint is stored once it has succeeded.
+ * Changes made to the schema outside Liquibase are not detected while the changelog is unchanged.
+ */
+public class LiquibaseFingerprintPostProcessor implements BeanPostProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiquibaseFingerprintPostProcessor.class);
+
+    private static final String SELECT_SQL = "SELECT FINGERPRINT FROM INT_CHANGELOG_FINGERPRINT WHERE ID = 1";
+    private static final String UPDATE_SQL =
+            "UPDATE INT_CHANGELOG_FINGERPRINT SET FINGERPRINT = ?, UPDATED_DATE = ? WHERE ID = 1";
+    private static final String INSERT_SQL =
+            "INSERT INTO INT_CHANGELOG_FINGERPRINT (ID, FINGERPRINT, UPDATED_DATE) VALUES (1, ?, ?)";
+
+    private final Environment environment;
+    private final Map<String, String> pendingFingerprints = new HashMap<>();
+
+    public LiquibaseFingerprintPostProcessor(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof SpringLiquibase liquibase)
+                || !environment.getProperty("spring.liquibase.enabled", Boolean.class, true)) {
+            return bean;
+        }
+        String fingerprint = fingerprint(liquibase);
+        if (fingerprint.equals(storedFingerprint(new JdbcTemplate(liquibase.getDataSource())))) {
+            logger.info("Changelog {} is unchanged since it was last applied, skipping Liquibase",
+                    liquibase.getChangeLog());
+            liquibase.setShouldRun(false);
+        } else {
+            pendingFingerprints.put(beanName, fingerprint);
+        }
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        String fingerprint = pendingFingerprints.remove(beanName);
+        if (fingerprint != null && bean instanceof SpringLiquibase liquibase) {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(liquibase.getDataSource());
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            if (jdbcTemplate.update(UPDATE_SQL, fingerprint, now) == 0) {
+                jdbcTemplate.update(INSERT_SQL, fingerprint, now);
+            }
+            logger.info("Stored fingerprint {} of changelog {}", fingerprint, liquibase.getChangeLog());
+        }
+        return bean;
+    }
+
+    /**
+     * @return the stored fingerprint, or null if there is none yet or the table does not exist yet
+     */
+    private String storedFingerprint(JdbcTemplate jdbcTemplate) {
+        try {
+            List<String> fingerprints = jdbcTemplate.queryForList(SELECT_SQL, String.class);
+            return fingerprints.isEmpty() ? null : fingerprints.get(0);
+        } catch (DataAccessException e) {
+            logger.debug("No changelog fingerprint stored yet", e);
+            return null;
+        }
+    }
+
+    private static String fingerprint(SpringLiquibase liquibase) {
+        String changeLog = liquibase.getChangeLog();
+        String directory = changeLog.substring(changeLog.indexOf(':') + 1, changeLog.lastIndexOf('/') + 1);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Map<String, Resource> files = new TreeMap<>();
+            for (Resource resource : new PathMatchingResourcePatternResolver(liquibase.getResourceLoader())
+                    .getResources("classpath*:" + directory + "**/*")) {
+                if (resource.isReadable()) { // not a directory
+                    // The path below the changelog directory is the same in an IDE, a jar and an extracted jar
+                    String url = resource.getURL().toString();
+                    files.put(url.substring(url.lastIndexOf(directory)), resource);
+                }
+            }
+            for (Map.Entry<String, Resource> file : files.entrySet()) {
+                digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+                try (InputStream content = file.getValue().getInputStream()) {
+                    digest.update(content.readAllBytes());
+                }
+            }
+            digest.update(Objects.toString(liquibase.getContexts()).getBytes(StandardCharsets.UTF_8));
+            digest.update(Objects.toString(liquibase.getLabelFilter()).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read changelog " + changeLog, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package dk.bko.jdbc;
+
+/**
+ * Provides the query claiming a batch of outbox messages in one statement, see {@link OutboxClaimer}.
+ * The query deletes up to :limit messages of the group :group_key in region :region and returns their
+ * MESSAGE_SEQUENCE, MESSAGE_PRIORITY and MESSAGE_BYTES, in no particular order.
+ */
+public interface OutboxClaimQueryProvider {
+
+    /**
+     * Get the claim query.
+     *
+     * @param priorityOrder true to claim by descending MESSAGE_PRIORITY and then by MESSAGE_SEQUENCE;
+     *                      false to claim in MESSAGE_SEQUENCE order after the sequence :after_sequence
+     * @return the claim query, with %PREFIX% for the table prefix
+     */
+    String getClaimQuery(boolean priorityOrder);
+}
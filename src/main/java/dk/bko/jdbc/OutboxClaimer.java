@@ -0,0 +1,95 @@
+package dk.bko.jdbc;
+
+import org.springframework.integration.jdbc.store.channel.MessageRowMapper;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.messaging.Message;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Claims batches of outbox messages from INT_CHANNEL_MESSAGE for the relay, with one statement per batch
+ * instead of one per message. A claim deletes the messages, so it must run in the relay transaction:
+ * they are only gone once it commits, and are claimed again if it rolls back.
+ * Claims in sequence order are keyset claims: the caller passes the last sequence of its previous claim,
+ * so the scan starts after the rows it has already deleted. A message committed with a lower sequence
+ * after that claim, or a delayed message released into the group, is not seen until the caller starts over.
+ */
+public class OutboxClaimer {
+
+    /**
+     * The messages of a claim, in claim order, and the highest sequence among them.
+     *
+     * @param messages the claimed messages
+     * @param lastSequence the highest MESSAGE_SEQUENCE claimed, or the sequence passed in if none was claimed
+     */
+    public record Claim(List<Message<?>> messages, long lastSequence) {
+    }
+
+    private static final Comparator<ClaimedRow> PRIORITY_ORDER = Comparator
+            .comparing(ClaimedRow::priority, Comparator.nullsLast(Comparator.reverseOrder()))
+            .thenComparingLong(ClaimedRow::sequence);
+    private static final Comparator<ClaimedRow> SEQUENCE_ORDER = Comparator.comparingLong(ClaimedRow::sequence);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final String priorityClaimQuery;
+    private final String sequenceClaimQuery;
+    private final String region;
+    private final MessageRowMapper messageRowMapper;
+
+    /**
+     * Creates a claimer.
+     *
+     * @param dataSource the data source of the relay transaction
+     * @param queryProvider the provider of the claim queries of the database
+     * @param region the region of the channel message store
+     * @param deserializer the deserializer of the stored messages
+     */
+    public OutboxClaimer(DataSource dataSource, OutboxClaimQueryProvider queryProvider, String region,
+                         AllowListDeserializingConverter deserializer) {
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+        this.priorityClaimQuery = queryProvider.getClaimQuery(true).replace("%PREFIX%", "INT_");
+        this.sequenceClaimQuery = queryProvider.getClaimQuery(false).replace("%PREFIX%", "INT_");
+        this.region = region;
+        this.messageRowMapper = new MessageRowMapper(deserializer);
+    }
+
+    /**
+     * Claim up to a batch of messages of a group.
+     *
+     * @param groupKey the GROUP_KEY of the group
+     * @param priorityOrder true to claim the most urgent messages, false to claim the oldest ones
+     * @param afterSequence in sequence order, the last sequence of the previous claim, or 0 to start at the oldest
+     * @param limit the maximum number of messages
+     * @return the claimed messages
+     */
+    public Claim claim(String groupKey, boolean priorityOrder, long afterSequence, int limit) {
+        if (limit <= 0) {
+            return new Claim(List.of(), afterSequence);
+        }
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("group_key", groupKey)
+                .addValue("region", region)
+                .addValue("after_sequence", afterSequence)
+                .addValue("limit", limit);
+        List<ClaimedRow> rows = jdbcTemplate.query(priorityOrder ? priorityClaimQuery : sequenceClaimQuery,
+                parameters, (rs, rowNum) -> new ClaimedRow(rs.getLong("MESSAGE_SEQUENCE"),
+                        rs.getObject("MESSAGE_PRIORITY", Integer.class), messageRowMapper.mapRow(rs, rowNum)));
+        // The deleted rows come back in no particular order
+        rows.sort(priorityOrder ? PRIORITY_ORDER : SEQUENCE_ORDER);
+        List<Message<?>> messages = new ArrayList<>(rows.size());
+        long lastSequence = afterSequence;
+        for (ClaimedRow row : rows) {
+            messages.add(row.message());
+            lastSequence = Math.max(lastSequence, row.sequence());
+        }
+        return new Claim(messages, lastSequence);
+    }
+
+    private record ClaimedRow(long sequence, Integer priority, Message<?> message) {
+    }
+}
@@ -0,0 +1,37 @@
+package dk.bko.jdbc;
+
+import org.springframework.integration.jdbc.store.channel.H2ChannelMessageStoreQueryProvider;
+
+/**
+ * H2 query provider for the outbox channel message store, used by the tests.
+ * Inserts also write the DELIVER_AFTER column, see {@link DeliverAfterPreparedStatementSetter}.
+ * H2 has no SKIP LOCKED, so a claim waits for the rows another relay has claimed.
+ */
+public class OutboxH2QueryProvider extends H2ChannelMessageStoreQueryProvider implements OutboxClaimQueryProvider {
+
+    private static final String CREATE_QUERY = """
+            INSERT into %PREFIX%CHANNEL_MESSAGE(MESSAGE_ID, GROUP_KEY, REGION, CREATED_DATE, MESSAGE_PRIORITY, \
+            MESSAGE_SEQUENCE, MESSAGE_BYTES, DELIVER_AFTER) values (?, ?, ?, ?, ?, NEXT VALUE FOR %PREFIX%MESSAGE_SEQ, ?, ?)
+            """;
+
+    private static final String CLAIM_QUERY = """
+            SELECT MESSAGE_SEQUENCE, MESSAGE_PRIORITY, MESSAGE_BYTES FROM OLD TABLE (DELETE FROM %%PREFIX%%CHANNEL_MESSAGE \
+            WHERE REGION = :region AND GROUP_KEY = :group_key AND MESSAGE_SEQUENCE IN (SELECT MESSAGE_SEQUENCE \
+            FROM %%PREFIX%%CHANNEL_MESSAGE WHERE REGION = :region AND GROUP_KEY = :group_key%s ORDER BY %s LIMIT :limit))
+            """;
+
+    private static final String AFTER_SEQUENCE = " AND MESSAGE_SEQUENCE > :after_sequence";
+    private static final String SEQUENCE_ORDER = "MESSAGE_SEQUENCE";
+    private static final String PRIORITY_ORDER = "MESSAGE_PRIORITY DESC NULLS LAST, MESSAGE_SEQUENCE";
+
+    @Override
+    public String getCreateMessageQuery() {
+        return CREATE_QUERY;
+    }
+
+    @Override
+    public String getClaimQuery(boolean priorityOrder) {
+        return priorityOrder ? CLAIM_QUERY.formatted("", PRIORITY_ORDER)
+                : CLAIM_QUERY.formatted(AFTER_SEQUENCE, SEQUENCE_ORDER);
+    }
+}
@@ -0,0 +1,89 @@
+package dk.bko.jdbc;
+
+import org.springframework.integration.jdbc.store.channel.PostgresChannelMessageStoreQueryProvider;
+
+/**
+ * PostgreSQL query provider for the outbox channel message store.
+ * Messages are claimed by MESSAGE_SEQUENCE. The sequence is filled from INT_MESSAGE_SEQ by a column default
+ * and is the last column of the (REGION, GROUP_KEY, MESSAGE_SEQUENCE) primary key, so a claim is a short
+ * range scan at the start of the group's index range instead of a sort over CREATED_DATE.
+ * The poll queries of the channel message store claim one message per statement; the relay claims a whole batch
+ * with the claim query instead, skipping the rows other relays have locked. In sequence order the claim
+ * starts after the last sequence of the previous claim, so it does not walk the index entries of rows it
+ * has just deleted.
+ * Inserts also write the DELIVER_AFTER column, see {@link DeliverAfterPreparedStatementSetter}.
+ */
+public class OutboxPostgresQueryProvider extends PostgresChannelMessageStoreQueryProvider
+        implements OutboxClaimQueryProvider {
+
+    private static final String CREATE_QUERY = """
+            INSERT into %PREFIX%CHANNEL_MESSAGE(MESSAGE_ID, GROUP_KEY, REGION, CREATED_DATE, MESSAGE_PRIORITY, \
+            MESSAGE_BYTES, DELIVER_AFTER) values (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private static final String POLL_QUERY = """
+            delete
+            from %%PREFIX%%CHANNEL_MESSAGE
+            where CTID = (select CTID
+                            from %%PREFIX%%CHANNEL_MESSAGE
+                            where %%PREFIX%%CHANNEL_MESSAGE.GROUP_KEY = :group_key
+                            and %%PREFIX%%CHANNEL_MESSAGE.REGION = :region%s
+                        order by %s
+                        limit 1 for update skip locked)
+            returning MESSAGE_ID, MESSAGE_BYTES;
+            """;
+
+    private static final String CLAIM_QUERY = """
+            delete
+            from %%PREFIX%%CHANNEL_MESSAGE
+            where CTID = any(array(select CTID
+                            from %%PREFIX%%CHANNEL_MESSAGE
+                            where %%PREFIX%%CHANNEL_MESSAGE.GROUP_KEY = :group_key
+                            and %%PREFIX%%CHANNEL_MESSAGE.REGION = :region%s
+                        order by %s
+                        limit :limit for update skip locked))
+            returning MESSAGE_SEQUENCE, MESSAGE_PRIORITY, MESSAGE_BYTES;
+            """;
+
+    private static final String AFTER_SEQUENCE = """
+
+                            and %PREFIX%CHANNEL_MESSAGE.MESSAGE_SEQUENCE > :after_sequence""";
+
+    private static final String EXCLUDE_IDS = """
+
+                            and %PREFIX%CHANNEL_MESSAGE.MESSAGE_ID not in (:message_ids)""";
+
+    private static final String SEQUENCE_ORDER = "MESSAGE_SEQUENCE";
+    private static final String PRIORITY_ORDER = "MESSAGE_PRIORITY DESC NULLS LAST, MESSAGE_SEQUENCE";
+
+    @Override
+    public String getCreateMessageQuery() {
+        return CREATE_QUERY;
+    }
+
+    @Override
+    public String getPollFromGroupQuery() {
+        return POLL_QUERY.formatted("", SEQUENCE_ORDER);
+    }
+
+    @Override
+    public String getPollFromGroupExcludeIdsQuery() {
+        return POLL_QUERY.formatted(EXCLUDE_IDS, SEQUENCE_ORDER);
+    }
+
+    @Override
+    public String getPriorityPollFromGroupQuery() {
+        return POLL_QUERY.formatted("", PRIORITY_ORDER);
+    }
+
+    @Override
+    public String getPriorityPollFromGroupExcludeIdsQuery() {
+        return POLL_QUERY.formatted(EXCLUDE_IDS, PRIORITY_ORDER);
+    }
+
+    @Override
+    public String getClaimQuery(boolean priorityOrder) {
+        return priorityOrder ? CLAIM_QUERY.formatted("", PRIORITY_ORDER)
+                : CLAIM_QUERY.formatted(AFTER_SEQUENCE, SEQUENCE_ORDER);
+    }
+}
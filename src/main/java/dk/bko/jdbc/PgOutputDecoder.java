@@ -0,0 +1,162 @@
+package dk.bko.jdbc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decoder for the messages of PostgreSQL's pgoutput logical decoding plugin (protocol version 1).
+ * Only the parts needed to follow row changes are decoded: transaction boundaries, relations and
+ * inserted or updated rows. Column values are kept in their text representation, keyed by the
+ * lower case column name; columns whose TOASTed value did not change in an update are left out.
+ * A decoder keeps the relations it has seen, so one instance must be used per replication stream.
+ */
+public class PgOutputDecoder {
+
+    private final Map<Integer, Relation> relations = new HashMap<>();
+
+    /**
+     * A decoded pgoutput message.
+     */
+    public sealed interface Event permits Begin, Commit, RowChange, Ignored {
+    }
+
+    /**
+     * Start of a transaction.
+     *
+     * @param finalLsn the LSN of the commit record of the transaction
+     */
+    public record Begin(long finalLsn) implements Event {
+    }
+
+    /**
+     * End of a transaction.
+     *
+     * @param endLsn the LSN right after the commit record; confirming it releases the WAL of the transaction
+     */
+    public record Commit(long endLsn) implements Event {
+    }
+
+    /**
+     * An inserted or updated row.
+     *
+     * @param table the lower case name of the table
+     * @param update true for an update, false for an insert
+     * @param values the new column values by lower case column name; null for SQL NULL
+     */
+    public record RowChange(String table, boolean update, Map<String, String> values) implements Event {
+    }
+
+    /**
+     * Any other message: relations, deletes, truncates, types and origins.
+     */
+    public record Ignored(char type) implements Event {
+    }
+
+    private record Relation(String table, List<String> columns) {
+    }
+
+    /**
+     * Decode one pgoutput message.
+     *
+     * @param buffer the message, positioned at its type byte
+     * @return the decoded event
+     * @throws IllegalStateException if a row refers to a relation that was not announced before
+     */
+    public Event decode(ByteBuffer buffer) {
+        char type = (char) buffer.get();
+        switch (type) {
+            case 'B' -> {
+                return new Begin(buffer.getLong());
+            }
+            case 'C' -> {
+                buffer.get(); // flags
+                buffer.getLong(); // commit LSN
+                return new Commit(buffer.getLong());
+            }
+            case 'R' -> {
+                decodeRelation(buffer);
+                return new Ignored(type);
+            }
+            case 'I' -> {
+                Relation relation = relation(buffer.getInt());
+                buffer.get(); // 'N'
+                return new RowChange(relation.table(), false, readTuple(buffer, relation));
+            }
+            case 'U' -> {
+                Relation relation = relation(buffer.getInt());
+                char tuple = (char) buffer.get();
+                if (tuple == 'K' || tuple == 'O') {
+                    readTuple(buffer, relation); // old key or row
+                    buffer.get(); // 'N'
+                }
+                return new RowChange(relation.table(), true, readTuple(buffer, relation));
+            }
+            default -> {
+                return new Ignored(type);
+            }
+        }
+    }
+
+    private void decodeRelation(ByteBuffer buffer) {
+        int relationId = buffer.getInt();
+        readString(buffer); // namespace
+        String table = readString(buffer).toLowerCase(Locale.ROOT);
+        buffer.get(); // replica identity
+        int columnCount = buffer.getShort();
+        List<String> columns = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            buffer.get(); // flags
+            columns.add(readString(buffer).toLowerCase(Locale.ROOT));
+            buffer.getInt(); // type OID
+            buffer.getInt(); // type modifier
+        }
+        relations.put(relationId, new Relation(table, columns));
+    }
+
+    private Relation relation(int relationId) {
+        Relation relation = relations.get(relationId);
+        if (relation == null) {
+            throw new IllegalStateException("Row change for unknown relation " + relationId);
+        }
+        return relation;
+    }
+
+    private static Map<String, String> readTuple(ByteBuffer buffer, Relation relation) {
+        int columnCount = buffer.getShort();
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < columnCount; i++) {
+            String column = relation.columns().get(i);
+            char kind = (char) buffer.get();
+            switch (kind) {
+                case 'n' -> values.put(column, null);
+                case 'u' -> {
+                    // Unchanged TOASTed value, not sent
+                }
+                default -> {
+                    byte[] value = new byte[buffer.getInt()];
+                    buffer.get(value);
+                    values.put(column, new String(value, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (buffer.get() != 0) {
+            // find the terminating zero byte
+        }
+        byte[] value = new byte[buffer.position() - start - 1];
+        buffer.position(start);
+        buffer.get(value);
+        buffer.get(); // terminating zero byte
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
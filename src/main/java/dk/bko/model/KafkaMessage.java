@@ -1,24 +1,34 @@
 package dk.bko.model;
 
+import dk.bko.util.UuidV7;
+
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.Objects;
-import java.util.UUID;
 
 /**
  * Model class for messages sent to Kafka.
  * This is the payload that will be serialized and sent to Kafka.
+ * New messages get a time-ordered UUIDv7 ID.
+ * Large content is not carried inline: a claim-checked message has no content, but a reference to the
+ * payload in the claim-check store and its checksum (see {@link dk.bko.service.ClaimCheckStore}).
  */
 public class KafkaMessage implements Serializable {
 
+    // Kept from before the claim-check fields were added, so stored outbox messages still deserialize
+    private static final long serialVersionUID = -699153282762033704L;
+
     private String id;
     private String content;
     private String region;
     private LocalDateTime timestamp;
+    private String contentRef;
+    private String contentChecksum;
+    private long contentLength;
 
     // Default constructor required for JSON deserialization
     public KafkaMessage() {
-        this.id = UUID.randomUUID().toString();
+        this.id = UuidV7.randomUuid().toString();
         this.timestamp = LocalDateTime.now();
     }
 
@@ -68,6 +78,39 @@ public class KafkaMessage implements Serializable {
         this.timestamp = timestamp;
     }
 
+    /**
+     * @return the ID of the claim-checked payload, or null if the content is inline
+     */
+    public String getContentRef() {
+        return contentRef;
+    }
+
+    public void setContentRef(String contentRef) {
+        this.contentRef = contentRef;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 checksum of the claim-checked payload
+     */
+    public String getContentChecksum() {
+        return contentChecksum;
+    }
+
+    public void setContentChecksum(String contentChecksum) {
+        this.contentChecksum = contentChecksum;
+    }
+
+    /**
+     * @return the size of the claim-checked payload in bytes
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -86,6 +129,7 @@ public class KafkaMessage implements Serializable {
         return "KafkaMessage{" +
                 "id='" + id + '\'' +
                 ", content='" + content + '\'' +
+                (contentRef != null ? ", contentRef='" + contentRef + '\'' + ", contentLength=" + contentLength : "") +
                 ", region='" + region + '\'' +
                 ", timestamp=" + timestamp +
                 '}';
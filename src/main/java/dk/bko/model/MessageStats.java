@@ -0,0 +1,14 @@
+package dk.bko.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Number and total size of the messages stored for a region in one time bucket.
+ *
+ * @param region the region
+ * @param bucketStart the start of the bucket
+ * @param messages the number of messages created in the bucket
+ * @param bytes the total size of their stored bytes
+ */
+public record MessageStats(String region, LocalDateTime bucketStart, long messages, long bytes) {
+}
@@ -0,0 +1,16 @@
+package dk.bko.model;
+
+/**
+ * Topic the relay sends the outbox messages of a region to.
+ *
+ * @param region the region, or {@code *} for the default route
+ * @param topic the topic
+ * @param partitions the number of partitions of the topic
+ */
+public record OutboxRoute(String region, String topic, int partitions) {
+
+    /**
+     * Region of the default route, used for regions without a route of their own.
+     */
+    public static final String DEFAULT_REGION = "*";
+}
@@ -0,0 +1,12 @@
+package dk.bko.model;
+
+/**
+ * Depth and relay state of one outbox shard.
+ *
+ * @param shard the shard
+ * @param groupId the group of the shard in the channel message store
+ * @param depth the number of messages waiting in the shard
+ * @param relaying whether a relay run of the shard is active
+ */
+public record OutboxShardStatus(int shard, String groupId, int depth, boolean relaying) {
+}
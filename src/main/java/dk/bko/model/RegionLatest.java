@@ -0,0 +1,14 @@
+package dk.bko.model;
+
+import java.util.List;
+
+/**
+ * The latest messages of a region, newest first.
+ * This is the value of the records in the compacted region view topic, keyed by region,
+ * so the topic keeps exactly one, current record per region.
+ *
+ * @param region the region
+ * @param messages the latest messages of the region, newest first
+ */
+public record RegionLatest(String region, List<KafkaMessage> messages) {
+}
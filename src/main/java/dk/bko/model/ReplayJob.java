@@ -0,0 +1,47 @@
+package dk.bko.model;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A job re-publishing the stored messages of a region and time range to a Kafka topic.
+ * The job is checkpointed in the INT_REPLAY_JOB table after every acknowledged page,
+ * so a paused, failed or interrupted job resumes after the last message it has published.
+ *
+ * @param jobId the ID of the job
+ * @param region the region of the messages to replay
+ * @param from the creation time of the first message to replay, inclusive
+ * @param to the creation time after the last message to replay, exclusive
+ * @param targetTopic the topic the messages are published to
+ * @param ratePerSecond the maximum number of messages published per second
+ * @param status the status of the job
+ * @param published the number of messages published so far
+ * @param lastCreatedDate the creation time of the last published message, or null before the first page
+ * @param lastMessageId the ID of the last published message, or null before the first page
+ * @param error the reason the job failed, if it did
+ * @param createdDate when the job was created
+ * @param updatedDate when the job was last checkpointed
+ * @param owner the instance that runs or last ran the job
+ * @param messagesPerSecond the throughput of the current run, 0 if the job is not running on this instance
+ */
+public record ReplayJob(UUID jobId, String region, LocalDateTime from, LocalDateTime to, String targetTopic,
+                        int ratePerSecond, Status status, long published, LocalDateTime lastCreatedDate,
+                        UUID lastMessageId, String error, LocalDateTime createdDate, LocalDateTime updatedDate,
+                        String owner, double messagesPerSecond) {
+
+    /**
+     * Status of a replay job.
+     */
+    public enum Status {
+        RUNNING, PAUSED, COMPLETED, FAILED
+    }
+
+    /**
+     * @param messagesPerSecond the throughput of the current run
+     * @return a copy of this job with the given throughput
+     */
+    public ReplayJob withThroughput(double messagesPerSecond) {
+        return new ReplayJob(jobId, region, from, to, targetTopic, ratePerSecond, status, published,
+                lastCreatedDate, lastMessageId, error, createdDate, updatedDate, owner, messagesPerSecond);
+    }
+}
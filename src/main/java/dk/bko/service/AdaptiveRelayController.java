@@ -0,0 +1,190 @@
+package dk.bko.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feedback controller for the cadence and batching of the polling relay.
+ * After every relay batch it is told how many messages were claimed, how long the broker took to acknowledge
+ * them and whether the send failed, and from that it decides:
+ * - the claim batch size: doubled while batches come back full and are acknowledged within
+ *   outbox.relay.adaptive.target-send-ms, reduced by a quarter when they are slower, halved when batches are
+ *   mostly empty or a send fails
+ * - the poll interval: the minimum after a run that relayed messages, doubled after each idle run up to the maximum,
+ *   and the maximum after a failed send, so a broker outage is not hammered
+ * - the producer: while batches come back full the relay is saturated and sends with the bulk producer
+ *   (large linger and batch size), otherwise with the regular relay producer, so a trickle is sent right away.
+ *   Kafka producers cannot be reconfigured, so the two profiles are two producers; the relay switches only
+ *   between batches, after all sends of a batch have been acknowledged, so the order per partition is kept.
+ * With outbox.relay.adaptive.enabled=false the batch size is outbox.relay.batch-size, the interval
+ * outbox.relay.adaptive.max-poll-interval-ms and the producer the regular relay producer.
+ * The decisions are reported as the outbox.relay.controller.* gauges.
+ */
+@Component
+public class AdaptiveRelayController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRelayController.class);
+
+    private final KafkaTemplate<String, Object> relayKafkaTemplate;
+    private final KafkaTemplate<String, Object> relayBulkKafkaTemplate;
+    private final boolean enabled;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long minPollIntervalMs;
+    private final long maxPollIntervalMs;
+    private final long targetSendMs;
+    private final int bulkLingerMs;
+
+    private int batchSize;
+    private long pollIntervalMs;
+    private boolean saturated;
+    private int claimedSincePoll;
+    private boolean failedSincePoll;
+    private double lastSendMs;
+
+    @Autowired
+    public AdaptiveRelayController(
+            @Qualifier("relayKafkaTemplate") KafkaTemplate<String, Object> relayKafkaTemplate,
+            @Qualifier("relayBulkKafkaTemplate") KafkaTemplate<String, Object> relayBulkKafkaTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${outbox.relay.adaptive.enabled:true}") boolean enabled,
+            @Value("${outbox.relay.batch-size:500}") int batchSize,
+            @Value("${outbox.relay.adaptive.min-batch-size:50}") int minBatchSize,
+            @Value("${outbox.relay.adaptive.max-batch-size:5000}") int maxBatchSize,
+            @Value("${outbox.relay.adaptive.min-poll-interval-ms:50}") long minPollIntervalMs,
+            @Value("${outbox.relay.adaptive.max-poll-interval-ms:1000}") long maxPollIntervalMs,
+            @Value("${outbox.relay.adaptive.target-send-ms:250}") long targetSendMs,
+            @Value("${outbox.relay.adaptive.bulk-linger-ms:20}") int bulkLingerMs) {
+        if (minBatchSize < 1 || minBatchSize > maxBatchSize || minPollIntervalMs < 1
+                || minPollIntervalMs > maxPollIntervalMs) {
+            throw new IllegalArgumentException("outbox.relay.adaptive bounds must satisfy 1 <= min <= max");
+        }
+        this.relayKafkaTemplate = relayKafkaTemplate;
+        this.relayBulkKafkaTemplate = relayBulkKafkaTemplate;
+        this.enabled = enabled;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.minPollIntervalMs = minPollIntervalMs;
+        this.maxPollIntervalMs = maxPollIntervalMs;
+        this.targetSendMs = targetSendMs;
+        this.bulkLingerMs = bulkLingerMs;
+        this.batchSize = enabled ? Math.max(minBatchSize, Math.min(maxBatchSize, batchSize)) : batchSize;
+        this.pollIntervalMs = maxPollIntervalMs;
+
+        Gauge.builder("outbox.relay.controller.batch.size", this, AdaptiveRelayController::batchSize)
+                .description("Number of messages the relay claims per batch")
+                .register(meterRegistry);
+        Gauge.builder("outbox.relay.controller.poll.interval", this, c -> c.pollIntervalMs())
+                .description("Time between the end of a relay run and the start of the next one")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("outbox.relay.controller.saturated", this, c -> c.isSaturated() ? 1 : 0)
+                .description("1 while the relay sends with the bulk producer, 0 otherwise")
+                .register(meterRegistry);
+        Gauge.builder("outbox.relay.controller.linger", this, c -> c.isSaturated() ? c.bulkLingerMs : 0)
+                .description("linger.ms of the producer the relay currently sends with")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("outbox.relay.controller.send.time", this, c -> c.lastSendMs())
+                .description("Time the broker took to acknowledge the last relay batch")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the number of messages to claim for the next batch
+     */
+    public synchronized int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the template to send the next batch with
+     */
+    public synchronized KafkaTemplate<String, Object> template() {
+        return saturated ? relayBulkKafkaTemplate : relayKafkaTemplate;
+    }
+
+    /**
+     * @return true while the relay sends with the bulk producer
+     */
+    public synchronized boolean isSaturated() {
+        return saturated;
+    }
+
+    /**
+     * Record the outcome of a relay batch.
+     *
+     * @param claimed the number of messages claimed
+     * @param limit the batch size the batch was claimed with
+     * @param sendNanos the time from the first send until the last acknowledgement
+     * @param failed true if the batch could not be sent
+     */
+    public synchronized void recordBatch(int claimed, int limit, long sendNanos, boolean failed) {
+        claimedSincePoll += claimed;
+        if (!enabled || claimed == 0) {
+            return;
+        }
+        lastSendMs = sendNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        int previous = batchSize;
+        boolean wasSaturated = saturated;
+        if (failed) {
+            failedSincePoll = true;
+            saturated = false;
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+        } else if (claimed >= limit) {
+            // More messages are waiting: batch harder, unless the broker is already slow to acknowledge
+            saturated = true;
+            batchSize = lastSendMs > targetSendMs
+                    ? Math.max(minBatchSize, batchSize - batchSize / 4)
+                    : Math.min(maxBatchSize, batchSize * 2);
+        } else {
+            // The backlog is drained: favour latency
+            saturated = false;
+            if (claimed < limit / 4) {
+                batchSize = Math.max(minBatchSize, batchSize / 2);
+            }
+        }
+        if (batchSize != previous || saturated != wasSaturated) {
+            logger.debug("Relay batch of {}/{} acknowledged in {} ms{}: batch size {}, {} producer", claimed, limit,
+                    Math.round(lastSendMs), failed ? " (failed)" : "", batchSize, saturated ? "bulk" : "regular");
+        }
+    }
+
+    /**
+     * Decide how long to wait before the next relay run, from the batches recorded since the last decision.
+     *
+     * @return the poll interval in milliseconds
+     */
+    public synchronized long nextPollIntervalMs() {
+        if (enabled) {
+            if (failedSincePoll) {
+                pollIntervalMs = maxPollIntervalMs;
+            } else if (claimedSincePoll > 0) {
+                pollIntervalMs = minPollIntervalMs;
+            } else {
+                pollIntervalMs = Math.min(maxPollIntervalMs, pollIntervalMs * 2);
+            }
+        }
+        claimedSincePoll = 0;
+        failedSincePoll = false;
+        return pollIntervalMs;
+    }
+
+    private synchronized long pollIntervalMs() {
+        return pollIntervalMs;
+    }
+
+    private synchronized double lastSendMs() {
+        return lastSendMs;
+    }
+}
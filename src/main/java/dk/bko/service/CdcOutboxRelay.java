@@ -0,0 +1,298 @@
+package dk.bko.service;
+
+import dk.bko.jdbc.PgOutputDecoder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.jdbc.DatabaseDriver;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relay that streams outbox messages from PostgreSQL logical replication instead of polling for them.
+ * Active with outbox.relay.mode=cdc; the polling relay of the {@link OutboxScheduler} is then skipped.
+ * Inserts into the outbox groups (shards) of INT_CHANNEL_MESSAGE, and updates moving delayed messages into them,
+ * are decoded from the pgoutput stream of a replication slot and sent to Kafka in WAL order.
+ * The slot's LSN is confirmed only after the broker has acknowledged every message up to it and the
+ * relayed rows have been deleted, so after a crash the stream resumes at the first unacknowledged transaction.
+ * Messages are relayed in commit order; priorities are ignored.
+ * The captured message bytes are deserialized with the allow-list of the message store.
+ */
+@Service
+@ConditionalOnProperty(name = "outbox.relay.mode", havingValue = "cdc")
+public class CdcOutboxRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(CdcOutboxRelay.class);
+    private static final String TABLE = "int_channel_message";
+
+    private static final String SLOT_EXISTS_SQL = "SELECT COUNT(*) FROM pg_replication_slots WHERE slot_name = ?";
+    private static final String CREATE_SLOT_SQL = "SELECT slot_name FROM pg_create_logical_replication_slot(?, 'pgoutput')";
+    private static final String LOAD_BYTES_SQL =
+            "SELECT MESSAGE_BYTES FROM INT_CHANNEL_MESSAGE WHERE REGION = ? AND GROUP_KEY = ? AND MESSAGE_SEQUENCE = ?";
+    private static final String DELETE_SQL =
+            "DELETE FROM INT_CHANNEL_MESSAGE WHERE REGION = ? AND GROUP_KEY = ? AND MESSAGE_SEQUENCE = ?";
+
+    private final DataSourceProperties dataSourceProperties;
+    private final JdbcTemplate jdbcTemplate;
+    private final OutboxRecordSender sender;
+    private final OutboxPartitioner partitioner;
+    private final OutboxRoutes routes;
+    private final AllowListDeserializingConverter deserializer;
+    private final String region;
+    private final Set<String> outboxGroupKeys = new HashSet<>();
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new CustomizableThreadFactory("outbox-cdc-"));
+
+    @Value("${outbox.relay.batch-size:500}")
+    private int batchSize;
+
+    @Value("${outbox.cdc.slot-name:outbox_relay}")
+    private String slotName;
+
+    @Value("${outbox.cdc.publication:outbox_cdc}")
+    private String publication;
+
+    @Value("${outbox.cdc.idle-wait-ms:10}")
+    private long idleWaitMs;
+
+    @Value("${outbox.cdc.retry-backoff-ms:5000}")
+    private long retryBackoffMs;
+
+    private volatile boolean running = true;
+
+    @Autowired
+    public CdcOutboxRelay(DataSourceProperties dataSourceProperties,
+                          @Qualifier("relayDataSource") DataSource relayDataSource,
+                          OutboxRecordSender sender,
+                          OutboxPartitioner partitioner,
+                          OutboxRoutes routes,
+                          OutboxShards outboxShards,
+                          JdbcChannelMessageStore jdbcChannelMessageStore,
+                          AllowListDeserializingConverter outboxMessageDeserializer) {
+        this.dataSourceProperties = dataSourceProperties;
+        this.deserializer = outboxMessageDeserializer;
+        this.jdbcTemplate = new JdbcTemplate(relayDataSource);
+        this.sender = sender;
+        this.partitioner = partitioner;
+        this.routes = routes;
+        this.region = jdbcChannelMessageStore.getRegion();
+        for (int shard = 0; shard < outboxShards.count(); shard++) {
+            outboxGroupKeys.add(OutboxShards.groupKey(shard));
+        }
+    }
+
+    /**
+     * Start streaming on the relay thread.
+     *
+     * @throws IllegalStateException if the database is not PostgreSQL
+     */
+    @PostConstruct
+    public void start() {
+        if (DatabaseDriver.fromJdbcUrl(dataSourceProperties.determineUrl()) != DatabaseDriver.POSTGRESQL) {
+            throw new IllegalStateException("outbox.relay.mode=cdc requires PostgreSQL");
+        }
+        executor.execute(this::relay);
+    }
+
+    /**
+     * Stop streaming: the transactions already read from the stream are relayed and their LSN confirmed,
+     * then the relay thread ends. Transactions not yet read are streamed after the next start.
+     *
+     * @param timeoutMs the maximum time to wait for the relay thread
+     * @return true if the relay thread has ended
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean stopRelaying(long timeoutMs) throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop streaming. Messages sent but not yet confirmed are sent again on the next start.
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stream until shut down, reconnecting after failures.
+     * Reconnecting resumes at the slot's confirmed LSN, so failed batches are sent again.
+     */
+    private void relay() {
+        while (running) {
+            try {
+                stream();
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                logger.error("CDC relay failed, reconnecting in {} ms", retryBackoffMs, e);
+                try {
+                    Thread.sleep(retryBackoffMs);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void stream() throws SQLException, InterruptedException {
+        ensureSlot();
+        try (Connection connection = openReplicationConnection();
+             PGReplicationStream stream = connection.unwrap(PGConnection.class).getReplicationAPI()
+                     .replicationStream()
+                     .logical()
+                     .withSlotName(slotName)
+                     .withSlotOption("proto_version", 1)
+                     .withSlotOption("publication_names", publication)
+                     .withStatusInterval(10, TimeUnit.SECONDS)
+                     .start()) {
+            logger.info("Streaming outbox messages from replication slot {}", slotName);
+            PgOutputDecoder decoder = new PgOutputDecoder();
+            List<CapturedRow> transaction = new ArrayList<>();
+            List<CapturedRow> committed = new ArrayList<>();
+            long committedLsn = 0;
+            while (running) {
+                ByteBuffer buffer = stream.readPending();
+                if (buffer == null) {
+                    if (committedLsn != 0) {
+                        flush(stream, committed, committedLsn);
+                        committedLsn = 0;
+                    }
+                    Thread.sleep(idleWaitMs);
+                    continue;
+                }
+                PgOutputDecoder.Event event = decoder.decode(buffer);
+                if (event instanceof PgOutputDecoder.Begin) {
+                    transaction.clear();
+                } else if (event instanceof PgOutputDecoder.RowChange change && isOutboxRow(change)) {
+                    transaction.add(capture(change.values()));
+                } else if (event instanceof PgOutputDecoder.Commit commit) {
+                    committed.addAll(transaction);
+                    transaction.clear();
+                    committedLsn = commit.endLsn();
+                    if (committed.size() >= batchSize) {
+                        flush(stream, committed, committedLsn);
+                        committedLsn = 0;
+                    }
+                }
+            }
+            if (committedLsn != 0) {
+                flush(stream, committed, committedLsn);
+            }
+        }
+    }
+
+    /**
+     * Send the rows of the committed transactions, delete them and confirm the LSN after the last transaction.
+     *
+     * @throws IllegalStateException if any message could not be sent
+     */
+    private void flush(PGReplicationStream stream, List<CapturedRow> rows, long commitLsn) throws SQLException {
+        if (!rows.isEmpty()) {
+            sender.send(rows.stream().map(CapturedRow::record).filter(Objects::nonNull).toList());
+            jdbcTemplate.batchUpdate(DELETE_SQL, rows, rows.size(), (statement, row) -> {
+                statement.setString(1, row.region());
+                statement.setString(2, row.groupKey());
+                statement.setLong(3, row.sequence());
+            });
+            logger.info("Relayed {} messages from the replication stream", rows.size());
+            rows.clear();
+        }
+        LogSequenceNumber lsn = LogSequenceNumber.valueOf(commitLsn);
+        stream.setAppliedLSN(lsn);
+        stream.setFlushedLSN(lsn);
+        stream.forceUpdateStatus();
+    }
+
+    private boolean isOutboxRow(PgOutputDecoder.RowChange change) {
+        Map<String, String> values = change.values();
+        return TABLE.equals(change.table())
+                && outboxGroupKeys.contains(values.get("group_key"))
+                && region.equals(values.get("region"));
+    }
+
+    /**
+     * Deserialize a captured outbox row.
+     * The message bytes of an update are only in the stream if they changed, so they are read from the table otherwise.
+     */
+    private CapturedRow capture(Map<String, String> values) {
+        String groupKey = values.get("group_key");
+        long sequence = Long.parseLong(values.get("message_sequence"));
+        byte[] bytes;
+        if (values.containsKey("message_bytes")) {
+            bytes = HexFormat.of().parseHex(values.get("message_bytes").substring(2)); // bytea hex format: \x...
+        } else {
+            List<byte[]> stored = jdbcTemplate.query(LOAD_BYTES_SQL, (rs, rowNum) -> rs.getBytes(1),
+                    region, groupKey, sequence);
+            bytes = stored.isEmpty() ? null : stored.get(0);
+        }
+        OutboxRecord record = null;
+        if (bytes != null) {
+            record = OutboxRecord.from((Message<?>) deserializer.convert(bytes), partitioner, routes);
+        } else {
+            logger.warn("Outbox message {} is no longer in the table, skipping", values.get("message_id"));
+        }
+        return new CapturedRow(region, groupKey, sequence, record);
+    }
+
+    private Connection openReplicationConnection() throws SQLException {
+        Properties properties = new Properties();
+        PGProperty.USER.set(properties, dataSourceProperties.determineUsername());
+        PGProperty.PASSWORD.set(properties, dataSourceProperties.determinePassword());
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10");
+        PGProperty.REPLICATION.set(properties, "database");
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+        return DriverManager.getConnection(dataSourceProperties.determineUrl(), properties);
+    }
+
+    /**
+     * Create the replication slot on the first start.
+     * Only messages stored after the slot was created are streamed, so drain the outbox before switching to CDC.
+     */
+    private void ensureSlot() {
+        Integer slots = jdbcTemplate.queryForObject(SLOT_EXISTS_SQL, Integer.class, slotName);
+        if (slots == null || slots == 0) {
+            jdbcTemplate.queryForObject(CREATE_SLOT_SQL, String.class, slotName);
+            logger.info("Created logical replication slot {}", slotName);
+        }
+    }
+
+    private record CapturedRow(String region, String groupKey, long sequence, OutboxRecord record) {
+    }
+}
@@ -0,0 +1,224 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.UuidV7;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Claim-check store for large message content.
+ * Content larger than claim-check.threshold-bytes is written once, in chunks, to the INT_PAYLOAD_CHUNK table,
+ * and the message only carries a reference to it and its SHA-256 checksum. The outbox rows, the relay and
+ * the Kafka records therefore stay small whatever the size of the content.
+ * Consumers read the content lazily, one chunk at a time, and the checksum is verified at the end of the stream.
+ * The INT_MESSAGE row of a claim-checked message records its payload in CONTENT_REF; as every outbox row and
+ * every replay is backed by such a row, a payload is kept as long as its message exists.
+ */
+@Service
+public class ClaimCheckStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClaimCheckStore.class);
+
+    private static final String INSERT_CHUNK_SQL =
+            "INSERT INTO INT_PAYLOAD_CHUNK (PAYLOAD_ID, CHUNK_INDEX, CHUNK_BYTES, CREATED_DATE) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_CHUNK_SQL =
+            "SELECT CHUNK_BYTES FROM INT_PAYLOAD_CHUNK WHERE PAYLOAD_ID = ? AND CHUNK_INDEX = ?";
+    private static final String PURGE_SQL = "DELETE FROM INT_PAYLOAD_CHUNK WHERE CREATED_DATE < ? " +
+            "AND NOT EXISTS (SELECT 1 FROM INT_MESSAGE WHERE INT_MESSAGE.CONTENT_REF = INT_PAYLOAD_CHUNK.PAYLOAD_ID)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${claim-check.enabled:true}")
+    private boolean enabled;
+
+    @Value("${claim-check.threshold-bytes:262144}")
+    private int thresholdBytes;
+
+    @Value("${claim-check.chunk-size-bytes:262144}")
+    private int chunkSizeBytes;
+
+    @Value("${claim-check.retention-days:7}")
+    private int retentionDays;
+
+    @Autowired
+    public ClaimCheckStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Move the content of a message to the claim-check store if it is larger than the threshold.
+     * Must be called in the transaction storing the message, so the payload is committed with it.
+     *
+     * @param message the message to check in
+     * @return the same message, with its content replaced by a reference if it was checked in
+     */
+    public KafkaMessage checkIn(KafkaMessage message) {
+        if (!enabled || message.getContent() == null) {
+            return message;
+        }
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        if (content.length <= thresholdBytes) {
+            return message;
+        }
+
+        UUID payloadId = UuidV7.randomUuid();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        int chunks = (content.length + chunkSizeBytes - 1) / chunkSizeBytes;
+        jdbcTemplate.batchUpdate(INSERT_CHUNK_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement statement, int index) throws SQLException {
+                int from = index * chunkSizeBytes;
+                statement.setObject(1, payloadId);
+                statement.setInt(2, index);
+                statement.setBytes(3, Arrays.copyOfRange(content, from, Math.min(from + chunkSizeBytes, content.length)));
+                statement.setTimestamp(4, now);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return chunks;
+            }
+        });
+
+        message.setContent(null);
+        message.setContentRef(payloadId.toString());
+        message.setContentChecksum(HexFormat.of().formatHex(sha256().digest(content)));
+        message.setContentLength(content.length);
+        logger.info("Checked in {} bytes of message {} as payload {} in {} chunks",
+                content.length, message.getId(), payloadId, chunks);
+        return message;
+    }
+
+    /**
+     * Open the content of a message as a stream.
+     * Inline content is returned as is; claim-checked content is read one chunk at a time.
+     *
+     * @param message the message
+     * @return the content as UTF-8 bytes; reading it fails with an IOException if a claim-checked payload
+     *         is missing, incomplete or does not match its checksum
+     */
+    public InputStream openContent(KafkaMessage message) {
+        if (message.getContentRef() == null) {
+            String content = message.getContent();
+            return new ByteArrayInputStream(content != null ? content.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        }
+        return new ChunkedPayloadInputStream(UUID.fromString(message.getContentRef()),
+                message.getContentChecksum(), message.getContentLength());
+    }
+
+    /**
+     * Remove payloads older than the retention period that no message references any more,
+     * that is the payloads of deleted messages. Consumers are not expected to read messages older than that.
+     */
+    @Scheduled(cron = "${claim-check.purge-cron:0 30 * * * *}")
+    @Transactional
+    public void purgeExpiredPayloads() {
+        int deleted = jdbcTemplate.update(PURGE_SQL, Timestamp.valueOf(LocalDateTime.now().minusDays(retentionDays)));
+        if (deleted > 0) {
+            logger.info("Purged {} expired payload chunks", deleted);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Stream over the chunks of a payload, loading the next chunk only when the current one has been read.
+     */
+    private class ChunkedPayloadInputStream extends InputStream {
+
+        private final UUID payloadId;
+        private final String checksum;
+        private final long length;
+        private final MessageDigest digest = sha256();
+        private byte[] chunk = new byte[0];
+        private int position;
+        private int nextChunk;
+        private long read;
+        private boolean finished;
+
+        ChunkedPayloadInputStream(UUID payloadId, String checksum, long length) {
+            this.payloadId = payloadId;
+            this.checksum = checksum;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int copied = Math.min(count, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, copied);
+            position += copied;
+            return copied;
+        }
+
+        /**
+         * Make sure there are unread bytes in the current chunk, loading the next chunk if needed.
+         *
+         * @return false at the end of the payload
+         */
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                if (finished) {
+                    return false;
+                }
+                List<byte[]> rows = jdbcTemplate.query(SELECT_CHUNK_SQL, (rs, rowNum) -> rs.getBytes(1),
+                        payloadId, nextChunk++);
+                if (rows.isEmpty()) {
+                    finished = true;
+                    verify();
+                    return false;
+                }
+                chunk = rows.get(0);
+                position = 0;
+                read += chunk.length;
+                digest.update(chunk);
+            }
+            return true;
+        }
+
+        private void verify() throws IOException {
+            if (read != length || !HexFormat.of().formatHex(digest.digest()).equals(checksum)) {
+                throw new IOException("Payload " + payloadId + " is missing, incomplete or corrupt: read "
+                        + read + " of " + length + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package dk.bko.service;
+
+import dk.bko.config.OutboxConfig;
+import dk.bko.util.HierarchicalTimingWheel;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.util.UUIDConverter;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Service releasing delayed outbox messages when they are due.
+ * Delayed messages wait in their own group of INT_CHANNEL_MESSAGE, so the relay's claims never see them.
+ * Messages due within outbox.delay.horizon-ms are loaded (only their ID and delivery time) into a
+ * {@link HierarchicalTimingWheel}; when the wheel expires them they are moved to the outbox group
+ * with a single UPDATE per outbox shard and the relay is triggered right away.
+ * Delayed messages are spread over the shards by the hash of their ID in the message store;
+ * they are out of order anyway, so they need not follow the shard of their record key.
+ * Messages further in the future are left in the database until they come within the horizon.
+ * Loading and releasing use the relay's connection pool.
+ */
+@Service
+public class DelayedDeliveryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DelayedDeliveryService.class);
+
+    private static final String LOAD_DUE_SQL =
+            "SELECT MESSAGE_ID, DELIVER_AFTER FROM INT_CHANNEL_MESSAGE " +
+            "WHERE REGION = :region AND GROUP_KEY = :delayedGroup AND DELIVER_AFTER <= :horizon " +
+            "ORDER BY DELIVER_AFTER LIMIT :limit";
+
+    private static final int RELEASE_CHUNK_SIZE = 1000;
+
+    private static final String RELEASE_SQL =
+            "UPDATE INT_CHANNEL_MESSAGE SET GROUP_KEY = :outboxGroup, DELIVER_AFTER = NULL " +
+            "WHERE REGION = :region AND GROUP_KEY = :delayedGroup AND MESSAGE_ID IN (:messageIds)";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final OutboxScheduler outboxScheduler;
+    private final HierarchicalTimingWheel<String> timingWheel;
+    private final Set<String> scheduledIds = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker;
+    private final OutboxShards outboxShards;
+    private final String region;
+    private final String delayedGroupKey;
+
+    @Value("${outbox.delay.horizon-ms:60000}")
+    private long horizonMs;
+
+    @Value("${outbox.delay.load-batch-size:10000}")
+    private int loadBatchSize;
+
+    @Autowired
+    public DelayedDeliveryService(@Qualifier("relayDataSource") DataSource relayDataSource,
+                                  OutboxScheduler outboxScheduler,
+                                  OutboxShards outboxShards,
+                                  JdbcChannelMessageStore jdbcChannelMessageStore,
+                                  @Value("${outbox.delay.tick-ms:10}") long tickMs,
+                                  @Value("${outbox.delay.wheel-size:64}") int wheelSize) {
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(relayDataSource);
+        this.outboxScheduler = outboxScheduler;
+        this.outboxShards = outboxShards;
+        this.timingWheel = new HierarchicalTimingWheel<>(tickMs, wheelSize, System.currentTimeMillis());
+        this.region = jdbcChannelMessageStore.getRegion();
+        this.delayedGroupKey = UUIDConverter.getUUID(OutboxConfig.DELAYED_OUTBOX_GROUP).toString();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("outbox-delay-"));
+        this.ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule the release of a delayed message that has just been stored.
+     * Messages due within the horizon go into the timing wheel right away; later ones are picked up by
+     * {@link #loadDueMessages()}. Must be called after the transaction storing the message has committed.
+     *
+     * @param storeMessageId the ID of the message in the channel message store
+     * @param deliverAfter the earliest delivery time in epoch milliseconds
+     */
+    public void schedule(String storeMessageId, long deliverAfter) {
+        if (deliverAfter <= System.currentTimeMillis() + horizonMs) {
+            scheduleRelease(storeMessageId, deliverAfter);
+        }
+    }
+
+    /**
+     * Load the delayed messages that are due within the horizon into the timing wheel.
+     * This also picks up messages stored by other instances and messages whose release failed.
+     */
+    @Scheduled(fixedDelayString = "${outbox.delay.load-interval-ms:1000}")
+    public void loadDueMessages() {
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("region", region)
+                .addValue("delayedGroup", delayedGroupKey)
+                .addValue("horizon", System.currentTimeMillis() + horizonMs)
+                .addValue("limit", loadBatchSize);
+        jdbcTemplate.query(LOAD_DUE_SQL, parameters, rs -> {
+            String messageId = rs.getString(1);
+            if (!scheduledIds.contains(messageId)) {
+                scheduleRelease(messageId, rs.getLong(2));
+            }
+        });
+    }
+
+    /**
+     * @return the number of delayed messages waiting in the timing wheel
+     */
+    public int getScheduledCount() {
+        return timingWheel.size();
+    }
+
+    private void scheduleRelease(String messageId, long deliverAfter) {
+        if (!scheduledIds.add(messageId)) {
+            return;
+        }
+        if (!timingWheel.schedule(messageId, deliverAfter)) {
+            release(List.of(messageId));
+        }
+    }
+
+    private void tick() {
+        try {
+            List<String> due = timingWheel.advance(System.currentTimeMillis());
+            for (int i = 0; i < due.size(); i += RELEASE_CHUNK_SIZE) {
+                release(due.subList(i, Math.min(i + RELEASE_CHUNK_SIZE, due.size())));
+            }
+        } catch (Exception e) {
+            logger.error("Error advancing the delayed delivery timing wheel", e);
+        }
+    }
+
+    /**
+     * Move due messages to the outbox shards and trigger the relay.
+     * If the update fails, the messages are forgotten and loaded again by the next load.
+     */
+    private void release(List<String> messageIds) {
+        try {
+            Map<Integer, List<String>> byShard = messageIds.stream()
+                    .collect(Collectors.groupingBy(outboxShards::shardForKey));
+            int released = 0;
+            for (Map.Entry<Integer, List<String>> shard : byShard.entrySet()) {
+                released += jdbcTemplate.update(RELEASE_SQL, new MapSqlParameterSource()
+                        .addValue("outboxGroup", OutboxShards.groupKey(shard.getKey()))
+                        .addValue("region", region)
+                        .addValue("delayedGroup", delayedGroupKey)
+                        .addValue("messageIds", shard.getValue()));
+            }
+            logger.debug("Released {} delayed messages", released);
+            if (released > 0) {
+                outboxScheduler.triggerRelay();
+            }
+        } catch (Exception e) {
+            logger.error("Failed to release {} delayed messages, they will be retried", messageIds.size(), e);
+        } finally {
+            messageIds.forEach(scheduledIds::remove);
+        }
+    }
+
+    /**
+     * Stop the timing wheel.
+     */
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdown();
+    }
+}
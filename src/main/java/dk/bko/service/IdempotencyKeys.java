@@ -0,0 +1,247 @@
+package dk.bko.service;
+
+import dk.bko.entity.Message;
+import dk.bko.util.BloomFilter;
+import dk.bko.util.BoundedLruCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Client idempotency keys of ingest requests, stored in INT_IDEMPOTENCY_KEY with the ID of the message
+ * each key created. The primary key of the table makes sure a key creates at most one message.
+ * Two in-memory structures keep the check off the database for the common case of a new key:
+ * - a Bloom filter of all stored keys: a key it has not seen is new, no query needed
+ * - a bounded LRU of recent keys and their messages, for retries that arrive shortly after the original
+ * Only keys the filter has probably seen and that are not in the LRU are looked up in the database.
+ * Keys stored by other instances are not in the filter; storing such a key again fails on the primary key.
+ * Keys expire after ingest.idempotency.retention-hours; the filter is rebuilt from the table after each purge.
+ * The filter is first loaded once the application is ready, so the context starts without a database;
+ * until it is loaded every lookup goes to the database.
+ * Messages of the journal outbox are not stored in INT_MESSAGE, so their keys also keep the message itself,
+ * to answer retries with.
+ */
+@Service
+public class IdempotencyKeys {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyKeys.class);
+
+    /**
+     * Maximum length of an idempotency key.
+     */
+    public static final int MAX_KEY_LENGTH = 255;
+
+    private static final String INSERT_SQL =
+            "INSERT INTO INT_IDEMPOTENCY_KEY (IDEMPOTENCY_KEY, MESSAGE_ID, CREATED_DATE) VALUES (?, ?, ?)";
+    private static final String INSERT_WITH_RESPONSE_SQL = "INSERT INTO INT_IDEMPOTENCY_KEY "
+            + "(IDEMPOTENCY_KEY, MESSAGE_ID, CREATED_DATE, REGION, MESSAGE_CREATED_DATE, MESSAGE_BYTES) "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_SQL =
+            "SELECT MESSAGE_ID FROM INT_IDEMPOTENCY_KEY WHERE IDEMPOTENCY_KEY = ?";
+    private static final String SELECT_RESPONSE_SQL = "SELECT MESSAGE_ID, REGION, MESSAGE_CREATED_DATE, "
+            + "MESSAGE_BYTES FROM INT_IDEMPOTENCY_KEY WHERE IDEMPOTENCY_KEY = ? AND MESSAGE_BYTES IS NOT NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final BoundedLruCache<String, UUID> recentKeys;
+    private final long expectedKeys;
+    private final double falsePositiveProbability;
+    private final Counter filteredCounter;
+    private final Counter cachedCounter;
+    private final Counter queriedCounter;
+
+    @Value("${ingest.idempotency.retention-hours:24}")
+    private int retentionHours;
+
+    private volatile BloomFilter filter;
+    private volatile BloomFilter nextFilter;
+    private volatile boolean filterLoaded;
+
+    @Autowired
+    public IdempotencyKeys(JdbcTemplate jdbcTemplate,
+                           MeterRegistry meterRegistry,
+                           @Value("${ingest.idempotency.expected-keys:1000000}") long expectedKeys,
+                           @Value("${ingest.idempotency.false-positive-probability:0.01}")
+                           double falsePositiveProbability,
+                           @Value("${ingest.idempotency.cache-size:10000}") int cacheSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.recentKeys = new BoundedLruCache<>(cacheSize);
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.filter = new BloomFilter(expectedKeys, falsePositiveProbability);
+        this.filteredCounter = lookupCounter(meterRegistry, "filtered");
+        this.cachedCounter = lookupCounter(meterRegistry, "cached");
+        this.queriedCounter = lookupCounter(meterRegistry, "database");
+    }
+
+    private static Counter lookupCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("ingest.idempotency.lookups")
+                .description("Idempotency key lookups, by where they were answered")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Load the stored keys into the filter. If the database is not available yet, the next purge loads them.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        try {
+            rebuildFilter();
+        } catch (DataAccessException e) {
+            logger.warn("Failed to load the idempotency keys, looking them up in the database until the next purge",
+                    e);
+        }
+    }
+
+    /**
+     * Find the message created for a key.
+     *
+     * @param key the idempotency key
+     * @return the ID of the message created for the key, or empty if the key is new
+     */
+    public Optional<UUID> find(String key) {
+        if (filterLoaded && !filter.mightContain(key)) {
+            filteredCounter.increment();
+            return Optional.empty();
+        }
+        UUID messageId = recentKeys.get(key);
+        if (messageId != null) {
+            cachedCounter.increment();
+            return Optional.of(messageId);
+        }
+        return query(key);
+    }
+
+    /**
+     * Find the message created for a key in the database, bypassing the filter.
+     * Used when storing the key failed because another request or instance stored it first.
+     *
+     * @param key the idempotency key
+     * @return the ID of the message created for the key, or empty if the key is not stored
+     */
+    public Optional<UUID> query(String key) {
+        queriedCounter.increment();
+        List<UUID> messageIds = jdbcTemplate.queryForList(SELECT_SQL, UUID.class, key);
+        if (messageIds.isEmpty()) {
+            return Optional.empty();
+        }
+        remember(key, messageIds.get(0));
+        return Optional.of(messageIds.get(0));
+    }
+
+    /**
+     * Store a key in the current transaction. The filter and the LRU learn the key once the transaction commits.
+     *
+     * @param key the idempotency key
+     * @param messageId the ID of the message created for the key
+     * @throws org.springframework.dao.DuplicateKeyException if the key is already stored
+     */
+    public void store(String key, UUID messageId) {
+        jdbcTemplate.update(INSERT_SQL, key, messageId, Timestamp.valueOf(LocalDateTime.now()));
+        rememberAfterCommit(key, messageId);
+    }
+
+    /**
+     * Store a key together with the message it created, for messages that are not stored in INT_MESSAGE.
+     * Retries are answered with the message from {@link #response(String)}.
+     *
+     * @param key the idempotency key
+     * @param message the message created for the key
+     * @throws org.springframework.dao.DuplicateKeyException if the key is already stored
+     */
+    public void store(String key, Message message) {
+        jdbcTemplate.update(INSERT_WITH_RESPONSE_SQL, key, message.getMessageId(),
+                Timestamp.valueOf(LocalDateTime.now()), message.getRegion(),
+                Timestamp.valueOf(message.getCreatedDate()), message.getMessageBytes());
+        rememberAfterCommit(key, message.getMessageId());
+    }
+
+    /**
+     * Get the message stored with a key by {@link #store(String, Message)}.
+     *
+     * @param key the idempotency key
+     * @return the message, or empty if the key is not stored or was stored without its message
+     */
+    public Optional<Message> response(String key) {
+        return jdbcTemplate.query(SELECT_RESPONSE_SQL, (resultSet, rowNum) -> new Message(
+                resultSet.getObject(1, UUID.class),
+                resultSet.getString(2),
+                resultSet.getTimestamp(3).toLocalDateTime(),
+                resultSet.getBytes(4)), key).stream().findFirst();
+    }
+
+    private void rememberAfterCommit(String key, UUID messageId) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                remember(key, messageId);
+            }
+        });
+    }
+
+    /**
+     * Remove keys older than the retention period and rebuild the filter without them.
+     */
+    @Scheduled(cron = "${ingest.idempotency.purge-cron:0 15 * * * *}")
+    public void purgeExpiredKeys() {
+        int deleted = jdbcTemplate.update("DELETE FROM INT_IDEMPOTENCY_KEY WHERE CREATED_DATE < ?",
+                Timestamp.valueOf(LocalDateTime.now().minusHours(retentionHours)));
+        if (deleted > 0) {
+            logger.info("Purged {} expired idempotency keys", deleted);
+        }
+        if (deleted > 0 || !filterLoaded) {
+            rebuildFilter();
+        }
+    }
+
+    private void remember(String key, UUID messageId) {
+        filter.put(key);
+        BloomFilter next = nextFilter;
+        if (next != null) {
+            next.put(key);
+        }
+        recentKeys.put(key, messageId);
+    }
+
+    /**
+     * Build a new filter from the table and swap it in. Keys stored meanwhile are added to both filters,
+     * so no stored key is missing from the new one.
+     */
+    private synchronized void rebuildFilter() {
+        BloomFilter next = new BloomFilter(expectedKeys, falsePositiveProbability);
+        nextFilter = next;
+        int[] count = new int[1];
+        try {
+            jdbcTemplate.query("SELECT IDEMPOTENCY_KEY FROM INT_IDEMPOTENCY_KEY", resultSet -> {
+                next.put(resultSet.getString(1));
+                count[0]++;
+            });
+            filter = next;
+            filterLoaded = true;
+        } finally {
+            nextFilter = null;
+        }
+        if (count[0] > expectedKeys) {
+            logger.warn("{} idempotency keys are stored but the filter is sized for {}, raise "
+                    + "ingest.idempotency.expected-keys", count[0], expectedKeys);
+        }
+        logger.info("Loaded {} idempotency keys into the filter", count[0]);
+    }
+}
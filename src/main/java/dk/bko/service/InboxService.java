@@ -0,0 +1,149 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.BoundedLruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DatabaseDriver;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Service implementing the idempotent inbox on the consumer side.
+ * The IDs of processed messages are recorded in the INT_INBOX table in the same transaction
+ * as the processing itself, so a message redelivered by the at-least-once relay is processed only once.
+ * A bounded cache of recently seen IDs filters most duplicates without a database round trip.
+ * On PostgreSQL the IDs of a batch are inserted with one INSERT ... ON CONFLICT DO NOTHING statement over an array.
+ * Other databases, like H2 in the tests, get a batch of conditional inserts instead; there, a concurrent consumer
+ * inserting the same ID fails the batch with a duplicate key, and the redelivered batch skips the ID.
+ */
+@Service
+@ConditionalOnProperty(name = "consumer.processing.mode", havingValue = "batch")
+public class InboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxService.class);
+    private static final Boolean SEEN = Boolean.TRUE;
+
+    private static final String INSERT_IDS_SQL =
+            "INSERT INTO INT_INBOX (MESSAGE_ID, RECEIVED_DATE) " +
+            "SELECT id, ? FROM unnest(?) AS ids(id) " +
+            "ON CONFLICT DO NOTHING RETURNING MESSAGE_ID";
+    private static final String INSERT_ID_SQL =
+            "INSERT INTO INT_INBOX (MESSAGE_ID, RECEIVED_DATE) " +
+            "SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM INT_INBOX WHERE MESSAGE_ID = ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final BoundedLruCache<String, Boolean> recentIds;
+    private final boolean postgres;
+
+    @Value("${consumer.inbox.retention-days:7}")
+    private int retentionDays;
+
+    @Autowired
+    public InboxService(JdbcTemplate jdbcTemplate,
+                        @Value("${consumer.inbox.recent-id-cache-size:100000}") int recentIdCacheSize,
+                        @Value("${spring.datasource.url}") String datasourceUrl) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.recentIds = new BoundedLruCache<>(recentIdCacheSize);
+        this.postgres = DatabaseDriver.fromJdbcUrl(datasourceUrl) == DatabaseDriver.POSTGRESQL;
+    }
+
+    /**
+     * Process the messages of a batch that have not been processed before.
+     * The new IDs are inserted into the inbox with a single statement, and only the messages
+     * whose ID was actually inserted are handed to the handler. If the handler fails,
+     * the transaction rolls back, the inbox rows disappear and the whole batch can be redelivered.
+     *
+     * @param messages the messages of the batch
+     * @param handler the processing logic
+     * @return the number of messages processed
+     */
+    @Transactional
+    public int processNew(List<KafkaMessage> messages, Consumer<KafkaMessage> handler) {
+        Map<String, KafkaMessage> candidates = new LinkedHashMap<>();
+        for (KafkaMessage message : messages) {
+            if (!recentIds.containsKey(message.getId())) {
+                candidates.putIfAbsent(message.getId(), message);
+            }
+        }
+        if (candidates.isEmpty()) {
+            logger.debug("All {} messages of the batch were recently processed", messages.size());
+            return 0;
+        }
+
+        Set<String> inserted = insertIds(candidates.keySet());
+        List<KafkaMessage> newMessages = new ArrayList<>(inserted.size());
+        for (KafkaMessage message : candidates.values()) {
+            if (inserted.contains(message.getId())) {
+                newMessages.add(message);
+            }
+        }
+        logger.debug("Batch of {} messages contains {} new messages", messages.size(), newMessages.size());
+
+        newMessages.forEach(handler);
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                candidates.keySet().forEach(id -> recentIds.put(id, SEEN));
+            }
+        });
+        return newMessages.size();
+    }
+
+    /**
+     * Remove inbox entries older than the retention period.
+     * Redeliveries older than that are not expected any more.
+     */
+    @Scheduled(cron = "${consumer.inbox.purge-cron:0 0 * * * *}")
+    @Transactional
+    public void purgeExpiredEntries() {
+        int deleted = jdbcTemplate.update("DELETE FROM INT_INBOX WHERE RECEIVED_DATE < ?",
+                Timestamp.valueOf(LocalDateTime.now().minusDays(retentionDays)));
+        if (deleted > 0) {
+            logger.info("Purged {} expired inbox entries", deleted);
+        }
+    }
+
+    private Set<String> insertIds(Set<String> ids) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        if (postgres) {
+            List<String> inserted = jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(INSERT_IDS_SQL);
+                statement.setTimestamp(1, now);
+                statement.setArray(2, connection.createArrayOf("varchar", ids.toArray()));
+                return statement;
+            }, (rs, rowNum) -> rs.getString(1));
+            return new HashSet<>(inserted);
+        }
+        List<String> candidates = new ArrayList<>(ids);
+        int[] counts = jdbcTemplate.batchUpdate(INSERT_ID_SQL, candidates.stream()
+                .map(id -> new Object[] {id, now, id})
+                .toList());
+        Set<String> inserted = new HashSet<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                inserted.add(candidates.get(i));
+            }
+        }
+        return inserted;
+    }
+}
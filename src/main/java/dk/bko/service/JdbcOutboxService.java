@@ -3,20 +3,29 @@ package dk.bko.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.bko.entity.Message;
+import dk.bko.jdbc.DeliverAfterPreparedStatementSetter;
 import dk.bko.model.KafkaMessage;
 import dk.bko.repository.MessageRepository;
+import dk.bko.util.SampledLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.integration.support.MessageBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
 import org.springframework.messaging.PollableChannel;
+import org.springframework.messaging.support.GenericMessage;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Service implementing the outbox pattern for reliable message delivery to Kafka.
@@ -31,18 +40,44 @@ public class JdbcOutboxService {
     private static final String REGION_HEADER = "region";
     private static final String MESSAGE_ID_HEADER = "messageId";
 
+    /**
+     * Priority of messages sent without an explicit priority.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
     private final MessageRepository messageRepository;
     private final ObjectMapper objectMapper;
-    private final PollableChannel kafkaOutboxChannel;
+    private final OutboxShards outboxShards;
+    private final PollableChannel kafkaOutboxDelayedChannel;
+    private final DelayedDeliveryService delayedDeliveryService;
+    private final ClaimCheckStore claimCheckStore;
+    private final MessageStatistics messageStatistics;
+    private final JournalOutbox journalOutbox;
+    private final IdempotencyKeys idempotencyKeys;
+    private final SampledLogger storedLog;
 
     @Autowired
     public JdbcOutboxService(
             MessageRepository messageRepository,
             ObjectMapper objectMapper,
-            @Qualifier("kafkaOutboxChannel") PollableChannel kafkaOutboxChannel) {
+            OutboxShards outboxShards,
+            @Qualifier("kafkaOutboxDelayedChannel") PollableChannel kafkaOutboxDelayedChannel,
+            DelayedDeliveryService delayedDeliveryService,
+            ClaimCheckStore claimCheckStore,
+            MessageStatistics messageStatistics,
+            ObjectProvider<JournalOutbox> journalOutbox,
+            IdempotencyKeys idempotencyKeys,
+            @Value("${hot-path.logging.max-per-second:0}") int maxLogLinesPerSecond) {
         this.messageRepository = messageRepository;
         this.objectMapper = objectMapper;
-        this.kafkaOutboxChannel = kafkaOutboxChannel;
+        this.outboxShards = outboxShards;
+        this.kafkaOutboxDelayedChannel = kafkaOutboxDelayedChannel;
+        this.delayedDeliveryService = delayedDeliveryService;
+        this.claimCheckStore = claimCheckStore;
+        this.messageStatistics = messageStatistics;
+        this.journalOutbox = journalOutbox.getIfAvailable();
+        this.idempotencyKeys = idempotencyKeys;
+        this.storedLog = new SampledLogger(logger, maxLogLinesPerSecond);
     }
 
     /**
@@ -56,31 +91,102 @@ public class JdbcOutboxService {
      */
     @Transactional
     public Message sendMessage(String content, String region) {
-        // Create a KafkaMessage
-        KafkaMessage kafkaMessage = new KafkaMessage(content, region);
+        return sendMessage(content, region, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Stores a message with the given priority in the outbox for later delivery to Kafka.
+     * The relay claims messages with a higher priority before older messages with a lower priority.
+     *
+     * @param content the message content
+     * @param region the region for the message
+     * @param priority the priority of the message, higher is more urgent
+     * @return the created message entity
+     */
+    @Transactional
+    public Message sendMessage(String content, String region, int priority) {
+        return sendMessage(content, region, priority, null);
+    }
+
+    /**
+     * Stores a message in the outbox that must not be delivered to Kafka before the given time.
+     * A message with a delivery time in the future is kept in a separate group of the message store
+     * and released to the relay by the {@link DelayedDeliveryService} when it is due.
+     * With outbox.store=journal, messages to deliver right away are stored in the {@link JournalOutbox} instead.
+     *
+     * @param content the message content
+     * @param region the region for the message
+     * @param priority the priority of the message, higher is more urgent
+     * @param deliverAt the earliest delivery time, or null to deliver right away
+     * @return the created message entity
+     */
+    @Transactional
+    public Message sendMessage(String content, String region, int priority, Instant deliverAt) {
+        return sendMessage(content, region, priority, deliverAt, null);
+    }
+
+    /**
+     * Stores a message in the outbox, recording the client's idempotency key in the same transaction.
+     * The key is stored before the message, so a key stored already fails the call before anything else is written.
+     *
+     * @param content the message content
+     * @param region the region for the message
+     * @param priority the priority of the message, higher is more urgent
+     * @param deliverAt the earliest delivery time, or null to deliver right away
+     * @param idempotencyKey the client's idempotency key, or null
+     * @return the created message entity
+     * @throws org.springframework.dao.DuplicateKeyException if the idempotency key is already stored
+     */
+    @Transactional
+    public Message sendMessage(String content, String region, int priority, Instant deliverAt,
+                               String idempotencyKey) {
+        boolean delayed = deliverAt != null && deliverAt.isAfter(Instant.now());
+        if (journalOutbox != null && !delayed) {
+            // No claim check: the journal holds the full content, and the relay reads it from there
+            Message message = journalOutbox.prepare(new KafkaMessage(content, region));
+            if (idempotencyKey != null) {
+                // Before the append: once appended and synced, the message is relayed whatever happens next.
+                // The message has no INT_MESSAGE row, so the key keeps it to answer retries with
+                idempotencyKeys.store(idempotencyKey, message);
+            }
+            journalOutbox.append(message);
+            messageStatistics.record(region, message.getCreatedDate(), message.getMessageBytes().length);
+            return message;
+        }
+
+        // Create a KafkaMessage, moving large content to the claim-check store
+        KafkaMessage kafkaMessage = claimCheckStore.checkIn(new KafkaMessage(content, region));
         String messageId = kafkaMessage.getId();
+        if (idempotencyKey != null) {
+            idempotencyKeys.store(idempotencyKey, UUID.fromString(messageId));
+        }
         
         try {
             // Serialize the message to JSON
             byte[] messageBytes = objectMapper.writeValueAsBytes(kafkaMessage);
             
             // Store the message in the database using JPA
-            Message message = new Message(messageId, region, kafkaMessage.getTimestamp(), messageBytes);
+            Message message = new Message(UUID.fromString(messageId), region, kafkaMessage.getTimestamp(), messageBytes);
+            message.setFormat(Message.Format.OUTBOX);
+            if (kafkaMessage.getContentRef() != null) {
+                // Keeps the payload from being purged while the message exists
+                message.setContentRef(UUID.fromString(kafkaMessage.getContentRef()));
+            }
             message = messageRepository.save(message);
+            messageStatistics.record(region, kafkaMessage.getTimestamp(), messageBytes.length);
             
             // Create a Spring Integration message with the KafkaMessage as the payload
-            // and add headers for region and messageId
-            org.springframework.messaging.Message<KafkaMessage> integrationMessage = 
-                    MessageBuilder.withPayload(kafkaMessage)
-                            .setHeader(REGION_HEADER, region)
-                            .setHeader(MESSAGE_ID_HEADER, messageId)
-                            .build();
+            // and add headers for region, messageId and priority
+            Long deliverAfter = delayed ? deliverAt.toEpochMilli() : null;
+            org.springframework.messaging.Message<KafkaMessage> integrationMessage =
+                    outboxMessage(kafkaMessage, region, priority, deliverAfter);
             
-            // Send the message to the channel, which will store it in the JDBC message store
-            boolean sent = kafkaOutboxChannel.send(integrationMessage);
+            // Send the message to the channel of its shard, which will store it in the JDBC message store
+            boolean sent = delayed ? sendDelayed(integrationMessage, deliverAfter)
+                    : outboxShards.outboxChannel(outboxShards.shardFor(messageId, region)).send(integrationMessage);
             
             if (sent) {
-                logger.info("Message stored in outbox channel: {}", messageId);
+                storedLog.info("Message stored in outbox channel: {}", messageId);
             } else {
                 logger.error("Failed to store message in outbox channel: {}", messageId);
                 throw new RuntimeException("Failed to store message in outbox channel");
@@ -92,4 +198,52 @@ public class JdbcOutboxService {
             throw new RuntimeException("Failed to serialize message", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Build the outbox message of a Kafka message.
+     * The headers are put straight into one map instead of going through a {@code MessageBuilder},
+     * which copies them into an accessor first; the message still gets its own header ID and timestamp.
+     *
+     * @param kafkaMessage the Kafka message
+     * @param region the region of the message
+     * @param priority the priority of the message
+     * @param deliverAfter the earliest delivery time in epoch milliseconds, or null to deliver right away
+     * @return the outbox message
+     */
+    static org.springframework.messaging.Message<KafkaMessage> outboxMessage(KafkaMessage kafkaMessage,
+                                                                             String region, int priority,
+                                                                             Long deliverAfter) {
+        Map<String, Object> headers = new HashMap<>(8);
+        headers.put(REGION_HEADER, region);
+        headers.put(MESSAGE_ID_HEADER, kafkaMessage.getId());
+        headers.put(IntegrationMessageHeaderAccessor.PRIORITY, priority);
+        if (deliverAfter != null) {
+            headers.put(DeliverAfterPreparedStatementSetter.DELIVER_AFTER_HEADER, deliverAfter);
+        }
+        return new GenericMessage<>(kafkaMessage, headers);
+    }
+
+    /**
+     * Store a message in the delayed outbox group and hand it to the timing wheel once the transaction commits.
+     *
+     * @param delayedMessage the message to store, with its delivery time header
+     * @param deliverAfter the earliest delivery time in epoch milliseconds
+     * @return true if the message was stored
+     */
+    private boolean sendDelayed(org.springframework.messaging.Message<KafkaMessage> delayedMessage,
+                                long deliverAfter) {
+        if (!kafkaOutboxDelayedChannel.send(delayedMessage)) {
+            return false;
+        }
+        String storeMessageId = delayedMessage.getHeaders().getId().toString();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                delayedDeliveryService.schedule(storeMessageId, deliverAfter);
+            }
+        });
+        logger.debug("Message {} delayed until {}", delayedMessage.getHeaders().get(MESSAGE_ID_HEADER),
+                Instant.ofEpochMilli(deliverAfter));
+        return true;
+    }
+}
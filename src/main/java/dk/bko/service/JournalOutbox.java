@@ -0,0 +1,188 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.entity.Message;
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.MappedJournal;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbox stored in a local memory-mapped journal instead of the database, for deployments where the
+ * database round trip dominates the latency of sending a message. Active with outbox.store=journal.
+ * A message is appended to the {@link MappedJournal} as JSON and made durable with a group fsync before
+ * {@link #append(Message)} returns. A relay thread reads the journal from its cursor, sends the messages
+ * in order and acknowledges them once the broker has, which deletes fully relayed segments.
+ * After a crash the messages after the last acknowledged cursor are sent again.
+ * Messages are relayed in append order; priorities are ignored.
+ * Claim check does not apply: the journal holds the full content of every message, however large.
+ */
+@Service
+@ConditionalOnProperty(name = "outbox.store", havingValue = "journal")
+public class JournalOutbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournalOutbox.class);
+
+    private final MappedJournal journal;
+    private final ObjectMapper objectMapper;
+    private final OutboxRecordSender sender;
+    private final OutboxPartitioner partitioner;
+    private final OutboxRoutes routes;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new CustomizableThreadFactory("outbox-journal-"));
+
+    @Value("${outbox.journal.batch-size:500}")
+    private int batchSize;
+
+    @Value("${outbox.journal.idle-wait-ms:5}")
+    private long idleWaitMs;
+
+    @Value("${outbox.journal.retry-backoff-ms:5000}")
+    private long retryBackoffMs;
+
+    private volatile boolean running = true;
+
+    @Autowired
+    public JournalOutbox(ObjectMapper objectMapper,
+                         OutboxRecordSender sender,
+                         OutboxPartitioner partitioner,
+                         OutboxRoutes routes,
+                         @Value("${outbox.journal.directory:data/outbox-journal}") Path directory,
+                         @Value("${outbox.journal.segment-size:67108864}") int segmentSize,
+                         @Value("${outbox.journal.fsync:true}") boolean fsync) throws IOException {
+        this.journal = new MappedJournal(directory, segmentSize, fsync);
+        this.objectMapper = objectMapper;
+        this.sender = sender;
+        this.partitioner = partitioner;
+        this.routes = routes;
+    }
+
+    /**
+     * Start relaying on the relay thread.
+     */
+    @PostConstruct
+    public void start() {
+        executor.execute(this::relay);
+    }
+
+    /**
+     * Stop relaying: the batch in flight is sent and acknowledged, then the relay thread ends.
+     * Messages left in the journal are relayed after the next start.
+     *
+     * @param timeoutMs the maximum time to wait for the relay thread
+     * @return true if the relay thread has ended
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean stopRelaying(long timeoutMs) throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop relaying and close the journal. Messages sent but not yet acknowledged are sent again on the next start.
+     * A relay thread that does not end within outbox.journal.retry-backoff-ms is interrupted; the journal is
+     * only closed once it has ended, as it would otherwise read from unmapped segments.
+     */
+    @PreDestroy
+    public void shutdown() throws IOException, InterruptedException {
+        running = false;
+        executor.shutdown();
+        if (!executor.awaitTermination(retryBackoffMs, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+            if (!executor.awaitTermination(retryBackoffMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("The outbox journal relay did not stop, leaving the journal open");
+                return;
+            }
+        }
+        journal.close();
+    }
+
+    /**
+     * Serialize a message for the journal without appending it, so the caller can record it first.
+     *
+     * The content is kept in the message as is, it is not moved to the claim-check store.
+     *
+     * @param kafkaMessage the message
+     * @return the message as it will be appended; it is not stored in INT_MESSAGE
+     */
+    public Message prepare(KafkaMessage kafkaMessage) {
+        byte[] messageBytes;
+        try {
+            messageBytes = objectMapper.writeValueAsBytes(kafkaMessage);
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize message", e);
+            throw new RuntimeException("Failed to serialize message", e);
+        }
+        return new Message(UUID.fromString(kafkaMessage.getId()), kafkaMessage.getRegion(),
+                kafkaMessage.getTimestamp(), messageBytes);
+    }
+
+    /**
+     * Append a prepared message to the journal and wait until it is durable.
+     * Once this returns, the message will be relayed.
+     *
+     * @param message the message from {@link #prepare(KafkaMessage)}
+     * @return the message
+     */
+    public Message append(Message message) {
+        journal.sync(journal.append(message.getMessageBytes()));
+        logger.info("Message stored in outbox journal: {}", message.getMessageId());
+        return message;
+    }
+
+    /**
+     * Relay until shut down. A failed batch is sent again from the cursor after a back-off.
+     */
+    private void relay() {
+        while (running) {
+            try {
+                List<MappedJournal.Entry> entries = journal.read(journal.cursor(), batchSize);
+                if (entries.isEmpty()) {
+                    Thread.sleep(idleWaitMs);
+                    continue;
+                }
+                sender.send(toRecords(entries));
+                journal.acknowledge(entries.get(entries.size() - 1).next());
+                logger.info("Relayed {} messages from the outbox journal", entries.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Failed to relay outbox journal batch, retrying in {} ms", retryBackoffMs, e);
+                try {
+                    Thread.sleep(retryBackoffMs);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private List<OutboxRecord> toRecords(List<MappedJournal.Entry> entries) throws IOException {
+        List<OutboxRecord> records = new ArrayList<>(entries.size());
+        for (MappedJournal.Entry entry : entries) {
+            KafkaMessage message = objectMapper.readValue(entry.data(), KafkaMessage.class);
+            records.add(OutboxRecord.of(message.getId(), message.getRegion(), 0, message, partitioner, routes));
+        }
+        return records;
+    }
+}
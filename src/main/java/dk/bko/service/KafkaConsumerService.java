@@ -1,15 +1,25 @@
 package dk.bko.service;
 
 import dk.bko.model.KafkaMessage;
+import dk.bko.util.SampledLogger;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
-import org.springframework.kafka.support.KafkaHeaders;
-import org.springframework.messaging.handler.annotation.Header;
-import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Service for consuming messages from Kafka.
  * This demonstrates the consumer side of the outbox pattern.
@@ -17,31 +27,69 @@ import org.springframework.stereotype.Service;
 @Service
 public class KafkaConsumerService {
 
+    /**
+     * The id of the record listener container, which runs the consumers of the sequential and parallel modes.
+     */
+    public static final String RECORD_LISTENER_ID = "outbox-consumer";
+
     private static final Logger logger = LoggerFactory.getLogger(KafkaConsumerService.class);
 
+    private final OrderedParallelProcessor parallelProcessor;
+    private final InboxService inboxService;
+    private final ClaimCheckStore claimCheckStore;
+    private final SampledLogger receivedLog;
+    private final SampledLogger metadataLog;
+    private final SampledLogger acknowledgedLog;
+    private final SampledLogger processingLog;
+    private final SampledLogger completedLog;
+
+    @Autowired
+    public KafkaConsumerService(ObjectProvider<OrderedParallelProcessor> parallelProcessor,
+                                ObjectProvider<InboxService> inboxService,
+                                ClaimCheckStore claimCheckStore,
+                                @Value("${hot-path.logging.max-per-second:0}") int maxLogLinesPerSecond) {
+        this.parallelProcessor = parallelProcessor.getIfAvailable();
+        this.inboxService = inboxService.getIfAvailable();
+        this.claimCheckStore = claimCheckStore;
+        this.receivedLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.metadataLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.acknowledgedLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.processingLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.completedLog = new SampledLogger(logger, maxLogLinesPerSecond);
+    }
+
     /**
-     * Consumes messages from the message-outbox topic.
+     * Consumes messages from the outbox topics.
      * This method is called automatically by Spring Kafka when a message is received.
+     * In parallel mode the record is handed to the {@link OrderedParallelProcessor},
+     * which processes and commits it asynchronously.
      *
-     * @param message the message payload
-     * @param key the message key
-     * @param partition the partition from which the message was received
-     * @param topic the topic from which the message was received
+     * @param record the received record
      * @param acknowledgment the acknowledgment to manually acknowledge the message
+     * @param consumer the consumer the record was received from
      */
-    @KafkaListener(topics = "${kafka.topic.message-outbox}", groupId = "${spring.kafka.consumer.group-id}")
+    @KafkaListener(id = RECORD_LISTENER_ID, topicPattern = "${kafka.topic.message-outbox-pattern}",
+            groupId = "${spring.kafka.consumer.group-id}",
+            autoStartup = "#{'${consumer.processing.mode:sequential}' != 'batch'}")
     public void consumeMessage(
-            @Payload KafkaMessage message,
-            @Header(KafkaHeaders.RECEIVED_KEY) String key,
-            @Header(KafkaHeaders.RECEIVED_PARTITION) int partition,
-            @Header(KafkaHeaders.RECEIVED_TOPIC) String topic,
-            Acknowledgment acknowledgment) {
-        
+            ConsumerRecord<String, KafkaMessage> record,
+            Acknowledgment acknowledgment,
+            Consumer<?, ?> consumer) {
+
+        KafkaMessage message = record.value();
+
+        if (parallelProcessor != null) {
+            parallelProcessor.dispatch(record, consumer, this::processMessage);
+            return;
+        }
+
         try {
-            logger.info("Received message: id={}, content={}, region={}, timestamp={}",
-                    message.getId(), message.getContent(), message.getRegion(), message.getTimestamp());
+            receivedLog.info("Received message: id={}, region={}, timestamp={}",
+                    message.getId(), message.getRegion(), message.getTimestamp());
+            logger.debug("Message content: {}", message.getContent());
             
-            logger.info("Message metadata: key={}, partition={}, topic={}", key, partition, topic);
+            metadataLog.info("Message metadata: key={}, partition={}, topic={}",
+                    record.key(), record.partition(), record.topic());
             
             // Process the message (in a real application, this would do something meaningful)
             processMessage(message);
@@ -49,25 +97,60 @@ public class KafkaConsumerService {
             // Acknowledge the message to mark it as processed
             acknowledgment.acknowledge();
             
-            logger.info("Message processed and acknowledged: {}", message.getId());
+            acknowledgedLog.info("Message processed and acknowledged: {}", message.getId());
         } catch (Exception e) {
             logger.error("Error processing message: {}", message.getId(), e);
             // Don't acknowledge the message, so it will be redelivered
         }
     }
 
+    /**
+     * Consumes a poll's worth of messages from the outbox topics in batch mode.
+     * Messages already recorded in the inbox are skipped, the others are processed in one
+     * transaction together with their inbox entries, and the offsets are committed once per batch.
+     * If processing fails, the exception is rethrown so the error handler redelivers the batch.
+     *
+     * @param records the records of the batch
+     * @param acknowledgment the acknowledgment for the whole batch
+     */
+    @KafkaListener(topicPattern = "${kafka.topic.message-outbox-pattern}", groupId = "${spring.kafka.consumer.group-id}",
+            containerFactory = "batchKafkaListenerContainerFactory",
+            autoStartup = "#{'${consumer.processing.mode:sequential}' == 'batch'}")
+    public void consumeBatch(List<ConsumerRecord<String, KafkaMessage>> records, Acknowledgment acknowledgment) {
+        List<KafkaMessage> messages = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, KafkaMessage> record : records) {
+            if (record.value() != null) {
+                messages.add(record.value());
+            }
+        }
+
+        try {
+            int processed = inboxService.processNew(messages, this::processMessage);
+            acknowledgment.acknowledge();
+            logger.info("Batch of {} records processed and acknowledged, {} duplicates skipped",
+                    records.size(), messages.size() - processed);
+        } catch (Exception e) {
+            logger.error("Error processing batch of {} records", records.size(), e);
+            throw e;
+        }
+    }
+
     /**
      * Process the message.
      * In a real application, this would perform some business logic.
+     * The content is read as a stream, so claim-checked content is loaded chunk by chunk.
      *
      * @param message the message to process
      */
     private void processMessage(KafkaMessage message) {
         // Simulate processing time
-        try {
-            logger.info("Processing message: {}", message.getId());
+        try (InputStream content = claimCheckStore.openContent(message)) {
+            processingLog.info("Processing message: {}", message.getId());
+            long size = content.transferTo(OutputStream.nullOutputStream());
             Thread.sleep(500); // Simulate some processing time
-            logger.info("Message processing completed: {}", message.getId());
+            completedLog.info("Message processing completed: {} ({} bytes of content)", message.getId(), size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the content of message " + message.getId(), e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Message processing interrupted", e);
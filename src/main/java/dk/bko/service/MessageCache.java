@@ -0,0 +1,114 @@
+package dk.bko.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import dk.bko.entity.Message;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of messages by ID, in front of the message repository.
+ * The cache is bounded by the total weight of its entries: the size of the message bytes plus a fixed
+ * per-entry overhead, so both a few large and many small messages hit the bound. Eviction uses
+ * Caffeine's Window TinyLFU policy. Messages larger than message.cache.max-entry-bytes bypass the cache.
+ * Hit, miss and eviction counts are published as cache.* metrics with the tag cache=messages.
+ */
+@Component
+public class MessageCache {
+
+    /**
+     * Approximate heap used by an entry besides the message bytes.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final Cache<UUID, Message> cache;
+    private final boolean enabled;
+    private final int maxEntryBytes;
+
+    @Autowired
+    public MessageCache(MeterRegistry meterRegistry,
+                        @Value("${message.cache.enabled:true}") boolean enabled,
+                        @Value("${message.cache.maximum-weight-bytes:67108864}") long maximumWeightBytes,
+                        @Value("${message.cache.max-entry-bytes:65536}") int maxEntryBytes,
+                        @Value("${message.cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        this.enabled = enabled;
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeightBytes)
+                .weigher((UUID id, Message message) -> weight(message))
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "messages");
+    }
+
+    /**
+     * Get a message from the cache, loading it on a miss.
+     * Messages that are not found are not cached.
+     * The load runs as an atomic computation of the entry, so an invalidation of the same message waits for it
+     * and then removes what it loaded; a row read just before a delete cannot be put back after the invalidation.
+     * Concurrent misses of the same message share one load.
+     *
+     * @param messageId the ID of the message
+     * @param loader loads the message on a miss
+     * @return the message if found, or empty optional otherwise
+     */
+    public Optional<Message> get(UUID messageId, Function<UUID, Optional<Message>> loader) {
+        if (!enabled) {
+            return loader.apply(messageId);
+        }
+        AtomicReference<Optional<Message>> loaded = new AtomicReference<>();
+        Message cached = cache.get(messageId, id -> {
+            Optional<Message> message = loader.apply(id);
+            loaded.set(message);
+            return message.filter(this::isCacheable).orElse(null);
+        });
+        // Not cached: the load ran on this thread and found nothing, or a message too large to cache
+        return cached != null ? Optional.of(cached) : loaded.get();
+    }
+
+    /**
+     * Remove a message from the cache.
+     * Inside a transaction the message is removed again after commit, so a concurrent read
+     * cannot put back the row that is being deleted.
+     *
+     * @param messageId the ID of the message
+     */
+    public void invalidate(UUID messageId) {
+        cache.invalidate(messageId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    cache.invalidate(messageId);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the approximate number of cached messages
+     */
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private boolean isCacheable(Message message) {
+        return message.getMessageBytes() == null || message.getMessageBytes().length <= maxEntryBytes;
+    }
+
+    private static int weight(Message message) {
+        return ENTRY_OVERHEAD_BYTES + (message.getMessageBytes() != null ? message.getMessageBytes().length : 0);
+    }
+}
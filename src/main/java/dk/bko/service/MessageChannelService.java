@@ -1,32 +1,52 @@
 package dk.bko.service;
 
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.SampledLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.integration.channel.DirectChannel;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.SubscribableChannel;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
 /**
  * Service for demonstrating how to use the message channel.
  * This service subscribes to the Kafka channel and processes messages received from Kafka.
+ * Every received message is also published to the {@link MessageLiveTail}.
  */
 @Service
 public class MessageChannelService {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageChannelService.class);
 
-    private final DirectChannel kafkaChannel;
+    private final SubscribableChannel kafkaChannel;
+    private final ClaimCheckStore claimCheckStore;
+    private final MessageLiveTail liveTail;
+    private final SampledLogger receivedLog;
+    private final SampledLogger payloadLog;
 
     @Autowired
-    public MessageChannelService(@Qualifier("kafkaChannel") DirectChannel kafkaChannel) {
+    public MessageChannelService(@Qualifier("kafkaChannel") SubscribableChannel kafkaChannel,
+                                 ClaimCheckStore claimCheckStore,
+                                 MessageLiveTail liveTail,
+                                 @Value("${hot-path.logging.max-per-second:0}") int maxLogLinesPerSecond) {
         this.kafkaChannel = kafkaChannel;
+        this.claimCheckStore = claimCheckStore;
+        this.liveTail = liveTail;
+        this.receivedLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.payloadLog = new SampledLogger(logger, maxLogLinesPerSecond);
     }
 
     /**
@@ -56,14 +76,38 @@ public class MessageChannelService {
     /**
      * Handler for messages received from the Kafka channel.
      * This demonstrates how to process messages from the channel.
+     * In batch mode the payload is the list of payloads of one poll.
      */
     private class KafkaMessageHandler implements MessageHandler {
         @Override
         public void handleMessage(Message<?> message) throws MessagingException {
-            logger.info("Received message from Kafka channel: {}", message);
+            receivedLog.info("Received message from Kafka channel: {}", message);
             // Process the message here
             Object payload = message.getPayload();
-            logger.info("Message payload: {}", payload);
+            if (payload instanceof List<?> payloads) {
+                logger.info("Batch of {} payloads", payloads.size());
+                payloads.forEach(this::handlePayload);
+            } else {
+                handlePayload(payload);
+            }
+        }
+
+        /**
+         * Log a payload. Claim-checked content is only resolved here, streaming it from the claim-check store.
+         */
+        private void handlePayload(Object payload) {
+            payloadLog.info("Message payload: {}", payload);
+            if (payload instanceof KafkaMessage message) {
+                liveTail.publish(message);
+            }
+            if (payload instanceof KafkaMessage message && message.getContentRef() != null) {
+                try (InputStream content = claimCheckStore.openContent(message)) {
+                    logger.info("Claim-checked content of message {}: {} bytes", message.getId(),
+                            content.transferTo(OutputStream.nullOutputStream()));
+                } catch (IOException e) {
+                    throw new MessagingException("Failed to read the content of message " + message.getId(), e);
+                }
+            }
         }
     }
 }
\ No newline at end of file
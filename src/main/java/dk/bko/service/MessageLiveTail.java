@@ -0,0 +1,299 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.RingBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live tail of the messages consumed from Kafka, streamed to subscribers as Server-Sent Events.
+ * {@link MessageChannelService} publishes every consumed message here, so any number of subscribers costs
+ * no database queries; a subscriber only sees messages consumed after it subscribed.
+ * Each message is serialized once and offered to the ring buffer of every subscriber of its region and of
+ * every unfiltered subscriber, without blocking the consumer. A sender thread drains a subscriber's buffer
+ * whenever it has events, so at most one thread writes to a subscriber at a time. There are
+ * live-tail.sender-threads platform sender threads; in virtual thread mode every drain gets its own virtual thread.
+ * A subscriber that cannot keep up fills its buffer; live-tail.slow-consumer-policy then decides:
+ * - drop-oldest: the oldest events are overwritten and the subscriber receives a "dropped" event with their count
+ * - disconnect: the stream is completed, the client reconnects and fills the gap from GET /api/messages/after
+ */
+@Service
+public class MessageLiveTail implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageLiveTail.class);
+    private static final String ALL_REGIONS = "";
+
+    private final ObjectMapper objectMapper;
+    private final ExecutorService senders;
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final Counter droppedCounter;
+    private final Counter disconnectedCounter;
+
+    @Value("${live-tail.buffer-size:256}")
+    private int bufferSize;
+
+    @Value("${live-tail.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${live-tail.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    @Value("${live-tail.slow-consumer-policy:drop-oldest}")
+    private String slowConsumerPolicy;
+
+    private volatile boolean running;
+
+    @Autowired
+    public MessageLiveTail(ObjectMapper objectMapper,
+                           MeterRegistry meterRegistry,
+                           @Value("${live-tail.sender-threads:4}") int senderThreads,
+                           @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory) {
+        this.objectMapper = objectMapper;
+        ThreadFactory virtualThreads = virtualThreadFactory.getIfAvailable();
+        // A send blocks while the client's socket buffer is full; virtual threads park instead
+        this.senders = virtualThreads != null ? Executors.newCachedThreadPool(virtualThreads)
+                : Executors.newFixedThreadPool(senderThreads, new CustomizableThreadFactory("live-tail-"));
+        if (virtualThreads != null) {
+            logger.info("Live tail sends on virtual threads, live-tail.sender-threads={} is not used", senderThreads);
+        }
+        Gauge.builder("live-tail.subscribers", subscriberCount, AtomicInteger::get)
+                .description("Subscribers of the live tail")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("live-tail.events.dropped")
+                .description("Events dropped because a subscriber's buffer was full")
+                .register(meterRegistry);
+        this.disconnectedCounter = Counter.builder("live-tail.subscribers.disconnected")
+                .description("Subscribers disconnected because they could not keep up")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribe to the live tail.
+     *
+     * @param region the region of the messages to stream, or null for all regions
+     * @return the emitter of the stream, or null if the maximum number of subscribers is reached
+     *         or the application is shutting down
+     */
+    public SseEmitter subscribe(String region) {
+        if (!running) {
+            return null;
+        }
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(region != null ? region : ALL_REGIONS, emitter,
+                new RingBuffer<>(bufferSize));
+        subscribers.computeIfAbsent(subscriber.region, r -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        // Open the stream right away, so the client sees the response headers before the first message
+        subscriber.heartbeatDue.set(true);
+        schedule(subscriber);
+        logger.debug("Live tail subscriber for region '{}' added, {} subscribers", subscriber.region,
+                subscriberCount.get());
+        return emitter;
+    }
+
+    /**
+     * Publish a consumed message to its subscribers. Never blocks and never throws.
+     *
+     * @param message the message
+     */
+    public void publish(KafkaMessage message) {
+        Set<Subscriber> regionSubscribers = message.getRegion() != null ? subscribers.get(message.getRegion()) : null;
+        Set<Subscriber> allSubscribers = subscribers.get(ALL_REGIONS);
+        if ((regionSubscribers == null || regionSubscribers.isEmpty())
+                && (allSubscribers == null || allSubscribers.isEmpty())) {
+            return;
+        }
+        LiveEvent event;
+        try {
+            event = new LiveEvent(message.getId(), objectMapper.writeValueAsString(message));
+        } catch (JsonProcessingException e) {
+            logger.warn("Failed to serialize message {} for the live tail", message.getId(), e);
+            return;
+        }
+        if (regionSubscribers != null) {
+            regionSubscribers.forEach(subscriber -> offer(subscriber, event));
+        }
+        if (allSubscribers != null) {
+            allSubscribers.forEach(subscriber -> offer(subscriber, event));
+        }
+    }
+
+    private void offer(Subscriber subscriber, LiveEvent event) {
+        boolean disconnect = "disconnect".equals(slowConsumerPolicy);
+        if (!subscriber.buffer.offer(event, !disconnect)) {
+            droppedCounter.increment();
+            if (disconnect) {
+                logger.info("Disconnecting live tail subscriber for region '{}', it fell {} events behind",
+                        subscriber.region, bufferSize);
+                disconnectedCounter.increment();
+                unsubscribe(subscriber);
+                subscriber.emitter.complete();
+                return;
+            }
+            subscriber.dropped.incrementAndGet();
+        }
+        schedule(subscriber);
+    }
+
+    /**
+     * Send a comment to every subscriber, so proxies keep idle streams open and closed ones are noticed.
+     */
+    @Scheduled(fixedDelayString = "${live-tail.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        subscribers.values().forEach(regionSubscribers -> regionSubscribers.forEach(subscriber -> {
+            subscriber.heartbeatDue.set(true);
+            schedule(subscriber);
+        }));
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            try {
+                senders.execute(() -> drain(subscriber));
+            } catch (RuntimeException e) {
+                subscriber.scheduled.set(false);
+                logger.debug("Live tail sender rejected a drain", e);
+            }
+        }
+    }
+
+    /**
+     * Send the buffered events of a subscriber until its buffer stays empty.
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            while (true) {
+                List<LiveEvent> events = subscriber.buffer.drain();
+                long dropped = subscriber.dropped.getAndSet(0);
+                boolean heartbeat = subscriber.heartbeatDue.getAndSet(false);
+                if (events.isEmpty() && dropped == 0 && !heartbeat) {
+                    subscriber.scheduled.set(false);
+                    // An event offered after the drain did not schedule another one, as this drain was running
+                    if (subscriber.buffer.isEmpty() || !subscriber.scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (dropped > 0) {
+                    subscriber.emitter.send(SseEmitter.event().name("dropped").data(dropped));
+                }
+                for (LiveEvent event : events) {
+                    subscriber.emitter.send(SseEmitter.event()
+                            .id(event.id())
+                            .name("message")
+                            .data(event.json(), MediaType.APPLICATION_JSON));
+                }
+                if (heartbeat && events.isEmpty() && dropped == 0) {
+                    subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The client went away or the emitter was completed
+            logger.debug("Live tail subscriber for region '{}' closed", subscriber.region, e);
+            subscriber.scheduled.set(false);
+            unsubscribe(subscriber);
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        if (subscriber.closed.compareAndSet(false, true)) {
+            subscribers.computeIfPresent(subscriber.region, (region, regionSubscribers) -> {
+                regionSubscribers.remove(subscriber);
+                return regionSubscribers.isEmpty() ? null : regionSubscribers;
+            });
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    /**
+     * Complete all streams, so the graceful shutdown of the web server does not wait for them.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        subscribers.values().forEach(regionSubscribers -> regionSubscribers.forEach(subscriber -> {
+            unsubscribe(subscriber);
+            subscriber.emitter.complete();
+        }));
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop right after the {@link ShutdownCoordinator} has stopped the consumers, before the web server.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE - 1;
+    }
+
+    /**
+     * Stop the sender threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        senders.shutdownNow();
+    }
+
+    private record LiveEvent(String id, String json) {
+    }
+
+    private static final class Subscriber {
+        private final String region;
+        private final SseEmitter emitter;
+        private final RingBuffer<LiveEvent> buffer;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean heartbeatDue = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Subscriber(String region, SseEmitter emitter, RingBuffer<LiveEvent> buffer) {
+            this.region = region;
+            this.emitter = emitter;
+            this.buffer = buffer;
+        }
+    }
+}
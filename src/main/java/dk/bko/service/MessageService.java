@@ -1,13 +1,19 @@
 package dk.bko.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.bko.entity.Message;
+import dk.bko.model.KafkaMessage;
 import dk.bko.repository.MessageRepository;
+import dk.bko.util.UuidV7;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -23,10 +29,20 @@ public class MessageService {
     private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
 
     private final MessageRepository messageRepository;
+    private final MessageCache messageCache;
+    private final MessageStatistics messageStatistics;
+    private final ClaimCheckStore claimCheckStore;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public MessageService(MessageRepository messageRepository) {
+    public MessageService(MessageRepository messageRepository, MessageCache messageCache,
+                          MessageStatistics messageStatistics, ClaimCheckStore claimCheckStore,
+                          ObjectMapper objectMapper) {
         this.messageRepository = messageRepository;
+        this.messageCache = messageCache;
+        this.messageStatistics = messageStatistics;
+        this.claimCheckStore = claimCheckStore;
+        this.objectMapper = objectMapper;
     }
 
     /**
@@ -38,26 +54,30 @@ public class MessageService {
      */
     @Transactional
     public Message createMessage(String region, String content) {
-        String messageId = UUID.randomUUID().toString();
+        UUID messageId = UuidV7.randomUuid();
         LocalDateTime now = LocalDateTime.now();
         byte[] messageBytes = content.getBytes();
         
         Message message = new Message(messageId, region, now, messageBytes);
+        message.setFormat(Message.Format.RAW);
         
         logger.info("Creating new message with ID: {}", messageId);
-        return messageRepository.save(message);
+        message = messageRepository.save(message);
+        messageStatistics.record(region, now, messageBytes.length);
+        return message;
     }
 
     /**
      * Get a message by its ID.
+     * Messages are served from the {@link MessageCache} when possible.
      *
      * @param messageId the ID of the message
      * @return the message if found, or empty optional otherwise
      */
     @Transactional(readOnly = true)
-    public Optional<Message> getMessage(String messageId) {
+    public Optional<Message> getMessage(UUID messageId) {
         logger.info("Retrieving message with ID: {}", messageId);
-        return messageRepository.findById(messageId);
+        return messageCache.get(messageId, messageRepository::findById);
     }
 
     /**
@@ -101,20 +121,38 @@ public class MessageService {
      * @param messageId the ID of the message to delete
      */
     @Transactional
-    public void deleteMessage(String messageId) {
+    public void deleteMessage(UUID messageId) {
         logger.info("Deleting message with ID: {}", messageId);
         messageRepository.deleteById(messageId);
+        messageCache.invalidate(messageId);
     }
 
     /**
      * Get the content of a message as a string.
+     * The message bytes of a claim-checked outbox message hold no content, so it is read from the
+     * claim-check store and put back into the outbox message.
      *
      * @param messageId the ID of the message
      * @return the content of the message as a string, or empty if not found
+     * @throws IllegalStateException if the claim-checked content cannot be read
      */
     @Transactional(readOnly = true)
-    public Optional<String> getMessageContent(String messageId) {
-        return getMessage(messageId)
-                .map(message -> new String(message.getMessageBytes()));
+    public Optional<String> getMessageContent(UUID messageId) {
+        return getMessage(messageId).map(this::content);
+    }
+
+    private String content(Message message) {
+        if (message.getContentRef() == null) {
+            return new String(message.getMessageBytes());
+        }
+        try {
+            KafkaMessage kafkaMessage = objectMapper.readValue(message.getMessageBytes(), KafkaMessage.class);
+            try (InputStream content = claimCheckStore.openContent(kafkaMessage)) {
+                kafkaMessage.setContent(new String(content.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            return objectMapper.writeValueAsString(kafkaMessage);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the content of message " + message.getMessageId(), e);
+        }
     }
 }
\ No newline at end of file
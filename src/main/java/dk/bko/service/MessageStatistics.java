@@ -0,0 +1,226 @@
+package dk.bko.service;
+
+import dk.bko.model.MessageStats;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DatabaseDriver;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message counts and bytes per region and time bucket, kept in the INT_MESSAGE_ROLLUP table.
+ * Stored messages are counted in memory once their transaction commits, per region and minute and
+ * per region and hour, and the counts are added to the table in one batch of upserts every
+ * rollup.flush-interval-ms. Queries read at most one row per region and bucket, so they take the same
+ * time however many messages were stored. Counts not yet flushed are lost if the application crashes,
+ * and so are the counts of a bucket the table rejects, such as one without a region or with a region longer
+ * than the REGION column.
+ */
+@Service
+public class MessageStatistics {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageStatistics.class);
+
+    /**
+     * Size of the buckets of a statistics query.
+     * Minutes and hours are stored; days are summed from hours.
+     */
+    public enum Granularity {
+        MINUTE(ChronoUnit.MINUTES), HOUR(ChronoUnit.HOURS), DAY(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        Granularity(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        private Granularity stored() {
+            return this == DAY ? HOUR : this;
+        }
+    }
+
+    private static final String POSTGRES_UPSERT_SQL =
+            "INSERT INTO INT_MESSAGE_ROLLUP (BUCKET_SIZE, REGION, BUCKET_START, MESSAGE_COUNT, TOTAL_BYTES) " +
+            "VALUES (?, ?, ?, ?, ?) ON CONFLICT (BUCKET_SIZE, REGION, BUCKET_START) DO UPDATE SET " +
+            "MESSAGE_COUNT = INT_MESSAGE_ROLLUP.MESSAGE_COUNT + EXCLUDED.MESSAGE_COUNT, " +
+            "TOTAL_BYTES = INT_MESSAGE_ROLLUP.TOTAL_BYTES + EXCLUDED.TOTAL_BYTES";
+    private static final String MERGE_SQL =
+            "MERGE INTO INT_MESSAGE_ROLLUP T USING (VALUES (CAST(? AS VARCHAR(10)), CAST(? AS VARCHAR(100)), " +
+            "CAST(? AS TIMESTAMP), CAST(? AS BIGINT), CAST(? AS BIGINT))) " +
+            "S (BUCKET_SIZE, REGION, BUCKET_START, MESSAGE_COUNT, TOTAL_BYTES) " +
+            "ON T.BUCKET_SIZE = S.BUCKET_SIZE AND T.REGION = S.REGION AND T.BUCKET_START = S.BUCKET_START " +
+            "WHEN MATCHED THEN UPDATE SET MESSAGE_COUNT = T.MESSAGE_COUNT + S.MESSAGE_COUNT, " +
+            "TOTAL_BYTES = T.TOTAL_BYTES + S.TOTAL_BYTES " +
+            "WHEN NOT MATCHED THEN INSERT (BUCKET_SIZE, REGION, BUCKET_START, MESSAGE_COUNT, TOTAL_BYTES) " +
+            "VALUES (S.BUCKET_SIZE, S.REGION, S.BUCKET_START, S.MESSAGE_COUNT, S.TOTAL_BYTES)";
+    private static final String SELECT_SQL =
+            "SELECT REGION, BUCKET_START, MESSAGE_COUNT, TOTAL_BYTES FROM INT_MESSAGE_ROLLUP " +
+            "WHERE BUCKET_SIZE = ? AND BUCKET_START >= ? AND BUCKET_START < ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate queryJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final String upsertSql;
+    private final Map<Bucket, Totals> pending = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MessageStatistics(JdbcTemplate jdbcTemplate,
+                             @Qualifier("queryDataSource") DataSource queryDataSource,
+                             @Value("${spring.datasource.url}") String datasourceUrl) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.queryJdbcTemplate = new JdbcTemplate(queryDataSource);
+        this.transactionTemplate = new TransactionTemplate(
+                new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+        this.upsertSql = DatabaseDriver.fromJdbcUrl(datasourceUrl) == DatabaseDriver.POSTGRESQL
+                ? POSTGRES_UPSERT_SQL : MERGE_SQL;
+    }
+
+    /**
+     * Count a stored message. In a transaction the message is counted when the transaction commits.
+     *
+     * @param region the region of the message
+     * @param createdDate the creation time of the message
+     * @param bytes the size of the stored message
+     */
+    public void record(String region, LocalDateTime createdDate, long bytes) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    add(region, createdDate, 1, bytes);
+                }
+            });
+        } else {
+            add(region, createdDate, 1, bytes);
+        }
+    }
+
+    private void add(String region, LocalDateTime createdDate, long messages, long bytes) {
+        Totals totals = new Totals(messages, bytes);
+        pending.merge(new Bucket(Granularity.MINUTE, region, createdDate.truncatedTo(ChronoUnit.MINUTES)),
+                totals, Totals::plus);
+        pending.merge(new Bucket(Granularity.HOUR, region, createdDate.truncatedTo(ChronoUnit.HOURS)),
+                totals, Totals::plus);
+    }
+
+    /**
+     * Add the pending counts to the rollup table in one batch, in one transaction.
+     * If the batch fails, the buckets are added one by one: a bucket the table rejects is logged and dropped,
+     * so it cannot hold up the others, and on any other failure the remaining counts are kept for the next flush.
+     */
+    @Scheduled(fixedDelayString = "${rollup.flush-interval-ms:5000}")
+    public void flush() {
+        List<Map.Entry<Bucket, Totals>> batch = new ArrayList<>(pending.size());
+        for (Bucket bucket : pending.keySet()) {
+            Totals totals = pending.remove(bucket);
+            if (totals != null) {
+                batch.add(Map.entry(bucket, totals));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(upsertSql, batch,
+                    batch.size(), (statement, entry) -> {
+                        statement.setString(1, entry.getKey().size().name());
+                        statement.setString(2, entry.getKey().region());
+                        statement.setTimestamp(3, Timestamp.valueOf(entry.getKey().start()));
+                        statement.setLong(4, entry.getValue().messages());
+                        statement.setLong(5, entry.getValue().bytes());
+                    }));
+            logger.debug("Flushed {} rollup buckets", batch.size());
+        } catch (Exception e) {
+            logger.warn("Failed to flush {} rollup buckets in one batch, flushing them one by one", batch.size(), e);
+            flushEach(batch);
+        }
+    }
+
+    private void flushEach(List<Map.Entry<Bucket, Totals>> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Bucket bucket = batch.get(i).getKey();
+            Totals totals = batch.get(i).getValue();
+            try {
+                jdbcTemplate.update(upsertSql, bucket.size().name(), bucket.region(),
+                        Timestamp.valueOf(bucket.start()), totals.messages(), totals.bytes());
+            } catch (DataIntegrityViolationException e) {
+                logger.error("Dropped the rollup bucket {} of {} messages, the table rejects it", bucket,
+                        totals.messages(), e);
+            } catch (Exception e) {
+                logger.warn("Failed to flush {} rollup buckets, retrying on the next flush", batch.size() - i, e);
+                batch.subList(i, batch.size())
+                        .forEach(entry -> pending.merge(entry.getKey(), entry.getValue(), Totals::plus));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the message counts and bytes per bucket in a time range.
+     * Counts of the last rollup.flush-interval-ms may not be included yet.
+     *
+     * @param region the region, or null for all regions
+     * @param from the start of the range, inclusive; rounded down to the granularity
+     * @param to the end of the range, exclusive
+     * @param granularity the size of the buckets
+     * @return one entry per region and non-empty bucket, ordered by region and bucket start
+     */
+    public List<MessageStats> query(String region, LocalDateTime from, LocalDateTime to, Granularity granularity) {
+        Granularity stored = granularity.stored();
+        String sql = SELECT_SQL + (region != null ? " AND REGION = ?" : "") + " ORDER BY REGION, BUCKET_START";
+        Object[] args = region != null
+                ? new Object[] {stored.name(), Timestamp.valueOf(from.truncatedTo(granularity.unit)), Timestamp.valueOf(to), region}
+                : new Object[] {stored.name(), Timestamp.valueOf(from.truncatedTo(granularity.unit)), Timestamp.valueOf(to)};
+
+        // Rows are ordered by region and start, so buckets summed into a larger granularity are adjacent
+        Map<Bucket, Totals> buckets = new LinkedHashMap<>();
+        queryJdbcTemplate.query(sql, rs -> {
+            Bucket bucket = new Bucket(granularity, rs.getString(1),
+                    rs.getTimestamp(2).toLocalDateTime().truncatedTo(granularity.unit));
+            buckets.merge(bucket, new Totals(rs.getLong(3), rs.getLong(4)), Totals::plus);
+        }, args);
+        return buckets.entrySet().stream()
+                .map(entry -> new MessageStats(entry.getKey().region(), entry.getKey().start(),
+                        entry.getValue().messages(), entry.getValue().bytes()))
+                .toList();
+    }
+
+    /**
+     * Flush the pending counts before shutting down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    private record Bucket(Granularity size, String region, LocalDateTime start) {
+    }
+
+    private record Totals(long messages, long bytes) {
+
+        Totals plus(Totals other) {
+            return new Totals(messages + other.messages, bytes + other.bytes);
+        }
+    }
+}
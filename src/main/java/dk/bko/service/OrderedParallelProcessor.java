@@ -0,0 +1,383 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans Kafka records out to a fixed number of worker lanes for parallel processing.
+ * Records with the same ordering key (the record key or the message region) always go to the same
+ * single-threaded lane, so they are processed in offset order. The number of records in flight is
+ * bounded; when the bound is reached the consumer thread waits and keeps committing meanwhile.
+ * Offsets are committed from the consumer thread, and only up to the highest contiguous completed
+ * offset of each partition. When a record fails, the partition is rewound to it so that it and every
+ * later record of that partition is redelivered. A record that still fails after
+ * consumer.parallel.max-attempts attempts is published to its dead letter topic, named
+ * consumer.parallel.dead-letter-topic-prefix followed by the topic of the record, and then committed.
+ * If that publish fails too, the partition is rewound again, so the record is never committed unhandled.
+ */
+@Component
+@ConditionalOnProperty(name = "consumer.processing.mode", havingValue = "parallel")
+public class OrderedParallelProcessor implements ConsumerAwareRebalanceListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderedParallelProcessor.class);
+
+    private final ExecutorService[] lanes;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final Map<TopicPartition, PartitionState> partitions = new ConcurrentHashMap<>();
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+
+    @Value("${consumer.parallel.ordering-key:region}")
+    private String orderingKey;
+
+    @Value("${consumer.parallel.commit-interval-ms:500}")
+    private long commitIntervalMs;
+
+    @Value("${consumer.parallel.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${consumer.parallel.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    @Value("${consumer.parallel.dead-letter-topic-prefix:dlt.}")
+    private String deadLetterTopicPrefix;
+
+    @Value("${consumer.parallel.dead-letter-timeout-ms:10000}")
+    private long deadLetterTimeoutMs;
+
+    private volatile long lastCommit;
+
+    private volatile long drainDeadline;
+
+    @Autowired
+    public OrderedParallelProcessor(
+            @Value("${consumer.parallel.lanes:8}") int laneCount,
+            @Value("${consumer.parallel.max-in-flight:256}") int maxInFlight,
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory,
+            KafkaTemplate<String, Object> kafkaTemplate) {
+        this.kafkaTemplate = kafkaTemplate;
+        ThreadFactory threadFactory = virtualThreadFactory.getIfAvailable(
+                () -> new CustomizableThreadFactory("consumer-lane-"));
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        logger.info("Parallel processing enabled with {} lanes and at most {} records in flight", laneCount, maxInFlight);
+    }
+
+    /**
+     * Dispatch a record to its lane. Must be called on the consumer thread.
+     * Blocks while the maximum number of records is in flight.
+     *
+     * @param record the record to process
+     * @param consumer the consumer the record was received from
+     * @param handler the processing logic to run on the lane
+     */
+    public void dispatch(ConsumerRecord<String, KafkaMessage> record, Consumer<?, ?> consumer,
+                         java.util.function.Consumer<KafkaMessage> handler) {
+        TopicPartition topicPartition = new TopicPartition(record.topic(), record.partition());
+        PartitionState state = partitions.computeIfAbsent(topicPartition, tp -> new PartitionState());
+
+        long epoch;
+        synchronized (state) {
+            if (state.expectedOffset >= 0) {
+                if (record.offset() != state.expectedOffset) {
+                    // Left over from the poll that preceded a rewind, it will be redelivered
+                    return;
+                }
+                state.expectedOffset = -1;
+            }
+            epoch = state.epoch;
+        }
+
+        acquirePermit(consumer);
+        synchronized (state) {
+            state.pending.add(record.offset());
+            state.highestDispatched = Math.max(state.highestDispatched, record.offset());
+        }
+        lanes[laneFor(record)].execute(() -> process(record, state, epoch, handler));
+        commitIfDue(consumer);
+    }
+
+    /**
+     * Commit completed offsets while the container is idle, so the tail of a burst gets committed.
+     * Only the containers of the record listener are handled; the events of other containers,
+     * with consumers this processor has no offsets for, are ignored.
+     *
+     * @param event the idle event, published on the consumer thread
+     */
+    @EventListener
+    public void onIdle(ListenerContainerIdleEvent event) {
+        String listenerId = event.getListenerId();
+        if (listenerId != null && (listenerId.equals(KafkaConsumerService.RECORD_LISTENER_ID)
+                || listenerId.startsWith(KafkaConsumerService.RECORD_LISTENER_ID + "-"))) {
+            commit(event.getConsumer());
+        }
+    }
+
+    /**
+     * Make revocations wait for the records in flight until the given time instead of four commit intervals,
+     * so stopping the containers on shutdown completes the dispatched records and commits their offsets.
+     *
+     * @param deadline the time in epoch milliseconds to wait until
+     */
+    public void drainUntil(long deadline) {
+        this.drainDeadline = deadline;
+    }
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> revoked) {
+        long deadline = Math.max(System.currentTimeMillis() + commitIntervalMs * 4, drainDeadline);
+        for (TopicPartition topicPartition : revoked) {
+            PartitionState state = partitions.get(topicPartition);
+            if (state != null) {
+                state.awaitDrained(deadline);
+            }
+        }
+        commit(consumer);
+        revoked.forEach(partitions::remove);
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> lost) {
+        lost.forEach(partitions::remove);
+    }
+
+    /**
+     * Commit the highest contiguous completed offset of every partition owned by the consumer,
+     * and rewind partitions in which a record failed. Must be called on the consumer thread.
+     *
+     * @param consumer the consumer to commit with
+     */
+    public void commit(Consumer<?, ?> consumer) {
+        lastCommit = System.currentTimeMillis();
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition topicPartition : consumer.assignment()) {
+            PartitionState state = partitions.get(topicPartition);
+            if (state == null) {
+                continue;
+            }
+            synchronized (state) {
+                long committable = state.committableOffset();
+                if (committable > state.committedOffset) {
+                    offsets.put(topicPartition, new OffsetAndMetadata(committable));
+                    state.committedOffset = committable;
+                }
+                if (state.failedOffset >= 0 && committable == state.failedOffset) {
+                    logger.warn("Rewinding {} to failed offset {}", topicPartition, state.failedOffset);
+                    consumer.seek(topicPartition, state.failedOffset);
+                    state.rewind();
+                }
+            }
+        }
+        if (!offsets.isEmpty()) {
+            consumer.commitSync(offsets);
+            logger.debug("Committed offsets {}", offsets);
+        }
+    }
+
+    /**
+     * Get the number of records dispatched but not yet completed.
+     *
+     * @return the number of records in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private void process(ConsumerRecord<String, KafkaMessage> record, PartitionState state, long epoch,
+                         java.util.function.Consumer<KafkaMessage> handler) {
+        try {
+            synchronized (state) {
+                if (state.epoch != epoch || (state.failedOffset >= 0 && record.offset() > state.failedOffset)) {
+                    // Skipped, the partition will be rewound and this record redelivered
+                    return;
+                }
+            }
+            boolean processed = handle(record, state, handler);
+            synchronized (state) {
+                if (state.epoch != epoch) {
+                    return;
+                }
+                if (processed) {
+                    state.pending.remove(record.offset());
+                    state.attempts.remove(record.offset());
+                } else {
+                    state.failedOffset = state.failedOffset < 0
+                            ? record.offset() : Math.min(state.failedOffset, record.offset());
+                }
+                state.notifyAll();
+            }
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private boolean handle(ConsumerRecord<String, KafkaMessage> record, PartitionState state,
+                           java.util.function.Consumer<KafkaMessage> handler) {
+        int attempt;
+        synchronized (state) {
+            attempt = state.attempts.getOrDefault(record.offset(), 0) + 1;
+        }
+        if (attempt > 1) {
+            sleep(retryBackoffMs);
+        }
+        try {
+            handler.accept(record.value());
+            return true;
+        } catch (Exception e) {
+            if (attempt >= maxAttempts && deadLetter(record, e)) {
+                logger.error("Giving up on record {}-{}@{} after {} attempts, published it to {}",
+                        record.topic(), record.partition(), record.offset(), attempt,
+                        deadLetterTopicPrefix + record.topic(), e);
+                return true;
+            }
+            logger.error("Error processing record {}-{}@{} (attempt {})",
+                    record.topic(), record.partition(), record.offset(), attempt, e);
+            synchronized (state) {
+                state.attempts.put(record.offset(), attempt);
+            }
+            return false;
+        }
+    }
+
+    private boolean deadLetter(ConsumerRecord<String, KafkaMessage> record, Exception cause) {
+        ProducerRecord<String, Object> deadLetter = new ProducerRecord<>(
+                deadLetterTopicPrefix + record.topic(), null, record.key(), record.value(), record.headers());
+        deadLetter.headers()
+                .add(KafkaHeaders.DLT_ORIGINAL_TOPIC, record.topic().getBytes(StandardCharsets.UTF_8))
+                .add(KafkaHeaders.DLT_ORIGINAL_PARTITION, ByteBuffer.allocate(4).putInt(record.partition()).array())
+                .add(KafkaHeaders.DLT_ORIGINAL_OFFSET, ByteBuffer.allocate(8).putLong(record.offset()).array())
+                .add(KafkaHeaders.DLT_EXCEPTION_FQCN, cause.getClass().getName().getBytes(StandardCharsets.UTF_8))
+                .add(KafkaHeaders.DLT_EXCEPTION_MESSAGE,
+                        String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8));
+        try {
+            kafkaTemplate.send(deadLetter).get(deadLetterTimeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while publishing record {}-{}@{} to its dead letter topic",
+                    record.topic(), record.partition(), record.offset());
+            return false;
+        } catch (Exception e) {
+            logger.error("Failed to publish record {}-{}@{} to its dead letter topic, rewinding the partition",
+                    record.topic(), record.partition(), record.offset(), e);
+            return false;
+        }
+    }
+
+    private void acquirePermit(Consumer<?, ?> consumer) {
+        try {
+            while (!inFlight.tryAcquire(commitIntervalMs, TimeUnit.MILLISECONDS)) {
+                // Keep committing while the lanes are saturated
+                commit(consumer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a free processing slot", e);
+        }
+    }
+
+    private void commitIfDue(Consumer<?, ?> consumer) {
+        if (System.currentTimeMillis() - lastCommit >= commitIntervalMs) {
+            commit(consumer);
+        }
+    }
+
+    private int laneFor(ConsumerRecord<String, KafkaMessage> record) {
+        Object key = "key".equals(orderingKey) || record.value() == null
+                ? record.key() : record.value().getRegion();
+        if (key == null) {
+            key = record.partition();
+        }
+        return Math.floorMod(Objects.hashCode(key), lanes.length);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Offset bookkeeping for a single partition. Guarded by its own monitor.
+     */
+    private static class PartitionState {
+        private final TreeSet<Long> pending = new TreeSet<>();
+        private long highestDispatched = -1;
+        private long committedOffset = -1;
+        private long failedOffset = -1;
+        private long expectedOffset = -1;
+        // Failed attempts by offset, kept across redeliveries; other records completing meanwhile do not reset them
+        private final Map<Long, Integer> attempts = new HashMap<>();
+        private long epoch;
+
+        long committableOffset() {
+            return pending.isEmpty() ? highestDispatched + 1 : pending.first();
+        }
+
+        void rewind() {
+            expectedOffset = failedOffset;
+            highestDispatched = failedOffset - 1;
+            failedOffset = -1;
+            pending.clear();
+            epoch++;
+        }
+
+        synchronized void awaitDrained(long deadline) {
+            long remaining;
+            while (!pending.isEmpty() && failedOffset < 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package dk.bko.service;
+
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decides the record key and partition of outbox messages.
+ * With the region key strategy all messages of a region share a key and therefore a partition,
+ * so their order is kept when the topic has more than one partition.
+ * The partition is computed with the same murmur2 hash as Kafka's default partitioner,
+ * so records sent with and without an explicit partition land in the same place.
+ */
+@Component
+public class OutboxPartitioner {
+
+    private final String keyStrategy;
+    private final int partitions;
+
+    public OutboxPartitioner(
+            @Value("${kafka.producer.key-strategy:region}") String keyStrategy,
+            @Value("${kafka.topic.partitions:1}") int partitions) {
+        this.keyStrategy = keyStrategy;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Get the record key of a message.
+     *
+     * @param messageId the ID of the message
+     * @param region the region of the message
+     * @return the region with the region key strategy (falling back to the message ID), the message ID otherwise
+     */
+    public String keyFor(String messageId, String region) {
+        return "region".equals(keyStrategy) && region != null ? region : messageId;
+    }
+
+    /**
+     * Get the partition a record key maps to.
+     *
+     * @param key the record key
+     * @return the partition of the outbox topic
+     */
+    public int partitionFor(String key) {
+        return partitionFor(key, partitions);
+    }
+
+    /**
+     * Get the partition a record key maps to in a topic with the given number of partitions.
+     *
+     * @param key the record key
+     * @param partitions the number of partitions of the topic
+     * @return the partition
+     */
+    public int partitionFor(String key, int partitions) {
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % partitions;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+}
@@ -0,0 +1,76 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.OutboxRoute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.Message;
+
+/**
+ * An outbox message ready to be sent to Kafka: its target topic and partition, record key and payload.
+ * Shared by the polling relay and the CDC relay, so both send a message to the same place.
+ *
+ * @param topic the topic of the message's route
+ * @param messageId the ID of the message
+ * @param key the record key
+ * @param partition the partition of the topic
+ * @param priority the priority of the message
+ * @param payload the message to send
+ */
+record OutboxRecord(String topic, String messageId, String key, int partition, int priority, KafkaMessage payload) {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxRecord.class);
+    private static final String REGION_HEADER = "region";
+    private static final String MESSAGE_ID_HEADER = "messageId";
+
+    /**
+     * Convert a message from the outbox channel to the record to send.
+     *
+     * @param message the message to convert
+     * @param partitioner the partitioner deciding the key and partition
+     * @param routes the routes deciding the topic
+     * @return the record to send, or null if the message is invalid
+     */
+    static OutboxRecord from(Message<?> message, OutboxPartitioner partitioner, OutboxRoutes routes) {
+        // Extract the payload and headers
+        Object payload = message.getPayload();
+        String messageId = message.getHeaders().get(MESSAGE_ID_HEADER, String.class);
+        String region = message.getHeaders().get(REGION_HEADER, String.class);
+        Number priority = message.getHeaders().get(IntegrationMessageHeaderAccessor.PRIORITY, Number.class);
+
+        if (messageId == null) {
+            logger.warn("Message has no messageId header, skipping");
+            return null;
+        }
+
+        if (!(payload instanceof KafkaMessage kafkaMessage)) {
+            logger.warn("Message payload is not a KafkaMessage, skipping: {}", messageId);
+            return null;
+        }
+
+        logger.debug("Processing message from outbox channel: {}", messageId);
+        logger.debug("Message details: region={}, content={}", region, kafkaMessage.getContent());
+
+        return of(messageId, region, priority != null ? priority.intValue() : 0, kafkaMessage, partitioner, routes);
+    }
+
+    /**
+     * Create the record to send for a message.
+     *
+     * @param messageId the ID of the message
+     * @param region the region of the message
+     * @param priority the priority of the message
+     * @param payload the message to send
+     * @param partitioner the partitioner deciding the key and partition
+     * @param routes the routes deciding the topic
+     * @return the record to send
+     */
+    static OutboxRecord of(String messageId, String region, int priority, KafkaMessage payload,
+                           OutboxPartitioner partitioner, OutboxRoutes routes) {
+        OutboxRoute route = routes.resolve(region);
+        String key = partitioner.keyFor(messageId, region);
+        return new OutboxRecord(route.topic(), messageId, key, partitioner.partitionFor(key, route.partitions()),
+                priority, payload);
+    }
+}
@@ -0,0 +1,60 @@
+package dk.bko.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a batch of outbox records to the topics of their routes in order with the relay producer.
+ * Shared by the relays that read the outbox as one ordered stream: the CDC relay and the journal relay.
+ */
+@Component
+class OutboxRecordSender {
+
+    private static final long SEND_TIMEOUT = 5; // seconds to wait for the sends of a batch
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final OutboxRelayMetrics metrics;
+
+    @Autowired
+    OutboxRecordSender(@Qualifier("relayKafkaTemplate") KafkaTemplate<String, Object> kafkaTemplate,
+                       OutboxRelayMetrics metrics) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Send the records in order and wait for the broker's acknowledgements.
+     * With a transactional producer they are sent in one Kafka transaction.
+     *
+     * @param records the records to send
+     * @throws IllegalStateException if any record could not be sent
+     */
+    void send(List<OutboxRecord> records) {
+        if (kafkaTemplate.isTransactional()) {
+            kafkaTemplate.executeInTransaction(operations -> {
+                records.forEach(record -> operations.send(
+                        record.topic(), record.partition(), record.key(), record.payload()));
+                return null;
+            });
+        } else {
+            List<CompletableFuture<SendResult<String, Object>>> futures = new ArrayList<>(records.size());
+            for (OutboxRecord record : records) {
+                futures.add(kafkaTemplate.send(record.topic(), record.partition(), record.key(), record.payload()));
+            }
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(SEND_TIMEOUT, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to send " + records.size() + " messages to Kafka", e);
+            }
+        }
+        records.forEach(record -> metrics.recordLatency(record.priority(), record.payload().getTimestamp()));
+    }
+}
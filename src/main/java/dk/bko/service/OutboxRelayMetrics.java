@@ -0,0 +1,49 @@
+package dk.bko.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of the outbox relay.
+ * The end-to-end latency from message creation to the Kafka acknowledgement is recorded per priority
+ * in the outbox.relay.latency timer, with percentiles, so the latency of urgent messages can be
+ * watched separately from a backlog of bulk messages.
+ */
+@Component
+public class OutboxRelayMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Integer, Timer> latencyTimers = new ConcurrentHashMap<>();
+
+    public OutboxRelayMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Record the latency of a message that has been sent to Kafka.
+     *
+     * @param priority the priority of the message
+     * @param createdAt the creation time of the message
+     */
+    public void recordLatency(int priority, LocalDateTime createdAt) {
+        if (createdAt == null) {
+            return;
+        }
+        Duration latency = Duration.between(createdAt, LocalDateTime.now());
+        latencyTimers.computeIfAbsent(priority, this::latencyTimer).record(latency);
+    }
+
+    private Timer latencyTimer(int priority) {
+        return Timer.builder("outbox.relay.latency")
+                .description("Time from message creation until it is acknowledged by Kafka")
+                .tag("priority", String.valueOf(priority))
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,343 @@
+package dk.bko.service;
+
+import dk.bko.model.OutboxRoute;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.common.errors.InvalidTopicException;
+import org.apache.kafka.common.internals.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Routing table deciding the topic each region's outbox messages are sent to.
+ * Routes come from outbox.routes (region=topic:partitions, comma separated) and from the INT_OUTBOX_ROUTE table,
+ * whose rows take precedence; regions without a route go to the default route, the outbox topic.
+ * The relay resolves routes against an immutable in-memory snapshot, so a lookup costs a map access.
+ * The snapshot is rebuilt when a route is changed through this service and, for changes made elsewhere,
+ * when the row count or latest update time of the table changes, checked every outbox.route-refresh-interval-ms.
+ * All routes to one topic use the largest partition count configured for it, and topics that are new to the
+ * snapshot are created, or their partitions increased, through the Kafka admin client. A route is only published
+ * once its topic has its partition count; until then its region keeps its previous route, and the snapshot is
+ * rebuilt again on the next check.
+ * Changing the partition count of a topic changes the partition of most regions' records, so the order of a
+ * region is only kept from the change on: records sent before it may be consumed after newer ones.
+ * The table is first read once the application is ready, or by the first lookup if that comes earlier,
+ * so the context starts without a database (as in the fast-start training run).
+ */
+@Service
+public class OutboxRoutes {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxRoutes.class);
+
+    private static final String SELECT_SQL = "SELECT REGION, TOPIC, PARTITIONS FROM INT_OUTBOX_ROUTE";
+    private static final String VERSION_SQL = "SELECT COUNT(*), MAX(UPDATED_DATE) FROM INT_OUTBOX_ROUTE";
+    private static final String UPDATE_SQL =
+            "UPDATE INT_OUTBOX_ROUTE SET TOPIC = ?, PARTITIONS = ?, UPDATED_DATE = ? WHERE REGION = ?";
+    private static final String INSERT_SQL =
+            "INSERT INTO INT_OUTBOX_ROUTE (REGION, TOPIC, PARTITIONS, UPDATED_DATE) VALUES (?, ?, ?, ?)";
+    private static final String DELETE_SQL = "DELETE FROM INT_OUTBOX_ROUTE WHERE REGION = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final KafkaAdmin kafkaAdmin;
+    private final Map<String, OutboxRoute> configuredRoutes;
+    private final Set<String> ensuredTopics = new HashSet<>();
+
+    private volatile Map<String, OutboxRoute> routes;
+    private volatile String version;
+    private volatile boolean loaded;
+
+    @Autowired
+    public OutboxRoutes(JdbcTemplate jdbcTemplate,
+                        ObjectProvider<KafkaAdmin> kafkaAdmin,
+                        @Value("${kafka.topic.message-outbox}") String defaultTopic,
+                        @Value("${kafka.topic.partitions:1}") int defaultPartitions,
+                        @Value("${outbox.routes:}") List<String> configuredRoutes) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.kafkaAdmin = kafkaAdmin.getIfAvailable();
+        this.configuredRoutes = new HashMap<>();
+        this.configuredRoutes.put(OutboxRoute.DEFAULT_REGION,
+                new OutboxRoute(OutboxRoute.DEFAULT_REGION, defaultTopic, defaultPartitions));
+        for (String route : configuredRoutes) {
+            OutboxRoute parsed = parse(route.trim(), defaultPartitions);
+            if (!isLegalTopic(parsed.topic()) || !isConsumed(parsed.topic())) {
+                throw new IllegalArgumentException("Invalid outbox route '" + route + "', the topic must be named "
+                        + defaultTopic + ".<name>");
+            }
+            this.configuredRoutes.put(parsed.region(), parsed);
+        }
+        this.routes = normalize(this.configuredRoutes.values());
+    }
+
+    /**
+     * Parse a route of outbox.routes.
+     *
+     * @param route region=topic or region=topic:partitions
+     * @param defaultPartitions the partitions if none are given
+     * @return the route
+     */
+    static OutboxRoute parse(String route, int defaultPartitions) {
+        int equals = route.indexOf('=');
+        if (equals <= 0 || equals == route.length() - 1) {
+            throw new IllegalArgumentException("Invalid outbox route '" + route + "', expected region=topic:partitions");
+        }
+        String region = route.substring(0, equals);
+        String target = route.substring(equals + 1);
+        int colon = target.lastIndexOf(':');
+        if (colon < 0) {
+            return new OutboxRoute(region, target, defaultPartitions);
+        }
+        return new OutboxRoute(region, target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+    }
+
+    /**
+     * Check whether a topic name is accepted by Kafka: at most 249 characters of ASCII letters, digits, '.', '_'
+     * and '-'.
+     *
+     * @param topic the topic
+     * @return true if Kafka accepts the name
+     */
+    public static boolean isLegalTopic(String topic) {
+        try {
+            Topic.validate(topic);
+            return true;
+        } catch (InvalidTopicException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check whether a topic can be routed to, that is whether the application's consumers read it.
+     *
+     * @param topic the topic
+     * @return true for the outbox topic and the topics named after it
+     */
+    public boolean isConsumed(String topic) {
+        String defaultTopic = configuredRoutes.get(OutboxRoute.DEFAULT_REGION).topic();
+        return topic.equals(defaultTopic)
+                || (topic.length() > defaultTopic.length() + 1 && topic.startsWith(defaultTopic + "."));
+    }
+
+    /**
+     * Load the routes of the table. If the database is not available yet, the first lookup loads them.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        try {
+            refresh();
+        } catch (DataAccessException e) {
+            logger.warn("Failed to load the outbox routes, loading them on first use", e);
+        }
+    }
+
+    /**
+     * Get the route of a region.
+     *
+     * @param region the region, may be null
+     * @return the route of the region, or the default route
+     */
+    public OutboxRoute resolve(String region) {
+        Map<String, OutboxRoute> snapshot = snapshot();
+        OutboxRoute route = region != null ? snapshot.get(region) : null;
+        return route != null ? route : snapshot.get(OutboxRoute.DEFAULT_REGION);
+    }
+
+    /**
+     * Get the partition count of a topic.
+     *
+     * @param topic the topic
+     * @param fallback the count to return if no route sends to the topic
+     * @return the partition count of the topic's routes, or the fallback
+     */
+    public int partitionsOf(String topic, int fallback) {
+        for (OutboxRoute route : snapshot().values()) {
+            if (route.topic().equals(topic)) {
+                return route.partitions();
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * @return all routes, ordered by region
+     */
+    public List<OutboxRoute> routes() {
+        return new ArrayList<>(new TreeMap<>(snapshot()).values());
+    }
+
+    /**
+     * Store the route of a region and apply it right away.
+     * The topic is created, or its partitions increased, before the route is stored.
+     * Concurrent saves of the same region are applied one after the other; the last one wins.
+     * A larger partition count remaps the partitions of the topic's regions, see the class comment.
+     *
+     * @param route the route
+     * @return the route as applied, with the partition count of its topic
+     * @throws IllegalArgumentException if the topic name is not legal or the application's consumers do not read it
+     * @throws IllegalStateException if the topic could not be created or given the partitions
+     */
+    public OutboxRoute save(OutboxRoute route) {
+        if (!isLegalTopic(route.topic()) || !isConsumed(route.topic())) {
+            throw new IllegalArgumentException("Outbox route topic " + route.topic() + " is not consumed");
+        }
+        int partitions = Math.max(route.partitions(), partitionsOf(route.topic(), route.partitions()));
+        if (!ensureTopics(List.of(new OutboxRoute(route.region(), route.topic(), partitions)))) {
+            throw new IllegalStateException("Failed to create outbox route topic " + route.topic()
+                    + " with " + partitions + " partitions");
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        if (jdbcTemplate.update(UPDATE_SQL, route.topic(), route.partitions(), now, route.region()) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_SQL, route.region(), route.topic(), route.partitions(), now);
+            } catch (DuplicateKeyException e) {
+                // A concurrent save inserted the region first
+                jdbcTemplate.update(UPDATE_SQL, route.topic(), route.partitions(), now, route.region());
+            }
+        }
+        refresh();
+        return resolve(route.region());
+    }
+
+    /**
+     * Delete the stored route of a region; the region falls back to its configured route or the default route.
+     *
+     * @param region the region
+     * @return true if a stored route was deleted
+     */
+    public boolean delete(String region) {
+        boolean deleted = jdbcTemplate.update(DELETE_SQL, region) > 0;
+        refresh();
+        return deleted;
+    }
+
+    /**
+     * Rebuild the snapshot if the table has changed since it was last read.
+     */
+    @Scheduled(fixedDelayString = "${outbox.route-refresh-interval-ms:10000}")
+    public void refreshIfChanged() {
+        if (!Objects.equals(version, readVersion())) {
+            refresh();
+        }
+    }
+
+    private Map<String, OutboxRoute> snapshot() {
+        if (!loaded) {
+            loadOnce();
+        }
+        return routes;
+    }
+
+    private synchronized void loadOnce() {
+        if (!loaded) {
+            refresh();
+        }
+    }
+
+    private String readVersion() {
+        return jdbcTemplate.queryForObject(VERSION_SQL,
+                (resultSet, rowNum) -> resultSet.getLong(1) + "/" + resultSet.getTimestamp(2));
+    }
+
+    private synchronized void refresh() {
+        String currentVersion = readVersion();
+        Map<String, OutboxRoute> merged = new HashMap<>(configuredRoutes);
+        jdbcTemplate.query(SELECT_SQL, resultSet -> {
+            String region = resultSet.getString(1);
+            merged.put(region, new OutboxRoute(region, resultSet.getString(2), resultSet.getInt(3)));
+        });
+        Map<String, OutboxRoute> normalized = normalize(merged.values());
+        boolean ensured = ensureTopics(normalized.values());
+        Map<String, OutboxRoute> snapshot = new HashMap<>();
+        for (OutboxRoute route : normalized.values()) {
+            OutboxRoute previous = routes.get(route.region());
+            if (isEnsured(route)) {
+                snapshot.put(route.region(), route);
+            } else if (previous != null && isEnsured(previous)) {
+                snapshot.put(route.region(), previous);
+            }
+        }
+        routes = Map.copyOf(snapshot);
+        // Until every topic is ensured, the next check rebuilds the snapshot even if the table is unchanged
+        version = ensured ? currentVersion : null;
+        loaded = true;
+        logger.info("Loaded {} outbox routes", snapshot.size());
+    }
+
+    /**
+     * Give all routes to the same topic the largest partition count configured for it.
+     * The outbox topic keeps kafka.topic.partitions, which is what KafkaConfig creates it with.
+     */
+    private Map<String, OutboxRoute> normalize(Collection<OutboxRoute> routes) {
+        OutboxRoute defaultRoute = configuredRoutes.get(OutboxRoute.DEFAULT_REGION);
+        Map<String, Integer> partitions = new HashMap<>();
+        for (OutboxRoute route : routes) {
+            partitions.merge(route.topic(), route.partitions(), Math::max);
+        }
+        partitions.put(defaultRoute.topic(), defaultRoute.partitions());
+        Map<String, OutboxRoute> normalized = new HashMap<>();
+        for (OutboxRoute route : routes) {
+            normalized.put(route.region(),
+                    new OutboxRoute(route.region(), route.topic(), partitions.get(route.topic())));
+        }
+        return Map.copyOf(normalized);
+    }
+
+    /**
+     * @return true if the topic of the route exists with the route's partition count, as far as this instance knows
+     */
+    private boolean isEnsured(OutboxRoute route) {
+        return kafkaAdmin == null || route.topic().equals(configuredRoutes.get(OutboxRoute.DEFAULT_REGION).topic())
+                || ensuredTopics.contains(route.topic() + ":" + route.partitions());
+    }
+
+    /**
+     * Create the topics of the routes, or increase their partitions.
+     *
+     * @return true if all topics were ensured
+     */
+    private synchronized boolean ensureTopics(Collection<OutboxRoute> routes) {
+        Map<String, NewTopic> newTopics = new HashMap<>();
+        for (OutboxRoute route : routes) {
+            if (!isEnsured(route)) {
+                newTopics.put(route.topic(), TopicBuilder.name(route.topic())
+                        .partitions(route.partitions())
+                        .replicas(1)
+                        .build());
+            }
+        }
+        if (newTopics.isEmpty()) {
+            return true;
+        }
+        try {
+            kafkaAdmin.createOrModifyTopics(newTopics.values().toArray(new NewTopic[0]));
+            newTopics.values().forEach(topic -> ensuredTopics.add(topic.name() + ":" + topic.numPartitions()));
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to create the outbox route topics {}, keeping their previous routes and retrying "
+                    + "on the next check", newTopics.keySet(), e);
+            return false;
+        }
+    }
+}
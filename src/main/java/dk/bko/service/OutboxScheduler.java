@@ -1,138 +1,462 @@
 package dk.bko.service;
 
-import dk.bko.model.KafkaMessage;
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.jdbc.OutboxClaimer;
+import dk.bko.util.SampledLogger;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.messaging.Message;
-import org.springframework.messaging.PollableChannel;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.sql.DataSource;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Scheduler service that periodically checks the JDBC message store for messages
- * that need to be sent to Kafka. It retrieves messages from the channel,
+ * that need to be sent to Kafka. It claims messages from the store,
  * sends them to Kafka, and acknowledges them after successful sending.
- * This implementation uses Spring Integration's PollableChannel to interact with
- * the JDBC message store instead of directly manipulating the database tables.
+ * Messages are stored through Spring Integration's JDBC channel message store and claimed with the
+ * {@link OutboxClaimer}, a batch per statement.
+ * Messages are drained in batches and grouped by the topic {@link OutboxRoutes} routes them to and by
+ * target partition; each partition's stream is sent in order from its own lane, so partitions are relayed
+ * in parallel. Every topic has its own lanes, so a slow topic does not hold up the sends to the others,
+ * though a batch is only acknowledged once the sends to all of its topics have completed.
+ * Depending on outbox.relay.producer-mode the relay template is plain, idempotent or transactional;
+ * a transactional batch is committed to Kafka right before the database transaction that removes it.
+ * Delivery stays at-least-once in every mode: if the database commit fails after the Kafka commit,
+ * the batch remains in the table and is relayed again.
+ * Messages are claimed by priority; one in every outbox.relay.fifo-claim-interval claimed messages is the oldest
+ * message instead, so low-priority messages keep moving while urgent ones overtake them. The oldest messages are
+ * claimed with a keyset that restarts at every relay run, so messages committed out of sequence order
+ * or released from the delayed group are claimed by the next run at the latest.
+ * The relay claims through its own small connection pool and transaction manager, so it neither
+ * competes with ingest for connections nor joins a JPA transaction.
+ * With outbox.shards the shards are claimed and relayed in parallel, each by its own worker.
+ * The {@link AdaptiveRelayController} decides the claim batch size, the producer a batch is sent with
+ * and the time until the next run from the backlog and the acknowledgement times it observes.
  */
 @Service
 @EnableScheduling
-public class OutboxScheduler {
+public class OutboxScheduler implements SchedulingConfigurer {
 
     private static final Logger logger = LoggerFactory.getLogger(OutboxScheduler.class);
-    private static final String REGION_HEADER = "region";
-    private static final String MESSAGE_ID_HEADER = "messageId";
-    private static final long RECEIVE_TIMEOUT = 1000; // 1 second timeout for receive operations
+    private static final long SEND_TIMEOUT = 5; // seconds to wait for the sends of a lane
+
+    private final OutboxShards outboxShards;
+    private final OutboxClaimer claimer;
+    private final AdaptiveRelayController controller;
+    private final OutboxPartitioner partitioner;
+    private final OutboxRoutes routes;
+    private final OutboxRelayMetrics metrics;
+    private final TransactionTemplate transactionTemplate;
+    private final Map<String, ExecutorService[]> topicLanes = new ConcurrentHashMap<>();
+    private final ThreadFactory laneThreadFactory;
+    private final int laneCount;
+    private final ExecutorService relayTrigger;
+    private final ExecutorService shardWorkers;
+    private final ShardRelay[] shardRelays;
+    private final SampledLogger sentLog;
+    private final SampledLogger sendingLog;
+
+    @Value("${outbox.relay.fifo-claim-interval:10}")
+    private int fifoClaimInterval;
 
-    private final PollableChannel kafkaOutboxChannel;
-    private final KafkaTemplate<String, Object> kafkaTemplate;
+    @Value("${outbox.relay.mode:polling}")
+    private String relayMode;
 
-    @Value("${kafka.topic.message-outbox}")
-    private String messageOutboxTopic;
+    private volatile boolean stopped;
 
     @Autowired
     public OutboxScheduler(
-            @Qualifier("kafkaOutboxChannel") PollableChannel kafkaOutboxChannel,
-            KafkaTemplate<String, Object> kafkaTemplate) {
-        this.kafkaOutboxChannel = kafkaOutboxChannel;
-        this.kafkaTemplate = kafkaTemplate;
+            OutboxShards outboxShards,
+            OutboxClaimer claimer,
+            AdaptiveRelayController controller,
+            OutboxPartitioner partitioner,
+            OutboxRoutes routes,
+            OutboxRelayMetrics metrics,
+            @Qualifier("relayDataSource") DataSource relayDataSource,
+            @Value("${outbox.relay.lanes:0}") int laneCount,
+            @Value("${hot-path.logging.max-per-second:0}") int maxLogLinesPerSecond,
+            @Qualifier("virtualThreadFactory") ObjectProvider<ThreadFactory> virtualThreadFactory) {
+        this.outboxShards = outboxShards;
+        this.claimer = claimer;
+        this.controller = controller;
+        this.partitioner = partitioner;
+        this.routes = routes;
+        this.metrics = metrics;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(relayDataSource));
+        this.laneThreadFactory = virtualThreadFactory.getIfAvailable(
+                () -> new CustomizableThreadFactory("outbox-lane-"));
+        this.laneCount = laneCount;
+        this.sentLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.sendingLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.relayTrigger = Executors.newSingleThreadExecutor(virtualThreadFactory.getIfAvailable(
+                () -> new CustomizableThreadFactory("outbox-relay-trigger-")));
+        this.shardRelays = new ShardRelay[outboxShards.count()];
+        for (int shard = 0; shard < shardRelays.length; shard++) {
+            shardRelays[shard] = new ShardRelay(shard);
+        }
+        HikariDataSource pool = DataSourceUnwrapper.unwrap(relayDataSource, HikariDataSource.class);
+        if (pool != null && pool.getMaximumPoolSize() <= shardRelays.length) {
+            // Every shard holds a relay connection while it relays, and delayed delivery needs one more
+            logger.warn("The relay pool has {} connections for {} outbox shards, set datasource.relay.hikari."
+                    + "maximum-pool-size to at least {}", pool.getMaximumPoolSize(), shardRelays.length,
+                    shardRelays.length + 1);
+        }
+        // Shard 0 is relayed on the calling thread, the other shards each on a worker
+        this.shardWorkers = shardRelays.length > 1 ? Executors.newFixedThreadPool(shardRelays.length - 1,
+                virtualThreadFactory.getIfAvailable(() -> new CustomizableThreadFactory("outbox-shard-"))) : null;
+    }
+
+    /**
+     * Schedule {@link #processOutboxMessages()} with the poll interval of the {@link AdaptiveRelayController},
+     * counted from the end of the previous run.
+     */
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.addTriggerTask(this::processOutboxMessages, triggerContext -> {
+            Instant lastCompletion = triggerContext.lastCompletion();
+            return lastCompletion == null ? Instant.now()
+                    : lastCompletion.plusMillis(controller.nextPollIntervalMs());
+        });
     }
 
     /**
-     * Scheduled method that runs every second to check for messages in the outbox.
-     * It retrieves messages from the channel, sends them to Kafka, and acknowledges them
-     * after successful sending.
+     * Scheduled method that checks for messages in the outbox, see {@link #configureTasks(ScheduledTaskRegistrar)}.
+     * It retrieves messages from the channel of each shard in batches and sends them to Kafka.
+     * Each batch runs in its own transaction: the messages are removed from the message store
+     * only when the whole batch has been sent, otherwise the batch is rolled back and retried on the next run.
+     * The shards are relayed in parallel, and this method waits until all of them are drained.
+     * Only one run per shard is active at a time, which keeps the order within each record key; a run requested
+     * while another is active is carried out by the active run once it has drained the shard.
+     * With outbox.relay.mode=cdc the {@link CdcOutboxRelay} relays the messages and nothing is polled.
      */
-    @Scheduled(fixedRate = 1000) // Run every second
-    @Transactional
     public void processOutboxMessages() {
-        logger.debug("Checking for messages in the outbox channel");
-        
-        // Receive a message from the channel with a timeout
-        Message<?> message = kafkaOutboxChannel.receive(RECEIVE_TIMEOUT);
-        
-        if (message == null) {
-            logger.debug("No messages found in the outbox channel");
+        if ("cdc".equals(relayMode) || stopped) {
             return;
         }
-        
-        // Process the message
-        processMessage(message);
-        
-        // Continue processing messages until the channel is empty
-        while ((message = kafkaOutboxChannel.receive(0)) != null) {
-            processMessage(message);
+        List<CompletableFuture<Void>> runs = new ArrayList<>(shardRelays.length - 1);
+        for (int shard = 1; shard < shardRelays.length; shard++) {
+            runs.add(CompletableFuture.runAsync(shardRelays[shard]::run, shardWorkers));
         }
+        shardRelays[0].run();
+        CompletableFuture.allOf(runs.toArray(new CompletableFuture[0])).join();
     }
-    
+
     /**
-     * Process a single message from the outbox channel.
-     * Sends the message to Kafka and acknowledges it after successful sending.
+     * Request a relay run right away instead of waiting for the next scheduled one,
+     * for example because delayed messages have just become due.
+     */
+    public void triggerRelay() {
+        relayTrigger.execute(this::processOutboxMessages);
+    }
+
+    /**
+     * Stop relaying: no new runs or batches are started, and the batches in flight are finished.
+     * Messages left in the outbox are relayed after the next start.
      *
-     * @param message the message to process
+     * @param timeoutMs the maximum time to wait for the batches in flight
+     * @return true if no relay run is active anymore
+     * @throws InterruptedException if interrupted while waiting
      */
-    private void processMessage(Message<?> message) {
-        // Extract the payload and headers
-        Object payload = message.getPayload();
-        String messageId = message.getHeaders().get(MESSAGE_ID_HEADER, String.class);
-        String region = message.getHeaders().get(REGION_HEADER, String.class);
-        
-        if (messageId == null) {
-            logger.warn("Message has no messageId header, skipping");
-            return;
+    public boolean stopRelaying(long timeoutMs) throws InterruptedException {
+        stopped = true;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (isRelaying()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return true while a relay run of any shard is active
+     */
+    public boolean isRelaying() {
+        for (ShardRelay shardRelay : shardRelays) {
+            if (shardRelay.isRelaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param shard the shard
+     * @return true while a relay run of the shard is active
+     */
+    public boolean isRelaying(int shard) {
+        return shardRelays[shard].isRelaying();
+    }
+
+    /**
+     * Send a batch of messages, grouped by topic and partition.
+     * The order of the messages within a partition is the order they were received in.
+     * With a transactional producer the whole batch is sent in one Kafka transaction from the
+     * calling thread; otherwise each partition is sent from its own lane of its topic and this method
+     * waits for all lanes.
+     *
+     * @param batch the messages to send
+     * @param kafkaTemplate the template to send with
+     * @throws RuntimeException if any message of the batch could not be sent
+     */
+    private void processBatch(List<Message<?>> batch, KafkaTemplate<String, Object> kafkaTemplate) {
+        Map<String, Map<Integer, List<OutboxRecord>>> byTopic = new TreeMap<>();
+        for (Message<?> message : batch) {
+            OutboxRecord spec = OutboxRecord.from(message, partitioner, routes);
+            if (spec != null) {
+                byTopic.computeIfAbsent(spec.topic(), t -> new TreeMap<>())
+                        .computeIfAbsent(spec.partition(), p -> new ArrayList<>()).add(spec);
+            }
         }
-        
-        if (!(payload instanceof KafkaMessage)) {
-            logger.warn("Message payload is not a KafkaMessage, skipping: {}", messageId);
+        logger.debug("Relaying {} messages to {} topics", batch.size(), byTopic.size());
+
+        if (kafkaTemplate.isTransactional()) {
+            // Committing the Kafka transaction flushes all sends; it fails if any of them failed
+            kafkaTemplate.executeInTransaction(operations -> {
+                byTopic.values().forEach(byPartition -> byPartition.values().forEach(specs -> specs.forEach(
+                        spec -> operations.send(spec.topic(), spec.partition(), spec.key(), spec.payload()))));
+                return null;
+            });
+            logger.info("Sent {} messages to Kafka in one transaction", batch.size());
+            byTopic.values().forEach(byPartition -> byPartition.values()
+                    .forEach(specs -> specs.forEach(this::recordLatency)));
             return;
         }
-        
-        KafkaMessage kafkaMessage = (KafkaMessage) payload;
-        
-        logger.info("Processing message from outbox channel: {}", messageId);
-        logger.debug("Message details: region={}, content={}", region, kafkaMessage.getContent());
-        
-        try {
-            // Send the message to Kafka
-            logger.info("Sending message to Kafka: {}", messageId);
-            
-            CompletableFuture<SendResult<String, Object>> future = 
-                    kafkaTemplate.send(messageOutboxTopic, messageId, kafkaMessage);
-            
-            // Wait for the send operation to complete
-            future.whenComplete((result, ex) -> {
-                if (ex == null) {
-                    logger.info("Message sent successfully to Kafka: {}", messageId);
-                    // Message was sent successfully, it will be automatically removed from the channel
-                    // because we received it in the processOutboxMessages method
-                } else {
-                    logger.error("Failed to send message to Kafka: {}", messageId, ex);
-                    // Message will remain in the channel and can be retried
-                    // We could implement a retry mechanism here if needed
+
+        List<CompletableFuture<Void>> lanesDone = new ArrayList<>();
+        byTopic.forEach((topic, byPartition) -> {
+            ExecutorService[] lanes = lanesOf(topic);
+            byPartition.forEach((partition, specs) -> lanesDone.add(CompletableFuture.runAsync(
+                    () -> sendPartition(specs, kafkaTemplate), lanes[partition % lanes.length])));
+        });
+        CompletableFuture.allOf(lanesDone.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Get the lanes of a topic, created on its first message: outbox.relay.lanes of them,
+     * or one per partition of the topic if that is 0.
+     * When the partition count of the topic's route changes, the lanes are resized: existing lanes are kept
+     * and surplus ones are shut down once their queued sends are done. A batch that picked a lane just before
+     * it was shut down fails and is relayed again.
+     */
+    ExecutorService[] lanesOf(String topic) {
+        int wanted = laneCount > 0 ? laneCount : Math.max(1, routes.partitionsOf(topic, partitioner.getPartitions()));
+        ExecutorService[] lanes = topicLanes.get(topic);
+        if (lanes != null && lanes.length == wanted) {
+            return lanes;
+        }
+        return topicLanes.compute(topic, (t, current) -> {
+            if (current != null && current.length == wanted) {
+                return current;
+            }
+            ExecutorService[] resized = new ExecutorService[wanted];
+            for (int i = 0; i < resized.length; i++) {
+                resized[i] = current != null && i < current.length ? current[i]
+                        : Executors.newSingleThreadExecutor(laneThreadFactory);
+            }
+            if (current != null) {
+                for (int i = resized.length; i < current.length; i++) {
+                    current[i].shutdown();
                 }
-            });
-            
-            // Wait for the future to complete (with a timeout)
+                logger.info("Resized the relay lanes of topic {} from {} to {}", t, current.length, resized.length);
+            }
+            return resized;
+        });
+    }
+
+    /**
+     * Send the messages of one partition in order and wait for the acknowledgements.
+     * The sends are pipelined; the producer keeps their order within the partition.
+     *
+     * @param specs the messages of the partition
+     * @param kafkaTemplate the template to send with
+     * @throws IllegalStateException if any message could not be sent
+     */
+    private void sendPartition(List<OutboxRecord> specs, KafkaTemplate<String, Object> kafkaTemplate) {
+        List<CompletableFuture<SendResult<String, Object>>> futures = new ArrayList<>(specs.size());
+        for (OutboxRecord spec : specs) {
+            futures.add(send(spec, kafkaTemplate));
+        }
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            String messageId = specs.get(i).messageId();
             try {
-                future.get(5, TimeUnit.SECONDS);
+                // Wait for the send operation to complete (with a timeout)
+                futures.get(i).get(SEND_TIMEOUT, TimeUnit.SECONDS);
+                sentLog.info("Message sent successfully to Kafka: {}", messageId);
+                recordLatency(specs.get(i));
             } catch (Exception e) {
-                logger.error("Error waiting for Kafka send operation to complete: {}", messageId, e);
-                // The whenComplete handler will still be called when the future completes
+                logger.error("Failed to send message to Kafka: {}", messageId, e);
+                failed++;
             }
-            
+        }
+        if (failed > 0) {
+            throw new IllegalStateException("Failed to send " + failed + " of " + specs.size()
+                    + " messages to partition " + specs.get(0).partition() + " of " + specs.get(0).topic());
+        }
+    }
+
+    private void recordLatency(OutboxRecord spec) {
+        metrics.recordLatency(spec.priority(), spec.payload().getTimestamp());
+    }
+
+    private CompletableFuture<SendResult<String, Object>> send(OutboxRecord spec,
+                                                               KafkaTemplate<String, Object> kafkaTemplate) {
+        sendingLog.info("Sending message to Kafka: {} ({} partition {})",
+                spec.messageId(), spec.topic(), spec.partition());
+        try {
+            return kafkaTemplate.send(spec.topic(), spec.partition(), spec.key(), spec.payload());
         } catch (Exception e) {
-            logger.error("Failed to process message {}", messageId, e);
-            // Message will remain in the channel and can be retried
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stop the lanes, the shard workers and the relay trigger.
+     */
+    @PreDestroy
+    public void shutdown() {
+        relayTrigger.shutdown();
+        if (shardWorkers != null) {
+            shardWorkers.shutdown();
+        }
+        topicLanes.values().forEach(lanes -> {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        });
+    }
+
+    /**
+     * The relay of one outbox shard.
+     */
+    private class ShardRelay {
+
+        private final int shard;
+        private final ReentrantLock relayLock = new ReentrantLock();
+        private final AtomicBoolean relayRequested = new AtomicBoolean();
+        private final String groupKey;
+        private long claims;
+        private long fifoSequence;
+
+        ShardRelay(int shard) {
+            this.shard = shard;
+            this.groupKey = OutboxShards.groupKey(shard);
+        }
+
+        /**
+         * Relay the shard until it is empty, unless another run of the shard is active.
+         */
+        void run() {
+            relayRequested.set(true);
+            if (!relayLock.tryLock()) {
+                return;
+            }
+            try {
+                while (relayRequested.getAndSet(false) && !stopped) {
+                    relayUntilEmpty();
+                }
+            } finally {
+                relayLock.unlock();
+            }
+        }
+
+        boolean isRelaying() {
+            return relayLock.isLocked();
+        }
+
+        private void relayUntilEmpty() {
+            logger.debug("Checking for messages in outbox shard {}", shard);
+            fifoSequence = 0;
+
+            // Continue processing batches until the shard is empty
+            Integer relayed;
+            int limit;
+            do {
+                limit = controller.batchSize();
+                int batchSize = limit;
+                try {
+                    relayed = transactionTemplate.execute(status -> relayBatch(batchSize));
+                } catch (Exception e) {
+                    logger.error("Failed to relay outbox batch of shard {}, it will be retried", shard, e);
+                    return;
+                }
+            } while (relayed != null && relayed >= limit && !stopped);
+        }
+
+        /**
+         * Receive up to one batch of messages from the shard and send them to Kafka.
+         * Must be called in a transaction. The outcome is reported to the {@link AdaptiveRelayController}.
+         *
+         * @param batchSize the maximum number of messages to receive
+         * @return the number of messages received
+         */
+        private int relayBatch(int batchSize) {
+            List<Message<?>> batch = claim(batchSize);
+            if (batch.isEmpty()) {
+                logger.debug("No messages found in outbox shard {}", shard);
+                return 0;
+            }
+            long start = System.nanoTime();
+            try {
+                processBatch(batch, controller.template());
+            } catch (RuntimeException e) {
+                controller.recordBatch(batch.size(), batchSize, System.nanoTime() - start, true);
+                throw e;
+            }
+            controller.recordBatch(batch.size(), batchSize, System.nanoTime() - start, false);
+            return batch.size();
+        }
+
+        /**
+         * Claim a batch: the most urgent messages, and the oldest ones for every fifo-claim-interval-th message.
+         * The oldest ones are claimed after those of the previous batch of this run.
+         *
+         * @param batchSize the maximum number of messages to claim
+         * @return the claimed messages, the urgent ones first
+         */
+        private List<Message<?>> claim(int batchSize) {
+            int fifoCount = fifoClaimInterval > 0
+                    ? (int) ((claims + batchSize) / fifoClaimInterval - claims / fifoClaimInterval) : 0;
+            claims += batchSize;
+            List<Message<?>> batch = new ArrayList<>(batchSize);
+            batch.addAll(claimer.claim(groupKey, true, 0, batchSize - fifoCount).messages());
+            if (fifoCount > 0) {
+                OutboxClaimer.Claim fifo = claimer.claim(groupKey, false, fifoSequence, batchSize - batch.size());
+                batch.addAll(fifo.messages());
+                fifoSequence = fifo.lastSequence();
+            }
+            return batch;
         }
     }
-}
\ No newline at end of file
+}
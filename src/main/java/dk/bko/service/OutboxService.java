@@ -5,10 +5,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.bko.entity.Message;
 import dk.bko.model.KafkaMessage;
 import dk.bko.repository.MessageRepository;
+import dk.bko.util.SampledLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaProducerException;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
@@ -17,6 +19,7 @@ import org.springframework.transaction.annotation.Transactional;
 import java.time.LocalDateTime;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * Service implementing the outbox pattern for reliable message delivery to Kafka.
@@ -31,17 +34,40 @@ public class OutboxService {
     private final MessageRepository messageRepository;
     private final KafkaTemplate<String, Object> kafkaTemplate;
     private final ObjectMapper objectMapper;
-
-    @Value("${kafka.topic.message-outbox}")
-    private String messageOutboxTopic;
+    private final OutboxPartitioner partitioner;
+    private final OutboxRoutes routes;
+    private final MessageCache messageCache;
+    private final ClaimCheckStore claimCheckStore;
+    private final MessageStatistics messageStatistics;
+    private final SampledLogger storingLog;
+    private final SampledLogger sendingLog;
+    private final SampledLogger sentLog;
+    private final SampledLogger removedLog;
+    // One callback for all sends; the message ID is taken from the record, so no lambda is created per message
+    private final BiConsumer<SendResult<String, Object>, Throwable> sendCallback = this::onSendComplete;
 
     @Autowired
     public OutboxService(MessageRepository messageRepository, 
                          KafkaTemplate<String, Object> kafkaTemplate,
-                         ObjectMapper objectMapper) {
+                         ObjectMapper objectMapper,
+                         OutboxPartitioner partitioner,
+                         OutboxRoutes routes,
+                         MessageCache messageCache,
+                         ClaimCheckStore claimCheckStore,
+                         MessageStatistics messageStatistics,
+                         @Value("${hot-path.logging.max-per-second:0}") int maxLogLinesPerSecond) {
         this.messageRepository = messageRepository;
         this.kafkaTemplate = kafkaTemplate;
         this.objectMapper = objectMapper;
+        this.partitioner = partitioner;
+        this.routes = routes;
+        this.messageCache = messageCache;
+        this.claimCheckStore = claimCheckStore;
+        this.messageStatistics = messageStatistics;
+        this.storingLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.sendingLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.sentLog = new SampledLogger(logger, maxLogLinesPerSecond);
+        this.removedLog = new SampledLogger(logger, maxLogLinesPerSecond);
     }
 
     /**
@@ -54,14 +80,14 @@ public class OutboxService {
      */
     @Transactional
     public Message sendMessage(String content, String region) {
-        // Create a KafkaMessage
-        KafkaMessage kafkaMessage = new KafkaMessage(content, region);
+        // Create a KafkaMessage, moving large content to the claim-check store
+        KafkaMessage kafkaMessage = claimCheckStore.checkIn(new KafkaMessage(content, region));
         
         // Store the message in the database
         Message message = storeMessage(kafkaMessage);
         
         // Send the message to Kafka
-        sendToKafka(kafkaMessage, message.getMessageId());
+        sendToKafka(kafkaMessage, kafkaMessage.getId());
         
         return message;
     }
@@ -78,14 +104,21 @@ public class OutboxService {
             byte[] messageBytes = objectMapper.writeValueAsBytes(kafkaMessage);
             
             Message message = new Message(
-                    messageId,
+                    UUID.fromString(messageId),
                     kafkaMessage.getRegion(),
                     kafkaMessage.getTimestamp(),
                     messageBytes
             );
+            message.setFormat(Message.Format.OUTBOX);
+            if (kafkaMessage.getContentRef() != null) {
+                // Keeps the payload from being purged while the message exists
+                message.setContentRef(UUID.fromString(kafkaMessage.getContentRef()));
+            }
             
-            logger.info("Storing message in outbox: {}", messageId);
-            return messageRepository.save(message);
+            storingLog.info("Storing message in outbox: {}", messageId);
+            message = messageRepository.save(message);
+            messageStatistics.record(kafkaMessage.getRegion(), kafkaMessage.getTimestamp(), messageBytes.length);
+            return message;
         } catch (JsonProcessingException e) {
             logger.error("Failed to serialize message", e);
             throw new RuntimeException("Failed to serialize message", e);
@@ -100,21 +133,30 @@ public class OutboxService {
      * @param messageId the ID of the message in the database
      */
     private void sendToKafka(KafkaMessage kafkaMessage, String messageId) {
-        logger.info("Sending message to Kafka: {}", messageId);
+        sendingLog.info("Sending message to Kafka: {}", messageId);
         
-        CompletableFuture<SendResult<String, Object>> future = 
-                kafkaTemplate.send(messageOutboxTopic, messageId, kafkaMessage);
+        String region = kafkaMessage.getRegion();
+        CompletableFuture<SendResult<String, Object>> future = kafkaTemplate.send(
+                routes.resolve(region).topic(), partitioner.keyFor(messageId, region), kafkaMessage);
         
-        future.whenComplete((result, ex) -> {
-            if (ex == null) {
-                logger.info("Message sent successfully to Kafka: {}", messageId);
-                // Message was sent successfully, we can remove it from the database
-                messageRepository.deleteById(messageId);
-                logger.info("Message removed from outbox: {}", messageId);
-            } else {
-                logger.error("Failed to send message to Kafka: {}", messageId, ex);
-                // Message will remain in the database and can be retried
-            }
-        });
+        future.whenComplete(sendCallback);
+    }
+
+    private void onSendComplete(SendResult<String, Object> result, Throwable ex) {
+        if (ex == null) {
+            String messageId = ((KafkaMessage) result.getProducerRecord().value()).getId();
+            sentLog.info("Message sent successfully to Kafka: {}", messageId);
+            // Message was sent successfully, we can remove it from the database
+            UUID id = UUID.fromString(messageId);
+            messageRepository.deleteById(id);
+            messageCache.invalidate(id);
+            removedLog.info("Message removed from outbox: {}", messageId);
+        } else {
+            Object failed = ex instanceof KafkaProducerException producerException
+                    ? producerException.getFailedProducerRecord().value() : null;
+            logger.error("Failed to send message to Kafka: {}",
+                    failed instanceof KafkaMessage message ? message.getId() : "unknown", ex);
+            // Message will remain in the database and can be retried
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package dk.bko.service;
+
+import dk.bko.config.OutboxConfig;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.integration.channel.PriorityChannel;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.util.UUIDConverter;
+import org.springframework.messaging.PollableChannel;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The shards of the outbox: each shard is its own group of INT_CHANNEL_MESSAGE.
+ * The primary key and all indexes of the table start with (REGION, GROUP_KEY), so the messages of
+ * different shards live in separate index ranges, and inserts and claims of different shards
+ * do not contend for the same index pages.
+ * A message is assigned to a shard by the hash of its record key (the message ID or the region,
+ * see {@link OutboxPartitioner}), so all messages with the same key are kept in one shard and relayed in order.
+ * Shard 0 is the unsharded outbox group, so messages stored before sharding was enabled are still relayed.
+ */
+public class OutboxShards {
+
+    private final OutboxPartitioner partitioner;
+    private final JdbcChannelMessageStore jdbcChannelMessageStore;
+    private final PollableChannel[] outboxChannels;
+
+    /**
+     * Creates the channels of each shard.
+     *
+     * @param count the number of shards
+     * @param partitioner the partitioner deciding the record key of a message
+     * @param jdbcChannelMessageStore the store for sending, in the caller's transaction
+     */
+    public OutboxShards(int count, OutboxPartitioner partitioner, JdbcChannelMessageStore jdbcChannelMessageStore) {
+        if (count < 1) {
+            throw new IllegalArgumentException("outbox.shards must be at least 1");
+        }
+        this.partitioner = partitioner;
+        this.jdbcChannelMessageStore = jdbcChannelMessageStore;
+        this.outboxChannels = new PollableChannel[count];
+        for (int shard = 0; shard < count; shard++) {
+            PriorityChannel outboxChannel = new PriorityChannel(jdbcChannelMessageStore, groupId(shard));
+            outboxChannel.setComponentName("kafkaOutboxChannel-" + shard);
+            outboxChannels[shard] = outboxChannel;
+        }
+    }
+
+    /**
+     * Get the group of a shard in the channel message store.
+     *
+     * @param shard the shard
+     * @return the outbox group for shard 0, the outbox group with the shard number appended otherwise
+     */
+    public static String groupId(int shard) {
+        return shard == 0 ? OutboxConfig.OUTBOX_GROUP : OutboxConfig.OUTBOX_GROUP + "-" + shard;
+    }
+
+    /**
+     * Get the GROUP_KEY column value of a shard.
+     *
+     * @param shard the shard
+     * @return the group key
+     */
+    public static String groupKey(int shard) {
+        return UUIDConverter.getUUID(groupId(shard)).toString();
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int count() {
+        return outboxChannels.length;
+    }
+
+    /**
+     * Get the shard of a message.
+     *
+     * @param messageId the ID of the message
+     * @param region the region of the message
+     * @return the shard of the message's record key
+     */
+    public int shardFor(String messageId, String region) {
+        return shardForKey(partitioner.keyFor(messageId, region));
+    }
+
+    /**
+     * Get the shard of a key.
+     *
+     * @param key the key
+     * @return the shard
+     */
+    public int shardForKey(String key) {
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % outboxChannels.length;
+    }
+
+    /**
+     * Get the channel for storing messages in a shard, in the caller's transaction.
+     *
+     * @param shard the shard
+     * @return the outbox channel of the shard
+     */
+    public PollableChannel outboxChannel(int shard) {
+        return outboxChannels[shard];
+    }
+
+    /**
+     * Get the number of messages waiting in a shard.
+     *
+     * @param shard the shard
+     * @return the number of messages in the shard's group
+     */
+    public int depth(int shard) {
+        return jdbcChannelMessageStore.messageGroupSize(groupId(shard));
+    }
+}
@@ -0,0 +1,295 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.RegionLatest;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory view of the latest messages of every region, materialized from the compacted region view topic.
+ * Every instance reads all partitions of the topic without a consumer group and keeps the newest record
+ * per region, so reads are served from memory. The view is written to a local snapshot file together with
+ * the offsets it covers; on restart the snapshot is loaded and only the records after it are read.
+ * The view is ready once it has caught up with the end of the topic as it was when reading started.
+ * A publisher that must see the latest records of the topic first, like the projector after a rebalance,
+ * can wait for the view to catch up with the end of the topic as it is now.
+ */
+@Service
+@ConditionalOnProperty(name = "region-view.enabled", havingValue = "true")
+public class RegionView {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegionView.class);
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private final ConsumerFactory<String, Object> consumerFactory;
+    private final ObjectMapper objectMapper;
+    private final Map<String, List<KafkaMessage>> regions = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> offsets = new HashMap<>(); // view thread only
+    private final Map<Integer, Long> positions = new HashMap<>(); // guarded by itself
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new CustomizableThreadFactory("region-view-"));
+
+    @Value("${region-view.topic:message-region-view}")
+    private String topic;
+
+    @Value("${region-view.snapshot-path:data/region-view.json}")
+    private Path snapshotPath;
+
+    @Value("${region-view.snapshot-interval-ms:30000}")
+    private long snapshotIntervalMs;
+
+    @Value("${region-view.retry-backoff-ms:5000}")
+    private long retryBackoffMs;
+
+    private volatile boolean running = true;
+    private boolean changed;
+
+    @Autowired
+    public RegionView(ConsumerFactory<String, Object> consumerFactory, ObjectMapper objectMapper) {
+        this.consumerFactory = consumerFactory;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Restore the snapshot, if any, and start following the topic on the view thread.
+     */
+    @PostConstruct
+    public void start() {
+        loadSnapshot();
+        executor.execute(this::follow);
+    }
+
+    /**
+     * Stop following the topic. The view thread writes a last snapshot before it ends.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(POLL_TIMEOUT.toSeconds() + 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the latest messages of a region.
+     *
+     * @param region the region
+     * @param limit the maximum number of messages
+     * @return up to limit messages, newest first; empty if the region has no messages
+     */
+    public List<KafkaMessage> latest(String region, int limit) {
+        List<KafkaMessage> messages = regions.getOrDefault(region, List.of());
+        return messages.subList(0, Math.min(limit, messages.size()));
+    }
+
+    /**
+     * @return true once the view has caught up with the topic
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Wait until the view has caught up with the topic.
+     *
+     * @param timeout the maximum time to wait
+     * @return true if the view is ready
+     */
+    public boolean awaitReady(Duration timeout) throws InterruptedException {
+        return ready.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until the view has read every record published to the topic so far.
+     * Unlike {@link #awaitReady(Duration)}, this covers the records published after the view started reading.
+     *
+     * @param timeout the maximum time to wait
+     * @return true if the view has caught up with the current end of the topic
+     */
+    public boolean awaitCaughtUp(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (!awaitReady(timeout)) {
+            return false;
+        }
+        Map<TopicPartition, Long> endOffsets;
+        try (Consumer<String, Object> consumer = createConsumer()) {
+            endOffsets = consumer.endOffsets(partitions(consumer));
+        }
+        synchronized (positions) {
+            while (!endOffsets.entrySet().stream().allMatch(end ->
+                    positions.getOrDefault(end.getKey().partition(), 0L) >= end.getValue())) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                positions.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Follow the topic until shut down, reconnecting after failures.
+     */
+    private void follow() {
+        while (running) {
+            try {
+                consume();
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                logger.error("Region view failed, reconnecting in {} ms", retryBackoffMs, e);
+                try {
+                    Thread.sleep(retryBackoffMs);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        writeSnapshot();
+    }
+
+    private void consume() {
+        try (Consumer<String, Object> consumer = createConsumer()) {
+            List<TopicPartition> partitions = partitions(consumer);
+            consumer.assign(partitions);
+            for (TopicPartition partition : partitions) {
+                Long offset = offsets.get(partition.partition());
+                if (offset != null) {
+                    consumer.seek(partition, offset);
+                } else {
+                    consumer.seekToBeginning(List.of(partition));
+                }
+            }
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+            long lastSnapshot = System.currentTimeMillis();
+
+            while (running) {
+                for (ConsumerRecord<String, Object> record : consumer.poll(POLL_TIMEOUT)) {
+                    apply(record);
+                    offsets.put(record.partition(), record.offset() + 1);
+                    changed = true;
+                }
+                synchronized (positions) {
+                    partitions.forEach(p -> positions.put(p.partition(), consumer.position(p)));
+                    positions.notifyAll();
+                }
+                if (!isReady() && partitions.stream().allMatch(p -> consumer.position(p) >= endOffsets.get(p))) {
+                    ready.countDown();
+                    logger.info("Region view caught up with topic {}: {} regions", topic, regions.size());
+                }
+                if (System.currentTimeMillis() - lastSnapshot >= snapshotIntervalMs) {
+                    writeSnapshot();
+                    lastSnapshot = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private Consumer<String, Object> createConsumer() {
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        overrides.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        return consumerFactory.createConsumer(null, "region-view", null, overrides);
+    }
+
+    private List<TopicPartition> partitions(Consumer<String, Object> consumer) {
+        List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+        if (partitionInfos == null || partitionInfos.isEmpty()) {
+            throw new IllegalStateException("Region view topic " + topic + " does not exist");
+        }
+        return partitionInfos.stream()
+                .map(info -> new TopicPartition(topic, info.partition()))
+                .toList();
+    }
+
+    private void apply(ConsumerRecord<String, Object> record) {
+        if (record.value() == null) {
+            regions.remove(record.key());
+        } else if (record.value() instanceof RegionLatest latest) {
+            regions.put(latest.region(), List.copyOf(latest.messages()));
+        } else {
+            logger.warn("Unexpected value in region view topic at {}-{}@{}, skipping",
+                    record.topic(), record.partition(), record.offset());
+        }
+    }
+
+    /**
+     * Write the view and the offsets it covers to the snapshot file, replacing the previous snapshot atomically.
+     */
+    private void writeSnapshot() {
+        if (!changed) {
+            return;
+        }
+        try {
+            Path directory = snapshotPath.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "region-view", ".tmp");
+            objectMapper.writeValue(temporary.toFile(), new Snapshot(offsets, regions));
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+            logger.debug("Wrote region view snapshot of {} regions to {}", regions.size(), snapshotPath);
+        } catch (IOException e) {
+            logger.warn("Failed to write region view snapshot to {}", snapshotPath, e);
+        }
+    }
+
+    /**
+     * Restore the view from the snapshot file. A missing or unreadable snapshot rebuilds the view from the topic.
+     */
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try {
+            Snapshot snapshot = objectMapper.readValue(snapshotPath.toFile(), Snapshot.class);
+            offsets.putAll(snapshot.offsets());
+            snapshot.regions().forEach((region, messages) -> regions.put(region, List.copyOf(messages)));
+            logger.info("Restored region view snapshot of {} regions from {}", regions.size(), snapshotPath);
+        } catch (IOException e) {
+            logger.warn("Failed to read region view snapshot from {}, rebuilding from the topic", snapshotPath, e);
+            offsets.clear();
+            regions.clear();
+        }
+    }
+
+    /**
+     * Contents of the snapshot file.
+     *
+     * @param offsets the next offset to read, by partition
+     * @param regions the latest messages by region
+     */
+    record Snapshot(Map<Integer, Long> offsets, Map<String, List<KafkaMessage>> regions) {
+    }
+}
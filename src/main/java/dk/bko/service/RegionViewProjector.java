@@ -0,0 +1,130 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.RegionLatest;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Projects the outbox topics onto the compacted region view topic.
+ * For every message the projector publishes the new list of latest messages of its region, keyed by region,
+ * so compaction leaves one record per region and the {@link RegionView} can be rebuilt from a few records.
+ * The projector runs in its own consumer group with a single consumer thread. It starts from the lists
+ * in the region view and keeps the lists it has published since, until the next rebalance.
+ * After a rebalance it first waits for the region view to read everything published so far, so it continues
+ * from the last lists of the previous owner of a region rather than from an older local copy.
+ * With kafka.producer.key-strategy=region all messages of a region are on one partition, so exactly one
+ * projector in the group owns each region.
+ */
+@Component
+@ConditionalOnProperty(name = "region-view.enabled", havingValue = "true")
+public class RegionViewProjector implements ConsumerAwareRebalanceListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegionViewProjector.class);
+    private static final long SEND_TIMEOUT = 5; // seconds to wait for a region update
+    private static final Duration READY_TIMEOUT = Duration.ofSeconds(30);
+    private static final Comparator<KafkaMessage> NEWEST_FIRST = Comparator
+            .comparing(KafkaMessage::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(KafkaMessage::getId)
+            .reversed();
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final RegionView regionView;
+    private final Map<String, List<KafkaMessage>> published = new HashMap<>(); // consumer thread only
+    private boolean catchUpRequired = true; // consumer thread only
+
+    @Value("${region-view.topic:message-region-view}")
+    private String topic;
+
+    @Value("${region-view.latest-size:20}")
+    private int latestSize;
+
+    @Autowired
+    public RegionViewProjector(KafkaTemplate<String, Object> kafkaTemplate, RegionView regionView) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.regionView = regionView;
+    }
+
+    /**
+     * Add a message to the latest messages of its region and publish the updated list.
+     * Duplicates, and messages older than every message kept for the region, leave the list unchanged.
+     *
+     * @param message the message from an outbox topic
+     * @throws IllegalStateException if the region view has not caught up yet, so the record is retried
+     */
+    @KafkaListener(topicPattern = "${kafka.topic.message-outbox-pattern}",
+            groupId = "${region-view.projector-group-id:region-view-projector}",
+            containerFactory = "regionViewListenerContainerFactory")
+    public void project(KafkaMessage message) throws Exception {
+        String region = message.getRegion();
+        if (region == null) {
+            return;
+        }
+        if (catchUpRequired) {
+            if (!regionView.awaitCaughtUp(READY_TIMEOUT)) {
+                throw new IllegalStateException("Region view has not caught up with its topic yet");
+            }
+            catchUpRequired = false;
+        }
+        List<KafkaMessage> current = published.computeIfAbsent(region, r -> regionView.latest(r, latestSize));
+        List<KafkaMessage> updated = merge(current, message, latestSize);
+        if (updated == current) {
+            return;
+        }
+        kafkaTemplate.send(topic, region, new RegionLatest(region, updated)).get(SEND_TIMEOUT, TimeUnit.SECONDS);
+        published.put(region, updated);
+        logger.debug("Published latest {} messages of region {}", updated.size(), region);
+    }
+
+    /**
+     * Add a message to a list of latest messages.
+     *
+     * @param current the latest messages, newest first
+     * @param message the message to add
+     * @param size the maximum number of messages to keep
+     * @return the new list, or the current list if the message is already in it or too old to be kept
+     */
+    static List<KafkaMessage> merge(List<KafkaMessage> current, KafkaMessage message, int size) {
+        if (current.stream().anyMatch(kept -> kept.getId().equals(message.getId()))) {
+            return current;
+        }
+        List<KafkaMessage> updated = new ArrayList<>(current.size() + 1);
+        updated.addAll(current);
+        updated.add(message);
+        updated.sort(NEWEST_FIRST);
+        if (updated.size() > size) {
+            if (updated.get(size) == message) {
+                return current;
+            }
+            updated = updated.subList(0, size);
+        }
+        return List.copyOf(updated);
+    }
+
+    /**
+     * Forget the published lists; after a rebalance the projector starts again from the region view,
+     * once it has caught up with the lists published by the previous owners of the regions.
+     */
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+        published.clear();
+        catchUpRequired = true;
+    }
+}
@@ -0,0 +1,476 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.entity.Message;
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.ReplayJob;
+import dk.bko.util.TokenBucket;
+import dk.bko.util.UuidV7;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service re-publishing stored messages of a region and time range to a Kafka topic.
+ * A job reads INT_MESSAGE in (CREATED_DATE, MESSAGE_ID) order, one keyset page at a time, through a
+ * server-side cursor in a read-only transaction on the query pool. Once the page is read and its transaction
+ * closed, its messages are sent pipelined, no faster than the rate of the job, and the page is checkpointed
+ * in INT_REPLAY_JOB once all its sends are acknowledged; a paused, failed or interrupted job resumes after
+ * the checkpoint. Messages published after the checkpoint of an interrupted page are published again on resume.
+ * A running job is owned by one instance through a lease in INT_REPLAY_JOB, renewed before every page.
+ * Another instance can only resume the job once the lease has expired, and an instance that finds its lease
+ * taken over stops the job.
+ * Replays use their own producer and run on minimum-priority threads that wait while the outbox relay
+ * is active, so live traffic always comes first.
+ */
+@Service
+public class ReplayService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplayService.class);
+    private static final long SEND_TIMEOUT = 30; // seconds to wait for the sends of a page
+    private static final long RELAY_BACKOFF_MS = 100;
+    private static final int MAX_ERROR_LENGTH = 1000;
+    private static final UUID NIL_UUID = new UUID(0, 0);
+    static final String REPLAY_JOB_HEADER = "replay-job";
+
+    private static final String SELECT_PAGE_SQL =
+            "SELECT MESSAGE_ID, CREATED_DATE, MESSAGE_FORMAT, MESSAGE_BYTES FROM INT_MESSAGE " +
+            "WHERE REGION = ? AND CREATED_DATE < ? AND (CREATED_DATE, MESSAGE_ID) > (?, ?) " +
+            "ORDER BY CREATED_DATE, MESSAGE_ID LIMIT ?";
+    private static final String INSERT_JOB_SQL =
+            "INSERT INTO INT_REPLAY_JOB (JOB_ID, REGION, FROM_DATE, TO_DATE, TARGET_TOPIC, RATE_PER_SECOND, " +
+            "STATUS, PUBLISHED, CREATED_DATE, UPDATED_DATE, OWNER, LEASE_UNTIL) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?, ?)";
+    private static final String SELECT_JOB_SQL = "SELECT * FROM INT_REPLAY_JOB WHERE JOB_ID = ?";
+    private static final String ACQUIRE_SQL =
+            "UPDATE INT_REPLAY_JOB SET STATUS = ?, ERROR = NULL, OWNER = ?, LEASE_UNTIL = ?, UPDATED_DATE = ? " +
+            "WHERE JOB_ID = ? AND STATUS <> ? AND (STATUS <> ? OR OWNER = ? OR LEASE_UNTIL IS NULL OR LEASE_UNTIL < ?)";
+    private static final String RENEW_SQL =
+            "UPDATE INT_REPLAY_JOB SET LEASE_UNTIL = ? WHERE JOB_ID = ? AND OWNER = ? AND STATUS = ?";
+    private static final String CHECKPOINT_SQL =
+            "UPDATE INT_REPLAY_JOB SET LAST_CREATED_DATE = ?, LAST_MESSAGE_ID = ?, PUBLISHED = PUBLISHED + ?, " +
+            "UPDATED_DATE = ? WHERE JOB_ID = ? AND OWNER = ?";
+    private static final String UPDATE_STATUS_SQL =
+            "UPDATE INT_REPLAY_JOB SET STATUS = ?, ERROR = ?, LEASE_UNTIL = NULL, UPDATED_DATE = ? " +
+            "WHERE JOB_ID = ? AND OWNER = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate queryJdbcTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final OutboxPartitioner partitioner;
+    private final OutboxScheduler outboxScheduler;
+    private final ObjectMapper objectMapper;
+    private final Counter publishedCounter;
+    private final ExecutorService executor;
+    private final Map<UUID, Run> runs = new ConcurrentHashMap<>();
+    private final String instanceId =
+            ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+
+    @Value("${replay.page-size:500}")
+    private int pageSize;
+
+    @Value("${replay.fetch-size:100}")
+    private int fetchSize;
+
+    @Value("${replay.lease-ms:60000}")
+    private long leaseMs;
+
+    @Autowired
+    public ReplayService(
+            JdbcTemplate jdbcTemplate,
+            @Qualifier("queryDataSource") DataSource queryDataSource,
+            @Qualifier("replayKafkaTemplate") KafkaTemplate<String, Object> kafkaTemplate,
+            OutboxPartitioner partitioner,
+            OutboxScheduler outboxScheduler,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${replay.max-concurrent-jobs:2}") int maxConcurrentJobs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.queryJdbcTemplate = new JdbcTemplate(queryDataSource);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(queryDataSource));
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+        this.kafkaTemplate = kafkaTemplate;
+        this.partitioner = partitioner;
+        this.outboxScheduler = outboxScheduler;
+        this.objectMapper = objectMapper;
+        this.publishedCounter = Counter.builder("replay.messages.published")
+                .description("Messages re-published by replay jobs")
+                .register(meterRegistry);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("replay-");
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        this.executor = Executors.newFixedThreadPool(maxConcurrentJobs, threadFactory);
+    }
+
+    /**
+     * Create a replay job and start it.
+     *
+     * @param region the region of the messages to replay
+     * @param from the creation time of the first message to replay, inclusive
+     * @param to the creation time after the last message to replay, exclusive
+     * @param targetTopic the topic to publish the messages to
+     * @param ratePerSecond the maximum number of messages to publish per second
+     * @return the created job
+     */
+    public ReplayJob start(String region, LocalDateTime from, LocalDateTime to, String targetTopic, int ratePerSecond) {
+        UUID jobId = UuidV7.randomUuid();
+        LocalDateTime now = LocalDateTime.now();
+        jdbcTemplate.update(INSERT_JOB_SQL, jobId, region, Timestamp.valueOf(from), Timestamp.valueOf(to),
+                targetTopic, ratePerSecond, ReplayJob.Status.RUNNING.name(), Timestamp.valueOf(now),
+                Timestamp.valueOf(now), instanceId, Timestamp.valueOf(now.plus(leaseDuration(ratePerSecond))));
+        logger.info("Starting replay job {} of region {} from {} to {} to topic {} at {} messages/s",
+                jobId, region, from, to, targetTopic, ratePerSecond);
+        submit(load(jobId).orElseThrow());
+        return get(jobId).orElseThrow();
+    }
+
+    /**
+     * Resume a paused, failed or interrupted job after its last checkpoint.
+     * A job left running by another instance can only be resumed once that instance's lease has expired.
+     *
+     * @param jobId the ID of the job
+     * @return the job, or empty if it does not exist
+     * @throws IllegalStateException if the job is running or completed
+     */
+    public Optional<ReplayJob> resume(UUID jobId) {
+        Optional<ReplayJob> job = load(jobId);
+        if (job.isEmpty()) {
+            return job;
+        }
+        if (job.get().status() == ReplayJob.Status.COMPLETED) {
+            throw new IllegalStateException("Replay job " + jobId + " is completed");
+        }
+        if (runs.containsKey(jobId)) {
+            throw new IllegalStateException("Replay job " + jobId + " is already running");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        String running = ReplayJob.Status.RUNNING.name();
+        if (jdbcTemplate.update(ACQUIRE_SQL, running, instanceId,
+                Timestamp.valueOf(now.plus(leaseDuration(job.get().ratePerSecond()))), Timestamp.valueOf(now), jobId,
+                ReplayJob.Status.COMPLETED.name(), running, instanceId, Timestamp.valueOf(now)) == 0) {
+            throw new IllegalStateException("Replay job " + jobId + " is running on another instance");
+        }
+        submit(load(jobId).orElseThrow());
+        logger.info("Resuming replay job {} after {} published messages", jobId, job.get().published());
+        return get(jobId);
+    }
+
+    /**
+     * Ask a running job to pause. The job stops after the page it is publishing has been checkpointed.
+     *
+     * @param jobId the ID of the job
+     * @return the job, or empty if it does not exist
+     * @throws IllegalStateException if the job is not running on this instance
+     */
+    public Optional<ReplayJob> pause(UUID jobId) {
+        Run run = runs.get(jobId);
+        if (run == null) {
+            if (load(jobId).isEmpty()) {
+                return Optional.empty();
+            }
+            throw new IllegalStateException("Replay job " + jobId + " is not running");
+        }
+        run.pauseRequested = true;
+        logger.info("Pausing replay job {}", jobId);
+        return get(jobId);
+    }
+
+    /**
+     * Get a job with its progress and, while it is running on this instance, its current throughput.
+     *
+     * @param jobId the ID of the job
+     * @return the job, or empty if it does not exist
+     */
+    public Optional<ReplayJob> get(UUID jobId) {
+        Run run = runs.get(jobId);
+        return load(jobId).map(job -> run != null ? job.withThroughput(run.messagesPerSecond()) : job);
+    }
+
+    /**
+     * How long a run holds its job: the configured lease plus the time to publish and acknowledge a page
+     * at the job's rate, so a slow job renews its lease before it expires.
+     */
+    private Duration leaseDuration(int ratePerSecond) {
+        return Duration.ofMillis(leaseMs + pageSize * 1000L / Math.max(1, ratePerSecond))
+                .plusSeconds(SEND_TIMEOUT);
+    }
+
+    private Optional<ReplayJob> load(UUID jobId) {
+        return jdbcTemplate.query(SELECT_JOB_SQL, this::mapJob, jobId).stream().findFirst();
+    }
+
+    private void submit(ReplayJob job) {
+        Run run = new Run();
+        if (runs.putIfAbsent(job.jobId(), run) != null) {
+            throw new IllegalStateException("Replay job " + job.jobId() + " is already running");
+        }
+        executor.execute(() -> {
+            try {
+                replay(job, run);
+            } finally {
+                runs.remove(job.jobId());
+            }
+        });
+    }
+
+    /**
+     * Publish the messages of a job page by page, checkpointing after each page, until the range is
+     * exhausted, a pause is requested or a page fails.
+     */
+    private void replay(ReplayJob job, Run run) {
+        TokenBucket rateLimiter = new TokenBucket(job.ratePerSecond(), Math.max(1, job.ratePerSecond() / 10));
+        LocalDateTime lastCreatedDate = job.lastCreatedDate() != null ? job.lastCreatedDate() : job.from();
+        UUID lastMessageId = job.lastMessageId() != null ? job.lastMessageId() : NIL_UUID;
+        try {
+            while (true) {
+                awaitIdleRelay(run);
+                if (run.pauseRequested) {
+                    updateStatus(job.jobId(), ReplayJob.Status.PAUSED, null);
+                    logger.info("Paused replay job {} after {} messages", job.jobId(), run.published.get());
+                    return;
+                }
+                if (!renewLease(job)) {
+                    logger.warn("Replay job {} was taken over by another instance, stopping", job.jobId());
+                    return;
+                }
+                Page page = publishPage(job, lastCreatedDate, lastMessageId, rateLimiter);
+                if (page.count() > 0) {
+                    lastCreatedDate = page.lastCreatedDate();
+                    lastMessageId = page.lastMessageId();
+                    if (jdbcTemplate.update(CHECKPOINT_SQL, Timestamp.valueOf(lastCreatedDate), lastMessageId,
+                            page.count(), Timestamp.valueOf(LocalDateTime.now()), job.jobId(), instanceId) == 0) {
+                        logger.warn("Replay job {} was taken over by another instance, stopping", job.jobId());
+                        return;
+                    }
+                    run.published.addAndGet(page.count());
+                    publishedCounter.increment(page.count());
+                }
+                if (page.count() < pageSize) {
+                    updateStatus(job.jobId(), ReplayJob.Status.COMPLETED, null);
+                    logger.info("Completed replay job {}: {} messages in this run at {} messages/s",
+                            job.jobId(), run.published.get(), String.format("%.1f", run.messagesPerSecond()));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            updateStatus(job.jobId(), ReplayJob.Status.PAUSED, null);
+            logger.info("Replay job {} interrupted, it can be resumed", job.jobId());
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                updateStatus(job.jobId(), ReplayJob.Status.PAUSED, null);
+                logger.info("Replay job {} interrupted, it can be resumed", job.jobId());
+                return;
+            }
+            logger.error("Replay job {} failed, it can be resumed", job.jobId(), e);
+            String error = String.valueOf(e.getMessage());
+            updateStatus(job.jobId(), ReplayJob.Status.FAILED,
+                    error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error);
+        }
+    }
+
+    private boolean renewLease(ReplayJob job) {
+        return jdbcTemplate.update(RENEW_SQL,
+                Timestamp.valueOf(LocalDateTime.now().plus(leaseDuration(job.ratePerSecond()))),
+                job.jobId(), instanceId, ReplayJob.Status.RUNNING.name()) > 0;
+    }
+
+    /**
+     * Wait while the outbox relay is active, so replays only use the capacity the relay leaves.
+     */
+    private void awaitIdleRelay(Run run) throws InterruptedException {
+        while (outboxScheduler.isRelaying() && !run.pauseRequested) {
+            Thread.sleep(RELAY_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Publish the page of messages after the given key and wait for the acknowledgements.
+     * The page is read in full first, so the rate limit never holds the read transaction and its connection open.
+     *
+     * @return the number of messages published and the key of the last one
+     * @throws IllegalStateException if any message could not be sent
+     * @throws InterruptedException if interrupted while waiting for the rate limit
+     */
+    private Page publishPage(ReplayJob job, LocalDateTime lastCreatedDate, UUID lastMessageId,
+                             TokenBucket rateLimiter) throws InterruptedException {
+        List<StoredMessage> messages = readPage(job, lastCreatedDate, lastMessageId);
+        List<CompletableFuture<SendResult<String, Object>>> futures = new ArrayList<>(messages.size());
+        for (StoredMessage message : messages) {
+            rateLimiter.acquire();
+            futures.add(send(job, message.message()));
+        }
+        int failed = 0;
+        for (CompletableFuture<SendResult<String, Object>> future : futures) {
+            try {
+                future.get(SEND_TIMEOUT, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new IllegalStateException("Failed to send " + failed + " of " + futures.size()
+                    + " messages of the page after " + lastCreatedDate + " / " + lastMessageId);
+        }
+        if (messages.isEmpty()) {
+            return new Page(0, null, null);
+        }
+        StoredMessage last = messages.get(messages.size() - 1);
+        return new Page(messages.size(), last.createdDate(), last.messageId());
+    }
+
+    /**
+     * Read the page of messages after the given key in a read-only transaction.
+     */
+    private List<StoredMessage> readPage(ReplayJob job, LocalDateTime lastCreatedDate, UUID lastMessageId) {
+        return readOnlyTransactionTemplate.execute(status -> queryJdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(SELECT_PAGE_SQL);
+            statement.setFetchSize(fetchSize);
+            statement.setString(1, job.region());
+            statement.setTimestamp(2, Timestamp.valueOf(job.to()));
+            statement.setTimestamp(3, Timestamp.valueOf(lastCreatedDate));
+            statement.setObject(4, lastMessageId);
+            statement.setInt(5, pageSize);
+            return statement;
+        }, (rs, rowNum) -> {
+            UUID messageId = rs.getObject(1, UUID.class);
+            LocalDateTime createdDate = rs.getTimestamp(2).toLocalDateTime();
+            String format = rs.getString(3);
+            return new StoredMessage(messageId, createdDate, toKafkaMessage(messageId, job.region(), createdDate,
+                    format != null ? Message.Format.valueOf(format) : Message.Format.RAW, rs.getBytes(4)));
+        }));
+    }
+
+    private CompletableFuture<SendResult<String, Object>> send(ReplayJob job, KafkaMessage message) {
+        ProducerRecord<String, Object> record = new ProducerRecord<>(job.targetTopic(),
+                partitioner.keyFor(message.getId(), message.getRegion()), message);
+        record.headers().add(REPLAY_JOB_HEADER, job.jobId().toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            return kafkaTemplate.send(record);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Turn a stored message into the message to publish.
+     * Outbox messages are stored as the JSON of the original KafkaMessage and are published as they were;
+     * messages stored with their raw content are wrapped in a new KafkaMessage with their original ID.
+     *
+     * @throws IllegalStateException if an outbox message cannot be read
+     */
+    KafkaMessage toKafkaMessage(UUID messageId, String region, LocalDateTime createdDate, Message.Format format,
+                                byte[] bytes) {
+        if (format == Message.Format.OUTBOX) {
+            try {
+                return objectMapper.readValue(bytes, KafkaMessage.class);
+            } catch (IOException e) {
+                throw new IllegalStateException("Stored outbox message " + messageId + " cannot be read", e);
+            }
+        }
+        return new KafkaMessage(messageId.toString(), new String(bytes, StandardCharsets.UTF_8), region, createdDate);
+    }
+
+    /**
+     * Set the status of a job this instance owns and release its lease.
+     */
+    private void updateStatus(UUID jobId, ReplayJob.Status status, String error) {
+        jdbcTemplate.update(UPDATE_STATUS_SQL, status.name(), error, Timestamp.valueOf(LocalDateTime.now()), jobId,
+                instanceId);
+    }
+
+    private ReplayJob mapJob(ResultSet rs, int rowNum) throws SQLException {
+        return new ReplayJob(
+                rs.getObject("JOB_ID", UUID.class),
+                rs.getString("REGION"),
+                toLocalDateTime(rs.getTimestamp("FROM_DATE")),
+                toLocalDateTime(rs.getTimestamp("TO_DATE")),
+                rs.getString("TARGET_TOPIC"),
+                rs.getInt("RATE_PER_SECOND"),
+                ReplayJob.Status.valueOf(rs.getString("STATUS")),
+                rs.getLong("PUBLISHED"),
+                toLocalDateTime(rs.getTimestamp("LAST_CREATED_DATE")),
+                rs.getObject("LAST_MESSAGE_ID", UUID.class),
+                rs.getString("ERROR"),
+                toLocalDateTime(rs.getTimestamp("CREATED_DATE")),
+                toLocalDateTime(rs.getTimestamp("UPDATED_DATE")),
+                rs.getString("OWNER"),
+                0);
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toLocalDateTime() : null;
+    }
+
+    /**
+     * Stop the replay threads. Running jobs are paused at their last checkpoint and can be resumed.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(SEND_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * State of a job running on this instance.
+     */
+    private static class Run {
+
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong published = new AtomicLong();
+        private volatile boolean pauseRequested;
+
+        double messagesPerSecond() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            return seconds > 0 ? published.get() / seconds : 0;
+        }
+    }
+
+    /**
+     * A message of a page, with the key it was read by.
+     */
+    private record StoredMessage(UUID messageId, LocalDateTime createdDate, KafkaMessage message) {
+    }
+
+    /**
+     * Result of publishing one page: the number of messages and the key of the last one.
+     */
+    private record Page(int count, LocalDateTime lastCreatedDate, UUID lastMessageId) {
+    }
+}
@@ -0,0 +1,193 @@
+package dk.bko.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.integration.kafka.inbound.KafkaMessageDrivenChannelAdapter;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains the application in order when it shuts down, so a deploy neither resends relayed messages
+ * nor redelivers consumed ones. It stops before every other lifecycle bean and, within shutdown.drain-timeout-ms:
+ * 1. stops accepting ingest: new POSTs to the ingest endpoints are refused with 503 and readiness reports
+ *    REFUSING_TRAFFIC; then it waits for the ingest requests in flight
+ * 2. stops the outbox relay after the batches in flight, and the CDC or journal relay if active, then flushes
+ *    the regular and relay producers
+ * 3. stops the Kafka listener containers and the inbound channel adapter; each finishes the records of its
+ *    current poll and commits their offsets, and in parallel mode the records dispatched to the lanes
+ * Steps that do not finish in time are logged and cut short; the remaining work is redone after the next start.
+ */
+@Component
+public class ShutdownCoordinator implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShutdownCoordinator.class);
+
+    private final OutboxScheduler outboxScheduler;
+    private final CdcOutboxRelay cdcOutboxRelay;
+    private final JournalOutbox journalOutbox;
+    private final KafkaListenerEndpointRegistry listenerRegistry;
+    private final List<KafkaMessageDrivenChannelAdapter<?, ?>> channelAdapters;
+    private final OrderedParallelProcessor parallelProcessor;
+    private final List<KafkaTemplate<String, Object>> producers;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AtomicInteger ingestInFlight = new AtomicInteger();
+
+    @Value("${shutdown.drain-timeout-ms:25000}")
+    private long drainTimeoutMs;
+
+    private volatile boolean accepting;
+    private volatile boolean running;
+
+    @Autowired
+    public ShutdownCoordinator(OutboxScheduler outboxScheduler,
+                               ObjectProvider<CdcOutboxRelay> cdcOutboxRelay,
+                               ObjectProvider<JournalOutbox> journalOutbox,
+                               KafkaListenerEndpointRegistry listenerRegistry,
+                               ObjectProvider<KafkaMessageDrivenChannelAdapter<?, ?>> channelAdapters,
+                               ObjectProvider<OrderedParallelProcessor> parallelProcessor,
+                               KafkaTemplate<String, Object> kafkaTemplate,
+                               @Qualifier("relayKafkaTemplate") KafkaTemplate<String, Object> relayKafkaTemplate,
+                               ApplicationEventPublisher eventPublisher) {
+        this.outboxScheduler = outboxScheduler;
+        this.cdcOutboxRelay = cdcOutboxRelay.getIfAvailable();
+        this.journalOutbox = journalOutbox.getIfAvailable();
+        this.listenerRegistry = listenerRegistry;
+        this.channelAdapters = channelAdapters.orderedStream().toList();
+        this.parallelProcessor = parallelProcessor.getIfAvailable();
+        this.producers = relayKafkaTemplate == kafkaTemplate ? List.of(kafkaTemplate)
+                : List.of(kafkaTemplate, relayKafkaTemplate);
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Admit an ingest request, unless the application is shutting down.
+     * Every admitted request must be completed with {@link #ingestCompleted()}.
+     *
+     * @return true if the request is admitted
+     */
+    public boolean admitIngest() {
+        ingestInFlight.incrementAndGet();
+        if (!accepting) {
+            ingestInFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Complete an admitted ingest request.
+     */
+    public void ingestCompleted() {
+        ingestInFlight.decrementAndGet();
+    }
+
+    @Override
+    public void start() {
+        accepting = true;
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        long start = System.currentTimeMillis();
+        long deadline = start + drainTimeoutMs;
+        try {
+            stopIngest(deadline);
+            stopRelay(deadline);
+            stopConsumers(deadline);
+            logger.info("Drained in {} ms", System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while draining", e);
+        } finally {
+            running = false;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop before every other lifecycle bean, so the consumers and the web server are still running.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    private void stopIngest(long deadline) throws InterruptedException {
+        accepting = false;
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        while (ingestInFlight.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                logger.warn("{} ingest requests still in flight at the drain deadline", ingestInFlight.get());
+                return;
+            }
+            Thread.sleep(10);
+        }
+        logger.info("Stopped accepting ingest");
+    }
+
+    private void stopRelay(long deadline) throws InterruptedException {
+        if (!outboxScheduler.stopRelaying(remaining(deadline))) {
+            logger.warn("The outbox relay batch in flight did not finish before the drain deadline");
+            return;
+        }
+        if (cdcOutboxRelay != null && !cdcOutboxRelay.stopRelaying(remaining(deadline))) {
+            logger.warn("The CDC relay batch in flight did not finish before the drain deadline");
+            return;
+        }
+        if (journalOutbox != null && !journalOutbox.stopRelaying(remaining(deadline))) {
+            logger.warn("The journal relay batch in flight did not finish before the drain deadline");
+            return;
+        }
+        for (KafkaTemplate<String, Object> producer : producers) {
+            if (!producer.isTransactional()) { // a transactional producer is flushed by every commit
+                producer.flush();
+            }
+        }
+        logger.info("Stopped the outbox relay and flushed the producers");
+    }
+
+    private void stopConsumers(long deadline) throws InterruptedException {
+        if (parallelProcessor != null) {
+            parallelProcessor.drainUntil(deadline);
+        }
+        List<MessageListenerContainer> containers = listenerRegistry.getListenerContainers().stream()
+                .filter(MessageListenerContainer::isRunning)
+                .toList();
+        List<KafkaMessageDrivenChannelAdapter<?, ?>> adapters = channelAdapters.stream()
+                .filter(KafkaMessageDrivenChannelAdapter::isRunning)
+                .toList();
+        // Stop all consumers at once, each finishes its current poll
+        CountDownLatch stopped = new CountDownLatch(containers.size() + adapters.size());
+        containers.forEach(container -> container.stop(stopped::countDown));
+        adapters.forEach(adapter -> adapter.stop(stopped::countDown));
+        if (!stopped.await(remaining(deadline), TimeUnit.MILLISECONDS)) {
+            logger.warn("{} Kafka consumers did not stop before the drain deadline", stopped.getCount());
+            return;
+        }
+        logger.info("Stopped the Kafka consumers and committed their offsets");
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
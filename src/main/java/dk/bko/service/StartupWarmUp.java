@@ -0,0 +1,145 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.model.KafkaMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Warms the application up before it reports ready, so the first requests after a restart are not slow.
+ * Active with warm-up.enabled=true. Spring Boot switches the readiness state to ACCEPTING_TRAFFIC only after
+ * all application runners have completed, so /actuator/health/readiness stays OUT_OF_SERVICE meanwhile.
+ * In parallel, it:
+ * - serializes and deserializes a {@link KafkaMessage} warm-up.iterations times, which builds Jackson's
+ *   serializers and lets the JIT compile the hot paths
+ * - fills each Hikari pool up to its minimum idle size
+ * - creates the relay producer and fetches the metadata of the outbox topic
+ * Warm-up is best effort: a step that fails or does not finish within warm-up.timeout-ms is logged and skipped.
+ */
+@Component
+@ConditionalOnProperty(name = "warm-up.enabled", havingValue = "true")
+public class StartupWarmUp implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmUp.class);
+
+    private final ObjectMapper objectMapper;
+    private final List<HikariDataSource> pools;
+    private final KafkaTemplate<String, Object> relayKafkaTemplate;
+
+    @Value("${kafka.topic.message-outbox}")
+    private String messageOutboxTopic;
+
+    @Value("${warm-up.iterations:10000}")
+    private int iterations;
+
+    @Value("${warm-up.timeout-ms:30000}")
+    private long timeoutMs;
+
+    @Autowired
+    public StartupWarmUp(ObjectMapper objectMapper,
+                         ObjectProvider<DataSource> dataSources,
+                         @Qualifier("relayKafkaTemplate") KafkaTemplate<String, Object> relayKafkaTemplate) {
+        this.objectMapper = objectMapper;
+        // The pools may be wrapped, and the primary data source routes to the ingest pool
+        this.pools = dataSources.orderedStream()
+                .map(dataSource -> DataSourceUnwrapper.unwrap(dataSource, HikariDataSource.class))
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        this.relayKafkaTemplate = relayKafkaTemplate;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newCachedThreadPool(new CustomizableThreadFactory("warm-up-"));
+        try {
+            List<CompletableFuture<Void>> steps = new ArrayList<>();
+            steps.add(step("serializers", this::warmUpSerializers, executor));
+            pools.forEach(pool -> steps.add(step("pool " + pool.getPoolName(), () -> warmUpPool(pool), executor)));
+            steps.add(step("producer", this::warmUpProducer, executor));
+            try {
+                CompletableFuture.allOf(steps.toArray(new CompletableFuture[0])).get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Warm-up did not finish within {} ms, reporting ready anyway", timeoutMs);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Warm-up took {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Run a warm-up step, logging instead of failing.
+     */
+    private static CompletableFuture<Void> step(String name, WarmUpStep step, ExecutorService executor) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                step.run();
+                logger.info("Warmed up {} in {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Exception e) {
+                logger.warn("Failed to warm up {}", name, e);
+            }
+        }, executor);
+    }
+
+    private void warmUpSerializers() throws IOException {
+        KafkaMessage message = new KafkaMessage("warm-up", "warm-up");
+        for (int i = 0; i < iterations; i++) {
+            objectMapper.readValue(objectMapper.writeValueAsBytes(message), KafkaMessage.class);
+        }
+    }
+
+    /**
+     * Hold the minimum idle number of connections at once, so the pool has opened them when they are returned.
+     */
+    private void warmUpPool(HikariDataSource pool) throws SQLException {
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.max(1, pool.getMinimumIdle()); i++) {
+                connections.add(pool.getConnection());
+            }
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private void warmUpProducer() {
+        int partitions = relayKafkaTemplate.partitionsFor(messageOutboxTopic).size();
+        logger.debug("Outbox topic {} has {} partitions", messageOutboxTopic, partitions);
+    }
+
+    @FunctionalInterface
+    private interface WarmUpStep {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,50 @@
+package dk.bko.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe map with least-recently-used eviction.
+ * Once the maximum size is reached, adding an entry evicts the entry that was accessed longest ago.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BoundedLruCache<K, V> {
+
+    private final LinkedHashMap<K, V> entries;
+
+    /**
+     * Creates a cache holding at most the given number of entries.
+     *
+     * @param maxSize the maximum number of entries
+     */
+    public BoundedLruCache(int maxSize) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
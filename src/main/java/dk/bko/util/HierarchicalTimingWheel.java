@@ -0,0 +1,149 @@
+package dk.bko.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding items until their deadline.
+ * The lowest wheel has wheelSize buckets of tickMs each; every higher wheel has buckets as wide as
+ * the whole wheel below it and is created on demand, so scheduling and expiring an item are O(1)
+ * regardless of how far ahead its deadline lies. Items in a higher wheel cascade down as time advances.
+ * Items never expire before their deadline and at most one tick after it.
+ * The wheel is thread-safe; time only advances through {@link #advance(long)}.
+ *
+ * @param <T> the item type
+ */
+public class HierarchicalTimingWheel<T> {
+
+    private final Wheel<T> root;
+    private int size;
+
+    /**
+     * Creates a timing wheel.
+     *
+     * @param tickMs the width of a bucket of the lowest wheel in milliseconds
+     * @param wheelSize the number of buckets per wheel
+     * @param startMs the current time in milliseconds
+     */
+    public HierarchicalTimingWheel(long tickMs, int wheelSize, long startMs) {
+        if (tickMs <= 0 || wheelSize <= 1) {
+            throw new IllegalArgumentException("tickMs must be positive and wheelSize greater than 1");
+        }
+        this.root = new Wheel<>(tickMs, wheelSize, startMs - startMs % tickMs);
+    }
+
+    /**
+     * Schedule an item.
+     *
+     * @param item the item
+     * @param deadlineMs the time in milliseconds at which the item expires
+     * @return true if the item was scheduled, false if its deadline has already passed
+     */
+    public synchronized boolean schedule(T item, long deadlineMs) {
+        if (!root.add(new Entry<>(item, ceilToTick(deadlineMs)))) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Advance the clock of the wheel and collect the items whose deadline has been reached.
+     *
+     * @param nowMs the current time in milliseconds
+     * @return the expired items, in deadline order per tick
+     */
+    public synchronized List<T> advance(long nowMs) {
+        List<T> expired = new ArrayList<>();
+        List<Entry<T>> drained = new ArrayList<>();
+        while (root.currentTime + root.tickMs <= nowMs) {
+            root.tickTo(root.currentTime + root.tickMs, drained);
+            for (Entry<T> entry : drained) {
+                if (!root.add(entry)) {
+                    expired.add(entry.item);
+                }
+            }
+            drained.clear();
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * @return the number of scheduled items
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Deadlines are rounded up to the next tick, so an item never expires early.
+     */
+    private long ceilToTick(long deadlineMs) {
+        long remainder = deadlineMs % root.tickMs;
+        return remainder == 0 ? deadlineMs : deadlineMs - remainder + root.tickMs;
+    }
+
+    private record Entry<T>(T item, long deadline) {
+    }
+
+    private static final class Wheel<T> {
+
+        private final long tickMs;
+        private final int wheelSize;
+        private final long interval;
+        private final ArrayDeque<Entry<T>>[] buckets;
+        private long currentTime;
+        private Wheel<T> overflow;
+
+        @SuppressWarnings("unchecked")
+        Wheel(long tickMs, int wheelSize, long currentTime) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.interval = tickMs * wheelSize;
+            this.currentTime = currentTime;
+            this.buckets = new ArrayDeque[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new ArrayDeque<>();
+            }
+        }
+
+        /**
+         * Add an entry to this wheel or a higher one.
+         *
+         * @return false if the entry has expired
+         */
+        boolean add(Entry<T> entry) {
+            if (entry.deadline <= currentTime) {
+                return false;
+            }
+            if (entry.deadline < currentTime + interval) {
+                buckets[(int) ((entry.deadline / tickMs) % wheelSize)].add(entry);
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Wheel<>(interval, wheelSize, currentTime - currentTime % interval);
+            }
+            return overflow.add(entry);
+        }
+
+        /**
+         * Move the clock of this wheel and the higher wheels to the given time,
+         * draining the bucket that the time enters.
+         */
+        void tickTo(long timeMs, List<Entry<T>> drained) {
+            long newTime = timeMs - timeMs % tickMs;
+            if (newTime == currentTime) {
+                return;
+            }
+            currentTime = newTime;
+            ArrayDeque<Entry<T>> bucket = buckets[(int) ((newTime / tickMs) % wheelSize)];
+            drained.addAll(bucket);
+            bucket.clear();
+            if (overflow != null) {
+                overflow.tickTo(timeMs, drained);
+            }
+        }
+    }
+}
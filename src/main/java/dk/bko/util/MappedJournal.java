@@ -0,0 +1,286 @@
+package dk.bko.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of records in memory-mapped segment files, with a single persisted read cursor.
+ * Each record is framed as [length][CRC32C][data]; the length is written last, so a record torn by a crash
+ * reads as the end of the journal. On open, the last segment is scanned and everything after its last
+ * intact record is cleared. Positions are global: segment n covers [n * segmentSize, (n + 1) * segmentSize).
+ * A record that does not fit in the rest of a segment starts the next one.
+ * Appends are thread-safe. {@link #sync(long)} makes appends durable with one fsync for all appends
+ * made while the previous fsync was running (group commit). Reads and acknowledgements are meant for
+ * a single consumer; acknowledging a position persists the cursor and deletes the segments before it.
+ */
+public class MappedJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int HEADER_SIZE = 8;
+    private static final long CURSOR_CHECK = 0x6a6f75726e616cL;
+
+    /**
+     * A record read from the journal.
+     *
+     * @param position the position of the record
+     * @param next the position after the record; acknowledging it consumes the record
+     * @param data the record
+     */
+    public record Entry(long position, long next, byte[] data) {
+    }
+
+    private record Segment(long index, Path path, MappedByteBuffer buffer) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final FileChannel cursorChannel;
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object syncLock = new Object();
+    private volatile long writePosition;
+    private volatile long durablePosition;
+    private volatile long cursor;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and recovers its write position and cursor.
+     *
+     * @param directory the directory of the segment files and the cursor file
+     * @param segmentSize the size of a segment file in bytes
+     * @param fsync whether {@link #sync(long)} and {@link #acknowledge(long)} force writes to the storage device
+     * @throws IOException if the journal cannot be opened
+     */
+    public MappedJournal(Path directory, int segmentSize, boolean fsync) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size must be larger than " + HEADER_SIZE);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.cursorChannel = FileChannel.open(directory.resolve(CURSOR_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).toList()) {
+                String name = path.getFileName().toString();
+                long index = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(index, new Segment(index, path, map(path)));
+            }
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long savedCursor = readCursor();
+        if (segments.isEmpty()) {
+            segment(savedCursor >= 0 ? savedCursor / segmentSize : 0);
+            cursor = Math.max(savedCursor, 0);
+            writePosition = cursor;
+        } else {
+            long first = segments.firstKey() * (long) segmentSize;
+            // Without a valid cursor every remaining record is read again
+            cursor = savedCursor >= first ? savedCursor : first;
+            Segment last = segments.lastEntry().getValue();
+            long start = last.index() * (long) segmentSize;
+            int offset = (int) (Math.max(start, Math.min(cursor, start + segmentSize)) - start);
+            while (readFrame(last.buffer(), offset) != null) {
+                offset += HEADER_SIZE + last.buffer().getInt(offset);
+            }
+            // Clear a torn record and whatever follows it, so it cannot be mistaken for a record later
+            byte[] zeros = new byte[Math.min(segmentSize, 65536)];
+            for (int i = offset; i < segmentSize; i += zeros.length) {
+                last.buffer().put(i, zeros, 0, Math.min(zeros.length, segmentSize - i));
+            }
+            writePosition = Math.max(start + offset, cursor);
+        }
+        durablePosition = writePosition;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param data the record
+     * @return the position after the record, to pass to {@link #sync(long)}
+     * @throws IllegalArgumentException if the record does not fit in a segment
+     */
+    public synchronized long append(byte[] data) {
+        int frameSize = HEADER_SIZE + data.length;
+        if (data.length == 0 || frameSize > segmentSize) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes does not fit in a journal segment");
+        }
+        long position = writePosition;
+        if (position % segmentSize + frameSize > segmentSize) {
+            position = (position / segmentSize + 1) * segmentSize;
+        }
+        MappedByteBuffer buffer = segment(position / segmentSize).buffer();
+        int offset = (int) (position % segmentSize);
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        buffer.put(offset + HEADER_SIZE, data);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, data.length);
+        writePosition = position + frameSize;
+        return writePosition;
+    }
+
+    /**
+     * Make the records up to a position durable. Concurrent callers share one fsync.
+     *
+     * @param position a position returned by {@link #append(byte[])}
+     */
+    public void sync(long position) {
+        if (!fsync || durablePosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+            long from = durablePosition;
+            long to = writePosition;
+            for (Segment segment : segments.subMap(from / segmentSize, true, (to - 1) / segmentSize, true).values()) {
+                long start = segment.index() * (long) segmentSize;
+                int begin = (int) (Math.max(from, start) - start);
+                int end = (int) (Math.min(to, start + segmentSize) - start);
+                segment.buffer().force(begin, end - begin);
+            }
+            durablePosition = to;
+        }
+    }
+
+    /**
+     * Read records from a position, without consuming them.
+     *
+     * @param from the position to read from, usually the cursor or the next position of the last entry read
+     * @param maxRecords the maximum number of records to read
+     * @return the records, in append order; empty if there are none after the position
+     */
+    public List<Entry> read(long from, int maxRecords) {
+        List<Entry> entries = new ArrayList<>();
+        long position = from;
+        long end = writePosition;
+        while (entries.size() < maxRecords && position < end) {
+            Segment segment = segments.get(position / segmentSize);
+            int offset = (int) (position % segmentSize);
+            byte[] data = segment != null ? readFrame(segment.buffer(), offset) : null;
+            if (data == null) {
+                // The rest of the segment is unused, the next record starts the next segment
+                position = (position / segmentSize + 1) * segmentSize;
+                continue;
+            }
+            long next = position + HEADER_SIZE + data.length;
+            entries.add(new Entry(position, next, data));
+            position = next;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the position of the first record not yet acknowledged
+     */
+    public long cursor() {
+        return cursor;
+    }
+
+    /**
+     * Consume the records before a position: persist it as the cursor and delete the segments before it.
+     *
+     * @param position the next position of the last consumed entry
+     */
+    public void acknowledge(long position) {
+        ByteBuffer value = ByteBuffer.allocate(16).putLong(position).putLong(position ^ CURSOR_CHECK).flip();
+        try {
+            cursorChannel.write(value, 0);
+            if (fsync) {
+                cursorChannel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to persist journal cursor", e);
+        }
+        cursor = position;
+        long current = position / segmentSize;
+        for (Map.Entry<Long, Segment> consumed : segments.headMap(current, false).entrySet()) {
+            segments.remove(consumed.getKey());
+            try {
+                Files.deleteIfExists(consumed.getValue().path());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to delete journal segment " + consumed.getValue().path(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync(writePosition);
+        cursorChannel.close();
+    }
+
+    /**
+     * Read the record at an offset of a segment.
+     *
+     * @return the record, or null if there is no intact record at the offset
+     */
+    private byte[] readFrame(MappedByteBuffer buffer, int offset) {
+        if (offset + HEADER_SIZE > segmentSize) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > segmentSize) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        buffer.get(offset + HEADER_SIZE, data);
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? data : null;
+    }
+
+    private long readCursor() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(16);
+        if (cursorChannel.read(value, 0) < 16) {
+            return -1;
+        }
+        value.flip();
+        long position = value.getLong();
+        return (position ^ CURSOR_CHECK) == value.getLong() ? position : -1;
+    }
+
+    private Segment segment(long index) {
+        return segments.computeIfAbsent(index, i -> {
+            Path path = directory.resolve(String.format("%020d%s", i, SEGMENT_SUFFIX));
+            try {
+                return new Segment(i, path, map(path));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to create journal segment " + path, e);
+            }
+        });
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dk.bko.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small thread-safe bounded FIFO buffer over a fixed array.
+ * Offering to a full buffer either overwrites the oldest element or is refused, at the caller's choice,
+ * so a producer never blocks on a slow consumer.
+ *
+ * @param <T> the element type
+ */
+public class RingBuffer<T> {
+
+    private final Object[] elements;
+    private int head;
+    private int size;
+
+    /**
+     * Creates an empty buffer holding at most the given number of elements.
+     *
+     * @param capacity the maximum number of elements
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.elements = new Object[capacity];
+    }
+
+    /**
+     * Add an element.
+     *
+     * @param element the element
+     * @param overwrite whether to drop the oldest element if the buffer is full
+     * @return true if the element was added without dropping one; false if the buffer was full and either
+     *         the oldest element was dropped or, without overwrite, the element was not added
+     */
+    public synchronized boolean offer(T element, boolean overwrite) {
+        if (size < elements.length) {
+            elements[(head + size++) % elements.length] = element;
+            return true;
+        }
+        if (overwrite) {
+            elements[head] = element;
+            head = (head + 1) % elements.length;
+        }
+        return false;
+    }
+
+    /**
+     * Remove all elements.
+     *
+     * @return the elements, oldest first
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> drain() {
+        List<T> drained = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % elements.length;
+            drained.add((T) elements[index]);
+            elements[index] = null;
+        }
+        head = 0;
+        size = 0;
+        return drained;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,85 @@
+package dk.bko.util;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate-limited info logging for per-message log lines.
+ * At most the configured number of lines are logged per second; the others are dropped before their message
+ * is formatted, and the number dropped is logged once the next second starts.
+ * The limit is per instance, so use one instance per log statement: a frequent line sharing an instance
+ * with a rare one would use up the limit and hide the rare line.
+ * With a rate of 0 every line is logged, like a plain logger.
+ * The limit is approximate under contention: a few extra lines may pass right after a second starts.
+ * There are no varargs methods, so a dropped line allocates nothing beyond the boxing of its arguments.
+ */
+public class SampledLogger {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Logger logger;
+    private final int perSecond;
+    private final LongSupplier nanoClock;
+    private final AtomicLong window = new AtomicLong();
+    private final AtomicInteger logged = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Creates a sampled logger.
+     *
+     * @param logger the logger to log to
+     * @param perSecond the maximum number of lines per second, 0 for no limit
+     */
+    public SampledLogger(Logger logger, int perSecond) {
+        this(logger, perSecond, System::nanoTime);
+    }
+
+    SampledLogger(Logger logger, int perSecond, LongSupplier nanoClock) {
+        this.logger = logger;
+        this.perSecond = perSecond;
+        this.nanoClock = nanoClock;
+        this.window.set(nanoClock.getAsLong() / NANOS_PER_SECOND);
+    }
+
+    public void info(String format, Object arg) {
+        if (logger.isInfoEnabled() && sample()) {
+            logger.info(format, arg);
+        }
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        if (logger.isInfoEnabled() && sample()) {
+            logger.info(format, arg1, arg2);
+        }
+    }
+
+    public void info(String format, Object arg1, Object arg2, Object arg3) {
+        if (logger.isInfoEnabled() && sample()) {
+            logger.info(format, arg1, arg2, arg3);
+        }
+    }
+
+    private boolean sample() {
+        if (perSecond <= 0) {
+            return true;
+        }
+        long second = nanoClock.getAsLong() / NANOS_PER_SECOND;
+        long current = window.get();
+        if (second != current && window.compareAndSet(current, second)) {
+            logged.set(0);
+            long dropped = suppressed.getAndSet(0);
+            if (dropped > 0) {
+                logger.info("Sampling dropped {} log lines, logging at most {} per second", dropped, perSecond);
+            }
+        }
+        if (logged.incrementAndGet() <= perSecond) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+}
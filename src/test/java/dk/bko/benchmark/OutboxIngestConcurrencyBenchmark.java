@@ -0,0 +1,125 @@
+package dk.bko.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.jdbc.ConnectionLimitingDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.condition.JRE;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Benchmark comparing blocking outbox ingest on a Tomcat-sized platform thread pool
+ * with the same ingest on virtual threads behind a {@link ConnectionLimitingDataSource}.
+ * Each request waits on simulated client I/O and then runs a short insert transaction
+ * with a simulated database round trip.
+ * Run with: mvn -Pvirtual-threads test -Dbenchmark=true -Dtest=OutboxIngestConcurrencyBenchmark
+ */
+@EnabledForJreRange(min = JRE.JAVA_21)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class OutboxIngestConcurrencyBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxIngestConcurrencyBenchmark.class);
+
+    private static final int REQUESTS = 10_000;
+    private static final int PLATFORM_WORKERS = 200;
+    private static final int POOL_SIZE = 20;
+    private static final long CLIENT_IO_MILLIS = 200;
+    private static final long DB_ROUND_TRIP_MILLIS = 2;
+
+    private HikariDataSource hikari;
+    private ConnectionLimitingDataSource dataSource;
+    private TransactionTemplate transactionTemplate;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        hikari = new HikariDataSource();
+        hikari.setJdbcUrl("jdbc:h2:mem:ingest-benchmark;DB_CLOSE_DELAY=-1");
+        hikari.setMaximumPoolSize(POOL_SIZE);
+        dataSource = new ConnectionLimitingDataSource(hikari, POOL_SIZE, 30_000);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS OUTBOX (ID VARCHAR(36) PRIMARY KEY, CONTENT VARCHAR(255))");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP TABLE OUTBOX");
+        hikari.close();
+    }
+
+    @Test
+    void virtualThreadsIncreaseBlockingIngestThroughput() throws Exception {
+        // Warm up both paths before measuring
+        ExecutorService platform = Executors.newFixedThreadPool(PLATFORM_WORKERS);
+        try {
+            run(platform, REQUESTS / 10);
+            run(new VirtualThreadTaskExecutor("ingest-"), REQUESTS / 10);
+
+            double platformThroughput = run(platform, REQUESTS);
+            double virtualThroughput = run(new VirtualThreadTaskExecutor("ingest-"), REQUESTS);
+
+            logger.info("Platform threads ({} workers): {} req/s", PLATFORM_WORKERS, Math.round(platformThroughput));
+            logger.info("Virtual threads ({} connections): {} req/s", POOL_SIZE, Math.round(virtualThroughput));
+            logger.info("Speedup: {}x", String.format("%.1f", virtualThroughput / platformThroughput));
+
+            assertThat(virtualThroughput).isGreaterThan(platformThroughput);
+        } finally {
+            platform.shutdownNow();
+        }
+    }
+
+    private double run(Executor executor, int requests) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(requests);
+        AtomicInteger maxActive = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(() -> {
+                try {
+                    ingest(maxActive);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        assertThat(maxActive.get()).isLessThanOrEqualTo(POOL_SIZE);
+        return requests / (elapsed / 1_000_000_000.0);
+    }
+
+    private void ingest(AtomicInteger maxActive) {
+        sleep(CLIENT_IO_MILLIS);
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("INSERT INTO OUTBOX (ID, CONTENT) VALUES (?, ?)", UUID.randomUUID().toString(), "payload");
+            maxActive.accumulateAndGet(dataSource.getActiveConnections(), Math::max);
+            sleep(DB_ROUND_TRIP_MILLIS);
+        });
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
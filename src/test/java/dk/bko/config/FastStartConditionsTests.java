@@ -0,0 +1,70 @@
+package dk.bko.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.generate.ClassNameGenerator;
+import org.springframework.aot.generate.DefaultGenerationContext;
+import org.springframework.aot.generate.GeneratedFiles;
+import org.springframework.aot.generate.InMemoryGeneratedFiles;
+import org.springframework.beans.factory.aot.BeanFactoryInitializationAotContribution;
+import org.springframework.beans.factory.aot.BeanFactoryInitializationCode;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.javapoet.ClassName;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.StringReader;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link FastStartConditions}, {@link FastStartConditionsRecorder} and what they detect.
+ */
+public class FastStartConditionsTests {
+
+    @Test
+    void recordsTheConditionPropertiesInTheJar() throws Exception {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton(ConfigurableApplicationContext.ENVIRONMENT_BEAN_NAME, new MockEnvironment()
+                .withProperty("outbox.relay.mode", "cdc")
+                .withProperty("warm-up.enabled", "true")
+                .withProperty("server.port", "8080"));
+        InMemoryGeneratedFiles generatedFiles = new InMemoryGeneratedFiles();
+        DefaultGenerationContext generationContext = new DefaultGenerationContext(
+                new ClassNameGenerator(ClassName.get("dk.bko", "Application")), generatedFiles);
+
+        BeanFactoryInitializationAotContribution contribution =
+                new FastStartConditionsRecorder().processAheadOfTime(beanFactory);
+        contribution.applyTo(generationContext, mock(BeanFactoryInitializationCode.class));
+
+        Properties recorded = new Properties();
+        recorded.load(new StringReader(generatedFiles.getGeneratedFileContent(
+                GeneratedFiles.Kind.RESOURCE, FastStartConditions.RESOURCE)));
+        assertThat(recorded).containsOnlyKeys("outbox.relay.mode", "warm-up.enabled");
+        assertThat(recorded.getProperty("outbox.relay.mode")).isEqualTo("cdc");
+    }
+
+    @Test
+    void acceptsTheValuesOfTheBuild() {
+        MockEnvironment environment = new MockEnvironment().withProperty("region-view.enabled", "true");
+        Properties recorded = FastStartConditions.snapshot(environment);
+
+        assertThat(FastStartConditions.mismatches(recorded,
+                new MockEnvironment().withProperty("region-view.enabled", "TRUE"))).isEmpty();
+    }
+
+    @Test
+    void reportsEveryPropertyThatDiffersFromTheBuild() {
+        Properties recorded = FastStartConditions.snapshot(new MockEnvironment()
+                .withProperty("outbox.store", "journal")
+                .withProperty("consumer.processing.mode", "batch"));
+
+        assertThat(FastStartConditions.mismatches(recorded, new MockEnvironment()
+                .withProperty("consumer.processing.mode", "parallel")
+                .withProperty("outbox.relay.mode", "cdc")))
+                .containsExactly("outbox.store is (not set) but the build used 'journal'",
+                        "outbox.relay.mode is 'cdc' but the build used (not set)",
+                        "consumer.processing.mode is 'parallel' but the build used 'batch'");
+    }
+}
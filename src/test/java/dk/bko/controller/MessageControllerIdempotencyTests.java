@@ -0,0 +1,111 @@
+package dk.bko.controller;
+
+import dk.bko.entity.Message;
+import dk.bko.service.IdempotencyKeys;
+import dk.bko.service.JdbcOutboxService;
+import dk.bko.service.MessageLiveTail;
+import dk.bko.service.MessageService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests for the Idempotency-Key handling of {@link MessageController#sendMessageThroughOutbox}.
+ */
+public class MessageControllerIdempotencyTests {
+
+    private MessageService messageService;
+    private JdbcOutboxService outboxService;
+    private IdempotencyKeys idempotencyKeys;
+    private MockMvc mockMvc;
+
+    private final Message original = new Message(UUID.randomUUID(), "eu", LocalDateTime.now(),
+            "first".getBytes(StandardCharsets.UTF_8));
+
+    @BeforeEach
+    void setUp() {
+        messageService = mock(MessageService.class);
+        outboxService = mock(JdbcOutboxService.class);
+        idempotencyKeys = mock(IdempotencyKeys.class);
+        mockMvc = MockMvcBuilders.standaloneSetup(new MessageController(messageService, outboxService,
+                idempotencyKeys, mock(MessageLiveTail.class))).build();
+    }
+
+    @Test
+    void replaysTheOriginalMessageOfAKnownKey() throws Exception {
+        when(idempotencyKeys.find("key")).thenReturn(Optional.of(original.getMessageId()));
+        when(messageService.getMessage(original.getMessageId())).thenReturn(Optional.of(original));
+
+        mockMvc.perform(outbox("key"))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.messageId").value(original.getMessageId().toString()));
+        verify(outboxService, never()).sendMessage(anyString(), anyString(), anyInt(), any(), any());
+    }
+
+    @Test
+    void replaysTheOriginalMessageWhenTheKeyWasStoredConcurrently() throws Exception {
+        when(idempotencyKeys.find("key")).thenReturn(Optional.empty());
+        when(outboxService.sendMessage(eq("content"), eq("eu"), anyInt(), any(), eq("key")))
+                .thenThrow(new DuplicateKeyException("INT_IDEMPOTENCY_KEY"));
+        when(idempotencyKeys.query("key")).thenReturn(Optional.of(original.getMessageId()));
+        when(messageService.getMessage(original.getMessageId())).thenReturn(Optional.of(original));
+
+        mockMvc.perform(outbox("key"))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.messageId").value(original.getMessageId().toString()));
+    }
+
+    @Test
+    void replaysAJournalMessageFromItsKey() throws Exception {
+        when(idempotencyKeys.find("key")).thenReturn(Optional.of(original.getMessageId()));
+        when(messageService.getMessage(original.getMessageId())).thenReturn(Optional.empty());
+        when(idempotencyKeys.response("key")).thenReturn(Optional.of(original));
+
+        mockMvc.perform(outbox("key"))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.messageId").value(original.getMessageId().toString()));
+    }
+
+    @Test
+    void conflictsWhenTheOriginalMessageIsGone() throws Exception {
+        when(idempotencyKeys.find("key")).thenReturn(Optional.of(original.getMessageId()));
+        when(messageService.getMessage(original.getMessageId())).thenReturn(Optional.empty());
+        when(idempotencyKeys.response("key")).thenReturn(Optional.empty());
+
+        mockMvc.perform(outbox("key"))
+                .andExpect(status().isConflict())
+                .andExpect(header().string("Idempotent-Replayed", "true"));
+    }
+
+    private static MockHttpServletRequestBuilder outbox(String idempotencyKey) {
+        return post("/api/messages/outbox")
+                .header("Idempotency-Key", idempotencyKey)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"region\":\"eu\",\"content\":\"content\"}");
+    }
+}
@@ -0,0 +1,82 @@
+package dk.bko.jdbc;
+
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.config.VirtualThreadConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.jdbc.DataSourceUnwrapper;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link ConnectionLimitingDataSource} and the post processor wrapping the Hikari pools in it.
+ */
+public class ConnectionLimitingDataSourceTests {
+
+    private final List<HikariDataSource> pools = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        pools.forEach(HikariDataSource::close);
+    }
+
+    @Test
+    void limitsTheConnectionsCheckedOutAtOnce() throws Exception {
+        ConnectionLimitingDataSource dataSource = new ConnectionLimitingDataSource(pool("ingest", 2), 1, 50);
+
+        try (Connection connection = dataSource.getConnection()) {
+            assertThat(dataSource.getActiveConnections()).isEqualTo(1);
+            assertThatThrownBy(dataSource::getConnection).isInstanceOf(SQLTransientConnectionException.class);
+        }
+
+        assertThat(dataSource.getActiveConnections()).isZero();
+        dataSource.getConnection().close();
+    }
+
+    @Test
+    void wrapsEachPoolWithItsOwnPermits() {
+        BeanPostProcessor postProcessor = VirtualThreadConfig.connectionLimitingDataSourcePostProcessor(
+                new MockEnvironment().withProperty("virtual-threads.jdbc.relay.max-concurrent-connections", "2"));
+        HikariDataSource ingest = pool("ingest", 10);
+        HikariDataSource relay = pool("relay", 3);
+
+        Object wrappedIngest = postProcessor.postProcessAfterInitialization(ingest, "ingestDataSource");
+        Object wrappedRelay = postProcessor.postProcessAfterInitialization(relay, "relayDataSource");
+
+        assertThat(wrappedIngest).isInstanceOfSatisfying(ConnectionLimitingDataSource.class,
+                dataSource -> assertThat(dataSource.getMaxConnections()).isEqualTo(10));
+        assertThat(wrappedRelay).isInstanceOfSatisfying(ConnectionLimitingDataSource.class,
+                dataSource -> assertThat(dataSource.getMaxConnections()).isEqualTo(2));
+        assertThat(postProcessor.postProcessAfterInitialization("other", "other")).isEqualTo("other");
+    }
+
+    @Test
+    void exposesAndClosesThePool() throws Exception {
+        HikariDataSource pool = pool("query", 2);
+        ConnectionLimitingDataSource dataSource = new ConnectionLimitingDataSource(pool, 2, 50);
+        dataSource.getConnection().close();
+
+        assertThat(DataSourceUnwrapper.unwrap(dataSource, HikariDataSource.class)).isSameAs(pool);
+
+        dataSource.close();
+        assertThat(pool.isClosed()).isTrue();
+    }
+
+    private HikariDataSource pool(String poolName, int maximumPoolSize) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setJdbcUrl("jdbc:h2:mem:limit-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        pool.setPoolName(poolName);
+        pool.setMaximumPoolSize(maximumPoolSize);
+        pools.add(pool);
+        return pool;
+    }
+}
@@ -0,0 +1,48 @@
+package dk.bko.jdbc;
+
+import liquibase.integration.spring.SpringLiquibase;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.mock.env.MockEnvironment;
+
+import javax.sql.DataSource;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for skipping unchanged changelogs with {@link LiquibaseFingerprintPostProcessor}, with H2.
+ */
+public class LiquibaseFingerprintPostProcessorTests {
+
+    @Test
+    void skipsLiquibaseOnceTheChangelogHasBeenApplied() throws Exception {
+        DataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:fingerprint-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        LiquibaseFingerprintPostProcessor postProcessor = new LiquibaseFingerprintPostProcessor(new MockEnvironment());
+
+        migrate(postProcessor, dataSource);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM DATABASECHANGELOG", Integer.class)).isPositive();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_CHANGELOG_FINGERPRINT", Integer.class))
+                .isOne();
+
+        // Without the skip, Liquibase would apply every changeset again and fail on the existing tables
+        jdbcTemplate.update("DELETE FROM DATABASECHANGELOG");
+        migrate(postProcessor, dataSource);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM DATABASECHANGELOG", Integer.class)).isZero();
+    }
+
+    private static void migrate(LiquibaseFingerprintPostProcessor postProcessor, DataSource dataSource)
+            throws Exception {
+        SpringLiquibase liquibase = new SpringLiquibase();
+        liquibase.setDataSource(dataSource);
+        liquibase.setChangeLog("classpath:db/changelog/db.changelog-master.xml");
+        liquibase.setResourceLoader(new DefaultResourceLoader());
+        postProcessor.postProcessBeforeInitialization(liquibase, "liquibase");
+        liquibase.afterPropertiesSet();
+        postProcessor.postProcessAfterInitialization(liquibase, "liquibase");
+    }
+}
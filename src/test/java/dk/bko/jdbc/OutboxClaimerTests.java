@@ -0,0 +1,105 @@
+package dk.bko.jdbc;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
+import org.springframework.integration.util.UUIDConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.Message;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the batch claims of {@link OutboxClaimer}.
+ */
+public class OutboxClaimerTests {
+
+    private static final String GROUP = "outbox";
+
+    private JdbcChannelMessageStore store;
+    private OutboxClaimer claimer;
+    private TransactionTemplate transactionTemplate;
+    private String groupKey;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:claimer-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE SEQUENCE INT_MESSAGE_SEQ");
+        jdbcTemplate.execute("CREATE TABLE INT_CHANNEL_MESSAGE (MESSAGE_ID VARCHAR(255) NOT NULL, " +
+                "GROUP_KEY VARCHAR(36) NOT NULL, CREATED_DATE BIGINT NOT NULL, MESSAGE_PRIORITY BIGINT, " +
+                "MESSAGE_SEQUENCE BIGINT NOT NULL, MESSAGE_BYTES BLOB, REGION VARCHAR(100) NOT NULL, " +
+                "DELIVER_AFTER BIGINT, PRIMARY KEY (REGION, GROUP_KEY, MESSAGE_SEQUENCE))");
+        store = new JdbcChannelMessageStore(dataSource);
+        store.setChannelMessageStoreQueryProvider(new OutboxH2QueryProvider());
+        store.setPreparedStatementSetter(new DeliverAfterPreparedStatementSetter());
+        store.setPriorityEnabled(true);
+        claimer = new OutboxClaimer(dataSource, new OutboxH2QueryProvider(), store.getRegion(),
+                new AllowListDeserializingConverter());
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        groupKey = UUIDConverter.getUUID(GROUP).toString();
+    }
+
+    @Test
+    void claimsTheMostUrgentMessagesFirst() {
+        add("low", 0);
+        add("high", 9);
+        add("default", null);
+        add("middle", 5);
+
+        OutboxClaimer.Claim claim = claimer.claim(groupKey, true, 0, 3);
+
+        assertThat(payloads(claim)).containsExactly("high", "middle", "low");
+        assertThat(store.messageGroupSize(GROUP)).isEqualTo(1);
+    }
+
+    @Test
+    void claimsTheOldestMessagesAfterThePreviousClaim() {
+        for (int i = 0; i < 5; i++) {
+            add("message-" + i, 9 - i);
+        }
+
+        OutboxClaimer.Claim first = claimer.claim(groupKey, false, 0, 2);
+        OutboxClaimer.Claim second = claimer.claim(groupKey, false, first.lastSequence(), 2);
+
+        assertThat(payloads(first)).containsExactly("message-0", "message-1");
+        assertThat(payloads(second)).containsExactly("message-2", "message-3");
+        assertThat(second.lastSequence()).isGreaterThan(first.lastSequence());
+        assertThat(claimer.claim(groupKey, false, second.lastSequence(), 10).messages()).hasSize(1);
+        assertThat(claimer.claim(groupKey, false, second.lastSequence(), 10).lastSequence())
+                .isEqualTo(second.lastSequence());
+    }
+
+    @Test
+    void keepsTheClaimedMessagesWhenTheTransactionRollsBack() {
+        add("message", 0);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            assertThat(claimer.claim(groupKey, true, 0, 10).messages()).hasSize(1);
+            status.setRollbackOnly();
+        });
+
+        assertThat(store.messageGroupSize(GROUP)).isEqualTo(1);
+    }
+
+    private static List<Object> payloads(OutboxClaimer.Claim claim) {
+        return claim.messages().stream().<Object>map(Message::getPayload).toList();
+    }
+
+    private void add(String payload, Integer priority) {
+        MessageBuilder<String> message = MessageBuilder.withPayload(payload);
+        if (priority != null) {
+            message.setPriority(priority);
+        }
+        store.addMessageToGroup(GROUP, message.build());
+    }
+}
@@ -0,0 +1,121 @@
+package dk.bko.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+/**
+ * Tests for {@link PgOutputDecoder}, using messages encoded as pgoutput protocol version 1 sends them.
+ */
+public class PgOutputDecoderTests {
+
+    private final PgOutputDecoder decoder = new PgOutputDecoder();
+
+    @Test
+    void decodesTransactionWithInsertedRow() throws IOException {
+        decoder.decode(relation());
+
+        assertThat(decoder.decode(message(out -> {
+            out.writeByte('B');
+            out.writeLong(0x16B3748L);
+            out.writeLong(0L);
+            out.writeInt(735);
+        }))).isEqualTo(new PgOutputDecoder.Begin(0x16B3748L));
+
+        PgOutputDecoder.Event insert = decoder.decode(message(out -> {
+            out.writeByte('I');
+            out.writeInt(16400);
+            out.writeByte('N');
+            out.writeShort(3);
+            text(out, "DEFAULT");
+            out.writeByte('n');
+            text(out, "\\x0a0b");
+        }));
+        assertThat(insert).isInstanceOfSatisfying(PgOutputDecoder.RowChange.class, change -> {
+            assertThat(change.table()).isEqualTo("int_channel_message");
+            assertThat(change.update()).isFalse();
+            assertThat(change.values()).containsExactly(
+                    entry("region", "DEFAULT"), entry("group_key", null), entry("message_bytes", "\\x0a0b"));
+        });
+
+        assertThat(decoder.decode(message(out -> {
+            out.writeByte('C');
+            out.writeByte(0);
+            out.writeLong(0x16B3748L);
+            out.writeLong(0x16B3778L);
+            out.writeLong(0L);
+        }))).isEqualTo(new PgOutputDecoder.Commit(0x16B3778L));
+    }
+
+    @Test
+    void leavesOutUnchangedToastedValuesOfUpdatedRow() throws IOException {
+        decoder.decode(relation());
+
+        PgOutputDecoder.Event update = decoder.decode(message(out -> {
+            out.writeByte('U');
+            out.writeInt(16400);
+            out.writeByte('K');
+            out.writeShort(3);
+            text(out, "DEFAULT");
+            text(out, "old-group");
+            out.writeByte('n');
+            out.writeByte('N');
+            out.writeShort(3);
+            text(out, "DEFAULT");
+            text(out, "new-group");
+            out.writeByte('u');
+        }));
+
+        assertThat(update).isInstanceOfSatisfying(PgOutputDecoder.RowChange.class, change -> {
+            assertThat(change.update()).isTrue();
+            assertThat(change.values()).containsOnlyKeys("region", "group_key");
+            assertThat(change.values()).containsEntry("group_key", "new-group");
+        });
+    }
+
+    private static ByteBuffer relation() throws IOException {
+        return message(out -> {
+            out.writeByte('R');
+            out.writeInt(16400);
+            string(out, "public");
+            string(out, "int_channel_message");
+            out.writeByte('d');
+            out.writeShort(3);
+            for (String column : new String[] {"REGION", "GROUP_KEY", "MESSAGE_BYTES"}) {
+                out.writeByte(1);
+                string(out, column);
+                out.writeInt(25);
+                out.writeInt(-1);
+            }
+        });
+    }
+
+    private static ByteBuffer message(Writer writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void string(DataOutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+    }
+
+    private static void text(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte('t');
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,60 @@
+package dk.bko.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the decisions of the {@link AdaptiveRelayController}.
+ */
+public class AdaptiveRelayControllerTests {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    private final KafkaTemplate<String, Object> relayTemplate = mock(KafkaTemplate.class);
+    private final KafkaTemplate<String, Object> bulkTemplate = mock(KafkaTemplate.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AdaptiveRelayController controller = new AdaptiveRelayController(
+            relayTemplate, bulkTemplate, meterRegistry, true, 500, 50, 2000, 50, 1000, 250, 20);
+
+    @Test
+    void batchesHarderUnderBacklogAndFavoursLatencyOnceDrained() {
+        for (int i = 0; i < 3; i++) {
+            int limit = controller.batchSize();
+            controller.recordBatch(limit, limit, FAST, false);
+        }
+        assertThat(controller.batchSize()).isEqualTo(2000);
+        assertThat(controller.template()).isSameAs(bulkTemplate);
+        assertThat(meterRegistry.get("outbox.relay.controller.linger").gauge().value()).isEqualTo(20);
+
+        controller.recordBatch(2000, 2000, SLOW, false);
+        assertThat(controller.batchSize()).isEqualTo(1500);
+
+        controller.recordBatch(10, 1500, FAST, false);
+        assertThat(controller.batchSize()).isEqualTo(750);
+        assertThat(controller.template()).isSameAs(relayTemplate);
+        assertThat(meterRegistry.get("outbox.relay.controller.saturated").gauge().value()).isZero();
+    }
+
+    @Test
+    void pollsQuicklyWhileMessagesFlowAndBacksOffWhenIdleOrFailing() {
+        controller.recordBatch(200, 500, FAST, false);
+        assertThat(controller.nextPollIntervalMs()).isEqualTo(50);
+        assertThat(controller.nextPollIntervalMs()).isEqualTo(100);
+        assertThat(controller.nextPollIntervalMs()).isEqualTo(200);
+
+        controller.recordBatch(200, 500, FAST, false);
+        assertThat(controller.nextPollIntervalMs()).isEqualTo(50);
+
+        controller.recordBatch(500, 500, SLOW, true);
+        assertThat(controller.nextPollIntervalMs()).isEqualTo(1000);
+        assertThat(controller.batchSize()).isEqualTo(250);
+        assertThat(meterRegistry.get("outbox.relay.controller.poll.interval").gauge().value()).isEqualTo(1000);
+    }
+}
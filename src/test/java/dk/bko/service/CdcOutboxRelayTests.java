@@ -0,0 +1,124 @@
+package dk.bko.service;
+
+import dk.bko.config.JdbcMessageStoreConfig;
+import dk.bko.jdbc.DeliverAfterPreparedStatementSetter;
+import dk.bko.jdbc.OutboxH2QueryProvider;
+import dk.bko.model.KafkaMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the capture and relay of outbox rows by {@link CdcOutboxRelay}, without a replication stream:
+ * rows are handed to it as the pgoutput decoder returns them.
+ */
+public class CdcOutboxRelayTests {
+
+    private static final String[] ALLOWED_PATTERNS = {"dk.bko.model.*", "org.springframework.messaging.*",
+            "org.springframework.integration.support.*", "java.util.*", "java.time.*", "java.lang.*"};
+
+    private final OutboxRecordSender sender = mock(OutboxRecordSender.class);
+    private JdbcTemplate jdbcTemplate;
+    private JdbcChannelMessageStore store;
+    private CdcOutboxRelay relay;
+
+    @BeforeEach
+    void setUp() {
+        String url = "jdbc:h2:mem:cdc-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(url, "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE SEQUENCE INT_MESSAGE_SEQ");
+        jdbcTemplate.execute("CREATE TABLE INT_CHANNEL_MESSAGE (MESSAGE_ID VARCHAR(255) NOT NULL, " +
+                "GROUP_KEY VARCHAR(36) NOT NULL, CREATED_DATE BIGINT NOT NULL, MESSAGE_PRIORITY BIGINT, " +
+                "MESSAGE_SEQUENCE BIGINT NOT NULL, MESSAGE_BYTES BLOB, REGION VARCHAR(100) NOT NULL, " +
+                "DELIVER_AFTER BIGINT, PRIMARY KEY (REGION, GROUP_KEY, MESSAGE_SEQUENCE))");
+        store = new JdbcChannelMessageStore(dataSource);
+        store.setChannelMessageStoreQueryProvider(new OutboxH2QueryProvider());
+        store.setPreparedStatementSetter(new DeliverAfterPreparedStatementSetter());
+
+        DataSourceProperties dataSourceProperties = new DataSourceProperties();
+        dataSourceProperties.setUrl(url);
+        JdbcMessageStoreConfig config = new JdbcMessageStoreConfig();
+        ReflectionTestUtils.setField(config, "allowedPatterns", ALLOWED_PATTERNS);
+        OutboxPartitioner partitioner = new OutboxPartitioner("region", 1);
+        relay = new CdcOutboxRelay(dataSourceProperties, dataSource, sender, partitioner,
+                OutboxRoutesTests.loadedRoutes(), new OutboxShards(1, partitioner, store), store,
+                config.outboxMessageDeserializer());
+    }
+
+    @Test
+    void refusesToStreamFromAnotherDatabase() {
+        assertThatThrownBy(relay::start).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void relaysCapturedRowsDeletesThemAndConfirmsTheLsn() throws Exception {
+        KafkaMessage inserted = new KafkaMessage("inserted", "eu");
+        KafkaMessage released = new KafkaMessage("released", "eu");
+        store.addMessageToGroup(OutboxShards.groupId(0), JdbcOutboxService.outboxMessage(inserted, "eu", 0, null));
+        store.addMessageToGroup(OutboxShards.groupId(0), JdbcOutboxService.outboxMessage(released, "eu", 0, null));
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "SELECT MESSAGE_ID, MESSAGE_SEQUENCE, MESSAGE_BYTES FROM INT_CHANNEL_MESSAGE ORDER BY MESSAGE_SEQUENCE");
+
+        List<Object> captured = new ArrayList<>();
+        // An insert carries the message bytes, an update of a released delayed message may not
+        captured.add(capture(rows.get(0), true));
+        captured.add(capture(rows.get(1), false));
+        PGReplicationStream stream = mock(PGReplicationStream.class);
+        ReflectionTestUtils.invokeMethod(relay, "flush", stream, captured, 42L);
+
+        ArgumentCaptor<List<OutboxRecord>> records = ArgumentCaptor.forClass(List.class);
+        verify(sender).send(records.capture());
+        assertThat(records.getValue()).extracting(OutboxRecord::messageId)
+                .containsExactly(inserted.getId(), released.getId());
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_CHANNEL_MESSAGE", Integer.class)).isZero();
+        verify(stream).setFlushedLSN(LogSequenceNumber.valueOf(42L));
+        verify(stream).forceUpdateStatus();
+    }
+
+    @Test
+    void rejectsMessagesOfClassesOutsideTheAllowList() {
+        byte[] bytes = new SerializingConverter().convert(new GenericMessage<>(URI.create("https://example.com")));
+
+        assertThatThrownBy(() -> ReflectionTestUtils.invokeMethod(relay, "capture", Map.of(
+                "group_key", OutboxShards.groupKey(0),
+                "message_id", UUID.randomUUID().toString(),
+                "message_sequence", "1",
+                "message_bytes", "\\x" + HexFormat.of().formatHex(bytes))))
+                .hasRootCauseInstanceOf(SecurityException.class);
+    }
+
+    private Object capture(Map<String, Object> row, boolean withBytes) {
+        Map<String, String> values = new HashMap<>(Map.of(
+                "group_key", OutboxShards.groupKey(0),
+                "message_id", (String) row.get("MESSAGE_ID"),
+                "message_sequence", String.valueOf(row.get("MESSAGE_SEQUENCE"))));
+        if (withBytes) {
+            values.put("message_bytes", "\\x" + HexFormat.of().formatHex((byte[]) row.get("MESSAGE_BYTES")));
+        }
+        return ReflectionTestUtils.invokeMethod(relay, "capture", values);
+    }
+}
@@ -0,0 +1,93 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the chunked storage and streaming reads of {@link ClaimCheckStore}.
+ */
+public class ClaimCheckStoreTests {
+
+    private JdbcTemplate jdbcTemplate;
+    private ClaimCheckStore store;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:claimcheck-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE INT_PAYLOAD_CHUNK (PAYLOAD_ID UUID, CHUNK_INDEX INT, " +
+                "CHUNK_BYTES BYTEA, CREATED_DATE TIMESTAMP, PRIMARY KEY (PAYLOAD_ID, CHUNK_INDEX))");
+        jdbcTemplate.execute("CREATE TABLE INT_MESSAGE (MESSAGE_ID UUID PRIMARY KEY, CONTENT_REF UUID)");
+        store = new ClaimCheckStore(jdbcTemplate);
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "thresholdBytes", 100);
+        ReflectionTestUtils.setField(store, "chunkSizeBytes", 64);
+        ReflectionTestUtils.setField(store, "retentionDays", 7);
+    }
+
+    @Test
+    void keepsSmallContentInline() throws IOException {
+        KafkaMessage message = store.checkIn(new KafkaMessage("small", "region"));
+
+        assertThat(message.getContent()).isEqualTo("small");
+        assertThat(message.getContentRef()).isNull();
+        try (InputStream content = store.openContent(message)) {
+            assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("small");
+        }
+    }
+
+    @Test
+    void storesLargeContentInChunksAndStreamsItBack() throws IOException {
+        String large = "æøå-0123456789".repeat(20);
+        KafkaMessage message = store.checkIn(new KafkaMessage(large, "region"));
+
+        assertThat(message.getContent()).isNull();
+        assertThat(message.getContentLength()).isEqualTo(large.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_PAYLOAD_CHUNK", Integer.class)).isEqualTo(6);
+        try (InputStream content = store.openContent(message)) {
+            assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(large);
+        }
+    }
+
+    @Test
+    void failsWhenPayloadIsIncomplete() {
+        KafkaMessage message = store.checkIn(new KafkaMessage("x".repeat(200), "region"));
+        jdbcTemplate.update("DELETE FROM INT_PAYLOAD_CHUNK WHERE CHUNK_INDEX = 3");
+
+        assertThatThrownBy(() -> store.openContent(message).readAllBytes())
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("read 192 of 200 bytes");
+    }
+
+    @Test
+    void purgesOnlyExpiredPayloadsNoMessageReferences() {
+        KafkaMessage referenced = store.checkIn(new KafkaMessage("r".repeat(200), "region"));
+        KafkaMessage deleted = store.checkIn(new KafkaMessage("d".repeat(200), "region"));
+        KafkaMessage recent = store.checkIn(new KafkaMessage("n".repeat(200), "region"));
+        jdbcTemplate.update("INSERT INTO INT_MESSAGE VALUES (?, ?)",
+                UUID.fromString(referenced.getId()), UUID.fromString(referenced.getContentRef()));
+        jdbcTemplate.update("UPDATE INT_PAYLOAD_CHUNK SET CREATED_DATE = ? WHERE PAYLOAD_ID <> ?",
+                Timestamp.valueOf(LocalDateTime.now().minusDays(8)), UUID.fromString(recent.getContentRef()));
+
+        store.purgeExpiredPayloads();
+
+        assertThat(jdbcTemplate.queryForList("SELECT DISTINCT PAYLOAD_ID FROM INT_PAYLOAD_CHUNK", UUID.class))
+                .containsExactlyInAnyOrder(UUID.fromString(referenced.getContentRef()),
+                        UUID.fromString(recent.getContentRef()))
+                .doesNotContain(UUID.fromString(deleted.getContentRef()));
+    }
+}
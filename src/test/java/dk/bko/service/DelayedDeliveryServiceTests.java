@@ -0,0 +1,113 @@
+package dk.bko.service;
+
+import dk.bko.config.OutboxConfig;
+import dk.bko.jdbc.DeliverAfterPreparedStatementSetter;
+import dk.bko.jdbc.OutboxClaimer;
+import dk.bko.jdbc.OutboxH2QueryProvider;
+import dk.bko.model.KafkaMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.Message;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the release of delayed messages by {@link DelayedDeliveryService}, with H2.
+ */
+public class DelayedDeliveryServiceTests {
+
+    private final OutboxScheduler outboxScheduler = mock(OutboxScheduler.class);
+
+    private JdbcChannelMessageStore store;
+    private OutboxClaimer claimer;
+    private DelayedDeliveryService service;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:delayed-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE SEQUENCE INT_MESSAGE_SEQ");
+        jdbcTemplate.execute("CREATE TABLE INT_CHANNEL_MESSAGE (MESSAGE_ID VARCHAR(255) NOT NULL, " +
+                "GROUP_KEY VARCHAR(36) NOT NULL, CREATED_DATE BIGINT NOT NULL, MESSAGE_PRIORITY BIGINT, " +
+                "MESSAGE_SEQUENCE BIGINT NOT NULL, MESSAGE_BYTES BLOB, REGION VARCHAR(100) NOT NULL, " +
+                "DELIVER_AFTER BIGINT, PRIMARY KEY (REGION, GROUP_KEY, MESSAGE_SEQUENCE))");
+        store = new JdbcChannelMessageStore(dataSource);
+        store.setChannelMessageStoreQueryProvider(new OutboxH2QueryProvider());
+        store.setPreparedStatementSetter(new DeliverAfterPreparedStatementSetter());
+        store.setPriorityEnabled(true);
+        claimer = new OutboxClaimer(dataSource, new OutboxH2QueryProvider(), store.getRegion(),
+                new AllowListDeserializingConverter());
+        service = new DelayedDeliveryService(dataSource, outboxScheduler,
+                new OutboxShards(1, new OutboxPartitioner("region", 1), store), store, 10, 64);
+        ReflectionTestUtils.setField(service, "horizonMs", 60_000L);
+        ReflectionTestUtils.setField(service, "loadBatchSize", 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void releasesAMessageToTheRelayOnlyOnceItIsDue() {
+        long deliverAfter = System.currentTimeMillis() + 1000;
+        String storeMessageId = storeDelayed("later", deliverAfter);
+
+        service.schedule(storeMessageId, deliverAfter);
+
+        assertThat(service.getScheduledCount()).isEqualTo(1);
+        assertThat(claim()).isEmpty();
+        verify(outboxScheduler, never()).triggerRelay();
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> service.getScheduledCount() == 0);
+        assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(deliverAfter);
+        verify(outboxScheduler, timeout(1000)).triggerRelay();
+        assertThat(claim()).extracting(message -> ((KafkaMessage) message.getPayload()).getContent())
+                .containsExactly("later");
+        assertThat(store.messageGroupSize(OutboxConfig.DELAYED_OUTBOX_GROUP)).isZero();
+    }
+
+    @Test
+    void loadsMessagesBeyondTheHorizonOnceTheyComeWithinIt() {
+        ReflectionTestUtils.setField(service, "horizonMs", 500L);
+        long deliverAfter = System.currentTimeMillis() + 2000;
+        service.schedule(storeDelayed("much later", deliverAfter), deliverAfter);
+        assertThat(service.getScheduledCount()).isZero();
+
+        ReflectionTestUtils.setField(service, "horizonMs", 60_000L);
+        service.loadDueMessages();
+        service.loadDueMessages();
+
+        assertThat(service.getScheduledCount()).isEqualTo(1);
+        verify(outboxScheduler, timeout(5000)).triggerRelay();
+        assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(deliverAfter);
+        assertThat(claim()).hasSize(1);
+    }
+
+    private String storeDelayed(String content, long deliverAfter) {
+        Message<KafkaMessage> message = JdbcOutboxService.outboxMessage(
+                new KafkaMessage(content, "eu"), "eu", 0, deliverAfter);
+        store.addMessageToGroup(OutboxConfig.DELAYED_OUTBOX_GROUP, message);
+        return message.getHeaders().getId().toString();
+    }
+
+    private List<Message<?>> claim() {
+        return claimer.claim(OutboxShards.groupKey(0), true, 0, 10).messages();
+    }
+}
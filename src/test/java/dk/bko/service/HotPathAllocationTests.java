@@ -0,0 +1,83 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.SampledLogger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Allocation budgets of the per-message work of ingest and relay, in bytes per message.
+ * The budgets leave some headroom over what OutboxHotPathBenchmark measures (mvn -Pbenchmark test-compile exec:exec);
+ * a change that goes over one should be looked at with the benchmark before raising the budget.
+ * The counters are noisy on a busy build machine, so the budgets are only checked on request:
+ * mvn test -Dbenchmark=true -Dtest=HotPathAllocationTests
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class HotPathAllocationTests {
+
+    private static final long OUTBOX_MESSAGE_BUDGET = 768;
+    private static final long OUTBOX_RECORD_BUDGET = 128;
+    private static final long DROPPED_LOG_LINE_BUDGET = 16;
+
+    private static final int WARM_UP = 20_000;
+    private static final int ITERATIONS = 100_000;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private KafkaMessage kafkaMessage;
+    private Object sink;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        kafkaMessage = new KafkaMessage("0195a3b2-7c4d-7e00-8000-000000000001", "content", "eu", LocalDateTime.now());
+    }
+
+    @Test
+    void outboxMessageStaysWithinBudget() {
+        assertThat(bytesPerCall(() -> JdbcOutboxService.outboxMessage(kafkaMessage, "eu", 0, null)))
+                .isLessThanOrEqualTo(OUTBOX_MESSAGE_BUDGET);
+    }
+
+    @Test
+    void outboxRecordStaysWithinBudget() {
+        OutboxPartitioner partitioner = new OutboxPartitioner("region", 12);
+        OutboxRoutes routes = OutboxRoutesTests.loadedRoutes();
+        Message<KafkaMessage> message = JdbcOutboxService.outboxMessage(kafkaMessage, "eu", 0, null);
+
+        assertThat(bytesPerCall(() -> OutboxRecord.from(message, partitioner, routes)))
+                .isLessThanOrEqualTo(OUTBOX_RECORD_BUDGET);
+    }
+
+    @Test
+    void droppedLogLineStaysWithinBudget() {
+        SampledLogger sampledLogger = new SampledLogger(LoggerFactory.getLogger(HotPathAllocationTests.class), 1);
+
+        assertThat(bytesPerCall(() -> {
+            sampledLogger.info("Message sent successfully to Kafka: {}", kafkaMessage.getId());
+            return null;
+        })).isLessThanOrEqualTo(DROPPED_LOG_LINE_BUDGET);
+    }
+
+    private long bytesPerCall(Supplier<Object> call) {
+        for (int i = 0; i < WARM_UP; i++) {
+            sink = call.get();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = call.get();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / ITERATIONS;
+    }
+}
@@ -0,0 +1,128 @@
+package dk.bko.service;
+
+import dk.bko.entity.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the lookup order and the storage of {@link IdempotencyKeys}.
+ */
+public class IdempotencyKeysTests {
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private IdempotencyKeys keys;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:idempotency-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        jdbcTemplate.execute("CREATE TABLE INT_IDEMPOTENCY_KEY (IDEMPOTENCY_KEY VARCHAR(255) PRIMARY KEY, " +
+                "MESSAGE_ID UUID NOT NULL, CREATED_DATE TIMESTAMP NOT NULL, REGION VARCHAR(255), " +
+                "MESSAGE_CREATED_DATE TIMESTAMP, MESSAGE_BYTES BYTEA)");
+        meterRegistry = new SimpleMeterRegistry();
+        keys = new IdempotencyKeys(jdbcTemplate, meterRegistry, 1000, 0.01, 100);
+        keys.load();
+    }
+
+    @Test
+    void answersNewKeysFromTheFilterAndRetriesFromTheCache() {
+        UUID messageId = UUID.randomUUID();
+        assertThat(keys.find("first")).isEmpty();
+
+        transactionTemplate.executeWithoutResult(status -> keys.store("first", messageId));
+
+        assertThat(keys.find("first")).contains(messageId);
+        assertThat(lookups("filtered")).isEqualTo(1);
+        assertThat(lookups("cached")).isEqualTo(1);
+        assertThat(lookups("database")).isZero();
+    }
+
+    @Test
+    void looksUpKeysInTheDatabaseUntilTheFilterIsLoaded() {
+        UUID messageId = UUID.randomUUID();
+        jdbcTemplate.update("INSERT INTO INT_IDEMPOTENCY_KEY (IDEMPOTENCY_KEY, MESSAGE_ID, CREATED_DATE) VALUES (?, ?, ?)",
+                "before-restart", messageId, Timestamp.valueOf(LocalDateTime.now()));
+        IdempotencyKeys unloaded = new IdempotencyKeys(jdbcTemplate, new SimpleMeterRegistry(), 1000, 0.01, 100);
+
+        assertThat(unloaded.find("before-restart")).contains(messageId);
+        assertThat(unloaded.find("new")).isEmpty();
+    }
+
+    @Test
+    void forgetsKeysOfRolledBackTransactions() {
+        transactionTemplate.executeWithoutResult(status -> {
+            keys.store("rolled-back", UUID.randomUUID());
+            status.setRollbackOnly();
+        });
+
+        assertThat(keys.find("rolled-back")).isEmpty();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_IDEMPOTENCY_KEY", Integer.class)).isZero();
+    }
+
+    @Test
+    void rejectsAKeyStoredByAnotherInstanceAndFindsItInTheDatabase() {
+        UUID messageId = UUID.randomUUID();
+        jdbcTemplate.update("INSERT INTO INT_IDEMPOTENCY_KEY (IDEMPOTENCY_KEY, MESSAGE_ID, CREATED_DATE) VALUES (?, ?, ?)",
+                "elsewhere", messageId, Timestamp.valueOf(LocalDateTime.now()));
+
+        assertThatThrownBy(() -> transactionTemplate.executeWithoutResult(
+                status -> keys.store("elsewhere", UUID.randomUUID())))
+                .isInstanceOf(DuplicateKeyException.class);
+        assertThat(keys.query("elsewhere")).contains(messageId);
+        assertThat(keys.find("elsewhere")).contains(messageId);
+    }
+
+    @Test
+    void keepsTheMessageOfKeysStoredWithIt() {
+        Message message = new Message(UUID.randomUUID(), "eu", LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS),
+                "{\"content\":\"journal\"}".getBytes(StandardCharsets.UTF_8));
+        transactionTemplate.executeWithoutResult(status -> {
+            keys.store("journal", message);
+            keys.store("outbox", UUID.randomUUID());
+        });
+
+        Message response = keys.response("journal").orElseThrow();
+        assertThat(response).isEqualTo(message);
+        assertThat(response.getRegion()).isEqualTo("eu");
+        assertThat(response.getCreatedDate()).isEqualTo(message.getCreatedDate());
+        assertThat(response.getMessageBytes()).isEqualTo(message.getMessageBytes());
+        assertThat(keys.response("outbox")).isEmpty();
+    }
+
+    @Test
+    void purgesExpiredKeysAndRebuildsTheFilter() {
+        jdbcTemplate.update("INSERT INTO INT_IDEMPOTENCY_KEY (IDEMPOTENCY_KEY, MESSAGE_ID, CREATED_DATE) VALUES (?, ?, ?)",
+                "expired", UUID.randomUUID(), Timestamp.valueOf(LocalDateTime.now().minusDays(2)));
+        keys.load();
+        ReflectionTestUtils.setField(keys, "retentionHours", 24);
+
+        keys.purgeExpiredKeys();
+
+        assertThat(keys.find("expired")).isEmpty();
+        assertThat(lookups("database")).isZero();
+    }
+
+    private double lookups(String result) {
+        return meterRegistry.get("ingest.idempotency.lookups").tag("result", result).counter().count();
+    }
+}
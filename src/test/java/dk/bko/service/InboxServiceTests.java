@@ -0,0 +1,106 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for {@link InboxService} on H2, where the IDs are inserted with the conditional insert batch.
+ */
+public class InboxServiceTests {
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private InboxService inboxService;
+    private final List<String> processed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        String url = "jdbc:h2:mem:inbox-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(url, "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE INT_INBOX (MESSAGE_ID VARCHAR(255) NOT NULL PRIMARY KEY, " +
+                "RECEIVED_DATE TIMESTAMP NOT NULL)");
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        inboxService = new InboxService(jdbcTemplate, 10, url);
+    }
+
+    @Test
+    void processesEachMessageOnce() {
+        KafkaMessage first = message("first");
+        KafkaMessage second = message("second");
+
+        assertThat(process(List.of(first, second, first))).isEqualTo(2);
+        assertThat(process(List.of(second, message("third")))).isEqualTo(1);
+
+        assertThat(processed).containsExactly("first", "second", "third");
+        assertThat(inboxSize()).isEqualTo(3);
+    }
+
+    @Test
+    void filtersDuplicatesInTheDatabaseWhenTheyAreNotCached() {
+        KafkaMessage message = message("content");
+        process(List.of(message));
+
+        // A second consumer instance has not seen the ID yet
+        InboxService other = new InboxService(jdbcTemplate, 10, "jdbc:h2:mem:other");
+        int count = transactionTemplate.execute(status ->
+                other.processNew(List.of(message), m -> processed.add("again")));
+
+        assertThat(count).isZero();
+        assertThat(processed).containsExactly("content");
+    }
+
+    @Test
+    void forgetsTheIdsOfARolledBackBatch() {
+        KafkaMessage message = message("content");
+
+        assertThatThrownBy(() -> transactionTemplate.executeWithoutResult(status ->
+                inboxService.processNew(List.of(message), m -> {
+                    throw new IllegalStateException("processing failed");
+                }))).isInstanceOf(IllegalStateException.class);
+
+        assertThat(inboxSize()).isZero();
+        assertThat(process(List.of(message))).isEqualTo(1);
+    }
+
+    @Test
+    void purgesOnlyExpiredEntries() {
+        ReflectionTestUtils.setField(inboxService, "retentionDays", 7);
+        jdbcTemplate.update("INSERT INTO INT_INBOX (MESSAGE_ID, RECEIVED_DATE) VALUES (?, ?)",
+                "old", Timestamp.valueOf(LocalDateTime.now().minusDays(8)));
+        process(List.of(message("recent")));
+
+        inboxService.purgeExpiredEntries();
+
+        assertThat(jdbcTemplate.queryForList("SELECT MESSAGE_ID FROM INT_INBOX", String.class)).hasSize(1)
+                .doesNotContain("old");
+    }
+
+    private int process(List<KafkaMessage> messages) {
+        return transactionTemplate.execute(status ->
+                inboxService.processNew(messages, message -> processed.add(message.getContent())));
+    }
+
+    private int inboxSize() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_INBOX", Integer.class);
+    }
+
+    private static KafkaMessage message(String content) {
+        return new KafkaMessage(UUID.randomUUID().toString(), content, "eu", LocalDateTime.now());
+    }
+}
@@ -0,0 +1,103 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.model.KafkaMessage;
+import dk.bko.util.MappedJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the relay and the shutdown of {@link JournalOutbox}.
+ */
+public class JournalOutboxTests {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final OutboxRecordSender sender = mock(OutboxRecordSender.class);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void relaysAppendedMessagesInOrderAndAcknowledgesThem() throws Exception {
+        JournalOutbox outbox = journalOutbox();
+        String first = outbox.append(outbox.prepare(new KafkaMessage("first", "eu"))).getMessageId().toString();
+        String second = outbox.append(outbox.prepare(new KafkaMessage("second", "eu"))).getMessageId().toString();
+        outbox.start();
+
+        ArgumentCaptor<List<OutboxRecord>> records = ArgumentCaptor.forClass(List.class);
+        verify(sender, timeout(5000)).send(records.capture());
+        assertThat(records.getValue()).extracting(OutboxRecord::messageId).containsExactly(first, second);
+        assertThat(records.getValue()).extracting(OutboxRecord::topic).containsOnly("message-outbox");
+
+        assertThat(outbox.stopRelaying(5000)).isTrue();
+        outbox.shutdown();
+        assertThat(unrelayed()).isEmpty();
+    }
+
+    @Test
+    void sendsAFailedBatchAgain() throws Exception {
+        doThrow(new IllegalStateException("broker down")).doNothing().when(sender).send(anyList());
+        JournalOutbox outbox = journalOutbox();
+        outbox.append(outbox.prepare(new KafkaMessage("content", "eu")));
+        outbox.start();
+
+        verify(sender, timeout(5000).times(2)).send(anyList());
+        assertThat(outbox.stopRelaying(5000)).isTrue();
+        outbox.shutdown();
+        assertThat(unrelayed()).isEmpty();
+    }
+
+    @Test
+    void interruptsAStuckSendBeforeClosingTheJournal() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            Thread.sleep(60_000);
+            return null;
+        }).when(sender).send(anyList());
+        JournalOutbox outbox = journalOutbox();
+        outbox.append(outbox.prepare(new KafkaMessage("content", "eu")));
+        outbox.start();
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+
+        long start = System.nanoTime();
+        outbox.shutdown();
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+        verify(sender, times(1)).send(anyList());
+        assertThat(unrelayed()).hasSize(1); // sent again after the next start
+    }
+
+    private JournalOutbox journalOutbox() throws IOException {
+        JournalOutbox outbox = new JournalOutbox(objectMapper, sender, new OutboxPartitioner("region", 1),
+                OutboxRoutesTests.loadedRoutes(), directory, 4096, false);
+        ReflectionTestUtils.setField(outbox, "batchSize", 10);
+        ReflectionTestUtils.setField(outbox, "idleWaitMs", 5L);
+        ReflectionTestUtils.setField(outbox, "retryBackoffMs", 100L);
+        return outbox;
+    }
+
+    private List<MappedJournal.Entry> unrelayed() throws IOException {
+        try (MappedJournal journal = new MappedJournal(directory, 4096, false)) {
+            return journal.read(journal.cursor(), 10);
+        }
+    }
+}
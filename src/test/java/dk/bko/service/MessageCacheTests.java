@@ -0,0 +1,97 @@
+package dk.bko.service;
+
+import dk.bko.entity.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link MessageCache}.
+ */
+public class MessageCacheTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MessageCache cache = new MessageCache(meterRegistry, true, 1_000_000, 100, Duration.ofMinutes(1));
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void servesRepeatedReadsFromTheCacheUntilInvalidated() {
+        Message message = message(10);
+
+        assertThat(cache.get(message.getMessageId(), id -> load(message))).contains(message);
+        assertThat(cache.get(message.getMessageId(), id -> load(message))).contains(message);
+        assertThat(loads).hasValue(1);
+
+        cache.invalidate(message.getMessageId());
+        cache.get(message.getMessageId(), id -> load(message));
+        assertThat(loads).hasValue(2);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "messages").tag("result", "hit")
+                .functionCounter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void bypassesTheCacheForLargeMessagesAndMissingMessages() {
+        Message large = message(101);
+        cache.get(large.getMessageId(), id -> load(large));
+        cache.get(large.getMessageId(), id -> load(large));
+
+        UUID missing = UUID.randomUUID();
+        assertThat(cache.get(missing, id -> Optional.empty())).isEmpty();
+
+        assertThat(loads).hasValue(2);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void invalidationDuringALoadRemovesTheLoadedMessage() throws Exception {
+        Message message = message(10);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch deleted = new CountDownLatch(1);
+
+        CompletableFuture<Optional<Message>> read = CompletableFuture.supplyAsync(() ->
+                cache.get(message.getMessageId(), id -> {
+                    loading.countDown();
+                    await(deleted);
+                    return load(message); // the row as read before the delete committed
+                }));
+        assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread invalidation = new Thread(() -> cache.invalidate(message.getMessageId()));
+        invalidation.start();
+        // The invalidation either waits for the load or, if it did not, is already done
+        while (invalidation.isAlive() && invalidation.getState() == Thread.State.RUNNABLE) {
+            Thread.onSpinWait();
+        }
+        deleted.countDown();
+        read.get(5, TimeUnit.SECONDS);
+        invalidation.join(5000);
+
+        assertThat(cache.get(message.getMessageId(), id -> Optional.empty())).isEmpty();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Optional<Message> load(Message message) {
+        loads.incrementAndGet();
+        return Optional.of(message);
+    }
+
+    private static Message message(int size) {
+        return new Message(UUID.randomUUID(), "region", LocalDateTime.now(), new byte[size]);
+    }
+}
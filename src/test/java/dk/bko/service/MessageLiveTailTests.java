@@ -0,0 +1,151 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.controller.MessageController;
+import dk.bko.model.KafkaMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests for the fan-out and the slow consumer handling of {@link MessageLiveTail}, through the stream endpoint.
+ * The sender threads wait for a gate before they start, so a test can fill a subscriber's buffer first.
+ */
+public class MessageLiveTailTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch sendersGate = new CountDownLatch(1);
+    private MessageLiveTail liveTail;
+    private MockMvc mockMvc;
+
+    @AfterEach
+    void tearDown() {
+        sendersGate.countDown();
+        liveTail.stop();
+        liveTail.shutdown();
+    }
+
+    @Test
+    void deliversEveryMessageOfARegionInOrderWhilePublishingConcurrentlyWithTheDrains() throws Exception {
+        start("drop-oldest", 1000, 10);
+        sendersGate.countDown();
+        MockHttpServletResponse eu = stream("?region=eu");
+        MockHttpServletResponse all = stream("");
+
+        for (int i = 0; i < 500; i++) {
+            liveTail.publish(new KafkaMessage("eu-" + i, "content", "eu", null));
+            if (i % 50 == 0) {
+                liveTail.publish(new KafkaMessage("us-" + i, "content", "us", null));
+            }
+        }
+
+        await().untilAsserted(() -> assertThat(ids(eu)).hasSize(500));
+        assertThat(ids(eu)).containsExactlyElementsOf(IntStream.range(0, 500).mapToObj(i -> "eu-" + i).toList());
+        await().untilAsserted(() -> assertThat(ids(all)).hasSize(510));
+        assertThat(content(eu)).doesNotContain("event:dropped");
+    }
+
+    @Test
+    void overwritesTheOldestEventsOfASlowSubscriberAndReportsHowManyWereDropped() throws Exception {
+        start("drop-oldest", 2, 10);
+        MockHttpServletResponse response = stream("");
+
+        for (int i = 0; i < 5; i++) {
+            liveTail.publish(new KafkaMessage("id-" + i, "content", "eu", null));
+        }
+        sendersGate.countDown();
+
+        await().untilAsserted(() -> assertThat(ids(response)).containsExactly("id-3", "id-4"));
+        assertThat(content(response)).contains("event:dropped\ndata:3");
+        assertThat(meterRegistry.counter("live-tail.events.dropped").count()).isEqualTo(3);
+        assertThat(meterRegistry.get("live-tail.subscribers").gauge().value()).isEqualTo(1);
+    }
+
+    @Test
+    void disconnectsASlowSubscriberWithTheDisconnectPolicy() throws Exception {
+        start("disconnect", 2, 10);
+        stream("");
+
+        for (int i = 0; i < 3; i++) {
+            liveTail.publish(new KafkaMessage("id-" + i, "content", "eu", null));
+        }
+
+        assertThat(meterRegistry.counter("live-tail.subscribers.disconnected").count()).isEqualTo(1);
+        assertThat(meterRegistry.get("live-tail.subscribers").gauge().value()).isZero();
+        // Later messages are no longer offered to it
+        liveTail.publish(new KafkaMessage("id-3", "content", "eu", null));
+        assertThat(meterRegistry.counter("live-tail.events.dropped").count()).isEqualTo(1);
+    }
+
+    @Test
+    void refusesSubscribersBeyondTheMaximumAndAfterStopping() throws Exception {
+        start("drop-oldest", 2, 1);
+        stream("");
+
+        mockMvc.perform(get("/api/messages/stream"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "5"));
+
+        liveTail.stop();
+        assertThat(meterRegistry.get("live-tail.subscribers").gauge().value()).isZero();
+        mockMvc.perform(get("/api/messages/stream")).andExpect(status().isServiceUnavailable());
+    }
+
+    private void start(String slowConsumerPolicy, int bufferSize, int maxSubscribers) {
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("virtualThreadFactory", (ThreadFactory) runnable -> new Thread(() -> {
+            try {
+                sendersGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            runnable.run();
+        }));
+        liveTail = new MessageLiveTail(new ObjectMapper(), meterRegistry, 1,
+                beanFactory.getBeanProvider(ThreadFactory.class));
+        ReflectionTestUtils.setField(liveTail, "bufferSize", bufferSize);
+        ReflectionTestUtils.setField(liveTail, "maxSubscribers", maxSubscribers);
+        ReflectionTestUtils.setField(liveTail, "timeoutMs", 60_000L);
+        ReflectionTestUtils.setField(liveTail, "slowConsumerPolicy", slowConsumerPolicy);
+        liveTail.start();
+        mockMvc = MockMvcBuilders.standaloneSetup(new MessageController(mock(MessageService.class),
+                mock(JdbcOutboxService.class), mock(IdempotencyKeys.class), liveTail)).build();
+    }
+
+    private MockHttpServletResponse stream(String query) throws Exception {
+        return mockMvc.perform(get("/api/messages/stream" + query))
+                .andExpect(request().asyncStarted())
+                .andReturn()
+                .getResponse();
+    }
+
+    private static List<String> ids(MockHttpServletResponse response) throws Exception {
+        return content(response).lines()
+                .filter(line -> line.startsWith("id:"))
+                .map(line -> line.substring(3))
+                .toList();
+    }
+
+    private static String content(MockHttpServletResponse response) throws Exception {
+        return response.getContentAsString();
+    }
+}
@@ -0,0 +1,72 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.entity.Message;
+import dk.bko.model.KafkaMessage;
+import dk.bko.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the content lookup of {@link MessageService}.
+ */
+public class MessageServiceTests {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private MessageRepository messageRepository;
+    private ClaimCheckStore claimCheckStore;
+    private MessageService messageService;
+
+    @BeforeEach
+    void setUp() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:messages-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE INT_PAYLOAD_CHUNK (PAYLOAD_ID UUID, CHUNK_INDEX INT, " +
+                "CHUNK_BYTES BYTEA, CREATED_DATE TIMESTAMP, PRIMARY KEY (PAYLOAD_ID, CHUNK_INDEX))");
+        claimCheckStore = new ClaimCheckStore(jdbcTemplate);
+        ReflectionTestUtils.setField(claimCheckStore, "enabled", true);
+        ReflectionTestUtils.setField(claimCheckStore, "thresholdBytes", 100);
+        ReflectionTestUtils.setField(claimCheckStore, "chunkSizeBytes", 64);
+        messageRepository = mock(MessageRepository.class);
+        messageService = new MessageService(messageRepository,
+                new MessageCache(new SimpleMeterRegistry(), false, 1024, 1024, Duration.ofMinutes(1)),
+                mock(MessageStatistics.class), claimCheckStore, objectMapper);
+    }
+
+    @Test
+    void returnsTheBytesOfMessagesWithInlineContent() {
+        Message message = new Message(UUID.randomUUID(), "eu", LocalDateTime.now(),
+                "inline".getBytes(StandardCharsets.UTF_8));
+        when(messageRepository.findById(message.getMessageId())).thenReturn(Optional.of(message));
+
+        assertThat(messageService.getMessageContent(message.getMessageId())).contains("inline");
+    }
+
+    @Test
+    void readsTheContentOfClaimCheckedMessagesFromTheStore() throws Exception {
+        String large = "x".repeat(300);
+        KafkaMessage kafkaMessage = claimCheckStore.checkIn(new KafkaMessage(large, "eu"));
+        Message message = new Message(UUID.fromString(kafkaMessage.getId()), "eu", kafkaMessage.getTimestamp(),
+                objectMapper.writeValueAsBytes(kafkaMessage));
+        message.setContentRef(UUID.fromString(kafkaMessage.getContentRef()));
+        when(messageRepository.findById(message.getMessageId())).thenReturn(Optional.of(message));
+
+        String content = messageService.getMessageContent(message.getMessageId()).orElseThrow();
+
+        assertThat(objectMapper.readValue(content, KafkaMessage.class).getContent()).isEqualTo(large);
+    }
+}
@@ -0,0 +1,83 @@
+package dk.bko.service;
+
+import dk.bko.model.MessageStats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the incremental rollups of {@link MessageStatistics}, with H2.
+ */
+public class MessageStatisticsTests {
+
+    private static final LocalDateTime START = LocalDateTime.of(2025, 1, 1, 10, 0);
+
+    private MessageStatistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        String url = "jdbc:h2:mem:rollup-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(url, "sa", "");
+        new JdbcTemplate(dataSource).execute("CREATE TABLE INT_MESSAGE_ROLLUP (BUCKET_SIZE VARCHAR(10), " +
+                "REGION VARCHAR(100), BUCKET_START TIMESTAMP, MESSAGE_COUNT BIGINT, TOTAL_BYTES BIGINT, " +
+                "PRIMARY KEY (BUCKET_SIZE, REGION, BUCKET_START))");
+        statistics = new MessageStatistics(new JdbcTemplate(dataSource), dataSource, url);
+    }
+
+    @Test
+    void addsFlushedCountsToExistingBuckets() {
+        statistics.record("europe", START.plusSeconds(5), 100);
+        statistics.record("europe", START.plusSeconds(50), 20);
+        statistics.flush();
+        statistics.record("europe", START.plusSeconds(59), 3);
+        statistics.record("europe", START.plusMinutes(1), 4);
+        statistics.record("asia", START.plusMinutes(1), 7);
+        statistics.flush();
+
+        assertThat(statistics.query("europe", START, START.plusHours(1), MessageStatistics.Granularity.MINUTE))
+                .containsExactly(
+                        new MessageStats("europe", START, 3, 123),
+                        new MessageStats("europe", START.plusMinutes(1), 1, 4));
+    }
+
+    @Test
+    void sumsHoursIntoDays() {
+        statistics.record("europe", START, 10);
+        statistics.record("europe", START.plusHours(5), 20);
+        statistics.record("europe", START.plusDays(1), 40);
+        statistics.record("asia", START, 1);
+        statistics.flush();
+
+        // The range starts within the first day and is rounded down to its start
+        assertThat(statistics.query(null, START.plusHours(1), START.plusDays(2), MessageStatistics.Granularity.DAY))
+                .containsExactly(
+                        new MessageStats("asia", START.toLocalDate().atStartOfDay(), 1, 1),
+                        new MessageStats("europe", START.toLocalDate().atStartOfDay(), 2, 30),
+                        new MessageStats("europe", START.toLocalDate().plusDays(1).atStartOfDay(), 1, 40));
+    }
+
+    @Test
+    void dropsABucketTheTableRejectsWithoutHoldingUpTheOthers() {
+        statistics.record("europe", START, 10);
+        // REGION is part of the primary key
+        statistics.record(null, START, 20);
+        statistics.flush();
+
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(statistics, "pending")).isEmpty();
+        assertThat(statistics.query(null, START, START.plusHours(1), MessageStatistics.Granularity.HOUR))
+                .containsExactly(new MessageStats("europe", START, 1, 10));
+
+        statistics.record("europe", START, 5);
+        statistics.flush();
+        assertThat(statistics.query("europe", START, START.plusHours(1), MessageStatistics.Granularity.HOUR))
+                .containsExactly(new MessageStats("europe", START, 2, 15));
+    }
+}
@@ -0,0 +1,218 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the per-key ordering and offset bookkeeping of {@link OrderedParallelProcessor}.
+ */
+public class OrderedParallelProcessorTests {
+
+    private static final String TOPIC = "message-outbox";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private OrderedParallelProcessor processor;
+    private MockConsumer<String, KafkaMessage> consumer;
+    private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        kafkaTemplate = mock(KafkaTemplate.class);
+        processor = new OrderedParallelProcessor(4, 8,
+                new StaticListableBeanFactory().getBeanProvider(ThreadFactory.class), kafkaTemplate);
+        ReflectionTestUtils.setField(processor, "orderingKey", "region");
+        ReflectionTestUtils.setField(processor, "commitIntervalMs", 50L);
+        ReflectionTestUtils.setField(processor, "maxAttempts", 3);
+        ReflectionTestUtils.setField(processor, "retryBackoffMs", 10L);
+        ReflectionTestUtils.setField(processor, "deadLetterTopicPrefix", "dlt.");
+        ReflectionTestUtils.setField(processor, "deadLetterTimeoutMs", 1000L);
+
+        consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.assign(List.of(PARTITION));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+    }
+
+    @AfterEach
+    void tearDown() {
+        processor.shutdown();
+    }
+
+    @Test
+    void processesEachRegionInOrderAndCommitsContiguousOffsets() {
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        for (long offset = 0; offset < 40; offset++) {
+            String region = "region-" + (offset % 3);
+            processor.dispatch(record(offset, region), consumer, message -> {
+                sleep(region.endsWith("0") ? 5 : 1);
+                processed.add(message.getRegion() + ":" + message.getContent());
+            });
+        }
+
+        await().untilAsserted(() -> assertThat(processed).hasSize(40));
+        processor.commit(consumer);
+
+        assertThat(committed()).isEqualTo(40);
+        for (int region = 0; region < 3; region++) {
+            String prefix = "region-" + region + ":";
+            List<Long> offsets = processed.stream()
+                    .filter(entry -> entry.startsWith(prefix))
+                    .map(entry -> Long.parseLong(entry.substring(prefix.length())))
+                    .toList();
+            assertThat(offsets).isSorted();
+        }
+        assertThat(processor.getInFlight()).isZero();
+    }
+
+    @Test
+    void rewindsToFailedOffsetAndSkipsLaterRecordsOfThePartition() {
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Long> processed = Collections.synchronizedList(new ArrayList<>());
+        for (long offset = 0; offset < 6; offset++) {
+            processor.dispatch(record(offset, "region-a"), consumer, message -> {
+                long offsetOfMessage = Long.parseLong(message.getContent());
+                if (offsetOfMessage == 2 && failed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("boom");
+                }
+                processed.add(offsetOfMessage);
+            });
+        }
+
+        await().until(() -> processor.getInFlight() == 0);
+        processor.commit(consumer);
+
+        assertThat(processed).containsExactly(0L, 1L);
+        assertThat(committed()).isEqualTo(2);
+        assertThat(consumer.position(PARTITION)).isEqualTo(2);
+
+        // Leftovers from the old poll are ignored until the failed record is redelivered
+        processor.dispatch(record(3, "region-a"), consumer, message -> processed.add(-1L));
+        for (long offset = 2; offset < 6; offset++) {
+            processor.dispatch(record(offset, "region-a"), consumer,
+                    message -> processed.add(Long.parseLong(message.getContent())));
+        }
+
+        await().until(() -> processor.getInFlight() == 0);
+        processor.commit(consumer);
+
+        assertThat(processed).containsExactly(0L, 1L, 2L, 3L, 4L, 5L);
+        assertThat(committed()).isEqualTo(6);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void publishesARecordThatKeepsFailingToItsDeadLetterTopicBeforeCommittingIt() {
+        when(kafkaTemplate.send(any(ProducerRecord.class)))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker down")))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        ReflectionTestUtils.setField(processor, "maxAttempts", 1);
+
+        for (int delivery = 0; delivery < 2; delivery++) {
+            processor.dispatch(record(0, "region-a"), consumer, message -> {
+                throw new IllegalStateException("poison");
+            });
+            await().until(() -> processor.getInFlight() == 0);
+            processor.commit(consumer);
+        }
+
+        // The first publish failed, so the record was redelivered instead of being committed
+        ArgumentCaptor<ProducerRecord<String, Object>> deadLetter = ArgumentCaptor.forClass(ProducerRecord.class);
+        verify(kafkaTemplate, times(2)).send(deadLetter.capture());
+        assertThat(deadLetter.getValue().topic()).isEqualTo("dlt." + TOPIC);
+        assertThat(deadLetter.getValue().headers().lastHeader(KafkaHeaders.DLT_ORIGINAL_TOPIC).value())
+                .isEqualTo(TOPIC.getBytes());
+        assertThat(committed()).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void countsTheAttemptsOfAFailingRecordWhileOtherKeysOfThePartitionComplete() {
+        when(kafkaTemplate.send(any(ProducerRecord.class))).thenReturn(CompletableFuture.completedFuture(null));
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int delivery = 1; delivery <= 3; delivery++) {
+            int failuresBefore = delivery;
+            processor.dispatch(record(0, "region-a"), consumer, message -> {
+                failures.incrementAndGet();
+                throw new IllegalStateException("poison");
+            });
+            // Completes on another lane after the failure of offset 0
+            processor.dispatch(record(1, "region-b"), consumer, message -> {
+                await().until(() -> failures.get() == failuresBefore);
+                sleep(50);
+            });
+            await().until(() -> processor.getInFlight() == 0);
+            processor.commit(consumer);
+        }
+
+        verify(kafkaTemplate, times(1)).send(any(ProducerRecord.class));
+        assertThat(failures).hasValue(3);
+        assertThat(committed()).isEqualTo(2);
+    }
+
+    @Test
+    void commitsOnlyOnIdleEventsOfTheRecordListener() {
+        processor.dispatch(record(0, "region-a"), consumer, message -> { });
+        await().until(() -> processor.getInFlight() == 0);
+
+        // The dispatch committed the offset before the record completed
+        processor.onIdle(idleEvent("regionViewProjector-0"));
+        assertThat(committed()).isZero();
+
+        processor.onIdle(idleEvent(KafkaConsumerService.RECORD_LISTENER_ID + "-0"));
+        assertThat(committed()).isEqualTo(1);
+    }
+
+    private ListenerContainerIdleEvent idleEvent(String listenerId) {
+        return new ListenerContainerIdleEvent(this, this, 1000, listenerId, List.of(PARTITION), consumer, false);
+    }
+
+    private ConsumerRecord<String, KafkaMessage> record(long offset, String region) {
+        KafkaMessage message = new KafkaMessage(String.valueOf(offset), region);
+        return new ConsumerRecord<>(TOPIC, 0, offset, message.getId(), message);
+    }
+
+    private long committed() {
+        OffsetAndMetadata offset = consumer.committed(Collections.singleton(PARTITION)).get(PARTITION);
+        return offset == null ? -1 : offset.offset();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package dk.bko.service;
+
+import dk.bko.model.OutboxRoute;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.kafka.core.KafkaAdmin;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the route resolution and snapshot refresh of {@link OutboxRoutes}.
+ */
+public class OutboxRoutesTests {
+
+    private JdbcTemplate jdbcTemplate;
+    private OutboxRoutes routes;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:routes-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE INT_OUTBOX_ROUTE (REGION VARCHAR(100) PRIMARY KEY, " +
+                "TOPIC VARCHAR(249), PARTITIONS INT, UPDATED_DATE TIMESTAMP)");
+        routes = new OutboxRoutes(jdbcTemplate, new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class),
+                "message-outbox", 2, List.of("eu=message-outbox.eu:6", "us=message-outbox.eu"));
+        routes.load();
+    }
+
+    @Test
+    void resolvesConfiguredRoutesAndFallsBackToTheDefault() {
+        assertThat(routes.resolve("eu")).isEqualTo(new OutboxRoute("eu", "message-outbox.eu", 6));
+        // Routes to the same topic share its largest partition count
+        assertThat(routes.resolve("us")).isEqualTo(new OutboxRoute("us", "message-outbox.eu", 6));
+        assertThat(routes.resolve("asia").topic()).isEqualTo("message-outbox");
+        assertThat(routes.resolve(null).partitions()).isEqualTo(2);
+    }
+
+    @Test
+    void storedRoutesOverrideConfiguredOnes() {
+        routes.save(new OutboxRoute("eu", "message-outbox.eu-v2", 3));
+        assertThat(routes.resolve("eu")).isEqualTo(new OutboxRoute("eu", "message-outbox.eu-v2", 3));
+
+        assertThat(routes.delete("eu")).isTrue();
+        assertThat(routes.resolve("eu").topic()).isEqualTo("message-outbox.eu");
+    }
+
+    @Test
+    void savesARegionInsertedConcurrently() {
+        JdbcTemplate racing = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+            private boolean raced;
+
+            @Override
+            public int update(String sql, Object... args) {
+                int updated = super.update(sql, args);
+                if (!raced && sql.startsWith("UPDATE")) {
+                    // Another request inserts the region between this save's update and insert
+                    raced = true;
+                    super.update("INSERT INTO INT_OUTBOX_ROUTE VALUES (?, ?, ?, ?)",
+                            "asia", "message-outbox.other", 1, Timestamp.valueOf(LocalDateTime.now()));
+                }
+                return updated;
+            }
+        };
+        OutboxRoutes racingRoutes = new OutboxRoutes(racing,
+                new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class), "message-outbox", 2, List.of());
+
+        assertThat(racingRoutes.save(new OutboxRoute("asia", "message-outbox.asia", 4)))
+                .isEqualTo(new OutboxRoute("asia", "message-outbox.asia", 4));
+    }
+
+    @Test
+    void changesThePartitionsOfATopicForAllItsRoutes() {
+        assertThat(routes.partitionsOf("message-outbox.eu", 1)).isEqualTo(6);
+
+        routes.save(new OutboxRoute("eu", "message-outbox.eu", 8));
+        assertThat(routes.partitionsOf("message-outbox.eu", 1)).isEqualTo(8);
+        assertThat(routes.resolve("us").partitions()).isEqualTo(8);
+        assertThat(routes.partitionsOf("message-outbox.none", 1)).isEqualTo(1);
+    }
+
+    @Test
+    void rejectsRoutesToTopicsTheConsumersDoNotRead() {
+        assertThatThrownBy(() -> routes.save(new OutboxRoute("eu", "orders-eu", 3)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> routes.save(new OutboxRoute("eu", "message-outbox.", 3)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> routes.save(new OutboxRoute("eu", "message-outbox.a b", 3)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(OutboxRoutes.isLegalTopic("message-outbox.eu_v2-1")).isTrue();
+        assertThat(OutboxRoutes.isLegalTopic("message-outbox." + "x".repeat(240))).isFalse();
+        assertThatThrownBy(() -> new OutboxRoutes(jdbcTemplate,
+                new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class), "message-outbox", 2,
+                List.of("eu=orders-eu:6"))).isInstanceOf(IllegalArgumentException.class);
+        assertThat(routes.resolve("eu").topic()).isEqualTo("message-outbox.eu");
+    }
+
+    @Test
+    void loadsTheTableOnFirstUseIfNotLoadedYet() {
+        jdbcTemplate.update("INSERT INTO INT_OUTBOX_ROUTE VALUES (?, ?, ?, ?)",
+                "asia", "message-outbox.asia", 4, Timestamp.valueOf(LocalDateTime.now()));
+        OutboxRoutes unloaded = new OutboxRoutes(jdbcTemplate,
+                new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class), "message-outbox", 2, List.of());
+
+        assertThat(unloaded.resolve("asia")).isEqualTo(new OutboxRoute("asia", "message-outbox.asia", 4));
+    }
+
+    @Test
+    void picksUpRoutesStoredElsewhereOnRefresh() {
+        jdbcTemplate.update("INSERT INTO INT_OUTBOX_ROUTE VALUES (?, ?, ?, ?)",
+                "asia", "message-outbox.asia", 4, Timestamp.valueOf(LocalDateTime.now()));
+        assertThat(routes.resolve("asia").topic()).isEqualTo("message-outbox");
+
+        routes.refreshIfChanged();
+        assertThat(routes.resolve("asia")).isEqualTo(new OutboxRoute("asia", "message-outbox.asia", 4));
+    }
+
+    @Test
+    void storesNoRouteWhoseTopicCannotBeCreated() {
+        KafkaAdmin kafkaAdmin = mock(KafkaAdmin.class);
+        doThrow(new IllegalStateException("topic creation failed")).when(kafkaAdmin).createOrModifyTopics(any());
+        OutboxRoutes adminRoutes = new OutboxRoutes(jdbcTemplate, kafkaAdmin(kafkaAdmin), "message-outbox", 2,
+                List.of());
+
+        assertThatThrownBy(() -> adminRoutes.save(new OutboxRoute("eu", "message-outbox.eu", 3)))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(adminRoutes.resolve("eu").topic()).isEqualTo("message-outbox");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM INT_OUTBOX_ROUTE", Integer.class)).isZero();
+    }
+
+    @Test
+    void keepsThePreviousRouteUntilTheTopicOfAStoredRouteIsCreated() {
+        KafkaAdmin kafkaAdmin = mock(KafkaAdmin.class);
+        OutboxRoutes adminRoutes = new OutboxRoutes(jdbcTemplate, kafkaAdmin(kafkaAdmin), "message-outbox", 2,
+                List.of("eu=message-outbox.eu:6"));
+        adminRoutes.load();
+        jdbcTemplate.update("INSERT INTO INT_OUTBOX_ROUTE VALUES (?, ?, ?, ?)",
+                "eu", "message-outbox.eu", 8, Timestamp.valueOf(LocalDateTime.now()));
+        doThrow(new IllegalStateException("broker down")).when(kafkaAdmin).createOrModifyTopics(any());
+
+        adminRoutes.refreshIfChanged();
+        assertThat(adminRoutes.resolve("eu")).isEqualTo(new OutboxRoute("eu", "message-outbox.eu", 6));
+
+        // Retried on the next check although the table is unchanged
+        doNothing().when(kafkaAdmin).createOrModifyTopics(any());
+        adminRoutes.refreshIfChanged();
+        assertThat(adminRoutes.resolve("eu")).isEqualTo(new OutboxRoute("eu", "message-outbox.eu", 8));
+    }
+
+    private static ObjectProvider<KafkaAdmin> kafkaAdmin(KafkaAdmin kafkaAdmin) {
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("kafkaAdmin", kafkaAdmin);
+        return beanFactory.getBeanProvider(KafkaAdmin.class);
+    }
+
+    /**
+     * Routes over an empty table with the default topic only, loaded like the application loads them on startup.
+     * Shared with the relay tests and the allocation budgets and benchmarks.
+     */
+    static OutboxRoutes loadedRoutes() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:routes-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE INT_OUTBOX_ROUTE (REGION VARCHAR(100) PRIMARY KEY, " +
+                "TOPIC VARCHAR(249), PARTITIONS INT, UPDATED_DATE TIMESTAMP)");
+        OutboxRoutes routes = new OutboxRoutes(jdbcTemplate,
+                new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class), "message-outbox", 12, List.of());
+        routes.load();
+        return routes;
+    }
+}
@@ -0,0 +1,258 @@
+package dk.bko.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import dk.bko.jdbc.ConnectionLimitingDataSource;
+import dk.bko.jdbc.DeliverAfterPreparedStatementSetter;
+import dk.bko.jdbc.OutboxClaimer;
+import dk.bko.jdbc.OutboxH2QueryProvider;
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.OutboxRoute;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.boot.test.system.CapturedOutput;
+import org.springframework.boot.test.system.OutputCaptureExtension;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.support.converter.AllowListDeserializingConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.mock.MockProducerFactory;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import org.springframework.messaging.Message;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the relay lanes, the shard relays and the transactional relay of {@link OutboxScheduler}.
+ */
+@ExtendWith(OutputCaptureExtension.class)
+public class OutboxSchedulerTests {
+
+    private final OutboxClaimer claimer = mock(OutboxClaimer.class);
+    private final AdaptiveRelayController controller = mock(AdaptiveRelayController.class);
+    @SuppressWarnings("unchecked")
+    private final KafkaTemplate<String, Object> kafkaTemplate = mock(KafkaTemplate.class);
+    private final AtomicInteger unclaimed = new AtomicInteger();
+    private final List<String> claims = new ArrayList<>();
+
+    private OutboxRoutes routes;
+    private OutboxScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        // Claims up to the limit from the unclaimed messages; the oldest ones in sequence order
+        when(claimer.claim(anyString(), anyBoolean(), anyLong(), anyInt())).thenAnswer(invocation -> {
+            boolean priorityOrder = invocation.getArgument(1);
+            long afterSequence = invocation.getArgument(2);
+            int limit = invocation.getArgument(3);
+            claims.add(priorityOrder ? "urgent " + limit : "oldest " + limit + " after " + afterSequence);
+            int count = Math.min(limit, unclaimed.get());
+            unclaimed.addAndGet(-count);
+            List<Message<?>> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(JdbcOutboxService.outboxMessage(new KafkaMessage("content", "eu"), "eu", 0, null));
+            }
+            return new OutboxClaimer.Claim(messages, priorityOrder ? afterSequence : afterSequence + count);
+        });
+        when(controller.batchSize()).thenReturn(2);
+        when(controller.template()).thenReturn(kafkaTemplate);
+        when(kafkaTemplate.send(anyString(), any(), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:scheduler-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE INT_OUTBOX_ROUTE (REGION VARCHAR(100) PRIMARY KEY, " +
+                "TOPIC VARCHAR(249), PARTITIONS INT, UPDATED_DATE TIMESTAMP)");
+        routes = new OutboxRoutes(jdbcTemplate, new StaticListableBeanFactory().getBeanProvider(KafkaAdmin.class),
+                "message-outbox", 1, List.of("eu=message-outbox.eu:2"));
+        routes.load();
+        OutboxShards shards = mock(OutboxShards.class);
+        when(shards.count()).thenReturn(1);
+        scheduler = new OutboxScheduler(shards, claimer, controller, new OutboxPartitioner("region", 1), routes,
+                mock(OutboxRelayMetrics.class), dataSource, 0, 0, new StaticListableBeanFactory().getBeanProvider(ThreadFactory.class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void givesEachTopicOneLanePerPartition() {
+        ExecutorService[] lanes = scheduler.lanesOf("message-outbox.eu");
+
+        assertThat(lanes).hasSize(2);
+        assertThat(scheduler.lanesOf("message-outbox.eu")).isSameAs(lanes);
+        assertThat(scheduler.lanesOf("message-outbox")).hasSize(1);
+    }
+
+    @Test
+    void resizesTheLanesWhenThePartitionsOfATopicChange() {
+        ExecutorService[] lanes = scheduler.lanesOf("message-outbox.eu");
+
+        routes.save(new OutboxRoute("eu", "message-outbox.eu", 4));
+        ExecutorService[] grown = scheduler.lanesOf("message-outbox.eu");
+        assertThat(grown).hasSize(4);
+        assertThat(grown[0]).isSameAs(lanes[0]);
+        assertThat(grown[1]).isSameAs(lanes[1]);
+
+        routes.save(new OutboxRoute("eu", "message-outbox.eu", 1));
+        ExecutorService[] shrunk = scheduler.lanesOf("message-outbox.eu");
+        assertThat(shrunk).containsExactly(lanes[0]);
+        assertThat(grown[1].isShutdown()).isTrue();
+        assertThat(grown[3].isShutdown()).isTrue();
+        assertThat(lanes[0].isShutdown()).isFalse();
+    }
+
+    @Test
+    void relaysTheShardUntilABatchIsNotFull() {
+        unclaimed.set(3);
+
+        scheduler.processOutboxMessages();
+
+        assertThat(claims).containsExactly("urgent 2", "urgent 2");
+        verify(kafkaTemplate, times(3)).send(eq("message-outbox.eu"), any(), any(), any());
+        verify(controller).recordBatch(eq(2), eq(2), anyLong(), eq(false));
+        verify(controller).recordBatch(eq(1), eq(2), anyLong(), eq(false));
+        assertThat(scheduler.isRelaying()).isFalse();
+    }
+
+    @Test
+    void claimsTheOldestMessageOnceEveryFifoClaimInterval() {
+        ReflectionTestUtils.setField(scheduler, "fifoClaimInterval", 4);
+        unclaimed.set(8);
+
+        scheduler.processOutboxMessages();
+
+        assertThat(claims).containsExactly("urgent 2", "urgent 1", "oldest 1 after 0",
+                "urgent 2", "urgent 1", "oldest 1 after 1", "urgent 2");
+    }
+
+    @Test
+    void claimsTheOldestMessagesFromTheStartAgainOnEveryRun() {
+        ReflectionTestUtils.setField(scheduler, "fifoClaimInterval", 1);
+        unclaimed.set(3);
+        scheduler.processOutboxMessages();
+        claims.clear();
+
+        scheduler.processOutboxMessages();
+
+        assertThat(claims).containsExactly("urgent 0", "oldest 2 after 0");
+    }
+
+    @Test
+    void keepsAFailedBatchForTheNextRun() {
+        when(kafkaTemplate.send(anyString(), any(), any(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker down")));
+        unclaimed.set(4);
+
+        scheduler.processOutboxMessages();
+
+        assertThat(claims).containsExactly("urgent 2");
+        verify(controller).recordBatch(eq(2), eq(2), anyLong(), eq(true));
+        assertThat(scheduler.isRelaying()).isFalse();
+    }
+
+    @Test
+    void abortsAFailedTransactionalBatchAndKeepsItsMessagesForTheNextRun() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:scheduler-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE SEQUENCE INT_MESSAGE_SEQ");
+        jdbcTemplate.execute("CREATE TABLE INT_CHANNEL_MESSAGE (MESSAGE_ID VARCHAR(255) NOT NULL, " +
+                "GROUP_KEY VARCHAR(36) NOT NULL, CREATED_DATE BIGINT NOT NULL, MESSAGE_PRIORITY BIGINT, " +
+                "MESSAGE_SEQUENCE BIGINT NOT NULL, MESSAGE_BYTES BLOB, REGION VARCHAR(100) NOT NULL, " +
+                "DELIVER_AFTER BIGINT, PRIMARY KEY (REGION, GROUP_KEY, MESSAGE_SEQUENCE))");
+        JdbcChannelMessageStore store = new JdbcChannelMessageStore(dataSource);
+        store.setChannelMessageStoreQueryProvider(new OutboxH2QueryProvider());
+        store.setPreparedStatementSetter(new DeliverAfterPreparedStatementSetter());
+        store.setPriorityEnabled(true);
+        for (int i = 0; i < 2; i++) {
+            store.addMessageToGroup(OutboxShards.groupId(0),
+                    JdbcOutboxService.outboxMessage(new KafkaMessage("content-" + i, "eu"), "eu", 0, null));
+        }
+        // The sends of the first producer fail
+        List<MockProducer<String, Object>> producers = new ArrayList<>();
+        KafkaTemplate<String, Object> transactionalTemplate = new KafkaTemplate<>(new MockProducerFactory<>(
+                (transactional, transactionId) -> {
+                    MockProducer<String, Object> producer =
+                            new MockProducer<>(true, new StringSerializer(), new JsonSerializer<>());
+                    producer.initTransactions();
+                    if (producers.isEmpty()) {
+                        producer.sendException = new KafkaException("broker down");
+                    }
+                    producers.add(producer);
+                    return producer;
+                }, "outbox-relay-"));
+        when(controller.batchSize()).thenReturn(10);
+        when(controller.template()).thenReturn(transactionalTemplate);
+        OutboxShards shards = mock(OutboxShards.class);
+        when(shards.count()).thenReturn(1);
+        OutboxScheduler transactionalScheduler = new OutboxScheduler(shards, new OutboxClaimer(dataSource,
+                new OutboxH2QueryProvider(), store.getRegion(), new AllowListDeserializingConverter()), controller,
+                new OutboxPartitioner("region", 1), routes, mock(OutboxRelayMetrics.class), dataSource, 0, 0,
+                new StaticListableBeanFactory().getBeanProvider(ThreadFactory.class));
+        try {
+            transactionalScheduler.processOutboxMessages();
+
+            assertThat(producers.get(0).transactionAborted()).isTrue();
+            assertThat(producers.get(0).transactionCommitted()).isFalse();
+            verify(controller).recordBatch(eq(2), eq(10), anyLong(), eq(true));
+            assertThat(store.messageGroupSize(OutboxShards.groupId(0))).isEqualTo(2);
+
+            transactionalScheduler.processOutboxMessages();
+
+            MockProducer<String, Object> producer = producers.get(producers.size() - 1);
+            assertThat(producer.transactionCommitted()).isTrue();
+            assertThat(producer.history()).extracting(ProducerRecord::topic)
+                    .containsExactly("message-outbox.eu", "message-outbox.eu");
+            assertThat(store.messageGroupSize(OutboxShards.groupId(0))).isZero();
+        } finally {
+            transactionalScheduler.shutdown();
+        }
+    }
+
+    @Test
+    void warnsWhenTheRelayPoolIsTooSmallForTheShards(CapturedOutput output) {
+        OutboxShards shards = mock(OutboxShards.class);
+        when(shards.count()).thenReturn(2);
+        try (HikariDataSource pool = new HikariDataSource()) {
+            pool.setJdbcUrl("jdbc:h2:mem:scheduler-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+            pool.setMaximumPoolSize(2);
+
+            new OutboxScheduler(shards, claimer, controller, new OutboxPartitioner("region", 1), routes,
+                    mock(OutboxRelayMetrics.class), new ConnectionLimitingDataSource(pool, 2, 50), 0, 0,
+                    new StaticListableBeanFactory().getBeanProvider(ThreadFactory.class)).shutdown();
+        }
+
+        assertThat(output).contains("The relay pool has 2 connections for 2 outbox shards");
+    }
+}
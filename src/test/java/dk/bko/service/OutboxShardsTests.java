@@ -0,0 +1,46 @@
+package dk.bko.service;
+
+import dk.bko.config.OutboxConfig;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for the assignment of messages to {@link OutboxShards}.
+ */
+public class OutboxShardsTests {
+
+    @Test
+    void keepsTheUnshardedGroupAsFirstShard() {
+        OutboxShards shards = shards(1, "region");
+
+        assertThat(OutboxShards.groupId(0)).isEqualTo(OutboxConfig.OUTBOX_GROUP);
+        assertThat(shards.shardFor(UUID.randomUUID().toString(), "europe")).isZero();
+    }
+
+    @Test
+    void assignsMessagesWithTheSameKeyToTheSameShard() {
+        OutboxShards byRegion = shards(4, "region");
+        OutboxShards byMessageId = shards(4, "message-id");
+        Set<Integer> regionShards = new HashSet<>();
+        Set<Integer> messageShards = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String messageId = UUID.randomUUID().toString();
+            regionShards.add(byRegion.shardFor(messageId, "europe"));
+            messageShards.add(byMessageId.shardFor(messageId, "europe"));
+        }
+
+        assertThat(regionShards).hasSize(1);
+        assertThat(messageShards).containsExactlyInAnyOrder(0, 1, 2, 3);
+    }
+
+    private static OutboxShards shards(int count, String keyStrategy) {
+        return new OutboxShards(count, new OutboxPartitioner(keyStrategy, 1), mock(JdbcChannelMessageStore.class));
+    }
+}
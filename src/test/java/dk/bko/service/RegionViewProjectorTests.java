@@ -0,0 +1,83 @@
+package dk.bko.service;
+
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.RegionLatest;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for how {@link RegionViewProjector} maintains the latest messages of a region.
+ */
+public class RegionViewProjectorTests {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2025, 1, 1, 12, 0);
+
+    @Test
+    void keepsNewestMessagesFirstUpToTheSize() {
+        List<KafkaMessage> latest = List.of();
+        for (int i = 0; i < 4; i++) {
+            latest = RegionViewProjector.merge(latest, message("m" + i, NOW.plusSeconds(i)), 3);
+        }
+        // A late message older than the kept ones, and one in between
+        latest = RegionViewProjector.merge(latest, message("late", NOW.minusSeconds(1)), 3);
+        latest = RegionViewProjector.merge(latest, message("between", NOW.plusNanos(2_500_000_000L)), 3);
+
+        assertThat(latest).extracting(KafkaMessage::getId).containsExactly("m3", "between", "m2");
+    }
+
+    @Test
+    void returnsCurrentListForDuplicatesAndTooOldMessages() {
+        List<KafkaMessage> latest = List.of(message("b", NOW.plusSeconds(1)), message("a", NOW));
+
+        assertThat(RegionViewProjector.merge(latest, message("a", NOW), 2)).isSameAs(latest);
+        assertThat(RegionViewProjector.merge(latest, message("old", NOW.minusDays(1)), 2)).isSameAs(latest);
+        assertThat(RegionViewProjector.merge(latest, message("old", NOW.minusDays(1)), 3)).hasSize(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void waitsForTheRegionViewToCatchUpAfterEachRebalance() throws Exception {
+        KafkaTemplate<String, Object> kafkaTemplate = mock(KafkaTemplate.class);
+        when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        RegionView regionView = mock(RegionView.class);
+        when(regionView.awaitCaughtUp(any(Duration.class))).thenReturn(false, true);
+        when(regionView.latest(anyString(), anyInt())).thenReturn(List.of(message("previous", NOW)));
+        RegionViewProjector projector = new RegionViewProjector(kafkaTemplate, regionView);
+        ReflectionTestUtils.setField(projector, "topic", "message-region-view");
+        ReflectionTestUtils.setField(projector, "latestSize", 2);
+
+        assertThatThrownBy(() -> projector.project(message("m1", NOW.plusSeconds(1))))
+                .isInstanceOf(IllegalStateException.class);
+        projector.project(message("m1", NOW.plusSeconds(1)));
+        projector.project(message("m2", NOW.plusSeconds(2)));
+
+        verify(regionView, times(2)).awaitCaughtUp(any(Duration.class));
+        verify(kafkaTemplate).send(eq("message-region-view"), eq("europe"), eq(new RegionLatest("europe",
+                List.of(message("m2", NOW.plusSeconds(2)), message("m1", NOW.plusSeconds(1))))));
+
+        projector.onPartitionsAssigned(List.of());
+        projector.project(message("m3", NOW.plusSeconds(3)));
+        verify(regionView, times(3)).awaitCaughtUp(any(Duration.class));
+    }
+
+    private static KafkaMessage message(String id, LocalDateTime timestamp) {
+        return new KafkaMessage(id, "content", "europe", timestamp);
+    }
+}
@@ -0,0 +1,137 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.RegionLatest;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the snapshot and the catch-up of {@link RegionView}, reading the topic from mock consumers.
+ */
+public class RegionViewTests {
+
+    private static final String TOPIC = "message-region-view";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final List<RegionView> views = new ArrayList<>();
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (RegionView view : views) {
+            view.shutdown();
+        }
+    }
+
+    @Test
+    void writesASnapshotOnShutdownAndResumesAfterIt() throws Exception {
+        MockConsumer<String, Object> first = consumer(0, 2);
+        first.schedulePollTask(() -> {
+            first.addRecord(record(0, "eu", message("a")));
+            first.addRecord(record(1, "us", message("b")));
+        });
+        RegionView view = start(first);
+        assertThat(view.awaitReady(TIMEOUT)).isTrue();
+        view.shutdown();
+
+        // Only the record after the snapshot is read again
+        MockConsumer<String, Object> second = consumer(0, 3);
+        second.schedulePollTask(() -> second.addRecord(record(2, "eu", message("c"))));
+        RegionView restored = start(second);
+
+        assertThat(restored.latest("us", 10)).extracting(KafkaMessage::getId).containsExactly("b");
+        assertThat(restored.awaitReady(TIMEOUT)).isTrue();
+        assertThat(restored.latest("eu", 10)).extracting(KafkaMessage::getId).containsExactly("c");
+    }
+
+    @Test
+    void rebuildsFromTheTopicWhenTheSnapshotIsUnreadable() throws Exception {
+        Files.writeString(directory.resolve("region-view.json"), "{not json");
+        MockConsumer<String, Object> consumer = consumer(0, 1);
+        consumer.schedulePollTask(() -> consumer.addRecord(record(0, "eu", message("a"))));
+
+        RegionView view = start(consumer);
+
+        assertThat(view.awaitReady(TIMEOUT)).isTrue();
+        assertThat(view.latest("eu", 10)).extracting(KafkaMessage::getId).containsExactly("a");
+    }
+
+    @Test
+    void waitsForRecordsPublishedAfterItBecameReady() throws Exception {
+        MockConsumer<String, Object> consumer = consumer(0, 0);
+        MockConsumer<String, Object> endOffsets = consumer(0, 1);
+        RegionView view = start(consumer, endOffsets);
+        assertThat(view.awaitReady(TIMEOUT)).isTrue();
+
+        consumer.schedulePollTask(() -> consumer.addRecord(record(0, "eu", message("a"))));
+
+        assertThat(view.awaitCaughtUp(TIMEOUT)).isTrue();
+        assertThat(view.latest("eu", 10)).extracting(KafkaMessage::getId).containsExactly("a");
+    }
+
+    @Test
+    void givesUpWhenTheViewDoesNotCatchUp() throws Exception {
+        MockConsumer<String, Object> consumer = consumer(0, 0);
+        RegionView view = start(consumer, consumer(0, 1));
+        assertThat(view.awaitReady(TIMEOUT)).isTrue();
+
+        assertThat(view.awaitCaughtUp(Duration.ofMillis(200))).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    private RegionView start(MockConsumer<String, Object> consumer, MockConsumer<?, ?>... others) {
+        ConsumerFactory<String, Object> consumerFactory = mock(ConsumerFactory.class);
+        when(consumerFactory.createConsumer(any(), any(), any(), any()))
+                .thenReturn(consumer, (MockConsumer<String, Object>[]) others);
+        RegionView view = new RegionView(consumerFactory, objectMapper);
+        ReflectionTestUtils.setField(view, "topic", TOPIC);
+        ReflectionTestUtils.setField(view, "snapshotPath", directory.resolve("region-view.json"));
+        ReflectionTestUtils.setField(view, "snapshotIntervalMs", 60_000L);
+        ReflectionTestUtils.setField(view, "retryBackoffMs", 60_000L);
+        views.add(view);
+        view.start();
+        return view;
+    }
+
+    private static MockConsumer<String, Object> consumer(long beginning, long end) {
+        MockConsumer<String, Object> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.updatePartitions(TOPIC, List.of(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, beginning));
+        consumer.updateEndOffsets(Map.of(PARTITION, end));
+        return consumer;
+    }
+
+    private static ConsumerRecord<String, Object> record(long offset, String region, KafkaMessage message) {
+        return new ConsumerRecord<>(TOPIC, 0, offset, region, new RegionLatest(region, List.of(message)));
+    }
+
+    private static KafkaMessage message(String id) {
+        return new KafkaMessage(id, "content", "eu", LocalDateTime.of(2025, 1, 1, 12, 0));
+    }
+}
@@ -0,0 +1,171 @@
+package dk.bko.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import dk.bko.entity.Message;
+import dk.bko.model.KafkaMessage;
+import dk.bko.model.ReplayJob;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the keyset paging and checkpointing of {@link ReplayService}, with H2 and a mocked producer.
+ */
+public class ReplayServiceTests {
+
+    private static final LocalDateTime START = LocalDateTime.of(2025, 1, 1, 0, 0);
+
+    private final List<ProducerRecord<String, Object>> sent = new CopyOnWriteArrayList<>();
+    private JdbcTemplate jdbcTemplate;
+    private ReplayService service;
+    private long messages;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:replay-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE INT_MESSAGE (MESSAGE_ID UUID PRIMARY KEY, REGION VARCHAR(100), " +
+                "CREATED_DATE TIMESTAMP, MESSAGE_FORMAT VARCHAR(20), MESSAGE_BYTES BYTEA)");
+        jdbcTemplate.execute("CREATE TABLE INT_REPLAY_JOB (JOB_ID UUID PRIMARY KEY, REGION VARCHAR(100), " +
+                "FROM_DATE TIMESTAMP, TO_DATE TIMESTAMP, TARGET_TOPIC VARCHAR(255), RATE_PER_SECOND INT, " +
+                "STATUS VARCHAR(20), PUBLISHED BIGINT, LAST_CREATED_DATE TIMESTAMP, LAST_MESSAGE_ID UUID, " +
+                "ERROR VARCHAR(1000), CREATED_DATE TIMESTAMP, UPDATED_DATE TIMESTAMP, OWNER VARCHAR(255), " +
+                "LEASE_UNTIL TIMESTAMP)");
+
+        KafkaTemplate<String, Object> kafkaTemplate = mock(KafkaTemplate.class);
+        when(kafkaTemplate.send(any(ProducerRecord.class))).thenAnswer(invocation -> {
+            sent.add(invocation.getArgument(0));
+            return CompletableFuture.completedFuture(null);
+        });
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        service = new ReplayService(jdbcTemplate, dataSource, kafkaTemplate, new OutboxPartitioner("region", 1),
+                mock(OutboxScheduler.class), objectMapper, new SimpleMeterRegistry(), 1);
+        ReflectionTestUtils.setField(service, "pageSize", 2);
+        ReflectionTestUtils.setField(service, "fetchSize", 2);
+        ReflectionTestUtils.setField(service, "leaseMs", 60000L);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        service.shutdown();
+    }
+
+    @Test
+    void publishesRangeOfRegionInCreationOrderAndCheckpoints() throws Exception {
+        // Two messages share a creation time, so the page boundary falls between equal timestamps
+        UUID first = insert("europe", START, "one");
+        UUID second = insert("europe", START.plusSeconds(1), "two");
+        UUID third = insert("europe", START.plusSeconds(1), "three");
+        insert("asia", START.plusSeconds(2), "other region");
+        UUID fourth = insert("europe", START.plusSeconds(3), "four");
+        insert("europe", START.plusSeconds(10), "after the range");
+
+        ReplayJob job = service.start("europe", START, START.plusSeconds(10), "replay", 1000);
+        ReplayJob completed = awaitFinished(job.jobId());
+
+        assertThat(completed.status()).isEqualTo(ReplayJob.Status.COMPLETED);
+        assertThat(completed.published()).isEqualTo(4);
+        assertThat(completed.lastMessageId()).isEqualTo(fourth);
+        assertThat(sent).extracting(record -> ((KafkaMessage) record.value()).getId())
+                .containsExactly(first.toString(), second.toString(), third.toString(), fourth.toString());
+        assertThat(sent).allSatisfy(record -> {
+            assertThat(record.topic()).isEqualTo("replay");
+            assertThat(record.key()).isEqualTo("europe");
+            assertThat(new String(record.headers().lastHeader("replay-job").value(), StandardCharsets.UTF_8))
+                    .isEqualTo(job.jobId().toString());
+        });
+    }
+
+    @Test
+    void republishesStoredOutboxMessageAsItWas() throws Exception {
+        KafkaMessage original = new KafkaMessage("content", "europe");
+        byte[] json = new ObjectMapper().registerModule(new JavaTimeModule()).writeValueAsBytes(original);
+
+        KafkaMessage replayed = service.toKafkaMessage(UUID.fromString(original.getId()), "europe", START,
+                Message.Format.OUTBOX, json);
+
+        assertThat(replayed.getId()).isEqualTo(original.getId());
+        assertThat(replayed.getContent()).isEqualTo("content");
+        // Raw content is published as it is, even when it is the JSON of a message
+        assertThat(service.toKafkaMessage(UUID.randomUUID(), "europe", START, Message.Format.RAW, json)
+                .getContent()).isEqualTo(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void resumesAJobOfAnotherInstanceOnlyOnceItsLeaseExpired() throws Exception {
+        insert("europe", START, "one");
+        UUID jobId = UUID.randomUUID();
+        jdbcTemplate.update("INSERT INTO INT_REPLAY_JOB (JOB_ID, REGION, FROM_DATE, TO_DATE, TARGET_TOPIC, " +
+                "RATE_PER_SECOND, STATUS, PUBLISHED, CREATED_DATE, UPDATED_DATE, OWNER, LEASE_UNTIL) " +
+                "VALUES (?, 'europe', ?, ?, 'replay', 1000, 'RUNNING', 0, ?, ?, 'other', ?)",
+                jobId, Timestamp.valueOf(START), Timestamp.valueOf(START.plusSeconds(10)), Timestamp.valueOf(START),
+                Timestamp.valueOf(START), Timestamp.valueOf(LocalDateTime.now().plusMinutes(1)));
+
+        assertThatThrownBy(() -> service.resume(jobId)).isInstanceOf(IllegalStateException.class);
+        assertThat(sent).isEmpty();
+
+        jdbcTemplate.update("UPDATE INT_REPLAY_JOB SET LEASE_UNTIL = ? WHERE JOB_ID = ?",
+                Timestamp.valueOf(LocalDateTime.now().minusSeconds(1)), jobId);
+        service.resume(jobId);
+        ReplayJob completed = awaitFinished(jobId);
+
+        assertThat(completed.status()).isEqualTo(ReplayJob.Status.COMPLETED);
+        assertThat(completed.owner()).isNotEqualTo("other");
+        assertThat(sent).hasSize(1);
+    }
+
+    @Test
+    void leavesTheStatusOfAJobOwnedByAnotherInstanceAlone() throws Exception {
+        insert("europe", START, "one");
+        ReplayJob job = service.start("europe", START, START.plusSeconds(10), "replay", 1000);
+        awaitFinished(job.jobId());
+        jdbcTemplate.update("UPDATE INT_REPLAY_JOB SET STATUS = 'PAUSED' WHERE JOB_ID = ?", job.jobId());
+        jdbcTemplate.update("UPDATE INT_REPLAY_JOB SET OWNER = 'other' WHERE JOB_ID = ?", job.jobId());
+
+        // The status of a job this instance does not own is left alone
+        ReflectionTestUtils.invokeMethod(service, "updateStatus", job.jobId(), ReplayJob.Status.FAILED, "error");
+
+        assertThat(service.get(job.jobId()).orElseThrow().status()).isEqualTo(ReplayJob.Status.PAUSED);
+    }
+
+    private UUID insert(String region, LocalDateTime createdDate, String content) {
+        UUID messageId = new UUID(1, ++messages);
+        jdbcTemplate.update("INSERT INTO INT_MESSAGE VALUES (?, ?, ?, ?, ?)", messageId, region,
+                Timestamp.valueOf(createdDate), Message.Format.RAW.name(), content.getBytes(StandardCharsets.UTF_8));
+        return messageId;
+    }
+
+    private ReplayJob awaitFinished(UUID jobId) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            ReplayJob job = service.get(jobId).orElseThrow();
+            if (job.status() != ReplayJob.Status.RUNNING) {
+                return job;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Replay job " + jobId + " did not finish");
+    }
+}
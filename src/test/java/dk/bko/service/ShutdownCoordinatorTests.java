@@ -0,0 +1,76 @@
+package dk.bko.service;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.integration.kafka.inbound.KafkaMessageDrivenChannelAdapter;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the order of the steps of {@link ShutdownCoordinator}.
+ */
+public class ShutdownCoordinatorTests {
+
+    @Test
+    void drainsIngestThenRelaysThenConsumers() throws Exception {
+        OutboxScheduler outboxScheduler = mock(OutboxScheduler.class);
+        when(outboxScheduler.stopRelaying(anyLong())).thenReturn(true);
+        JournalOutbox journalOutbox = mock(JournalOutbox.class);
+        when(journalOutbox.stopRelaying(anyLong())).thenReturn(true);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("journalOutbox", journalOutbox);
+        KafkaTemplate<String, Object> kafkaTemplate = mock(KafkaTemplate.class);
+        MessageListenerContainer container = mock(MessageListenerContainer.class);
+        when(container.isRunning()).thenReturn(true);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(container).stop(any(Runnable.class));
+        KafkaListenerEndpointRegistry registry = mock(KafkaListenerEndpointRegistry.class);
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+
+        ObjectProvider<KafkaMessageDrivenChannelAdapter<?, ?>> channelAdapters = mock(ObjectProvider.class);
+        when(channelAdapters.orderedStream()).thenReturn(Stream.empty());
+
+        ShutdownCoordinator coordinator = new ShutdownCoordinator(outboxScheduler,
+                beanFactory.getBeanProvider(CdcOutboxRelay.class), beanFactory.getBeanProvider(JournalOutbox.class),
+                registry, channelAdapters, beanFactory.getBeanProvider(OrderedParallelProcessor.class),
+                kafkaTemplate, kafkaTemplate, mock(ApplicationEventPublisher.class));
+        ReflectionTestUtils.setField(coordinator, "drainTimeoutMs", 5000L);
+        coordinator.start();
+
+        assertThat(coordinator.admitIngest()).isTrue();
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(coordinator::stop);
+        Thread.sleep(100);
+        assertThat(coordinator.admitIngest()).isFalse();
+        assertThat(stopped).isNotDone(); // waits for the ingest request in flight
+
+        coordinator.ingestCompleted();
+        stopped.get(5, TimeUnit.SECONDS);
+
+        InOrder order = inOrder(outboxScheduler, journalOutbox, kafkaTemplate, container);
+        order.verify(outboxScheduler).stopRelaying(anyLong());
+        order.verify(journalOutbox).stopRelaying(anyLong());
+        order.verify(kafkaTemplate).flush();
+        order.verify(container).stop(any(Runnable.class));
+        assertThat(coordinator.isRunning()).isFalse();
+    }
+}
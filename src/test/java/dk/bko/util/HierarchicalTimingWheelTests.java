@@ -0,0 +1,54 @@
+package dk.bko.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link HierarchicalTimingWheel}.
+ */
+public class HierarchicalTimingWheelTests {
+
+    @Test
+    void expiresItemsNoEarlierThanTheirDeadlineAndAtMostOneTickLater() {
+        long start = 1_000_000;
+        HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<>(10, 8, start);
+        Random random = new Random(42);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Spread over several wheel levels (level intervals are 80 ms, 640 ms and 5120 ms)
+            long deadline = start + 1 + random.nextInt(20_000);
+            deadlines.add(deadline);
+            assertThat(wheel.schedule(deadline, deadline)).isTrue();
+        }
+        assertThat(wheel.size()).isEqualTo(1000);
+
+        List<Long> expired = new ArrayList<>();
+        for (long now = start; now <= start + 21_000; now += 7) {
+            for (long deadline : wheel.advance(now)) {
+                assertThat(deadline).isLessThanOrEqualTo(now);
+                assertThat(now - deadline).isLessThan(10 + 7);
+                expired.add(deadline);
+            }
+        }
+
+        assertThat(expired).containsExactlyInAnyOrderElementsOf(deadlines);
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    void rejectsItemsWhoseDeadlineHasPassed() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(10, 8, 1000);
+        wheel.advance(2000);
+
+        assertThat(wheel.schedule("late", 1500)).isFalse();
+        assertThat(wheel.schedule("due", 2000)).isFalse();
+        assertThat(wheel.schedule("soon", 2001)).isTrue();
+        assertThat(wheel.advance(2009)).isEmpty();
+        assertThat(wheel.advance(2010)).containsExactly("soon");
+    }
+}
@@ -0,0 +1,74 @@
+package dk.bko.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the segments, cursor and crash recovery of {@link MappedJournal}.
+ */
+public class MappedJournalTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rollsSegmentsAndDeletesThemOnceAcknowledged() throws IOException {
+        try (MappedJournal journal = new MappedJournal(directory, 64, true)) {
+            for (int i = 0; i < 6; i++) {
+                journal.sync(journal.append(record("record-" + i))); // 16 bytes per frame, 4 per segment
+            }
+            journal.append(record("a record of more than 24 bytes")); // does not fit, starts the third segment
+            assertThat(journal.segmentCount()).isEqualTo(3);
+
+            List<MappedJournal.Entry> entries = journal.read(journal.cursor(), 10);
+            assertThat(entries).extracting(entry -> new String(entry.data(), StandardCharsets.UTF_8)).containsExactly(
+                    "record-0", "record-1", "record-2", "record-3", "record-4", "record-5",
+                    "a record of more than 24 bytes");
+
+            journal.acknowledge(entries.get(4).next());
+            assertThat(journal.segmentCount()).isEqualTo(2);
+            assertThat(journal.read(journal.cursor(), 1)).extracting(MappedJournal.Entry::position)
+                    .containsExactly(entries.get(5).position());
+        }
+    }
+
+    @Test
+    void resumesAtCursorAndDropsTornRecordAfterRestart() throws IOException {
+        long torn;
+        try (MappedJournal journal = new MappedJournal(directory, 1024, true)) {
+            journal.append(record("consumed"));
+            journal.acknowledge(journal.read(journal.cursor(), 1).get(0).next());
+            journal.append(record("pending"));
+            torn = journal.append(record("torn by a crash")) - "torn by a crash".length();
+        }
+        // Corrupt the data of the last record, as if the crash happened before all of it reached the disk
+        try (Stream<Path> files = Files.list(directory);
+             RandomAccessFile segment = new RandomAccessFile(
+                     files.filter(p -> p.toString().endsWith(".journal")).findFirst().orElseThrow().toFile(), "rw")) {
+            segment.seek(torn);
+            segment.write('X');
+        }
+
+        try (MappedJournal journal = new MappedJournal(directory, 1024, true)) {
+            journal.append(record("after restart"));
+
+            assertThat(journal.read(journal.cursor(), 10))
+                    .extracting(entry -> new String(entry.data(), StandardCharsets.UTF_8))
+                    .containsExactly("pending", "after restart");
+        }
+    }
+
+    private static byte[] record(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+package dk.bko.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link RingBuffer}.
+ */
+public class RingBufferTests {
+
+    @Test
+    void overwritesTheOldestElementsWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3);
+        for (int i = 1; i <= 3; i++) {
+            assertThat(buffer.offer(i, true)).isTrue();
+        }
+        assertThat(buffer.offer(4, true)).isFalse();
+        assertThat(buffer.offer(5, true)).isFalse();
+
+        assertThat(buffer.drain()).containsExactly(3, 4, 5);
+        assertThat(buffer.isEmpty()).isTrue();
+
+        buffer.offer(6, true);
+        assertThat(buffer.drain()).containsExactly(6);
+    }
+
+    @Test
+    void refusesElementsWhenFullWithoutOverwrite() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        buffer.offer(1, false);
+        buffer.offer(2, false);
+
+        assertThat(buffer.offer(3, false)).isFalse();
+        assertThat(buffer.drain()).containsExactly(1, 2);
+    }
+}
@@ -0,0 +1,50 @@
+package dk.bko.util;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link SampledLogger}.
+ */
+public class SampledLoggerTests {
+
+    private final AtomicLong now = new AtomicLong();
+    private final Logger logger = mock(Logger.class);
+
+    @Test
+    void logsAtMostTheRatePerSecondAndReportsTheDroppedLines() {
+        when(logger.isInfoEnabled()).thenReturn(true);
+        SampledLogger sampledLogger = new SampledLogger(logger, 2, now::get);
+
+        for (int i = 0; i < 5; i++) {
+            sampledLogger.info("line {}", i);
+        }
+        verify(logger, times(2)).info(anyString(), (Object) any());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        sampledLogger.info("line {}", 5);
+        verify(logger).info("Sampling dropped {} log lines, logging at most {} per second", 3L, 2);
+        verify(logger).info("line {}", 5);
+    }
+
+    @Test
+    void logsEveryLineWithoutARate() {
+        when(logger.isInfoEnabled()).thenReturn(true);
+        SampledLogger sampledLogger = new SampledLogger(logger, 0, now::get);
+
+        for (int i = 0; i < 5; i++) {
+            sampledLogger.info("line {}", i);
+        }
+        verify(logger, times(5)).info(anyString(), (Object) any());
+    }
+}
@@ -0,0 +1,40 @@
+package dk.bko.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link UuidV7}.
+ */
+public class UuidV7Tests {
+
+    @Test
+    void generatesVersion7UuidsWithTheCurrentTime() {
+        long before = System.currentTimeMillis();
+        UUID uuid = UuidV7.randomUuid();
+
+        assertThat(uuid.version()).isEqualTo(7);
+        assertThat(uuid.variant()).isEqualTo(2);
+        assertThat(UuidV7.timestampOf(uuid)).isGreaterThanOrEqualTo(before);
+    }
+
+    @Test
+    void generatesStrictlyIncreasingUuidsWithinTheSameMillisecond() {
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            uuids.add(UuidV7.randomUuid());
+        }
+
+        // Both the binary order and the textual order (used by VARCHAR columns and logs) are increasing
+        for (int i = 1; i < uuids.size(); i++) {
+            assertThat(Long.compareUnsigned(uuids.get(i).getMostSignificantBits(),
+                    uuids.get(i - 1).getMostSignificantBits())).isPositive();
+            assertThat(uuids.get(i).toString()).isGreaterThan(uuids.get(i - 1).toString());
+        }
+    }
+}